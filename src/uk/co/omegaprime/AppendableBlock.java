@@ -0,0 +1,180 @@
+package uk.co.omegaprime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// A block that values can be appended to one at a time, staying readable throughout, without re-encoding what
+// is already there. Re-encoding a whole block on each tick costs O(n^2) over the life of the block; here each
+// append costs O(1), amortised.
+//
+// The values are kept as a run of miniblocks of a fixed size, each conditioned by the DoubleContext on its own,
+// followed by a tail of the values that do not yet make up a whole miniblock, stored as they are:
+//
+//   int count, int miniblock size
+//   for each whole miniblock: int length, conditioned doubles
+//   for each value in the tail: long bits
+//
+// The tail is where the delta state lives, in effect: when it fills up it is conditioned and becomes the next
+// miniblock, and a new, empty tail starts. Nothing before the tail ever changes, so a serialised block can be
+// picked up again with open(), which decodes only the tail, and appended to from there.
+//
+// Each miniblock starts its deltas afresh, which costs a few bytes per miniblock over encoding the whole block in
+// one go; at the default size of 256 values this is under 1%. For archiving, a finished block can still be
+// re-encoded as one.
+//
+// Thread safe: appends and reads can come from different threads, and a read sees some prefix of the appends.
+public class AppendableBlock {
+    public static final int DEFAULT_MINIBLOCK_SIZE = 256;
+    static final int HEADER_BYTES = 4 + 4;
+
+    // A ByteArrayOutputStream that can be read from without copying it
+    private static class Buffer extends ByteArrayOutputStream {
+        InputStream input() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    private final DoubleContext context;
+    private final int miniblockSize;
+    // The whole miniblocks, each with its length in front
+    private final Buffer miniblocks = new Buffer();
+    private final DataOutputStream miniblocksOut = new DataOutputStream(miniblocks);
+    private final ByteArrayOutputStream conditioned = new ByteArrayOutputStream();
+    private final double[] tail;
+    private int tailSize;
+    private int count;
+
+    public AppendableBlock(DoubleContext context) {
+        this(context, DEFAULT_MINIBLOCK_SIZE);
+    }
+
+    public AppendableBlock(DoubleContext context, int miniblockSize) {
+        if (miniblockSize <= 0) throw new IllegalArgumentException("Miniblock size must be positive, not " + miniblockSize);
+
+        this.context = context;
+        this.miniblockSize = miniblockSize;
+        this.tail = new double[miniblockSize];
+    }
+
+    // Carries on appending to a block serialised by writeTo(), which must have been written with an identically
+    // configured context. Only the tail is decoded.
+    public static AppendableBlock open(byte[] bytes, DoubleContext context) throws IOException {
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        final int count = dis.readInt(), miniblockSize = dis.readInt();
+        if (count < 0 || miniblockSize <= 0) throw new IOException("Corrupt appendable block: " + count + " values in miniblocks of " + miniblockSize);
+
+        final int whole = count / miniblockSize;
+        int position = HEADER_BYTES;
+        for (int i = 0; i < whole; i++) {
+            if (position + 4 > bytes.length) throw new IOException("Appendable block truncated in miniblock " + i);
+            final int length = getInt(bytes, position);
+            if (length < 0 || position + 4 + length > bytes.length) throw new IOException("Appendable block truncated in miniblock " + i);
+            position += 4 + length;
+        }
+        final int tailSize = count - whole * miniblockSize;
+        if (8L * tailSize > bytes.length - position) throw new IOException("Appendable block truncated in tail");
+
+        final AppendableBlock block = new AppendableBlock(context, miniblockSize);
+        block.miniblocks.write(bytes, HEADER_BYTES, position - HEADER_BYTES);
+
+        dis.skipBytes(position - HEADER_BYTES);
+        block.tailSize = tailSize;
+        for (int i = 0; i < block.tailSize; i++) block.tail[i] = Double.longBitsToDouble(dis.readLong());
+        block.count = count;
+        return block;
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    // Size of the block as writeTo() would write it
+    public synchronized int size() {
+        return HEADER_BYTES + miniblocks.size() + 8 * tailSize;
+    }
+
+    public synchronized void append(double x) throws IOException {
+        tail[tailSize++] = x;
+        count++;
+        if (tailSize == miniblockSize) seal();
+    }
+
+    public synchronized void append(double[] xs, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, miniblockSize - tailSize);
+            System.arraycopy(xs, off, tail, tailSize, n);
+            tailSize += n;
+            count += n;
+            off += n;
+            len -= n;
+            if (tailSize == miniblockSize) seal();
+        }
+    }
+
+    // Conditions the full tail into a miniblock
+    private void seal() throws IOException {
+        conditioned.reset();
+        context.write(tail, 0, miniblockSize, conditioned);
+        miniblocksOut.writeInt(conditioned.size());
+        conditioned.writeTo(miniblocksOut);
+        tailSize = 0;
+    }
+
+    public synchronized void writeTo(OutputStream os) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(count);
+        dos.writeInt(miniblockSize);
+        miniblocks.writeTo(dos);
+        for (int i = 0; i < tailSize; i++) dos.writeLong(Double.doubleToRawLongBits(tail[i]));
+        dos.flush();
+    }
+
+    public synchronized byte[] toByteArray() throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(size());
+        writeTo(baos);
+        return baos.toByteArray();
+    }
+
+    // Decodes every value appended so far into xs[off] onwards, returning how many there were
+    public synchronized int read(double[] xs, int off) throws IOException {
+        final int whole = count / miniblockSize;
+        final DataInputStream dis = new DataInputStream(miniblocks.input());
+        for (int i = 0; i < whole; i++) {
+            dis.readInt();
+            context.read(xs, off + i * miniblockSize, miniblockSize, dis);
+        }
+        System.arraycopy(tail, 0, xs, off + whole * miniblockSize, tailSize);
+        return count;
+    }
+
+    // The number of values in a block serialised by writeTo(), which is how big an array read() needs
+    public static int count(byte[] bytes) throws IOException {
+        if (bytes.length < HEADER_BYTES) throw new IOException("Appendable block truncated in header");
+        return getInt(bytes, 0);
+    }
+
+    private static int getInt(byte[] bytes, int i) {
+        return ((bytes[i] & 0xFF) << 24) | ((bytes[i + 1] & 0xFF) << 16) | ((bytes[i + 2] & 0xFF) << 8) | (bytes[i + 3] & 0xFF);
+    }
+
+    // Decodes a block serialised by writeTo() into xs[off] onwards, returning the number of values in it
+    public static int read(InputStream is, DoubleContext context, double[] xs, int off) throws IOException {
+        final DataInputStream dis = new DataInputStream(is);
+        final int count = dis.readInt(), miniblockSize = dis.readInt();
+        if (count < 0 || miniblockSize <= 0) throw new IOException("Corrupt appendable block: " + count + " values in miniblocks of " + miniblockSize);
+        if (count > xs.length - off) throw new IOException("Corrupt appendable block: " + count + " values will not fit in " + (xs.length - off));
+
+        final int whole = count / miniblockSize;
+        for (int i = 0; i < whole; i++) {
+            dis.readInt();
+            context.read(xs, off + i * miniblockSize, miniblockSize, dis);
+        }
+        for (int i = whole * miniblockSize; i < count; i++) xs[off + i] = Double.longBitsToDouble(dis.readLong());
+        return count;
+    }
+}
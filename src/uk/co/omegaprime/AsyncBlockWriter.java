@@ -0,0 +1,379 @@
+package uk.co.omegaprime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Writes the same block files as BlockWriter, but pipelines the work so that the thread calling write() only
+// has to copy the values. One thread conditions block N + 1 while another compresses and frames block N and an
+// AsynchronousFileChannel writes block N - 1:
+//
+//   write() --> [conditioned] --> condition --> [compressed] --> compress and frame --> channel write --+
+//      ^                                                                                                |
+//      +----------------------------------------- [free blocks] <---------------------------------------+
+//
+// There are a fixed number of blocks' worth of buffers, which circulate from the caller through the stages
+// and back again once their frame is on disk. When they are all in use, write() waits for one to come back,
+// which is the backpressure that stops a fast feed from queueing up unbounded work behind a slow disk.
+//
+// Blocks keep their order: each stage takes them first in, first out, and the compressing thread hands out
+// file positions in the order it frames them, so even if the channel completes writes out of order they land
+// in the right places.
+//
+// Files can be checksummed, as with BlockWriter. The compressing thread, which frames the blocks, computes the
+// checksums too, so they cost the caller nothing. Checkpoints are not supported.
+//
+// A failure in any stage is kept, the remaining blocks are passed along untouched so that nothing waits for
+// ever, and the failure is thrown from the caller's next write(), flush() or close().
+//
+// The DoubleContext belongs to the conditioning thread from then on, so must not be used by anything else.
+// write() and close() are meant to be called from one thread.
+public class AsyncBlockWriter implements Closeable {
+    public static final int DEFAULT_DEPTH = 4;
+
+    private static final AtomicInteger WRITERS = new AtomicInteger();
+
+    // A block's worth of buffers, from its values through to its frame
+    private static class Block {
+        long[] timestamps = new long[0];
+        double[] values = new double[0];
+        int len;
+        final ByteArrayOutputStream timestampSection = new ByteArrayOutputStream();
+        final ByteArrayOutputStream valueSection = new ByteArrayOutputStream();
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        BlockStats stats;
+        boolean last;
+    }
+
+    private final AsynchronousFileChannel channel;
+    private final DoubleContext context;
+    private final boolean timestamped;
+    private final boolean deflated;
+    private final boolean checksummed;
+    private final int depth;
+
+    private final BlockingQueue<Block> free;
+    private final BlockingQueue<Block> toCondition;
+    private final BlockingQueue<Block> toCompress;
+    // One permit per block not yet on disk, all of which close() takes back before writing the index
+    private final Semaphore unwritten;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final Thread conditioner;
+    private final Thread compressor;
+
+    // Only touched by the compressing thread until it has finished
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<BlockStats> stats = new ArrayList<>();
+    private final List<Long> firstTimestamps = new ArrayList<>();
+    private final List<Long> lastTimestamps = new ArrayList<>();
+    private long position = BlockWriter.HEADER_BYTES;
+
+    private long lastTimestamp = Long.MIN_VALUE;
+    private boolean closed;
+
+    public AsyncBlockWriter(Path path, DoubleContext context, boolean timestamped, boolean deflated) throws IOException {
+        this(path, context, timestamped, deflated, DEFAULT_DEPTH);
+    }
+
+    // depth is the number of blocks that can be in the pipeline at once, and needs to be at least 3 to keep all
+    // of the stages busy
+    public AsyncBlockWriter(Path path, DoubleContext context, boolean timestamped, boolean deflated, int depth) throws IOException {
+        this(path, context, timestamped, deflated, depth, false);
+    }
+
+    public AsyncBlockWriter(Path path, DoubleContext context, boolean timestamped, boolean deflated, int depth, boolean checksummed) throws IOException {
+        if (depth <= 0) throw new IllegalArgumentException("Pipeline depth must be positive, not " + depth);
+
+        this.context = context;
+        this.timestamped = timestamped;
+        this.deflated = deflated;
+        this.checksummed = checksummed;
+        this.depth = depth;
+        this.free = new ArrayBlockingQueue<>(depth);
+        this.toCondition = new ArrayBlockingQueue<>(depth + 1);
+        this.toCompress = new ArrayBlockingQueue<>(depth + 1);
+        this.unwritten = new Semaphore(depth);
+        for (int i = 0; i < depth; i++) free.add(new Block());
+
+        this.channel = AsynchronousFileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(BlockWriter.HEADER_BYTES);
+            header.putInt(BlockWriter.MAGIC);
+            header.putInt((timestamped ? BlockWriter.FLAG_TIMESTAMPED : 0) | (deflated ? BlockWriter.FLAG_DEFLATED : 0) | (checksummed ? BlockWriter.FLAG_CHECKSUMMED : 0));
+            header.flip();
+            writeFully(header, 0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        final int writer = WRITERS.incrementAndGet();
+        this.conditioner = new Thread(this::condition, "async-block-writer-" + writer + "-condition");
+        this.compressor = new Thread(this::compress, "async-block-writer-" + writer + "-compress");
+        conditioner.setDaemon(true);
+        compressor.setDaemon(true);
+        conditioner.start();
+        compressor.start();
+    }
+
+    public void write(double[] xs, int off, int len) throws IOException {
+        if (timestamped) throw new IllegalStateException("Every block of a timestamped file needs timestamps");
+        // An empty block's zero count would read as the end of the frames to BlockIndex.recover
+        if (len == 0) throw new IllegalArgumentException("Blocks cannot be empty");
+
+        enqueue(null, xs, off, len);
+    }
+
+    // timestamps[off + i] is the time of xs[off + i]
+    public void write(long[] timestamps, double[] xs, int off, int len) throws IOException {
+        if (!timestamped) throw new IllegalStateException("Not a timestamped file");
+        if (len == 0) throw new IllegalArgumentException("Timestamped blocks cannot be empty");
+
+        long last = lastTimestamp;
+        for (int i = off; i < off + len; i++) {
+            if (timestamps[i] < last) throw new IllegalArgumentException("Timestamp " + timestamps[i] + " comes after " + last);
+            last = timestamps[i];
+        }
+
+        enqueue(timestamps, xs, off, len);
+        lastTimestamp = last;
+    }
+
+    private void enqueue(long[] timestamps, double[] xs, int off, int len) throws IOException {
+        if (closed) throw new IllegalStateException("Already closed");
+        rethrow();
+
+        final Block block = take(free);
+        if (block.values.length < len) {
+            block.values = new double[len];
+            if (timestamped) block.timestamps = new long[len];
+        }
+        System.arraycopy(xs, off, block.values, 0, len);
+        if (timestamps != null) System.arraycopy(timestamps, off, block.timestamps, 0, len);
+        block.len = len;
+        block.last = false;
+        put(toCondition, block);
+    }
+
+    private static Block take(BlockingQueue<Block> queue) throws InterruptedIOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the pipeline");
+        }
+    }
+
+    private static void put(BlockingQueue<Block> queue, Block block) throws InterruptedIOException {
+        try {
+            queue.put(block);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the pipeline");
+        }
+    }
+
+    private void fail(Throwable t) {
+        failure.compareAndSet(null, t);
+    }
+
+    private void rethrow() throws IOException {
+        final Throwable t = failure.get();
+        if (t != null) throw new IOException("Asynchronous block write failed", t);
+    }
+
+    // The conditioning stage
+    private void condition() {
+        final Scratch scratch = new Scratch();
+        try {
+            while (true) {
+                final Block block = take(toCondition);
+                // Read before handing the block on, after which it can come all the way round and be reused
+                final boolean last = block.last;
+                if (!last && failure.get() == null) {
+                    try {
+                        block.timestampSection.reset();
+                        if (timestamped) Conditioner.writeLongDelta(BlockWriter.TIMESTAMP_CODEC, block.timestamps, 0, block.len, block.timestampSection, scratch);
+                        block.valueSection.reset();
+                        context.write(block.values, 0, block.len, block.valueSection);
+                        block.stats = BlockStats.of(block.values, 0, block.len);
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+                put(toCompress, block);
+                if (last) return;
+            }
+        } catch (InterruptedIOException e) {
+            fail(e);
+        }
+    }
+
+    // The compressing and framing stage, which also starts the writes
+    private void compress() {
+        final Deflater deflater = deflated ? new Deflater() : null;
+        final CRC32 crc = checksummed ? new CRC32() : null;
+        final ByteArrayOutputStream deflatedSection = new ByteArrayOutputStream();
+        try {
+            while (true) {
+                final Block block = take(toCompress);
+                if (block.last) return;
+                if (failure.get() != null) {
+                    free.add(block);
+                    continue;
+                }
+
+                try {
+                    block.frame.reset();
+                    if (crc != null) crc.reset();
+                    final DataOutputStream frame = new DataOutputStream(crc == null ? block.frame : new CheckedOutputStream(block.frame, crc));
+                    frame.writeInt(block.len);
+                    if (timestamped) writeSection(block.timestampSection, frame, deflater, deflatedSection);
+                    writeSection(block.valueSection, frame, deflater, deflatedSection);
+                    if (crc != null) frame.writeInt((int)crc.getValue());
+                } catch (Throwable t) {
+                    fail(t);
+                    free.add(block);
+                    continue;
+                }
+
+                final long offset = position;
+                offsets.add(offset);
+                stats.add(block.stats);
+                if (timestamped) {
+                    firstTimestamps.add(block.timestamps[0]);
+                    lastTimestamps.add(block.timestamps[block.len - 1]);
+                }
+                position += block.frame.size();
+
+                unwritten.acquireUninterruptibly();
+                startWrite(block, ByteBuffer.wrap(block.frame.toByteArray()), offset);
+            }
+        } catch (InterruptedIOException e) {
+            fail(e);
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+    }
+
+    private static void writeSection(ByteArrayOutputStream section, DataOutputStream frame, Deflater deflater, ByteArrayOutputStream deflatedSection) throws IOException {
+        if (deflater == null) {
+            frame.writeInt(section.size());
+            section.writeTo(frame);
+            return;
+        }
+
+        deflatedSection.reset();
+        deflater.reset();
+        final DeflaterOutputStream dos = new DeflaterOutputStream(deflatedSection, deflater, 4096);
+        section.writeTo(dos);
+        dos.finish();
+        frame.writeInt(deflatedSection.size());
+        deflatedSection.writeTo(frame);
+    }
+
+    // Writes the whole of buffer at offset, carrying on from partial writes, and hands the block back once done
+    private void startWrite(Block block, ByteBuffer buffer, long offset) {
+        channel.write(buffer, offset, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer written, Void attachment) {
+                if (buffer.hasRemaining()) {
+                    try {
+                        channel.write(buffer, offset + buffer.position(), null, this);
+                        return;
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+                done();
+            }
+
+            @Override
+            public void failed(Throwable t, Void attachment) {
+                fail(t);
+                done();
+            }
+
+            private void done() {
+                free.add(block);
+                unwritten.release();
+            }
+        });
+    }
+
+    private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset).get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Block file write failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing block file");
+        }
+    }
+
+    // Waits until every block written so far is on its way to disk (though not necessarily synced), throwing
+    // if any of them failed
+    public void flush() throws IOException {
+        if (closed) return;
+
+        // Wait for the free list to fill back up, i.e. for every block to have come all the way round
+        final List<Block> drained = new ArrayList<>(depth);
+        try {
+            while (drained.size() < depth) drained.add(take(free));
+        } finally {
+            free.addAll(drained);
+        }
+        rethrow();
+    }
+
+    // Drains the pipeline, writes the index and syncs and closes the file
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            final Block last = take(free);
+            last.last = true;
+            put(toCondition, last);
+            try {
+                conditioner.join();
+                compressor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the pipeline");
+            }
+            unwritten.acquireUninterruptibly(depth);
+            rethrow();
+
+            final ByteArrayOutputStream index = new ByteArrayOutputStream();
+            new BlockIndex(timestamped, deflated, false, checksummed, position, BlockIndex.toArray(offsets), BlockIndex.toArray(firstTimestamps), BlockIndex.toArray(lastTimestamps), stats).write(new DataOutputStream(index));
+            writeFully(ByteBuffer.wrap(index.toByteArray()), position);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
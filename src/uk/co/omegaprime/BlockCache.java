@@ -0,0 +1,209 @@
+package uk.co.omegaprime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decoded blocks, kept for the next query that wants them, up to a budget of bytes. Blocks are decoded straight
+// into direct buffers (see DoubleTarget), so a cache of many megabytes adds almost nothing to the heap for the
+// garbage collector to trace.
+//
+// Eviction is segmented LRU, which stops a one-off scan over a long history from flushing out the blocks that
+// are in constant use. A block comes in on probation, and only moves to the protected segment if it is asked
+// for again while still there. The protected segment gets up to PROTECTED_FRACTION of the budget, and what
+// falls out of it goes back on probation rather than straight out. New blocks are evicted from probation first,
+// so a scan churns through probation and leaves the protected blocks alone.
+//
+// The buffers handed out are read-only views of what is cached. Nothing is ever decoded into a buffer again once
+// it has been handed out, so they stay valid after eviction (their memory is freed when the last view goes).
+//
+// Thread safe. Blocks are decoded outside the lock, so misses on different blocks do not wait for each other,
+// though two threads missing on the same block at once will both decode it. That means loaders must be thread
+// safe themselves, and that a series can be invalidated while one of its blocks is being decoded: such a block is
+// still returned to whoever asked for it, but it is not cached, since it may well have come from the old file.
+public class BlockCache {
+    public static final double PROTECTED_FRACTION = 0.8;
+
+    // Decodes a block into a target of exactly the block's length
+    public interface Loader {
+        public void load(DoubleTarget target) throws IOException;
+    }
+
+    private static final class Key {
+        final Object series;
+        final int block;
+
+        Key(Object series, int block) {
+            this.series = series;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key that = (Key)o;
+            return block == that.block && series.equals(that.series);
+        }
+
+        @Override
+        public int hashCode() {
+            return series.hashCode() * 31 + block;
+        }
+    }
+
+    private final long budget;
+    private final long protectedBudget;
+
+    // Both in least to most recently used order, guarded by this
+    private final LinkedHashMap<Key, DoubleBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, DoubleBuffer> protect = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    // How many times each series has been invalidated, guarded by this. Series never invalidated are not present.
+    private final HashMap<Object, Long> generations = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public BlockCache(long budgetBytes) {
+        if (budgetBytes <= 0) throw new IllegalArgumentException("Budget must be positive, not " + budgetBytes);
+
+        this.budget = budgetBytes;
+        this.protectedBudget = (long)(budgetBytes * PROTECTED_FRACTION);
+    }
+
+    private static long bytes(DoubleBuffer buffer) {
+        return 8L * buffer.capacity();
+    }
+
+    // The given block of a series, decoded by loader if it is not already cached. series can be anything with
+    // equals and hashCode that tells series apart, such as a name or path.
+    public DoubleBuffer get(Object series, int block, int count, Loader loader) throws IOException {
+        final Key key = new Key(series, block);
+        final long generation = generation(series);
+        final DoubleBuffer cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.asReadOnlyBuffer();
+        }
+
+        misses.incrementAndGet();
+        final DoubleBuffer buffer = ByteBuffer.allocateDirect(8 * count).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        loader.load(DoubleTarget.of(buffer));
+        insert(key, buffer, generation);
+        return buffer.asReadOnlyBuffer();
+    }
+
+    // A block of a block file, where series identifies the file. BlockReaders are not thread safe, so decodes from
+    // the same reader are done one at a time.
+    public DoubleBuffer get(Object series, BlockReader reader, int block) throws IOException {
+        return get(series, block, reader.stats(block).count, target -> {
+            synchronized (reader) {
+                reader.read(block, target);
+            }
+        });
+    }
+
+    private synchronized long generation(Object series) {
+        final Long generation = generations.get(series);
+        return generation == null ? 0 : generation;
+    }
+
+    private synchronized DoubleBuffer lookup(Key key) {
+        DoubleBuffer buffer = protect.get(key);
+        if (buffer != null) return buffer;
+
+        buffer = probation.remove(key);
+        if (buffer == null) return null;
+
+        // Asked for twice, so worth protecting
+        probationBytes -= bytes(buffer);
+        protect.put(key, buffer);
+        protectedBytes += bytes(buffer);
+        while (protectedBytes > protectedBudget) {
+            final Iterator<Map.Entry<Key, DoubleBuffer>> it = protect.entrySet().iterator();
+            final Map.Entry<Key, DoubleBuffer> eldest = it.next();
+            it.remove();
+            protectedBytes -= bytes(eldest.getValue());
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += bytes(eldest.getValue());
+        }
+        evict();
+        return buffer;
+    }
+
+    private synchronized void insert(Key key, DoubleBuffer buffer, long generation) {
+        // Invalidated while it was being decoded, something else got there first, or it would push everything else
+        // out and still not fit
+        if (generation(key.series) != generation) return;
+        if (protect.containsKey(key) || probation.containsKey(key) || bytes(buffer) > budget) return;
+
+        probation.put(key, buffer);
+        probationBytes += bytes(buffer);
+        evict();
+    }
+
+    private void evict() {
+        while (probationBytes + protectedBytes > budget) {
+            final LinkedHashMap<Key, DoubleBuffer> from = probation.isEmpty() ? protect : probation;
+            final Iterator<Map.Entry<Key, DoubleBuffer>> it = from.entrySet().iterator();
+            final long bytes = bytes(it.next().getValue());
+            it.remove();
+            if (from == probation) probationBytes -= bytes;
+            else protectedBytes -= bytes;
+            evictions.incrementAndGet();
+        }
+    }
+
+    // Drops every cached block of a series, e.g. because its file has been replaced
+    public synchronized void invalidate(Object series) {
+        generations.put(series, generation(series) + 1);
+        probationBytes -= invalidate(probation, series);
+        protectedBytes -= invalidate(protect, series);
+    }
+
+    private static long invalidate(LinkedHashMap<Key, DoubleBuffer> segment, Object series) {
+        long removed = 0;
+        final Iterator<Map.Entry<Key, DoubleBuffer>> it = segment.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Key, DoubleBuffer> entry = it.next();
+            if (!entry.getKey().series.equals(series)) continue;
+
+            it.remove();
+            removed += bytes(entry.getValue());
+        }
+        return removed;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    // Bytes of decoded values currently cached
+    public synchronized long size() {
+        return probationBytes + protectedBytes;
+    }
+
+    public synchronized int blockCount() {
+        return probation.size() + protect.size();
+    }
+
+    public long budget() {
+        return budget;
+    }
+}
@@ -0,0 +1,213 @@
+package uk.co.omegaprime;
+
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Where the blocks of a block file are and what is in them. This normally comes from the index at the end of a
+// closed file, but can also be snapshotted from a BlockWriter that is still going, or rebuilt by walking the
+// frames of a file whose writer died before it could write the index.
+class BlockIndex {
+    final boolean timestamped;
+    final boolean deflated;
+    final boolean checkpointed;
+    final boolean checksummed;
+    // Offset of the end of the last frame, which is also where the index starts in a closed file
+    final long end;
+    final long[] offsets;
+    final long[] firstTimestamps;
+    final long[] lastTimestamps;
+    final List<BlockStats> stats;
+
+    BlockIndex(boolean timestamped, boolean deflated, boolean checkpointed, boolean checksummed, long end, long[] offsets, long[] firstTimestamps, long[] lastTimestamps, List<BlockStats> stats) {
+        this.timestamped = timestamped;
+        this.deflated = deflated;
+        this.checkpointed = checkpointed;
+        this.checksummed = checksummed;
+        this.end = end;
+        this.offsets = offsets;
+        this.firstTimestamps = firstTimestamps;
+        this.lastTimestamps = lastTimestamps;
+        this.stats = Collections.unmodifiableList(stats);
+    }
+
+    int blockCount() {
+        return offsets.length;
+    }
+
+    private static int readFlags(ByteBuffer file) throws IOException {
+        if (file.limit() < BlockWriter.HEADER_BYTES || file.getInt(0) != BlockWriter.MAGIC) {
+            throw new IOException("Not a block file");
+        }
+        return file.getInt(4);
+    }
+
+    // Reads a section, inflating it if the file is deflated. One inflater can serve every section of a file, so
+    // long as each section is finished with before the next is opened.
+    static InputStream input(ByteBuffer section, Inflater inflater) {
+        if (inflater == null) return new ByteBufferInputStream(section);
+
+        inflater.reset();
+        return new InflaterInputStream(new ByteBufferInputStream(section), inflater, 4096);
+    }
+
+    // Reads the index at the end of a closed file
+    static BlockIndex read(ByteBuffer file) throws IOException {
+        final int limit = file.limit();
+        if (limit < BlockWriter.HEADER_BYTES + 8 + BlockWriter.TRAILER_BYTES || file.getInt(limit - 4) != BlockWriter.MAGIC) {
+            throw new IOException("Not a block file, or one that was never closed");
+        }
+        final int flags = readFlags(file);
+        final boolean timestamped = (flags & BlockWriter.FLAG_TIMESTAMPED) != 0;
+
+        final long indexOffset = file.getLong(limit - BlockWriter.TRAILER_BYTES);
+        if (indexOffset < BlockWriter.HEADER_BYTES || indexOffset > limit - BlockWriter.TRAILER_BYTES - 8) {
+            throw new IOException("Corrupt block file: index offset " + indexOffset + " out of range");
+        }
+
+        final ByteBuffer index = file.duplicate();
+        index.position((int)indexOffset);
+        if (index.getInt() != BlockWriter.INDEX_MARKER) {
+            throw new IOException("Corrupt block file: no index at offset " + indexOffset);
+        }
+        final int blocks = index.getInt();
+        if (blocks < 0 || (long)blocks * entryBytes(timestamped) != limit - BlockWriter.TRAILER_BYTES - indexOffset - 8) {
+            throw new IOException("Corrupt block file: index of " + blocks + " blocks does not fit");
+        }
+
+        final DataInputStream in = new DataInputStream(new ByteBufferInputStream(index));
+        final long[] offsets = new long[blocks];
+        final long[] firstTimestamps = new long[timestamped ? blocks : 0];
+        final long[] lastTimestamps = new long[timestamped ? blocks : 0];
+        final List<BlockStats> stats = new ArrayList<>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            offsets[i] = in.readLong();
+            if (timestamped) {
+                firstTimestamps[i] = in.readLong();
+                lastTimestamps[i] = in.readLong();
+            }
+            stats.add(BlockStats.read(in));
+        }
+        return new BlockIndex(timestamped, (flags & BlockWriter.FLAG_DEFLATED) != 0, (flags & BlockWriter.FLAG_CHECKPOINTED) != 0,
+                              (flags & BlockWriter.FLAG_CHECKSUMMED) != 0, indexOffset, offsets, firstTimestamps, lastTimestamps, stats);
+    }
+
+    private static int entryBytes(boolean timestamped) {
+        return 8 + (timestamped ? 16 : 0) + BlockStats.BYTES;
+    }
+
+    // Rebuilds the index of a file that was never closed by decoding its frames in order. This stops at the
+    // first frame that is cut short or does not decode, which is where a crash mid-write leaves the file, so the
+    // result covers every block that made it to disk whole. Anything after end can be thrown away.
+    static BlockIndex recover(ByteBuffer file, DoubleContext context) throws IOException {
+        final int flags = readFlags(file);
+        final boolean timestamped = (flags & BlockWriter.FLAG_TIMESTAMPED) != 0;
+        final boolean deflated = (flags & BlockWriter.FLAG_DEFLATED) != 0;
+        final boolean checkpointed = (flags & BlockWriter.FLAG_CHECKPOINTED) != 0;
+        final boolean checksummed = (flags & BlockWriter.FLAG_CHECKSUMMED) != 0;
+        final Inflater inflater = deflated ? new Inflater() : null;
+
+        final List<Long> offsets = new ArrayList<>();
+        final List<Long> firstTimestamps = new ArrayList<>();
+        final List<Long> lastTimestamps = new ArrayList<>();
+        final List<BlockStats> stats = new ArrayList<>();
+        final Scratch scratch = new Scratch();
+        long[] ts = new long[0];
+        double[] xs = new double[0];
+
+        final ByteBuffer frame = file.duplicate();
+        frame.position(BlockWriter.HEADER_BYTES);
+        long end = BlockWriter.HEADER_BYTES;
+        while (frame.remaining() >= 4) {
+            // Frames are never empty, so a zero count is unwritten space and a negative one is the index
+            final int count = frame.getInt();
+            if (count <= 0) break;
+
+            try {
+                if (timestamped) {
+                    if (ts.length < count) ts = new long[count];
+                    Conditioner.readLongDelta(BlockWriter.TIMESTAMP_CODEC, ts, 0, count, input(section(frame), inflater), scratch);
+                    for (int i = 1; i < count; i++) {
+                        if (ts[i] < ts[i - 1]) throw new IOException("Timestamps go backwards");
+                    }
+                    if (!lastTimestamps.isEmpty() && ts[0] < lastTimestamps.get(lastTimestamps.size() - 1)) {
+                        throw new IOException("Timestamps go backwards");
+                    }
+                }
+
+                if (xs.length < count) xs = new double[count];
+                context.read(xs, 0, count, input(section(frame), inflater));
+                if (checkpointed) Checkpoints.read(new DataInputStream(new ByteBufferInputStream(section(frame))), count);
+                if (checksummed) {
+                    if (frame.remaining() < 4 || frame.getInt() != checksum(file, (int)end, frame.position() - 4)) throw new IOException("Checksum mismatch");
+                }
+            } catch (IOException | RuntimeException e) {
+                break;
+            }
+
+            offsets.add(end);
+            if (timestamped) {
+                firstTimestamps.add(ts[0]);
+                lastTimestamps.add(ts[count - 1]);
+            }
+            stats.add(BlockStats.of(xs, 0, count));
+            end = frame.position();
+        }
+
+        if (inflater != null) inflater.end();
+        return new BlockIndex(timestamped, deflated, checkpointed, checksummed, end, toArray(offsets), toArray(firstTimestamps), toArray(lastTimestamps), stats);
+    }
+
+    // The next length-prefixed section of a frame, advancing past it
+    private static ByteBuffer section(ByteBuffer frame) throws IOException {
+        final int length = frame.remaining() < 4 ? -1 : frame.getInt();
+        if (length < 0 || length > frame.remaining()) throw new IOException("Section runs off the end");
+
+        final ByteBuffer section = frame.slice();
+        section.limit(length);
+        frame.position(frame.position() + length);
+        return section;
+    }
+
+    // CRC-32 of file[from] to file[to - 1], as BlockWriter computes it for a frame
+    static int checksum(ByteBuffer file, int from, int to) {
+        final ByteBuffer bytes = file.duplicate();
+        bytes.limit(to);
+        bytes.position(from);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int)crc.getValue();
+    }
+
+    static long[] toArray(List<Long> xs) {
+        final long[] result = new long[xs.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = xs.get(i);
+        }
+        return result;
+    }
+
+    // Writes the index and trailer that close a file whose frames finish at end
+    void write(DataOutput out) throws IOException {
+        out.writeInt(BlockWriter.INDEX_MARKER);
+        out.writeInt(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            out.writeLong(offsets[i]);
+            if (timestamped) {
+                out.writeLong(firstTimestamps[i]);
+                out.writeLong(lastTimestamps[i]);
+            }
+            stats.get(i).write(out);
+        }
+        out.writeLong(end);
+        out.writeInt(BlockWriter.MAGIC);
+    }
+}
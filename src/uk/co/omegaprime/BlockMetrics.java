@@ -0,0 +1,74 @@
+package uk.co.omegaprime;
+
+// Statistics about a single array that went through Conditioner, as reported to a MetricsListener.
+//
+// Byte counts are for each section of the conditioned stream *before* any downstream compressor sees it. The
+// entropy figures are order-0 estimates in bits per byte, so e.g. mantissaBytes * mantissaEntropy / 8 is
+// roughly the best a byte-oriented entropy coder could do on the mantissa section.
+public class BlockMetrics {
+    public final boolean encode;
+
+    public final int count;
+    public final int defined;
+    public final int zeros;
+    public final int nans;
+
+    public final long descriptorBytes;
+    public final long exponentBytes;
+    public final long mantissaBytes;
+
+    public final double descriptorEntropy;
+    public final double exponentEntropy;
+    public final double mantissaEntropy;
+
+    // On encode the split stage is gathering exponents and mantissas, on decode it is reassembling them
+    public final long descriptorNanos;
+    public final long splitNanos;
+    public final long exponentNanos;
+    public final long mantissaNanos;
+
+    BlockMetrics(boolean encode, int count, int defined, int zeros, int nans,
+                 long descriptorBytes, long exponentBytes, long mantissaBytes,
+                 double descriptorEntropy, double exponentEntropy, double mantissaEntropy,
+                 long descriptorNanos, long splitNanos, long exponentNanos, long mantissaNanos) {
+        this.encode = encode;
+        this.count = count;
+        this.defined = defined;
+        this.zeros = zeros;
+        this.nans = nans;
+        this.descriptorBytes = descriptorBytes;
+        this.exponentBytes = exponentBytes;
+        this.mantissaBytes = mantissaBytes;
+        this.descriptorEntropy = descriptorEntropy;
+        this.exponentEntropy = exponentEntropy;
+        this.mantissaEntropy = mantissaEntropy;
+        this.descriptorNanos = descriptorNanos;
+        this.splitNanos = splitNanos;
+        this.exponentNanos = exponentNanos;
+        this.mantissaNanos = mantissaNanos;
+    }
+
+    public long totalBytes() {
+        return descriptorBytes + exponentBytes + mantissaBytes;
+    }
+
+    public long totalNanos() {
+        return descriptorNanos + splitNanos + exponentNanos + mantissaNanos;
+    }
+
+    // Order-0 entropy estimate of the whole conditioned block, in bytes
+    public double estimatedEntropyBytes() {
+        return (descriptorBytes * descriptorEntropy + exponentBytes * exponentEntropy + mantissaBytes * mantissaEntropy) / 8;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %d values (%d defined, %d zero, %d NaN): descriptors %d bytes (%.2f bits/byte, %dns), " +
+                             "exponents %d bytes (%.2f bits/byte, %dns), mantissas %d bytes (%.2f bits/byte, %dns), split %dns",
+                             encode ? "Encoded" : "Decoded", count, defined, zeros, nans,
+                             descriptorBytes, descriptorEntropy, descriptorNanos,
+                             exponentBytes, exponentEntropy, exponentNanos,
+                             mantissaBytes, mantissaEntropy, mantissaNanos,
+                             splitNanos);
+    }
+}
@@ -0,0 +1,453 @@
+package uk.co.omegaprime;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.zip.Inflater;
+
+// Reads a file written by BlockWriter. The index is read up front, after which any block can be decoded
+// independently, and scan() decodes only those blocks whose statistics pass a filter. For instance
+//
+//   reader.scan(stats -> stats.mayContainGreaterThan(100.0), visitor)
+//
+// visits just the blocks that hold some value above 100, and never touches the bytes of the others.
+//
+// For timestamped files, scan(from, to, visitor) binary searches the index for the blocks that overlap a time
+// range and decodes only those, so a point-in-time lookup costs one block however long the history is. In a
+// file written with checkpoints, read(block, from, to, ...) narrows that further to the values wanted.
+//
+// In a checksummed file, each block's checksum is checked the first time the block is read, unless the reader
+// was asked not to, and a mismatch throws an IOException naming the block. A block that has passed is not
+// checked again by the same reader.
+//
+// Not thread safe, because decoding goes through a single DoubleContext.
+public class BlockReader {
+    public interface Visitor {
+        // values[0] to values[count - 1] hold the block. The array is reused for the next block.
+        public void visit(int block, BlockStats stats, double[] values, int count) throws IOException;
+    }
+
+    public interface RangeVisitor {
+        // timestamps[i] and values[i] for from <= i < to are the part of a block inside the requested time range.
+        // The arrays are reused for the next block.
+        public void visit(long[] timestamps, double[] values, int from, int to) throws IOException;
+    }
+
+    private final ByteBuffer file;
+    private final DoubleContext context;
+    private final long indexOffset;
+    private final boolean timestamped;
+    private final boolean checkpointed;
+    private final boolean checksummed;
+    private final boolean verify;
+    // Blocks whose checksums have been checked
+    private final BitSet verified = new BitSet();
+    private final Inflater inflater;
+    private final long[] offsets;
+    private final long[] firstTimestamps;
+    private final long[] lastTimestamps;
+    private final List<BlockStats> stats;
+    // Index of the first value of each block within the whole series, plus the total at the end
+    private final long[] starts;
+
+    private final Scratch scratch = new Scratch();
+    private final LazyDoubleReader lazy;
+    private double[] values = new double[0];
+    private long[] timestamps = new long[0];
+
+    public BlockReader(ByteBuffer file) throws IOException {
+        this(file, new DoubleContext());
+    }
+
+    public BlockReader(ByteBuffer file, DoubleContext context) throws IOException {
+        this(file, context, true);
+    }
+
+    // verify says whether to check the checksums of a checksummed file as blocks are read
+    public BlockReader(ByteBuffer file, DoubleContext context, boolean verify) throws IOException {
+        this(file, context, BlockIndex.read(file), verify);
+    }
+
+    // Reads the blocks of file listed in an index that came from somewhere other than the file itself
+    BlockReader(ByteBuffer file, DoubleContext context, BlockIndex index) {
+        this(file, context, index, true);
+    }
+
+    BlockReader(ByteBuffer file, DoubleContext context, BlockIndex index, boolean verify) {
+        this.file = file.duplicate();
+        this.context = context;
+        this.indexOffset = index.end;
+        this.timestamped = index.timestamped;
+        this.checkpointed = index.checkpointed;
+        this.checksummed = index.checksummed;
+        this.verify = verify;
+        this.inflater = index.deflated ? new Inflater() : null;
+        this.offsets = index.offsets;
+        this.firstTimestamps = index.firstTimestamps;
+        this.lastTimestamps = index.lastTimestamps;
+        this.stats = index.stats;
+        this.lazy = new LazyDoubleReader(context);
+
+        final int blocks = offsets.length;
+        starts = new long[blocks + 1];
+        for (int i = 0; i < blocks; i++) {
+            starts[i + 1] = starts[i] + stats.get(i).count;
+        }
+    }
+
+    // Maps the whole file into memory. The mapping stays valid after the channel is closed.
+    public static BlockReader open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new BlockReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int blockCount() {
+        return offsets.length;
+    }
+
+    public BlockStats stats(int block) {
+        return stats.get(block);
+    }
+
+    public List<BlockStats> stats() {
+        return stats;
+    }
+
+    // Number of values in the whole series
+    public long valueCount() {
+        return starts[starts.length - 1];
+    }
+
+    // Statistics of the whole series, straight from the index
+    public BlockStats totals() {
+        BlockStats result = BlockStats.EMPTY;
+        for (BlockStats blockStats : stats) {
+            result = result.merge(blockStats);
+        }
+        return result;
+    }
+
+    // Statistics of values [from, to) of the series, numbering values from the start of the first block. Blocks
+    // that lie wholly inside the range are answered from the index. Only the blocks at either end are read, if
+    // the range cuts through them, and even those are reduced straight from their encoded planes rather than
+    // being decoded into an array first.
+    public BlockStats aggregate(long from, long to) throws IOException {
+        checkRange(from, to);
+
+        BlockStats result = BlockStats.EMPTY;
+        for (int block = blockOf(from); block < offsets.length && starts[block] < to; block++) {
+            final BlockStats blockStats = stats.get(block);
+            final int lo = (int)Math.max(0, from - starts[block]);
+            final int hi = (int)Math.min(blockStats.count, to - starts[block]);
+            if (lo == 0 && hi == blockStats.count) {
+                result = result.merge(blockStats);
+            } else if (lo < hi) {
+                result = result.merge(context.stats(input(frame(block)), blockStats.count, lo, hi));
+            }
+        }
+        return result;
+    }
+
+    // Counting special values in a partial block needs only its descriptors, never its exponents or mantissas
+
+    public long countNaNs(long from, long to) throws IOException {
+        return countSpecials(from, to)[1];
+    }
+
+    public long countZeros(long from, long to) throws IOException {
+        return countSpecials(from, to)[0];
+    }
+
+    private long[] countSpecials(long from, long to) throws IOException {
+        checkRange(from, to);
+
+        final long[] counts = new long[2];
+        for (int block = blockOf(from); block < offsets.length && starts[block] < to; block++) {
+            final BlockStats blockStats = stats.get(block);
+            final int lo = (int)Math.max(0, from - starts[block]);
+            final int hi = (int)Math.min(blockStats.count, to - starts[block]);
+            if (lo == 0 && hi == blockStats.count) {
+                counts[0] += blockStats.zeros;
+                counts[1] += blockStats.nans;
+            } else if (lo < hi && !context.countSpecials(input(frame(block)), blockStats.count, lo, hi, counts)) {
+                final BlockStats partStats = context.stats(input(frame(block)), blockStats.count, lo, hi);
+                counts[0] += partStats.zeros;
+                counts[1] += partStats.nans;
+            }
+        }
+        return counts;
+    }
+
+    private void checkRange(long from, long to) {
+        if (from < 0 || from > to || to > valueCount()) {
+            throw new IndexOutOfBoundsException("[" + from + ", " + to + ") is not within [0, " + valueCount() + ")");
+        }
+    }
+
+    // The block holding value i, or the last block if i is the total value count
+    private int blockOf(long i) {
+        final int ix = Arrays.binarySearch(starts, 0, offsets.length, i);
+        return ix >= 0 ? ix : Math.max(0, -ix - 2);
+    }
+
+    // The bytes of one section of a block: either its timestamps or its conditioned values
+    private ByteBuffer section(int block, boolean wantTimestamps) throws IOException {
+        if (offsets[block] < BlockWriter.HEADER_BYTES || offsets[block] > indexOffset - 8) {
+            throw new IOException("Corrupt block file: block " + block + " offset " + offsets[block] + " out of range");
+        }
+
+        final ByteBuffer frame = file.duplicate();
+        frame.limit((int)indexOffset);
+        frame.position((int)offsets[block]);
+        if (frame.getInt() != stats.get(block).count) {
+            throw new IOException("Corrupt block file: frame of block " + block + " does not match the index");
+        }
+        if (checksummed && verify && !verified.get(block)) {
+            verifyFrame(block, frame.duplicate());
+            verified.set(block);
+        }
+
+        // Timestamps come first, if there are any
+        if (timestamped) {
+            final int length = sectionLength(frame, block);
+            if (wantTimestamps) {
+                frame.limit(frame.position() + length);
+                return frame;
+            }
+            frame.position(frame.position() + length);
+        }
+
+        final int length = sectionLength(frame, block);
+        frame.limit(frame.position() + length);
+        return frame;
+    }
+
+    // Checks the checksum of a frame, given just past its count
+    private void verifyFrame(int block, ByteBuffer frame) throws IOException {
+        final int sections = (timestamped ? 1 : 0) + 1 + (checkpointed ? 1 : 0);
+        for (int i = 0; i < sections; i++) {
+            final int length = sectionLength(frame, block);
+            frame.position(frame.position() + length);
+        }
+        if (frame.remaining() < 4) throw new IOException("Corrupt block file: checksum of block " + block + " runs off the end");
+
+        final int expected = frame.getInt(frame.position());
+        final int actual = BlockIndex.checksum(frame, (int)offsets[block], frame.position());
+        if (actual != expected) {
+            throw new IOException("Corrupt block file: checksum of block " + block + " is " + Integer.toHexString(actual) + ", not " + Integer.toHexString(expected));
+        }
+    }
+
+    // Checks the checksum of every block, if the file has them, without decoding anything
+    public void verify() throws IOException {
+        if (!checksummed) return;
+
+        for (int block = 0; block < offsets.length; block++) {
+            if (verified.get(block)) continue;
+            if (offsets[block] < BlockWriter.HEADER_BYTES || offsets[block] > indexOffset - 8) {
+                throw new IOException("Corrupt block file: block " + block + " offset " + offsets[block] + " out of range");
+            }
+            final ByteBuffer frame = file.duplicate();
+            frame.limit((int)indexOffset);
+            frame.position((int)offsets[block] + 4);
+            verifyFrame(block, frame);
+            verified.set(block);
+        }
+    }
+
+    public boolean isChecksummed() {
+        return checksummed;
+    }
+
+    private static int sectionLength(ByteBuffer frame, int block) throws IOException {
+        final int length = frame.remaining() < 4 ? -1 : frame.getInt();
+        if (length < 0 || length > frame.remaining()) {
+            throw new IOException("Corrupt block file: section of block " + block + " runs off the end");
+        }
+        return length;
+    }
+
+    private InputStream input(ByteBuffer section) {
+        return BlockIndex.input(section, inflater);
+    }
+
+    private ByteBuffer frame(int block) throws IOException {
+        return section(block, false);
+    }
+
+    // Decodes block into xs[off] to xs[off + stats(block).count - 1]
+    public void read(int block, double[] xs, int off) throws IOException {
+        final int count = stats.get(block).count;
+        if (off < 0 || off > xs.length - count) throw new IndexOutOfBoundsException("Block " + block + " of " + count + " values does not fit at " + off + " in an array of " + xs.length);
+
+        final InputStream is = input(frame(block));
+        try {
+            context.read(xs, off, count, is);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt block file: block " + block + " does not decode", e);
+        }
+    }
+
+    // Decodes block straight into target, which must be exactly stats(block).count long
+    public void read(int block, DoubleTarget target) throws IOException {
+        final int count = stats.get(block).count;
+        if (target.length() != count) throw new IllegalArgumentException("Block " + block + " has " + count + " values, not " + target.length());
+        final InputStream is = input(frame(block));
+        try {
+            context.read(target, is);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt block file: block " + block + " does not decode", e);
+        }
+    }
+
+    // Decodes values [from, to) of block into xs[off] onwards. In a checkpointed file only what those values need
+    // is decoded, though a deflated block still has to be inflated whole; otherwise the whole block is decoded
+    // and the range copied out of it.
+    public void read(int block, int from, int to, double[] xs, int off) throws IOException {
+        final int count = stats.get(block).count;
+        if (from < 0 || from > to || to > count) throw new IndexOutOfBoundsException("[" + from + ", " + to + ") is not within block " + block + " of " + count + " values");
+        if (from == to) return;
+
+        if (off < 0 || off > xs.length - (to - from)) throw new IndexOutOfBoundsException("Values [" + from + ", " + to + ") do not fit at " + off + " in an array of " + xs.length);
+
+        final ByteBuffer section = frame(block);
+        try {
+            if (!checkpointed || context.trimsMantissas()) {
+                final double[] all = scratch.doubles(count);
+                context.read(all, 0, count, input(section));
+                System.arraycopy(all, from, xs, off, to - from);
+                return;
+            }
+
+            final Checkpoints checkpoints = checkpoints(block, section);
+            if (inflater == null) {
+                context.readRange(section, count, checkpoints, from, to, xs, off);
+            } else {
+                final int length = (context.specialCases() ? (count + 3) >>> 2 : (count + 7) >>> 3) + (DoubleContext.EXPONENT_BYTES + DoubleContext.MANTISSA_BYTES) * checkpoints.total;
+                final byte[] inflated = scratch.bytes(length);
+                Conditioner.readFully(input(section), inflated, 0, length);
+                context.readRange(ByteBuffer.wrap(inflated, 0, length), count, checkpoints, from, to, xs, off);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt block file: block " + block + " does not decode", e);
+        }
+    }
+
+    // The checkpoints that follow the given section of conditioned values
+    private Checkpoints checkpoints(int block, ByteBuffer values) throws IOException {
+        final ByteBuffer after = file.duplicate();
+        after.limit((int)indexOffset);
+        after.position(values.limit());
+        final int length = sectionLength(after, block);
+        after.limit(after.position() + length);
+        return Checkpoints.read(new DataInputStream(new ByteBufferInputStream(after)), stats.get(block).count);
+    }
+
+    // A reader that decodes the values of a block only as far as the questions put to it need. It is only good
+    // until the next call on this BlockReader.
+    public LazyDoubleReader lazy(int block) throws IOException {
+        lazy.reset(input(frame(block)), stats.get(block).count);
+        return lazy;
+    }
+
+    public boolean isTimestamped() {
+        return timestamped;
+    }
+
+    public long firstTimestamp(int block) {
+        checkTimestamped();
+        return firstTimestamps[block];
+    }
+
+    public long lastTimestamp(int block) {
+        checkTimestamped();
+        return lastTimestamps[block];
+    }
+
+    // Decodes the timestamps of block into ts[off] to ts[off + stats(block).count - 1]
+    public void readTimestamps(int block, long[] ts, int off) throws IOException {
+        checkTimestamped();
+        Conditioner.readLongDelta(BlockWriter.TIMESTAMP_CODEC, ts, off, stats.get(block).count, input(section(block, true)), scratch);
+    }
+
+    // The last block that starts at or before the given time, or -1 if every block starts after it. This is the
+    // block to look in for the latest value as of that time (though if the time falls between two blocks, the
+    // value wanted is this block's last).
+    public int findBlock(long timestamp) {
+        checkTimestamped();
+        int lo = 0, hi = firstTimestamps.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (firstTimestamps[mid] <= timestamp) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
+    // Decodes just the blocks with some timestamp in [from, to), and hands each one's overlap with that range to
+    // the visitor in time order. Returns the number of blocks decoded.
+    public int scan(long from, long to, RangeVisitor visitor) throws IOException {
+        checkTimestamped();
+
+        // First block whose last timestamp is >= from. Since timestamps never decrease, neither do those.
+        int lo = 0, hi = lastTimestamps.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (lastTimestamps[mid] < from) lo = mid + 1;
+            else hi = mid;
+        }
+
+        int decoded = 0;
+        for (int block = lo; block < offsets.length && firstTimestamps[block] < to && from < to; block++) {
+            final int count = stats.get(block).count;
+            if (timestamps.length < count) timestamps = new long[count];
+            if (values.length < count) values = new double[count];
+            readTimestamps(block, timestamps, 0);
+            read(block, values, 0);
+            decoded++;
+
+            final int start = lowerBound(timestamps, count, from), end = lowerBound(timestamps, count, to);
+            if (start < end) visitor.visit(timestamps, values, start, end);
+        }
+        return decoded;
+    }
+
+    // First i such that ts[i] >= t, or count if none is
+    private static int lowerBound(long[] ts, int count, long t) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (ts[mid] < t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private void checkTimestamped() {
+        if (!timestamped) throw new IllegalStateException("Not a timestamped file");
+    }
+
+    // Decodes every block that passes the filter, in order, and returns how many that was
+    public int scan(Predicate<BlockStats> filter, Visitor visitor) throws IOException {
+        int decoded = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            final BlockStats blockStats = stats.get(i);
+            if (!filter.test(blockStats)) continue;
+
+            if (values.length < blockStats.count) values = new double[blockStats.count];
+            read(i, values, 0);
+            visitor.visit(i, blockStats, values, blockStats.count);
+            decoded++;
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,161 @@
+package uk.co.omegaprime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Accumulates a BlockMetrics while Conditioner works through the sections of one array. Only ever constructed
+// when a MetricsListener is installed: all the extra work (counting bytes, histogramming them for the entropy
+// estimate, and reading the clock) lives here so that the uninstrumented path is unchanged.
+class BlockRecorder {
+    private final MetricsListener listener;
+    private final boolean encode;
+    private final int count;
+
+    private final long[] histogram = new long[256];
+    private long sectionBytes;
+
+    private int defined, zeros, nans;
+    private long descriptorBytes, exponentBytes, mantissaBytes;
+    private double descriptorEntropy, exponentEntropy, mantissaEntropy;
+    private long descriptorNanos, splitNanos, exponentNanos, mantissaNanos;
+
+    private long lastNanos = System.nanoTime();
+
+    BlockRecorder(MetricsListener listener, boolean encode, int count) {
+        this.listener = listener;
+        this.encode = encode;
+        this.count = count;
+    }
+
+    private void observe(int b) {
+        histogram[b & 0xFF]++;
+        sectionBytes++;
+    }
+
+    private void observe(byte[] bs, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            histogram[bs[i] & 0xFF]++;
+        }
+        sectionBytes += len;
+    }
+
+    OutputStream wrap(OutputStream os) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                os.write(b);
+                observe(b);
+            }
+
+            @Override
+            public void write(byte[] bs, int off, int len) throws IOException {
+                os.write(bs, off, len);
+                observe(bs, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                os.flush();
+            }
+        };
+    }
+
+    InputStream wrap(InputStream is) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                final int b = is.read();
+                if (b >= 0) observe(b);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bs, int off, int len) throws IOException {
+                final int read = is.read(bs, off, len);
+                if (read > 0) observe(bs, off, read);
+                return read;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return is.available();
+            }
+        };
+    }
+
+    private long lap() {
+        final long now = System.nanoTime();
+        final long result = now - lastNanos;
+        lastNanos = now;
+        return result;
+    }
+
+    // Shannon entropy of the bytes seen since the last call, in bits per byte
+    private double endSection() {
+        double entropy = 0;
+        if (sectionBytes > 0) {
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] != 0) {
+                    final double p = (double)histogram[i] / sectionBytes;
+                    entropy -= p * Math.log(p);
+                }
+                histogram[i] = 0;
+            }
+        }
+        sectionBytes = 0;
+        return entropy / Math.log(2);
+    }
+
+    void descriptorsDone(int defined) {
+        descriptorNanos = lap();
+        this.defined = defined;
+        descriptorBytes = sectionBytes;
+        descriptorEntropy = endSection();
+    }
+
+    void splitDone() {
+        splitNanos += lap();
+    }
+
+    void exponentsDone() {
+        exponentNanos = lap();
+        exponentBytes = sectionBytes;
+        exponentEntropy = endSection();
+    }
+
+    void mantissasDone() {
+        mantissaNanos = lap();
+        mantissaBytes = sectionBytes;
+        mantissaEntropy = endSection();
+    }
+
+    // Special values are counted after the fact so that the descriptor loops need no extra bookkeeping
+    void count(float[] xs, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            final float x = xs[i];
+            if (x == 0f) zeros++;
+            else if (Float.isNaN(x)) nans++;
+        }
+    }
+
+    void count(double[] xs, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            final double x = xs[i];
+            if (x == 0.0) zeros++;
+            else if (Double.isNaN(x)) nans++;
+        }
+    }
+
+    void done() {
+        final BlockMetrics metrics = new BlockMetrics(encode, count, defined, zeros, nans,
+                                                      descriptorBytes, exponentBytes, mantissaBytes,
+                                                      descriptorEntropy, exponentEntropy, mantissaEntropy,
+                                                      descriptorNanos, splitNanos, exponentNanos, mantissaNanos);
+        if (encode) {
+            listener.onEncode(metrics);
+        } else {
+            listener.onDecode(metrics);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package uk.co.omegaprime;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// Summary of one block of doubles, as kept in the index of a block file so that readers can rule blocks in or
+// out without decoding them.
+//
+// The classification matches Conditioner's descriptors: every value is exactly one of zero (of either sign),
+// NaN, or defined. min, max, sum, first and last are over the non-NaN values (so zeros count), and are NaN
+// when there are none. Infinities are ordinary values here, so a block holding one has an infinite sum.
+public class BlockStats {
+    static final int BYTES = 4 * 4 + 5 * 8;
+
+    public final int count;
+    public final int defined;
+    public final int nans;
+    public final int zeros;
+
+    public final double min;
+    public final double max;
+    public final double sum;
+    public final double first;
+    public final double last;
+
+    public BlockStats(int count, int defined, int nans, int zeros, double min, double max, double sum, double first, double last) {
+        this.count = count;
+        this.defined = defined;
+        this.nans = nans;
+        this.zeros = zeros;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.first = first;
+        this.last = last;
+    }
+
+    public static final BlockStats EMPTY = new BlockStats(0, 0, 0, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+
+    public static BlockStats of(double[] xs, int off, int len) {
+        final Accumulator accumulator = new Accumulator();
+        for (int i = off; i < off + len; i++) {
+            accumulator.add(xs[i]);
+        }
+        return accumulator.build();
+    }
+
+    // Builds statistics up one value at a time, for when the values are never all in one array
+    static class Accumulator {
+        private int count, nans, zeros;
+        private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0.0;
+        private double first = Double.NaN, last = Double.NaN;
+
+        void add(double x) {
+            count++;
+            if (x != x) {
+                nans++;
+                return;
+            }
+
+            if (x == 0.0) zeros++;
+            if (x < min) min = x;
+            if (x > max) max = x;
+            sum += x;
+            if (first != first) first = x;
+            last = x;
+        }
+
+        BlockStats build() {
+            if (nans == count) return new BlockStats(count, 0, nans, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+            return new BlockStats(count, count - nans - zeros, nans, zeros, min, max, sum, first, last);
+        }
+    }
+
+    // Statistics of the concatenation of this block and the one after it
+    public BlockStats merge(BlockStats next) {
+        if (next.nans == next.count) return new BlockStats(count + next.count, defined, nans + next.nans, zeros, min, max, sum, first, last);
+        if (nans == count)           return new BlockStats(count + next.count, next.defined, nans + next.nans, next.zeros, next.min, next.max, next.sum, next.first, next.last);
+        return new BlockStats(count + next.count, defined + next.defined, nans + next.nans, zeros + next.zeros,
+                              Math.min(min, next.min), Math.max(max, next.max), sum + next.sum, first, next.last);
+    }
+
+    // Mean of the non-NaN values, or NaN if there are none
+    public double mean() {
+        return sum / (count - nans);
+    }
+
+    // The mayContain tests are conservative: false means no value in the block can satisfy the predicate, but
+    // true only means that one might. NaN thresholds, like NaN values, never match anything.
+
+    public boolean mayContainGreaterThan(double x) {
+        return max > x;
+    }
+
+    public boolean mayContainLessThan(double x) {
+        return min < x;
+    }
+
+    // Some value v with lo <= v < hi
+    public boolean mayContainInRange(double lo, double hi) {
+        return max >= lo && min < hi && lo < hi;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(count);
+        out.writeInt(defined);
+        out.writeInt(nans);
+        out.writeInt(zeros);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeDouble(sum);
+        out.writeDouble(first);
+        out.writeDouble(last);
+    }
+
+    static BlockStats read(DataInput in) throws IOException {
+        return new BlockStats(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                              in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d values (%d defined, %d NaN, %d zero): min %s, max %s, sum %s, first %s, last %s",
+                             count, defined, nans, zeros, min, max, sum, first, last);
+    }
+}
@@ -0,0 +1,231 @@
+package uk.co.omegaprime;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Writes a series as a sequence of conditioned blocks followed by an index of per-block statistics, which
+// BlockReader uses to skip blocks that a query cannot need. The layout is:
+//
+//   int magic, int flags
+//   for each block:  int count, [int length, timestamps], int length, conditioned doubles, {int length, checkpoints}, <int checksum>
+//   index:           int -1, int blocks, then for each block: long offset of its frame, [long first, long last], BlockStats
+//   trailer:         long offset of index, int magic
+//
+// The bracketed parts are only there in timestamped files, where every value comes with a long timestamp (in
+// whatever unit the caller likes). Timestamps must never decrease, which is what lets a reader binary search
+// the first/last timestamps in the index to find the blocks overlapping a time range. They are stored as
+// zig-zagged deltas, one plane per byte.
+//
+// The braced part is only there in files written with a checkpoint interval, where BlockReader can decode a
+// range of values from the middle of a block without decoding the rest (see Checkpoints). Checkpoints are
+// never deflated, being little more than a list of numbers.
+//
+// The angled part is only there in checksummed files: a CRC-32 of everything in the frame before it, which
+// BlockReader checks before decoding a block, so that a flipped bit is reported rather than decoded into a
+// plausible but wrong value. The CRC is computed with an intrinsic on any recent JVM, so costs far less than
+// decoding the block does.
+//
+// Each block is framed with its own count and lengths, so the blocks can still be walked in order from the
+// start of the file if the index never got written (see BlockIndex.recover). Counts are always positive, which
+// is what the -1 in front of the index is for: it tells such a walk that the frames have ended.
+//
+// Blocks are written exactly as the DoubleContext writes them, so the reader must be given an identically
+// configured one. In a deflated file each section is compressed on its own, which keeps every block readable
+// without the others. Compressing the whole output stream instead would mean decompressing the whole file
+// before seeking in it.
+public class BlockWriter implements Closeable {
+    static final int MAGIC = 0x54534246; // "TSBF"
+    static final int HEADER_BYTES = 4 + 4;
+    static final int TRAILER_BYTES = 8 + 4;
+
+    static final int INDEX_MARKER = -1;
+
+    static final int FLAG_TIMESTAMPED = 1;
+    static final int FLAG_DEFLATED = 2;
+    static final int FLAG_CHECKPOINTED = 4;
+    static final int FLAG_CHECKSUMMED = 8;
+
+    static final int[] TIMESTAMP_CODEC = new int[] { 1, 1, 1, 1, 1, 1, 1, 1 };
+
+    private final DataOutputStream os;
+    private final DoubleContext context;
+    private final boolean timestamped;
+    private final Deflater deflater;
+    private final int checkpointInterval;
+    // Of the frame being written, or null if the file is not checksummed
+    private final CRC32 crc;
+
+    private final Scratch scratch = new Scratch();
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<BlockStats> stats = new ArrayList<>();
+    private final List<Long> firstTimestamps = new ArrayList<>();
+    private final List<Long> lastTimestamps = new ArrayList<>();
+    private long position;
+    private boolean finished;
+
+    public BlockWriter(OutputStream os) throws IOException {
+        this(os, new DoubleContext());
+    }
+
+    public BlockWriter(OutputStream os, DoubleContext context) throws IOException {
+        this(os, context, false);
+    }
+
+    public BlockWriter(OutputStream os, DoubleContext context, boolean timestamped) throws IOException {
+        this(os, context, timestamped, false);
+    }
+
+    public BlockWriter(OutputStream os, DoubleContext context, boolean timestamped, boolean deflated) throws IOException {
+        this(os, context, timestamped, deflated, 0);
+    }
+
+    // A checkpointInterval of zero means no checkpoints; Checkpoints.DEFAULT_INTERVAL is a good choice otherwise
+    public BlockWriter(OutputStream os, DoubleContext context, boolean timestamped, boolean deflated, int checkpointInterval) throws IOException {
+        this(os, context, timestamped, deflated, checkpointInterval, false);
+    }
+
+    public BlockWriter(OutputStream os, DoubleContext context, boolean timestamped, boolean deflated, int checkpointInterval, boolean checksummed) throws IOException {
+        if (checkpointInterval < 0) throw new IllegalArgumentException("Checkpoint interval must not be negative, not " + checkpointInterval);
+        if (checkpointInterval > 0 && context.trimsMantissas()) throw new IllegalArgumentException("Cannot checkpoint trimmed mantissas, which vary in width from block to block");
+
+        this.crc = checksummed ? new CRC32() : null;
+        this.os = new DataOutputStream(checksummed ? new CheckedOutputStream(os, crc) : os);
+        this.context = context;
+        this.timestamped = timestamped;
+        this.deflater = deflated ? new Deflater() : null;
+        this.checkpointInterval = checkpointInterval;
+
+        this.os.writeInt(MAGIC);
+        this.os.writeInt((timestamped ? FLAG_TIMESTAMPED : 0) | (deflated ? FLAG_DEFLATED : 0) |
+                         (checkpointInterval > 0 ? FLAG_CHECKPOINTED : 0) | (checksummed ? FLAG_CHECKSUMMED : 0));
+        position = HEADER_BYTES;
+    }
+
+    public BlockStats write(double[] xs) throws IOException {
+        return write(xs, 0, xs.length);
+    }
+
+    public BlockStats write(double[] xs, int off, int len) throws IOException {
+        if (timestamped) throw new IllegalStateException("Every block of a timestamped file needs timestamps");
+        // An empty block's zero count would read as the end of the frames to BlockIndex.recover
+        if (len == 0) throw new IllegalArgumentException("Blocks cannot be empty");
+
+        return writeBlock(null, xs, off, len);
+    }
+
+    public BlockStats write(long[] timestamps, double[] xs) throws IOException {
+        if (timestamps.length != xs.length) throw new IllegalArgumentException("Got " + timestamps.length + " timestamps for " + xs.length + " values");
+
+        return write(timestamps, xs, 0, xs.length);
+    }
+
+    // timestamps[off + i] is the time of xs[off + i]
+    public BlockStats write(long[] timestamps, double[] xs, int off, int len) throws IOException {
+        if (!timestamped) throw new IllegalStateException("Not a timestamped file");
+        if (len == 0) throw new IllegalArgumentException("Timestamped blocks cannot be empty");
+
+        long last = lastTimestamps.isEmpty() ? Long.MIN_VALUE : lastTimestamps.get(lastTimestamps.size() - 1);
+        for (int i = off; i < off + len; i++) {
+            if (timestamps[i] < last) throw new IllegalArgumentException("Timestamp " + timestamps[i] + " comes after " + last);
+            last = timestamps[i];
+        }
+
+        return writeBlock(timestamps, xs, off, len);
+    }
+
+    private BlockStats writeBlock(long[] timestamps, double[] xs, int off, int len) throws IOException {
+        if (finished) throw new IllegalStateException("Already finished");
+
+        final long offset = position;
+        if (crc != null) crc.reset();
+        os.writeInt(len);
+        position += 4;
+
+        if (timestamps != null) {
+            final OutputStream section = openSection();
+            Conditioner.writeLongDelta(TIMESTAMP_CODEC, timestamps, off, len, section, scratch);
+            writeSection(section);
+
+            firstTimestamps.add(timestamps[off]);
+            lastTimestamps.add(timestamps[off + len - 1]);
+        }
+
+        final OutputStream section = openSection();
+        context.write(xs, off, len, section);
+        writeSection(section);
+
+        if (checkpointInterval > 0) {
+            final Checkpoints checkpoints = context.checkpoints(xs, off, len, checkpointInterval);
+            os.writeInt(checkpoints.bytes());
+            checkpoints.write(os);
+            position += 4 + checkpoints.bytes();
+        }
+
+        if (crc != null) {
+            os.writeInt((int)crc.getValue());
+            position += 4;
+        }
+
+        final BlockStats blockStats = BlockStats.of(xs, off, len);
+        offsets.add(offset);
+        stats.add(blockStats);
+        return blockStats;
+    }
+
+    private OutputStream openSection() {
+        block.reset();
+        if (deflater == null) return block;
+
+        deflater.reset();
+        return new DeflaterOutputStream(block, deflater, 4096);
+    }
+
+    private void writeSection(OutputStream section) throws IOException {
+        if (deflater != null) ((DeflaterOutputStream)section).finish();
+        os.writeInt(block.size());
+        block.writeTo(os);
+        position += 4 + block.size();
+    }
+
+    public int blockCount() {
+        return stats.size();
+    }
+
+    // Offset just past the last block written, which is also the number of bytes written so far
+    public long position() {
+        return position;
+    }
+
+    // The index as of now, so that the blocks written so far can be read back while writing carries on
+    BlockIndex index() {
+        return new BlockIndex(timestamped, deflater != null, checkpointInterval > 0, crc != null, position, BlockIndex.toArray(offsets), BlockIndex.toArray(firstTimestamps), BlockIndex.toArray(lastTimestamps), new ArrayList<>(stats));
+    }
+
+    // Pushes every block written so far through to the underlying stream
+    public void flush() throws IOException {
+        os.flush();
+    }
+
+    // Writes the index and flushes, but leaves the underlying stream open, e.g. so it can be synced to disk
+    public void finish() throws IOException {
+        if (finished) return;
+
+        index().write(os);
+        os.flush();
+        if (deflater != null) deflater.end();
+        finished = true;
+    }
+
+    // Writes the index and closes the underlying stream
+    @Override
+    public void close() throws IOException {
+        finish();
+        os.close();
+    }
+}
@@ -0,0 +1,41 @@
+package uk.co.omegaprime;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// Reads the remaining bytes of a buffer, which is typically a slice of a memory mapped file. Reading advances the
+// buffer's position and nothing else, so callers should hand over a duplicate of any buffer they share.
+class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bs, int off, int len) {
+        if (len == 0) return 0;
+        if (!buffer.hasRemaining()) return -1;
+
+        final int n = Math.min(len, buffer.remaining());
+        buffer.get(bs, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        final int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,117 @@
+package uk.co.omegaprime;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// Where decoding stands every so often through a block, so that a range of values in the middle of the block
+// can be decoded without the values before it. Two things stop that otherwise:
+//
+//  - The exponents and mantissas are only stored for defined values, so finding those of value i means counting
+//    the defined values before it. Every interval values, defined[c] records how many defined values come
+//    before value c * interval.
+//  - Delta-coded exponents and mantissas are each relative to the last, so are only known by adding up every
+//    delta before them. Every interval defined values, exponents[c] and mantissas[c] record defined value
+//    c * interval in full.
+//
+// With both, decoding [from, to) costs at most interval descriptors and interval deltas more than the range
+// itself, however far into the block it is: the planes are fixed width, so any value's bytes can be read where
+// they lie. That is worth having for point reads near the end of big blocks.
+//
+// Checkpoints are kept next to the block rather than in it (see BlockWriter), so the conditioned format is the
+// same with or without them. At the default interval they cost under 1% of a block's raw size.
+class Checkpoints {
+    static final int DEFAULT_INTERVAL = 256;
+
+    final int interval;
+    // Number of defined values in the whole block, which gives where the mantissas start
+    final int total;
+    final int[] defined;
+    final short[] exponents;
+    final long[] mantissas;
+
+    private Checkpoints(int interval, int total, int[] defined, short[] exponents, long[] mantissas) {
+        this.interval = interval;
+        this.total = total;
+        this.defined = defined;
+        this.exponents = exponents;
+        this.mantissas = mantissas;
+    }
+
+    // Checkpoints for xs[off] to xs[off + len - 1] as conditioned with or without special cases
+    static Checkpoints of(boolean specialCases, double[] xs, int off, int len, int interval) {
+        if (interval <= 0) throw new IllegalArgumentException("Checkpoint interval must be positive, not " + interval);
+
+        final int[] defined = new int[(len + interval - 1) / interval];
+        int total = 0;
+        for (int i = 0; i < len; i++) {
+            if (i % interval == 0) defined[i / interval] = total;
+            final double x = xs[off + i];
+            if (!specialCases || (x == x && x != 0.0)) total++;
+        }
+
+        final short[] exponents = new short[(total + interval - 1) / interval];
+        final long[] mantissas = new long[exponents.length];
+        for (int i = 0, j = 0; i < len; i++) {
+            final double x = xs[off + i];
+            if (specialCases && (x != x || x == 0.0)) continue;
+
+            if (j % interval == 0) {
+                final long bits = Double.doubleToRawLongBits(x);
+                exponents[j / interval] = (short)((bits >>> 52) & 0x7FFL);
+                mantissas[j / interval] = bits & 0x000FFFFFFFFFFFFFL;
+            }
+            j++;
+        }
+
+        return new Checkpoints(interval, total, defined, exponents, mantissas);
+    }
+
+    int bytes() {
+        return 4 + 4 + 4 + 4 * defined.length + 4 + 10 * exponents.length;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(interval);
+        out.writeInt(total);
+        out.writeInt(defined.length);
+        for (int d : defined) out.writeInt(d);
+        out.writeInt(exponents.length);
+        for (int i = 0; i < exponents.length; i++) {
+            out.writeShort(exponents[i]);
+            out.writeLong(mantissas[i]);
+        }
+    }
+
+    // Checkpoints written for a block of len values
+    static Checkpoints read(DataInput in, int len) throws IOException {
+        final int interval = in.readInt(), total = in.readInt();
+        if (interval <= 0 || total < 0 || total > len) throw new IOException("Corrupt checkpoints: " + total + " defined values at interval " + interval);
+
+        final int points = in.readInt();
+        if (points != (len + interval - 1) / interval) throw new IOException("Corrupt checkpoints: " + points + " for " + len + " values");
+        final int[] defined = new int[points];
+        for (int i = 0; i < points; i++) {
+            // Each interval of values adds between none and interval defined values to the count
+            defined[i] = in.readInt();
+            final int before = i == 0 ? 0 : defined[i - 1], most = i == 0 ? 0 : interval;
+            if (defined[i] < before || defined[i] - before > most || defined[i] > total) {
+                throw new IOException("Corrupt checkpoints: " + defined[i] + " defined values before value " + (i * interval) + ", after " + before);
+            }
+        }
+        if (points > 0 && total - defined[points - 1] > len - (points - 1) * interval) {
+            throw new IOException("Corrupt checkpoints: " + total + " defined values in all, but only " + defined[points - 1] + " before value " + ((points - 1) * interval));
+        }
+
+        final int definedPoints = in.readInt();
+        if (definedPoints != (total + interval - 1) / interval) throw new IOException("Corrupt checkpoints: " + definedPoints + " for " + total + " defined values");
+        final short[] exponents = new short[definedPoints];
+        final long[] mantissas = new long[definedPoints];
+        for (int i = 0; i < definedPoints; i++) {
+            exponents[i] = in.readShort();
+            mantissas[i] = in.readLong();
+        }
+
+        return new Checkpoints(interval, total, defined, exponents, mantissas);
+    }
+}
@@ -0,0 +1,197 @@
+package uk.co.omegaprime;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+// Merges the small blocks that streaming ingestion leaves behind into large ones. Each compaction takes a run
+// of adjacent sealed segments of a Series, decodes them, picks the codecs that deflate best on the combined
+// values, and writes them back out as one segment of deflated blocks of targetBlockSize values, which the series
+// then swaps in for the run (see Series for how that survives a crash).
+//
+// Compactions run on a fixed number of daemon threads, and all their reads and writes together are held to a
+// budget of bytes per second, so that they do not starve ingestion or queries of disk bandwidth.
+public class Compactor implements Closeable {
+    public static final int DEFAULT_TARGET_BLOCK_SIZE = 1 << 16;
+    // Most blocks a compacted segment will hold, which bounds how much one compaction has to have in memory
+    public static final int MAX_SEGMENT_BLOCKS = 16;
+    // Number of values that codecs are tried out on
+    static final int SAMPLE_SIZE = 1 << 13;
+
+    private static final AtomicInteger POOLS = new AtomicInteger();
+
+    private final int targetBlockSize;
+    private final IoThrottle throttle;
+    private final ExecutorService executor;
+
+    public Compactor(int threads, long bytesPerSecond) {
+        this(threads, bytesPerSecond, DEFAULT_TARGET_BLOCK_SIZE);
+    }
+
+    // bytesPerSecond of zero or less means no limit
+    public Compactor(int threads, long bytesPerSecond, int targetBlockSize) {
+        if (threads <= 0 || targetBlockSize <= 0) throw new IllegalArgumentException("Need positive thread count and block size, not " + threads + " and " + targetBlockSize);
+
+        this.targetBlockSize = targetBlockSize;
+        this.throttle = new IoThrottle(bytesPerSecond);
+
+        final int pool = POOLS.incrementAndGet();
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "compactor-" + pool + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Compacts the series in the background. The future says whether there was anything to compact.
+    public Future<Boolean> submit(Series series) {
+        return executor.submit(() -> compact(series));
+    }
+
+    // Compacts one run of segments of the series on this thread, returning false if there was nothing to do
+    public boolean compact(Series series) throws IOException {
+        final List<String> run = series.startCompaction(targetBlockSize, (long)targetBlockSize * MAX_SEGMENT_BLOCKS);
+        if (run == null) return false;
+
+        final Path directory = series.directory();
+        Path temporary = null;
+        boolean swapped = false;
+        try {
+            final List<BlockReader> readers = new ArrayList<>();
+            long n = 0;
+            for (String segment : run) {
+                try (FileChannel channel = FileChannel.open(directory.resolve(segment), StandardOpenOption.READ)) {
+                    throttle.acquire(channel.size());
+                    final BlockReader reader = new BlockReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), series.readContext(segment));
+                    readers.add(reader);
+                    n += reader.valueCount();
+                }
+            }
+
+            final long[] ts = new long[(int)n];
+            final double[] xs = new double[(int)n];
+            int position = 0;
+            for (BlockReader reader : readers) {
+                for (int block = 0; block < reader.blockCount(); block++) {
+                    reader.readTimestamps(block, ts, position);
+                    reader.read(block, xs, position);
+                    position += reader.stats(block).count;
+                }
+            }
+
+            final DoubleContext context = chooseCodecs(series.readContext(run.get(0)), xs, 0, xs.length);
+
+            final String segment = series.newSegment() + Series.SEALED;
+            temporary = directory.resolve(segment + Series.TEMPORARY);
+            try (FileOutputStream fos = new FileOutputStream(temporary.toFile());
+                 BlockWriter writer = new BlockWriter(new BufferedOutputStream(fos), context, true, true)) {
+                long written = writer.position();
+                for (int i = 0; i < xs.length; i += targetBlockSize) {
+                    writer.write(ts, xs, i, Math.min(targetBlockSize, xs.length - i));
+                    throttle.acquire(writer.position() - written);
+                    written = writer.position();
+                }
+                writer.finish();
+                fos.getFD().sync();
+            }
+            Files.move(temporary, directory.resolve(segment), StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+
+            series.finishCompaction(run, segment, context.codecs());
+            swapped = true;
+            return true;
+        } finally {
+            if (!swapped) {
+                series.abandonCompaction();
+                if (temporary != null) Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    // The codecs that make a sample of the values deflate smallest, using base's conditioner. Mantissas make up
+    // most of the bytes, so their codec is chosen first (with the default exponent codec), and then the exponent
+    // codec to go with it. Ties go to the earlier codec, and Conditioner.validCodecs puts one plane per byte
+    // first, which is the layout that decodes fastest.
+    static DoubleContext chooseCodecs(DoubleContext base, double[] xs, int off, int len) throws IOException {
+        final int n = Math.min(len, SAMPLE_SIZE);
+        final int sampleOff = off + (len - n) / 2;
+        final ByteArrayOutputStream conditioned = new ByteArrayOutputStream();
+        final Deflater deflater = new Deflater();
+        try {
+            Conditioner.Coding exponentCoding = Conditioner.Coding.LITERAL, mantissaCoding = Conditioner.Coding.DELTA;
+            int[] exponentCodec = new int[] { 1, 1 }, mantissaCodec = new int[] { 1, 1, 1, 1, 1, 1, 1 };
+
+            long best = Long.MAX_VALUE;
+            for (Conditioner.Coding coding : Conditioner.Coding.values()) {
+                for (int[] codec : Conditioner.validCodecs(7)) {
+                    final long size = deflatedSize(base.withCodecs(exponentCoding, exponentCodec, coding, codec), xs, sampleOff, n, conditioned, deflater);
+                    if (size < best) {
+                        best = size;
+                        mantissaCoding = coding;
+                        mantissaCodec = codec;
+                    }
+                }
+            }
+
+            best = Long.MAX_VALUE;
+            for (Conditioner.Coding coding : Conditioner.Coding.values()) {
+                for (int[] codec : Conditioner.validCodecs(2)) {
+                    final long size = deflatedSize(base.withCodecs(coding, codec, mantissaCoding, mantissaCodec), xs, sampleOff, n, conditioned, deflater);
+                    if (size < best) {
+                        best = size;
+                        exponentCoding = coding;
+                        exponentCodec = codec;
+                    }
+                }
+            }
+
+            return base.withCodecs(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static long deflatedSize(DoubleContext context, double[] xs, int off, int len, ByteArrayOutputStream conditioned, Deflater deflater) throws IOException {
+        conditioned.reset();
+        context.write(xs, off, len, conditioned);
+
+        deflater.reset();
+        deflater.setInput(conditioned.toByteArray());
+        deflater.finish();
+        final byte[] buffer = new byte[4096];
+        long size = 0;
+        while (!deflater.finished()) {
+            size += deflater.deflate(buffer);
+        }
+        return size;
+    }
+
+    // Waits for compactions already submitted to finish
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for compactions");
+        }
+    }
+}
@@ -3,15 +3,27 @@ package uk.co.omegaprime;
 import sun.misc.IOUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 
 public class Conditioner {
     private final boolean specialCases;
+    private final MetricsListener metrics;
 
     Conditioner(boolean specialCases) {
+        this(specialCases, null);
+    }
+
+    public Conditioner(boolean specialCases, MetricsListener metrics) {
         this.specialCases = specialCases;
+        this.metrics = metrics;
+    }
+
+    boolean specialCases() {
+        return specialCases;
     }
 
     // https://graphics.stanford.edu/~seander/bithacks.html#VariableSignExtend
@@ -92,36 +104,81 @@ public class Conditioner {
                             : (~(x >> 1) & 0x7FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
     }
 
-    private int shortDescriptor(float x) {
+    private static int shortDescriptor(float x) {
         return (Float.floatToRawIntBits(x) & 0x80000000) >>> 31;
     }
 
-    private int shortDescriptor(double x) {
+    private static int shortDescriptor(double x) {
         return (int)((Double.doubleToRawLongBits(x) & 0x8000000000000000L) >>> 63);
     }
 
-    private int descriptor(int[] definedByRef, float x) {
-        if (specialCases && x == 0f) {
-            return 0;
-        } else if (specialCases && Float.isNaN(x)) {
-            return 1;
-        } else {
-            definedByRef[0]++;
-            return 2 | shortDescriptor(x);
+    // Zero and NaN tests done with arithmetic on the raw bits rather than comparisons, so that they compile to
+    // straight-line code: series with lots of zeros or NaNs would otherwise mispredict on every other value.
+    private static int isZero(int bits) {
+        return ((bits & 0x7FFFFFFF) - 1) >>> 31;
+    }
+
+    private static int isNaN(int bits) {
+        return (0x7F800000 - (bits & 0x7FFFFFFF)) >>> 31;
+    }
+
+    private static int isZero(long bits) {
+        return (int)(((bits & 0x7FFFFFFFFFFFFFFFL) - 1) >>> 63);
+    }
+
+    private static int isNaN(long bits) {
+        return (int)((0x7FF0000000000000L - (bits & 0x7FFFFFFFFFFFFFFFL)) >>> 63);
+    }
+
+    // 0 for zeros, 1 for NaNs and otherwise 2 | sign, so (descriptor >>> 1) is 1 exactly when a value needs an
+    // exponent and mantissa written for it
+    static int descriptor(int bits) {
+        final int nan = isNaN(bits);
+        final int defined = 1 ^ (isZero(bits) | nan);
+        return (defined << 1) | ((bits >>> 31) & defined) | nan;
+    }
+
+    static int descriptor(long bits) {
+        final int nan = isNaN(bits);
+        final int defined = 1 ^ (isZero(bits) | nan);
+        return (defined << 1) | ((int)(bits >>> 63) & defined) | nan;
+    }
+
+    private int isDefined(int bits) {
+        return specialCases ? 1 ^ (isZero(bits) | isNaN(bits)) : 1;
+    }
+
+    private int isDefined(long bits) {
+        return specialCases ? 1 ^ (isZero(bits) | isNaN(bits)) : 1;
+    }
+
+    // Number of defined values (descriptors 2 and 3) among the four packed into each descriptor byte
+    static final byte[] DEFINED_COUNT = new byte[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            DEFINED_COUNT[b] = (byte)(((b >>> 7) & 1) + ((b >>> 5) & 1) + ((b >>> 3) & 1) + ((b >>> 1) & 1));
         }
     }
 
-    private int descriptor(int[] definedByRef, double x) {
-        if (specialCases && x == 0.0) {
-            return 0;
-        } else if (specialCases && Double.isNaN(x)) {
-            return 1;
-        } else {
-            definedByRef[0]++;
-            return 2 | shortDescriptor(x);
+    // Number of defined values in the last descriptor byte of a block of len values, which is only partly filled
+    // (right-aligned) when len is not a multiple of four. Writers leave the unused high bits zero, so a defined
+    // value there would mean more defined values than the block has room for.
+    static int definedInLastByte(int b, int len) throws IOException {
+        final int used = b & ((1 << 2 * (len & 3)) - 1);
+        if (DEFINED_COUNT[b] != DEFINED_COUNT[used]) {
+            throw new IOException("Corrupt descriptors: more values defined than the " + len + " in the block");
         }
+        return DEFINED_COUNT[used];
     }
 
+    // What readDescriptors leaves in place of each descriptor until reassembly: the special value itself, or a
+    // placeholder of +/-1 recording the sign
+    private static final float[]  FLOAT_DESCRIPTOR_VALUES  = new float[]  { 0f,  Float.NaN,  1f,  -1f };
+    private static final double[] DOUBLE_DESCRIPTOR_VALUES = new double[] { 0.0, Double.NaN, 1.0, -1.0 };
+    private static final float[]  FLOAT_SIGN_VALUES  = new float[]  { 1f,  -1f };
+    private static final double[] DOUBLE_SIGN_VALUES = new double[] { 1.0, -1.0 };
+
     public interface Writer<T> {
         public void write(T from, OutputStream os) throws IOException;
     }
@@ -130,297 +187,584 @@ public class Conditioner {
         public void read(T into, InputStream is) throws IOException;
     }
 
-    public static Writer<float[]> writeFloatLiteral(int[] codec) {
-        return (float[] xs, OutputStream os) -> {
-            final int[] bits = new int[xs.length];
-            for (int i = 0; i < bits.length; i++) {
-                bits[i] = Float.floatToRawIntBits(xs[i]);
-            }
-            columnarWriteInt(codec).write(bits, os);
-        };
+    // Writers and Readers that can also work on a slice of an array, so that part of a bigger buffer (a ring
+    // buffer, say) can be written or read into without copying it out or in. Every Writer and Reader here is one.
+    public interface SliceWriter<T> extends Writer<T> {
+        public void write(T from, int off, int len, OutputStream os) throws IOException;
+
+        @Override
+        public default void write(T from, OutputStream os) throws IOException {
+            write(from, 0, java.lang.reflect.Array.getLength(from), os);
+        }
     }
 
-    public static Reader<float[]> readFloatLiteral(int[] codec) {
-        return (float[] xs, InputStream is) -> {
-            final int[] bits = new int[xs.length];
-            columnarReadInt(codec).read(bits, is);
-            for (int i = 0; i < bits.length; i++) {
-                xs[i] = Float.intBitsToFloat(bits[i]);
-            }
-        };
+    public interface SliceReader<T> extends Reader<T> {
+        public void read(T into, int off, int len, InputStream is) throws IOException;
+
+        @Override
+        public default void read(T into, InputStream is) throws IOException {
+            read(into, 0, java.lang.reflect.Array.getLength(into), is);
+        }
     }
 
-    public static Writer<double[]> writeDoubleLiteral(int[] codec) {
-        return (double[] xs, OutputStream os) -> {
-            final long[] bits = new long[xs.length];
-            for (int i = 0; i < bits.length; i++) {
-                bits[i] = Double.doubleToRawLongBits(xs[i]);
-            }
-            columnarWriteLong(codec).write(bits, os);
-        };
+    // How a column of exponents or mantissas is coded: either the values themselves, or the (zig-zagged)
+    // differences between consecutive values
+    public enum Coding { LITERAL, DELTA }
+
+    static void readFully(InputStream is, byte[] bytes, int off, int len) throws IOException {
+        while (len > 0) {
+            final int read = is.read(bytes, off, len);
+            if (read < 0) throw new EOFException("Input ended " + len + " bytes short");
+            off += read;
+            len -= read;
+        }
     }
 
-    public static Reader<double[]> readDoubleLiteral(int[] codec) {
-        return (double[] xs, InputStream is) -> {
-            final long[] bits = new long[xs.length];
-            columnarReadLong(codec).read(bits, is);
-            for (int i = 0; i < bits.length; i++) {
-                xs[i] = Double.longBitsToDouble(bits[i]);
-            }
-        };
+    static int readByte(InputStream is) throws IOException {
+        final int b = is.read();
+        if (b < 0) throw new EOFException("Input ended a byte short");
+        return b;
     }
 
-    public static Writer<float[]> writeFloatDelta(int[] codec) {
-        return (float[] xs, OutputStream os) -> {
-            if (xs.length == 0) return;
+    // Big-endian, for compatibility with DataOutputStream/DataInputStream
+    private static void writeInt(OutputStream os, int x) throws IOException {
+        os.write((x >>> 24) & 0xFF);
+        os.write((x >>> 16) & 0xFF);
+        os.write((x >>>  8) & 0xFF);
+        os.write((x >>>  0) & 0xFF);
+    }
 
-            int lastBits = Float.floatToRawIntBits(xs[0]);
-            new DataOutputStream(os).writeInt(lastBits);
+    private static int readInt(InputStream is) throws IOException {
+        return (readByte(is) << 24) | (readByte(is) << 16) | (readByte(is) << 8) | readByte(is);
+    }
 
-            final int[] toWrite = new int[xs.length - 1];
-            for (int i = 1; i < xs.length; i++) {
-                final int bits = Float.floatToRawIntBits(xs[i]);
-                toWrite[i - 1] = twos2unsigned32(bits - lastBits);
-                lastBits = bits;
-            }
+    private static void writeLong(OutputStream os, long x) throws IOException {
+        writeInt(os, (int)(x >>> 32));
+        writeInt(os, (int)x);
+    }
 
-            columnarWriteInt(codec).write(toWrite, os);
-        };
+    private static long readLong(InputStream is) throws IOException {
+        return ((long)readInt(is) << 32) | (readInt(is) & 0xFFFFFFFFL);
     }
 
-    public static Reader<float[]> readFloatDelta(int[] codec) {
-        return (float[] xs, InputStream is) -> {
-            if (xs.length == 0) return;
+    // The public Writers and Readers below are thin wrappers around kernels that work on a slice of an array and
+    // take their temporary arrays from a Scratch. The wrappers pass the slice straight through, but allocate a
+    // fresh Scratch on each call, whereas FloatContext/DoubleContext keep one around so that the steady state
+    // allocates nothing.
 
-            int lastBits = new DataInputStream(is).readInt();
-            xs[0] = Float.intBitsToFloat(lastBits);
+    public static SliceWriter<float[]> writeFloatLiteral(int[] codec) {
+        return (float[] xs, int off, int len, OutputStream os) -> writeFloatLiteral(codec, xs, off, len, os, new Scratch());
+    }
 
-            final int[] read = new int[xs.length - 1];
-            columnarReadInt(codec).read(read, is);
+    static void writeFloatLiteral(int[] codec, float[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        final int[] bits = scratch.ints(len);
+        for (int i = 0; i < len; i++) {
+            bits[i] = Float.floatToRawIntBits(xs[off + i]);
+        }
+        columnarWriteInt(codec, bits, 0, len, os, scratch);
+    }
 
-            for (int i = 1; i < xs.length; i++) {
-                xs[i] = Float.intBitsToFloat(lastBits = lastBits + unsigned2twos32(read[i - 1]));
-            }
-        };
+    public static SliceReader<float[]> readFloatLiteral(int[] codec) {
+        return (float[] xs, int off, int len, InputStream is) -> readFloatLiteral(codec, xs, off, len, is, new Scratch());
     }
 
-    public static Writer<double[]> writeDoubleDelta(int[] codec) {
-        return (double[] xs, OutputStream os) -> {
-            if (xs.length == 0) return;
+    static void readFloatLiteral(int[] codec, float[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        final int[] bits = scratch.ints(len);
+        columnarReadInt(codec, bits, 0, len, is, scratch);
+        for (int i = 0; i < len; i++) {
+            xs[off + i] = Float.intBitsToFloat(bits[i]);
+        }
+    }
+
+    public static SliceWriter<double[]> writeDoubleLiteral(int[] codec) {
+        return (double[] xs, int off, int len, OutputStream os) -> writeDoubleLiteral(codec, xs, off, len, os, new Scratch());
+    }
 
-            long lastBits = Double.doubleToRawLongBits(xs[0]);
-            new DataOutputStream(os).writeLong(lastBits);
+    static void writeDoubleLiteral(int[] codec, double[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        final long[] bits = scratch.longs(len);
+        for (int i = 0; i < len; i++) {
+            bits[i] = Double.doubleToRawLongBits(xs[off + i]);
+        }
+        columnarWriteLong(codec, bits, 0, len, os, scratch);
+    }
 
-            final long[] toWrite = new long[xs.length - 1];
-            for (int i = 1; i < xs.length; i++) {
-                final long bits = Double.doubleToRawLongBits(xs[i]);
-                toWrite[i - 1] = twos2unsigned64(bits - lastBits);
-                lastBits = bits;
+    public static SliceReader<double[]> readDoubleLiteral(int[] codec) {
+        return (double[] xs, int off, int len, InputStream is) -> readDoubleLiteral(codec, xs, off, len, is, new Scratch());
+    }
+
+    static void readDoubleLiteral(int[] codec, double[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        final long[] bits = scratch.longs(len);
+        columnarReadLong(codec, bits, 0, len, is, scratch);
+        for (int i = 0; i < len; i++) {
+            xs[off + i] = Double.longBitsToDouble(bits[i]);
+        }
+    }
+
+    public static SliceWriter<float[]> writeFloatDelta(int[] codec) {
+        return (float[] xs, int off, int len, OutputStream os) -> writeFloatDelta(codec, xs, off, len, os, new Scratch());
+    }
+
+    static void writeFloatDelta(int[] codec, float[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        if (len == 0) return;
+
+        writeInt(os, Float.floatToRawIntBits(xs[off]));
+
+        final int[] toWrite = scratch.ints(len - 1);
+        for (int i = 1; i < len; i++) {
+            toWrite[i - 1] = twos2unsigned32(Float.floatToRawIntBits(xs[off + i]) - Float.floatToRawIntBits(xs[off + i - 1]));
+        }
+
+        columnarWriteInt(codec, toWrite, 0, len - 1, os, scratch);
+    }
+
+    public static SliceReader<float[]> readFloatDelta(int[] codec) {
+        return (float[] xs, int off, int len, InputStream is) -> readFloatDelta(codec, xs, off, len, is, new Scratch());
+    }
+
+    static void readFloatDelta(int[] codec, float[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        if (len == 0) return;
+
+        int lastBits = readInt(is);
+        xs[off] = Float.intBitsToFloat(lastBits);
+
+        final int[] read = scratch.ints(len - 1);
+        columnarReadInt(codec, read, 0, len - 1, is, scratch);
+
+        if (Kernels.SCALAR) {
+            for (int i = 1; i < len; i++) {
+                xs[off + i] = Float.intBitsToFloat(lastBits = lastBits + unsigned2twos32(read[i - 1]));
             }
+        } else {
+            Kernels.unzigzag(read, 0, len - 1);
+            for (int i = 1; i < len; i++) {
+                xs[off + i] = Float.intBitsToFloat(lastBits += read[i - 1]);
+            }
+        }
+    }
 
-            columnarWriteLong(codec).write(toWrite, os);
-        };
+    public static SliceWriter<double[]> writeDoubleDelta(int[] codec) {
+        return (double[] xs, int off, int len, OutputStream os) -> writeDoubleDelta(codec, xs, off, len, os, new Scratch());
+    }
+
+    static void writeDoubleDelta(int[] codec, double[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        if (len == 0) return;
+
+        writeLong(os, Double.doubleToRawLongBits(xs[off]));
+
+        final long[] toWrite = scratch.longs(len - 1);
+        for (int i = 1; i < len; i++) {
+            toWrite[i - 1] = twos2unsigned64(Double.doubleToRawLongBits(xs[off + i]) - Double.doubleToRawLongBits(xs[off + i - 1]));
+        }
+
+        columnarWriteLong(codec, toWrite, 0, len - 1, os, scratch);
+    }
+
+    public static SliceReader<double[]> readDoubleDelta(int[] codec) {
+        return (double[] xs, int off, int len, InputStream is) -> readDoubleDelta(codec, xs, off, len, is, new Scratch());
     }
 
-    public static Reader<double[]> readDoubleDelta(int[] codec) {
-        return (double[] xs, InputStream is) -> {
-            if (xs.length == 0) return;
+    static void readDoubleDelta(int[] codec, double[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        if (len == 0) return;
 
-            long lastBits = new DataInputStream(is).readLong();
-            xs[0] = Double.longBitsToDouble(lastBits);
+        long lastBits = readLong(is);
+        xs[off] = Double.longBitsToDouble(lastBits);
 
-            final long[] read = new long[xs.length - 1];
-            columnarReadLong(codec).read(read, is);
+        final long[] read = scratch.longs(len - 1);
+        columnarReadLong(codec, read, 0, len - 1, is, scratch);
 
-            for (int i = 1; i < xs.length; i++) {
-                xs[i] = Double.longBitsToDouble(lastBits = lastBits + unsigned2twos64(read[i - 1]));
+        if (Kernels.SCALAR) {
+            for (int i = 1; i < len; i++) {
+                xs[off + i] = Double.longBitsToDouble(lastBits = lastBits + unsigned2twos64(read[i - 1]));
             }
-        };
+        } else {
+            Kernels.unzigzag(read, 0, len - 1);
+            for (int i = 1; i < len; i++) {
+                xs[off + i] = Double.longBitsToDouble(lastBits += read[i - 1]);
+            }
+        }
     }
 
-    public static Writer<byte[]> writeFloatExponentsLiteral() {
-        return (byte[] exponents, OutputStream os) -> os.write(exponents);
+    // Delta coding for plain integers, such as timestamps, which are usually close to evenly spaced
+
+    public static SliceWriter<long[]> writeLongDelta(int[] codec) {
+        return (long[] xs, int off, int len, OutputStream os) -> writeLongDelta(codec, xs, off, len, os, new Scratch());
     }
 
-    public static Reader<byte[]> readFloatExponentsLiteral() {
-        return (byte[] exponents, InputStream os) -> {
-            int off = 0;
-            int read;
-            do {
-                read = os.read(exponents, off, exponents.length - off);
-                off += read;
-            } while (read > 0);
-        };
+    static void writeLongDelta(int[] codec, long[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        if (len == 0) return;
+
+        writeLong(os, xs[off]);
+
+        final long[] toWrite = scratch.longs(len - 1);
+        for (int i = 1; i < len; i++) {
+            toWrite[i - 1] = twos2unsigned64(xs[off + i] - xs[off + i - 1]);
+        }
+
+        columnarWriteLong(codec, toWrite, 0, len - 1, os, scratch);
     }
 
-    public static Writer<short[]> writeDoubleExponentsLiteral(int[] codec) {
-        return (short[] exponents, OutputStream os) -> {
-            columnarWriteShort(codec).write(exponents, os);
-        };
+    public static SliceReader<long[]> readLongDelta(int[] codec) {
+        return (long[] xs, int off, int len, InputStream is) -> readLongDelta(codec, xs, off, len, is, new Scratch());
     }
 
-    public static Reader<short[]> readDoubleExponentsLiteral(int[] codec) {
-        return (short[] exponents, InputStream is) -> {
-            columnarReadShort(codec).read(exponents, is);
-        };
+    static void readLongDelta(int[] codec, long[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        if (len == 0) return;
+
+        long last = xs[off] = readLong(is);
+
+        final long[] read = scratch.longs(len - 1);
+        columnarReadLong(codec, read, 0, len - 1, is, scratch);
+
+        Kernels.unzigzag(read, 0, len - 1);
+        for (int i = 1; i < len; i++) {
+            xs[off + i] = last += read[i - 1];
+        }
     }
 
-    public static Writer<byte[]> writeFloatExponentsDelta() {
-        return (byte[] exponents, OutputStream os) -> {
-            if (exponents.length == 0) return;
+    public static SliceWriter<byte[]> writeFloatExponentsLiteral() {
+        return (byte[] exponents, int off, int len, OutputStream os) -> writeFloatExponentsLiteral(exponents, off, len, os);
+    }
 
-            byte lastExponent = exponents[0];
-            os.write(((int)lastExponent) & 0xFF);
+    static void writeFloatExponentsLiteral(byte[] exponents, int off, int len, OutputStream os) throws IOException {
+        os.write(exponents, off, len);
+    }
 
-            for (int i = 1; i < exponents.length; i++) {
-                final byte exponent = exponents[i];
-                os.write((exponent - lastExponent) & 0xFF);
-                lastExponent = exponent;
-            }
-        };
+    public static SliceReader<byte[]> readFloatExponentsLiteral() {
+        return (byte[] exponents, int off, int len, InputStream is) -> readFloatExponentsLiteral(exponents, off, len, is);
     }
 
-    public static Reader<byte[]> readFloatExponentsDelta() {
-        return (byte[] exponents, InputStream os) -> {
-            if (exponents.length == 0) return;
+    static void readFloatExponentsLiteral(byte[] exponents, int off, int len, InputStream is) throws IOException {
+        readFully(is, exponents, off, len);
+    }
 
-            byte lastExponent = exponents[0] = (byte)os.read();
-            for (int i = 1; i < exponents.length; i++) {
-                final int delta = os.read();
-                lastExponent = exponents[i] = (byte)((lastExponent + delta) & 0xFF);
-            }
-        };
+    public static SliceWriter<short[]> writeDoubleExponentsLiteral(int[] codec) {
+        return (short[] exponents, int off, int len, OutputStream os) -> writeDoubleExponentsLiteral(codec, exponents, off, len, os, new Scratch());
+    }
+
+    static void writeDoubleExponentsLiteral(int[] codec, short[] exponents, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        columnarWriteShort(codec, exponents, off, len, os, scratch);
     }
 
-    public static Writer<short[]> writeDoubleExponentsDelta(int[] codec) {
-        return (short[] exponents, OutputStream os) -> {
-            if (exponents.length == 0) return;
+    public static SliceReader<short[]> readDoubleExponentsLiteral(int[] codec) {
+        return (short[] exponents, int off, int len, InputStream is) -> readDoubleExponentsLiteral(codec, exponents, off, len, is, new Scratch());
+    }
 
-            short lastExponent = exponents[0];
-            os.write((lastExponent >>>  0) & 0xFF);
-            os.write((lastExponent >>>  8) & 0x07);
+    static void readDoubleExponentsLiteral(int[] codec, short[] exponents, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        columnarReadShort(codec, exponents, off, len, is, scratch);
+    }
 
-            final short[] toWrite = new short[exponents.length - 1];
-            for (int i = 1; i < exponents.length; i++) {
-                final short exponent = exponents[i];
-                toWrite[i - 1] = twos2unsigned11((short)((exponent - lastExponent) & 0x7FF));
-                lastExponent = exponent;
-            }
+    public static SliceWriter<byte[]> writeFloatExponentsDelta() {
+        return (byte[] exponents, int off, int len, OutputStream os) -> writeFloatExponentsDelta(exponents, off, len, os, new Scratch());
+    }
 
-            columnarWriteShort(codec).write(toWrite, os);
-        };
+    static void writeFloatExponentsDelta(byte[] exponents, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        if (len == 0) return;
+
+        final byte[] toWrite = scratch.bytes(len);
+        byte lastExponent = toWrite[0] = exponents[off];
+        for (int i = 1; i < len; i++) {
+            final byte exponent = exponents[off + i];
+            toWrite[i] = (byte)(exponent - lastExponent);
+            lastExponent = exponent;
+        }
+
+        os.write(toWrite, 0, len);
+    }
+
+    public static SliceReader<byte[]> readFloatExponentsDelta() {
+        return (byte[] exponents, int off, int len, InputStream is) -> readFloatExponentsDelta(exponents, off, len, is);
+    }
+
+    static void readFloatExponentsDelta(byte[] exponents, int off, int len, InputStream is) throws IOException {
+        if (len == 0) return;
+
+        // Deltas are read straight into place and then summed
+        readFully(is, exponents, off, len);
+
+        byte lastExponent = exponents[off];
+        for (int i = 1; i < len; i++) {
+            lastExponent = exponents[off + i] = (byte)(lastExponent + exponents[off + i]);
+        }
+    }
+
+    public static SliceWriter<short[]> writeDoubleExponentsDelta(int[] codec) {
+        return (short[] exponents, int off, int len, OutputStream os) -> writeDoubleExponentsDelta(codec, exponents, off, len, os, new Scratch());
+    }
+
+    static void writeDoubleExponentsDelta(int[] codec, short[] exponents, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        if (len == 0) return;
+
+        final short firstExponent = exponents[off];
+        os.write((firstExponent >>>  0) & 0xFF);
+        os.write((firstExponent >>>  8) & 0x07);
+
+        final short[] toWrite = scratch.shorts(len - 1);
+        for (int i = 1; i < len; i++) {
+            toWrite[i - 1] = twos2unsigned11((short)((exponents[off + i] - exponents[off + i - 1]) & 0x7FF));
+        }
+
+        columnarWriteShort(codec, toWrite, 0, len - 1, os, scratch);
     }
 
-    public static Reader<short[]> readDoubleExponentsDelta(int[] codec) {
-        return (short[] exponents, InputStream is) -> {
-            if (exponents.length == 0) return;
+    public static SliceReader<short[]> readDoubleExponentsDelta(int[] codec) {
+        return (short[] exponents, int off, int len, InputStream is) -> readDoubleExponentsDelta(codec, exponents, off, len, is, new Scratch());
+    }
 
-            short lastExponent = exponents[0] = (short)(is.read() | (is.read() << 8));
+    static void readDoubleExponentsDelta(int[] codec, short[] exponents, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        if (len == 0) return;
 
-            final short[] read = new short[exponents.length - 1];
-            columnarReadShort(codec).read(read, is);
+        short lastExponent = exponents[off] = (short)(readByte(is) | (readByte(is) << 8));
 
-            for (int i = 1; i < exponents.length; i++) {
-                lastExponent = exponents[i] = (short)((lastExponent + unsigned2twos11(read[i - 1])) & 0x7FF);
+        final short[] read = scratch.shorts(len - 1);
+        columnarReadShort(codec, read, 0, len - 1, is, scratch);
+
+        if (Kernels.SCALAR) {
+            for (int i = 1; i < len; i++) {
+                lastExponent = exponents[off + i] = (short)((lastExponent + unsigned2twos11(read[i - 1])) & 0x7FF);
             }
-        };
+        } else {
+            Kernels.unzigzag(read, 0, len - 1);
+            int sum = lastExponent;
+            for (int i = 1; i < len; i++) {
+                exponents[off + i] = (short)((sum += read[i - 1]) & 0x7FF);
+            }
+        }
     }
 
-    public static Writer<int[]> writeFloatMantissasLiteral(int[] codec) {
+    public static SliceWriter<int[]> writeFloatMantissasLiteral(int[] codec) {
         return columnarWriteInt(codec);
     }
 
-    public static Reader<int[]> readFloatMantissasLiteral(int[] codec) {
+    public static SliceReader<int[]> readFloatMantissasLiteral(int[] codec) {
         return columnarReadInt(codec);
     }
 
-    public static Writer<int[]> writeFloatMantissasDelta(int[] codec) {
-        return (int[] mantissas, OutputStream os) -> {
-            if (mantissas.length == 0) return;
+    public static SliceWriter<int[]> writeFloatMantissasDelta(int[] codec) {
+        return (int[] mantissas, int off, int len, OutputStream os) -> writeFloatMantissasDelta(codec, mantissas, off, len, os, new Scratch());
+    }
 
-            int lastMantissa = mantissas[0];
-            os.write((lastMantissa >>>  0) & 0xFF);
-            os.write((lastMantissa >>>  8) & 0xFF);
-            os.write((lastMantissa >>> 16) & 0x7F);
+    static void writeFloatMantissasDelta(int[] codec, int[] mantissas, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        if (len == 0) return;
 
-            final int[] toWrite = new int[mantissas.length - 1];
-            for (int i = 1; i < mantissas.length; i++) {
-                final int mantissa = mantissas[i];
-                toWrite[i - 1] = twos2unsigned23(mantissa - lastMantissa);
-                lastMantissa = mantissa;
-            }
+        final int firstMantissa = mantissas[off];
+        os.write((firstMantissa >>>  0) & 0xFF);
+        os.write((firstMantissa >>>  8) & 0xFF);
+        os.write((firstMantissa >>> 16) & 0x7F);
 
-            columnarWriteInt(codec).write(toWrite, os);
-        };
+        final int[] toWrite = scratch.ints(len - 1);
+        for (int i = 1; i < len; i++) {
+            toWrite[i - 1] = twos2unsigned23(mantissas[off + i] - mantissas[off + i - 1]);
+        }
+
+        columnarWriteInt(codec, toWrite, 0, len - 1, os, scratch);
     }
 
-    public static Reader<int[]> readFloatMantissasDelta(int[] codec) {
-        return (int[] mantissas, InputStream is) -> {
-            if (mantissas.length == 0) return;
+    public static SliceReader<int[]> readFloatMantissasDelta(int[] codec) {
+        return (int[] mantissas, int off, int len, InputStream is) -> readFloatMantissasDelta(codec, mantissas, off, len, is, new Scratch());
+    }
+
+    static void readFloatMantissasDelta(int[] codec, int[] mantissas, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        if (len == 0) return;
 
-            int lastMantissa = mantissas[0] = is.read() | (is.read() << 8) | (is.read() << 16);
+        int lastMantissa = mantissas[off] = readByte(is) | (readByte(is) << 8) | (readByte(is) << 16);
 
-            final int[] read = new int[mantissas.length - 1];
-            columnarReadInt(codec).read(read, is);
+        final int[] read = scratch.ints(len - 1);
+        columnarReadInt(codec, read, 0, len - 1, is, scratch);
 
-            for (int i = 1; i < mantissas.length; i++) {
-                lastMantissa = mantissas[i] = ((lastMantissa + unsigned2twos23(read[i - 1])) & 0x7FFFFF);
+        if (Kernels.SCALAR) {
+            for (int i = 1; i < len; i++) {
+                lastMantissa = mantissas[off + i] = ((lastMantissa + unsigned2twos23(read[i - 1])) & 0x7FFFFF);
             }
-        };
+        } else {
+            Kernels.unzigzag(read, 0, len - 1);
+            int sum = lastMantissa;
+            for (int i = 1; i < len; i++) {
+                mantissas[off + i] = (sum += read[i - 1]) & 0x7FFFFF;
+            }
+        }
     }
 
-    public static Writer<long[]> writeDoubleMantissasLiteral(int[] codec) {
+    public static SliceWriter<long[]> writeDoubleMantissasLiteral(int[] codec) {
         return columnarWriteLong(codec);
     }
 
-    public static Reader<long[]> readDoubleMantissasLiteral(int[] codec) {
+    public static SliceReader<long[]> readDoubleMantissasLiteral(int[] codec) {
         return columnarReadLong(codec);
     }
 
-    public static Writer<long[]> writeDoubleMantissasDelta(int[] codec) {
-        return (long[] mantissas, OutputStream os) -> {
-            if (mantissas.length == 0) return;
+    public static SliceWriter<long[]> writeDoubleMantissasDelta(int[] codec) {
+        return (long[] mantissas, int off, int len, OutputStream os) -> writeDoubleMantissasDelta(codec, mantissas, off, len, os, new Scratch());
+    }
 
-            long lastMantissa = mantissas[0];
-            os.write((int)((lastMantissa >>>  0) & 0xFF));
-            os.write((int)((lastMantissa >>>  8) & 0xFF));
-            os.write((int)((lastMantissa >>> 16) & 0xFF));
-            os.write((int)((lastMantissa >>> 24) & 0xFF));
-            os.write((int)((lastMantissa >>> 32) & 0xFF));
-            os.write((int)((lastMantissa >>> 40) & 0xFF));
-            os.write((int)((lastMantissa >>> 48) & 0x0F));
+    static void writeDoubleMantissasDelta(int[] codec, long[] mantissas, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        if (len == 0) return;
 
-            final long[] toWrite = new long[mantissas.length - 1];
-            for (int i = 1; i < mantissas.length; i++) {
-                final long mantissa = mantissas[i];
-                toWrite[i - 1] = twos2unsigned52(mantissa - lastMantissa);
-                lastMantissa = mantissa;
+        final long firstMantissa = mantissas[off];
+        os.write((int)((firstMantissa >>>  0) & 0xFF));
+        os.write((int)((firstMantissa >>>  8) & 0xFF));
+        os.write((int)((firstMantissa >>> 16) & 0xFF));
+        os.write((int)((firstMantissa >>> 24) & 0xFF));
+        os.write((int)((firstMantissa >>> 32) & 0xFF));
+        os.write((int)((firstMantissa >>> 40) & 0xFF));
+        os.write((int)((firstMantissa >>> 48) & 0x0F));
+
+        final long[] toWrite = scratch.longs(len - 1);
+        for (int i = 1; i < len; i++) {
+            toWrite[i - 1] = twos2unsigned52(mantissas[off + i] - mantissas[off + i - 1]);
+        }
+
+        columnarWriteLong(codec, toWrite, 0, len - 1, os, scratch);
+    }
+
+    public static SliceReader<long[]> readDoubleMantissasDelta(int[] codec) {
+        return (long[] mantissas, int off, int len, InputStream is) -> readDoubleMantissasDelta(codec, mantissas, off, len, is, new Scratch());
+    }
+
+    static void readDoubleMantissasDelta(int[] codec, long[] mantissas, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        if (len == 0) return;
+
+        long lastMantissa = mantissas[off] = ((long)readByte(is) <<  0)
+                                           | ((long)readByte(is) <<  8)
+                                           | ((long)readByte(is) << 16)
+                                           | ((long)readByte(is) << 24)
+                                           | ((long)readByte(is) << 32)
+                                           | ((long)readByte(is) << 40)
+                                           | ((long)readByte(is) << 48);
+
+        final long[] read = scratch.longs(len - 1);
+        columnarReadLong(codec, read, 0, len - 1, is, scratch);
+
+        if (Kernels.SCALAR) {
+            for (int i = 1; i < len; i++) {
+                lastMantissa = mantissas[off + i] = ((lastMantissa + unsigned2twos52(read[i - 1])) & 0xFFFFFFFFFFFFFL);
             }
+        } else {
+            Kernels.unzigzag(read, 0, len - 1);
+            long sum = lastMantissa;
+            for (int i = 1; i < len; i++) {
+                mantissas[off + i] = (sum += read[i - 1]) & 0xFFFFFFFFFFFFFL;
+            }
+        }
+    }
 
-            columnarWriteLong(codec).write(toWrite, os);
-        };
+    // Trimmed mantissas: a byte giving the number of low bits that are zero in every mantissa, then the mantissas
+    // shifted right past those bits and coded (literally or as deltas) in only as many bytes as the bits left
+    // need. Doubles widened from floats share at least 29 such bits, so they take 3 bytes rather than 7.
+    // codecs[width] is the codec for mantissas of width bytes (see trimmedCodecs). Nothing at all is written for
+    // an empty block.
+
+    static int trimmedWidth(int shift) {
+        return (52 - shift + 7) >>> 3;
     }
 
-    public static Reader<long[]> readDoubleMantissasDelta(int[] codec) {
-        return (long[] mantissas, InputStream is) -> {
-            if (mantissas.length == 0) return;
+    // The codec, cut down to each width from 0 to 7 bytes, that trimmed mantissas of that width are written with
+    static int[][] trimmedCodecs(int[] codec) {
+        final int[][] result = new int[8][];
+        for (int width = 0; width < result.length; width++) {
+            final List<Integer> planes = new ArrayList<>();
+            int pos = 0;
+            for (int n : codec) {
+                if (n <= 0 || pos >= width) continue;
+                planes.add(Math.min(n, width - pos));
+                pos += n;
+            }
+            result[width] = new int[planes.size()];
+            for (int i = 0; i < planes.size(); i++) result[width][i] = planes.get(i);
+        }
+        return result;
+    }
 
-            long lastMantissa = mantissas[0] = ((long)is.read() <<  0)
-                                             | ((long)is.read() <<  8)
-                                             | ((long)is.read() << 16)
-                                             | ((long)is.read() << 24)
-                                             | ((long)is.read() << 32)
-                                             | ((long)is.read() << 40)
-                                             | ((long)is.read() << 48);
+    static void writeDoubleMantissasTrimmed(Coding coding, int[][] codecs, long[] mantissas, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        if (len == 0) return;
 
-            final long[] read = new long[mantissas.length - 1];
-            columnarReadLong(codec).read(read, is);
+        long bits = 0;
+        for (int i = off; i < off + len; i++) bits |= mantissas[i];
+        final int shift = Math.min(52, Long.numberOfTrailingZeros(bits));
+        os.write(shift);
 
-            for (int i = 1; i < mantissas.length; i++) {
-                lastMantissa = mantissas[i] = ((lastMantissa + unsigned2twos52(read[i - 1])) & 0xFFFFFFFFFFFFFL);
+        final int width = trimmedWidth(shift);
+        if (width == 0) return;
+        switch (coding) {
+            case LITERAL: {
+                final long[] toWrite = scratch.longs(len);
+                for (int i = 0; i < len; i++) toWrite[i] = mantissas[off + i] >>> shift;
+                columnarWriteLong(codecs[width], toWrite, 0, len, os, scratch);
+                break;
             }
-        };
+            case DELTA: {
+                final long first = mantissas[off] >>> shift;
+                for (int i = 0; i < width; i++) os.write((int)(first >>> (i * 8)) & 0xFF);
+
+                // Zig-zagged differences modulo 2^(52 - shift), so they need no more bits than the mantissas do
+                final int unused = 64 - (52 - shift);
+                final long mask = -1L >>> unused;
+                final long[] toWrite = scratch.longs(len - 1);
+                for (int i = 1; i < len; i++) {
+                    final long delta = ((mantissas[off + i] - mantissas[off + i - 1]) >>> shift) << unused >> unused;
+                    toWrite[i - 1] = ((delta << 1) ^ (delta >> 63)) & mask;
+                }
+                columnarWriteLong(codecs[width], toWrite, 0, len - 1, os, scratch);
+                break;
+            }
+        }
+    }
+
+    static void readDoubleMantissasTrimmed(Coding coding, int[][] codecs, long[] mantissas, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        if (len == 0) return;
+
+        final int shift = readByte(is);
+        if (shift > 52) throw new IOException("Mantissas cannot all end in " + shift + " zero bits");
+        final int width = trimmedWidth(shift);
+        if (width == 0) {
+            Arrays.fill(mantissas, off, off + len, 0L);
+            return;
+        }
+
+        switch (coding) {
+            case LITERAL:
+                columnarReadLong(codecs[width], mantissas, off, len, is, scratch);
+                for (int i = off; i < off + len; i++) mantissas[i] <<= shift;
+                break;
+            case DELTA: {
+                long last = 0;
+                for (int i = 0; i < width; i++) last |= (long)readByte(is) << (i * 8);
+                mantissas[off] = last << shift;
+
+                final long mask = -1L >>> (64 - (52 - shift));
+                final long[] read = scratch.longs(len - 1);
+                columnarReadLong(codecs[width], read, 0, len - 1, is, scratch);
+                for (int i = 1; i < len; i++) {
+                    final long zigzagged = read[i - 1];
+                    last = (last + ((zigzagged >>> 1) ^ -(zigzagged & 1))) & mask;
+                    mantissas[off + i] = last << shift;
+                }
+                break;
+            }
+        }
+    }
+
+    // Mantissas coded with codec, or trimmed with trimmedCodecs if that is not null
+
+    static void writeDoubleMantissas(Coding coding, int[] codec, int[][] trimmedCodecs, long[] mantissas, int len, OutputStream os, Scratch scratch) throws IOException {
+        if (trimmedCodecs != null) {
+            writeDoubleMantissasTrimmed(coding, trimmedCodecs, mantissas, 0, len, os, scratch);
+            return;
+        }
+        switch (coding) {
+            case LITERAL: columnarWriteLong(codec, mantissas, 0, len, os, scratch); break;
+            case DELTA:   writeDoubleMantissasDelta(codec, mantissas, 0, len, os, scratch); break;
+        }
+    }
 
+    static void readDoubleMantissas(Coding coding, int[] codec, int[][] trimmedCodecs, long[] mantissas, int len, InputStream is, Scratch scratch) throws IOException {
+        if (trimmedCodecs != null) {
+            readDoubleMantissasTrimmed(coding, trimmedCodecs, mantissas, 0, len, is, scratch);
+            return;
+        }
+        switch (coding) {
+            case LITERAL: columnarReadLong(codec, mantissas, 0, len, is, scratch); break;
+            case DELTA:   readDoubleMantissasDelta(codec, mantissas, 0, len, is, scratch); break;
+        }
     }
 
     private static List<Integer> insertAt(List<Integer> xs, int ix, int value) {
@@ -463,425 +807,904 @@ public class Conditioner {
         return result;
     }
 
-    public static Writer<short[]> columnarWriteShort(int[] codec) {
-        return (short[] xs, OutputStream os) -> {
-            int pos = 0;
-            for (int n : codec) {
-                for (int x : xs) {
+    // Each group of n bytes is transposed into a plane in Scratch and then handed to the stream in one go, rather
+    // than a byte at a time.
+
+    public static SliceWriter<short[]> columnarWriteShort(int[] codec) {
+        return (short[] xs, int off, int len, OutputStream os) -> columnarWriteShort(codec, xs, off, len, os, new Scratch());
+    }
+
+    static void columnarWriteShort(int[] codec, short[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        int pos = 0;
+        for (int n : codec) {
+            if (n <= 0) continue;
+
+            final byte[] plane = scratch.bytes(len * n);
+            if (n == 1 && !Kernels.SCALAR) {
+                Kernels.extractPlane(xs, off, len, pos * 8, plane);
+            } else {
+                int k = 0;
+                for (int j = off; j < off + len; j++) {
+                    final int x = xs[j];
                     for (int i = 0; i < n; i++) {
-                        os.write((x >>> ((pos + i) * 8)) & 0xFF);
+                        plane[k++] = (byte)(x >>> ((pos + i) * 8));
                     }
                 }
-                pos += Math.max(0, n);
             }
-        };
+            os.write(plane, 0, len * n);
+            pos += n;
+        }
     }
 
-    public static Writer<int[]> columnarWriteInt(int[] codec) {
-        return (int[] xs, OutputStream os) -> {
-            int pos = 0;
-            for (int n : codec) {
-                for (int x : xs) {
+    public static SliceWriter<int[]> columnarWriteInt(int[] codec) {
+        return (int[] xs, int off, int len, OutputStream os) -> columnarWriteInt(codec, xs, off, len, os, new Scratch());
+    }
+
+    static void columnarWriteInt(int[] codec, int[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        int pos = 0;
+        for (int n : codec) {
+            if (n <= 0) continue;
+
+            final byte[] plane = scratch.bytes(len * n);
+            if (n == 1 && !Kernels.SCALAR) {
+                Kernels.extractPlane(xs, off, len, pos * 8, plane);
+            } else {
+                int k = 0;
+                for (int j = off; j < off + len; j++) {
+                    final int x = xs[j];
                     for (int i = 0; i < n; i++) {
-                        os.write((x >>> ((pos + i) * 8)) & 0xFF);
+                        plane[k++] = (byte)(x >>> ((pos + i) * 8));
                     }
                 }
-                pos += Math.max(0, n);
             }
-        };
+            os.write(plane, 0, len * n);
+            pos += n;
+        }
     }
 
-    public static Writer<long[]> columnarWriteLong(int[] codec) {
-        return (long[] xs, OutputStream os) -> {
-            int pos = 0;
-            for (int n : codec) {
-                for (long x : xs) {
+    public static SliceWriter<long[]> columnarWriteLong(int[] codec) {
+        return (long[] xs, int off, int len, OutputStream os) -> columnarWriteLong(codec, xs, off, len, os, new Scratch());
+    }
+
+    static void columnarWriteLong(int[] codec, long[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        int pos = 0;
+        for (int n : codec) {
+            if (n <= 0) continue;
+
+            final byte[] plane = scratch.bytes(len * n);
+            if (n == 1 && !Kernels.SCALAR) {
+                Kernels.extractPlane(xs, off, len, pos * 8, plane);
+            } else {
+                int k = 0;
+                for (int j = off; j < off + len; j++) {
+                    final long x = xs[j];
                     for (int i = 0; i < n; i++) {
-                        os.write((int)((x >>> ((pos + i) * 8)) & 0xFF));
+                        plane[k++] = (byte)(x >>> ((pos + i) * 8));
                     }
                 }
-                pos += Math.max(0, n);
             }
-        };
+            os.write(plane, 0, len * n);
+            pos += n;
+        }
     }
 
-    public static Reader<short[]> columnarReadShort(int[] codec) {
-        return (short[] xs, InputStream is) -> {
-            int pos = 0;
-            for (int n : codec) {
-                for (int j = 0; j < xs.length; j++) {
+    // The first plane overwrites whatever was in xs and later planes are ORed in, so there is no need for xs to
+    // be zeroed beforehand.
+
+    public static SliceReader<short[]> columnarReadShort(int[] codec) {
+        return (short[] xs, int off, int len, InputStream is) -> columnarReadShort(codec, xs, off, len, is, new Scratch());
+    }
+
+    static void columnarReadShort(int[] codec, short[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        int pos = 0;
+        for (int n : codec) {
+            if (n <= 0) continue;
+
+            final byte[] plane = scratch.bytes(len * n);
+            readFully(is, plane, 0, len * n);
+            if (n == 1 && !Kernels.SCALAR) {
+                Kernels.depositPlane(plane, xs, off, len, pos * 8);
+            } else {
+                int k = 0;
+                for (int j = off; j < off + len; j++) {
+                    int x = pos == 0 ? 0 : xs[j];
                     for (int i = 0; i < n; i++) {
-                        xs[j] |= is.read() << ((pos + i) * 8);
+                        x |= (plane[k++] & 0xFF) << ((pos + i) * 8);
                     }
+                    xs[j] = (short)x;
                 }
-                pos += Math.max(0, n);
             }
-        };
+            pos += n;
+        }
     }
 
-    public static Reader<int[]> columnarReadInt(int[] codec) {
-        return (int[] xs, InputStream is) -> {
-            int pos = 0;
-            for (int n : codec) {
-                for (int j = 0; j < xs.length; j++) {
+    public static SliceReader<int[]> columnarReadInt(int[] codec) {
+        return (int[] xs, int off, int len, InputStream is) -> columnarReadInt(codec, xs, off, len, is, new Scratch());
+    }
+
+    static void columnarReadInt(int[] codec, int[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        int pos = 0;
+        for (int n : codec) {
+            if (n <= 0) continue;
+
+            final byte[] plane = scratch.bytes(len * n);
+            readFully(is, plane, 0, len * n);
+            if (n == 1 && !Kernels.SCALAR) {
+                Kernels.depositPlane(plane, xs, off, len, pos * 8);
+            } else {
+                int k = 0;
+                for (int j = off; j < off + len; j++) {
+                    int x = pos == 0 ? 0 : xs[j];
                     for (int i = 0; i < n; i++) {
-                        xs[j] |= is.read() << ((pos + i) * 8);
+                        x |= (plane[k++] & 0xFF) << ((pos + i) * 8);
                     }
+                    xs[j] = x;
                 }
-                pos += Math.max(0, n);
             }
-        };
+            pos += n;
+        }
     }
 
-    public static Reader<long[]> columnarReadLong(int[] codec) {
-        return (long[] xs, InputStream is) -> {
-            int pos = 0;
-            for (int n : codec) {
-                for (int j = 0; j < xs.length; j++) {
+    public static SliceReader<long[]> columnarReadLong(int[] codec) {
+        return (long[] xs, int off, int len, InputStream is) -> columnarReadLong(codec, xs, off, len, is, new Scratch());
+    }
+
+    static void columnarReadLong(int[] codec, long[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        int pos = 0;
+        for (int n : codec) {
+            if (n <= 0) continue;
+
+            final byte[] plane = scratch.bytes(len * n);
+            readFully(is, plane, 0, len * n);
+            if (n == 1 && !Kernels.SCALAR) {
+                Kernels.depositPlane(plane, xs, off, len, pos * 8);
+            } else {
+                int k = 0;
+                for (int j = off; j < off + len; j++) {
+                    long x = pos == 0 ? 0 : xs[j];
                     for (int i = 0; i < n; i++) {
-                        xs[j] |= (long)is.read() << ((pos + i) * 8);
+                        x |= (long)(plane[k++] & 0xFF) << ((pos + i) * 8);
                     }
+                    xs[j] = x;
                 }
-                pos += Math.max(0, n);
             }
-        };
+            pos += n;
+        }
     }
 
-    public static void writeFloat(float[] xs, OutputStream os) throws IOException {
-        // For the tests. FIXME: use better params
-        new Conditioner(true).conditionFloat(writeFloatExponentsLiteral(), writeFloatMantissasLiteral(new int[] { 1, 1, 1 })).write(xs, os);
-    }
+    // Writes one descriptor per value: 2 bits (0, NaN or else positive/negative flag) with special cases on,
+    // or just the sign bit with them off. Returns the number of values that need an exponent and mantissa.
+    int writeDescriptors(float[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        final int defined;
+        final byte[] bytes;
+        int k = 0;
+        if (specialCases) {
+            bytes = scratch.bytes((len + 3) >>> 2);
+            int definedAcc = 0;
+            int i;
+            for (i = 0; i < (len >>> 2) << 2; i += 4) {
+                final int d0 = descriptor(Float.floatToRawIntBits(xs[off + i + 0])), d1 = descriptor(Float.floatToRawIntBits(xs[off + i + 1])),
+                          d2 = descriptor(Float.floatToRawIntBits(xs[off + i + 2])), d3 = descriptor(Float.floatToRawIntBits(xs[off + i + 3]));
+                bytes[k++] = (byte)((d0 << 6) | (d1 << 4) | (d2 << 2) | (d3 << 0));
+                definedAcc += (d0 >>> 1) + (d1 >>> 1) + (d2 >>> 1) + (d3 >>> 1);
+            }
 
-    public Writer<float[]> conditionFloat(Writer<byte[]> writeExponents,
-                                          Writer<int[]> writeMantissas) {
-        return (float[] xs, OutputStream os) -> {
-            // 1. Write descriptors (0, NaN or else positive/negative flag)
-            final int defined;
-            if (specialCases) {
-                final int[] definedByRef = new int[] { 0 };
-                int i;
-                for (i = 0; i < (xs.length >>> 2) << 2; i += 4) {
-                    os.write((descriptor(definedByRef, xs[i + 0]) << 6) |
-                             (descriptor(definedByRef, xs[i + 1]) << 4) |
-                             (descriptor(definedByRef, xs[i + 2]) << 2) |
-                             (descriptor(definedByRef, xs[i + 3]) << 0));
+            if (i < len) {
+                int acc = 0;
+                for (; i < len; i++) {
+                    final int d = descriptor(Float.floatToRawIntBits(xs[off + i]));
+                    acc = (acc << 2) | d;
+                    definedAcc += d >>> 1;
                 }
+                bytes[k++] = (byte)acc;
+            }
 
-                if (i < xs.length) {
-                    int acc = 0;
-                    for (; i < xs.length; i++) {
-                        acc = (acc << 2) | descriptor(definedByRef, xs[i]);
-                    }
-                    os.write(acc);
-                }
+            defined = definedAcc;
+        } else {
+            bytes = scratch.bytes((len + 7) >>> 3);
+            int i;
+            for (i = 0; i < (len >>> 3) << 3; i += 8) {
+                bytes[k++] = (byte)((shortDescriptor(xs[off + i + 0]) << 7) |
+                                    (shortDescriptor(xs[off + i + 1]) << 6) |
+                                    (shortDescriptor(xs[off + i + 2]) << 5) |
+                                    (shortDescriptor(xs[off + i + 3]) << 4) |
+                                    (shortDescriptor(xs[off + i + 4]) << 3) |
+                                    (shortDescriptor(xs[off + i + 5]) << 2) |
+                                    (shortDescriptor(xs[off + i + 6]) << 1) |
+                                    (shortDescriptor(xs[off + i + 7]) << 0));
+            }
 
-                defined = definedByRef[0];
-            } else {
-                int i;
-                for (i = 0; i < (xs.length >>> 3) << 3; i += 8) {
-                    os.write((shortDescriptor(xs[i + 0]) << 7) |
-                             (shortDescriptor(xs[i + 1]) << 6) |
-                             (shortDescriptor(xs[i + 2]) << 5) |
-                             (shortDescriptor(xs[i + 3]) << 4) |
-                             (shortDescriptor(xs[i + 4]) << 3) |
-                             (shortDescriptor(xs[i + 5]) << 2) |
-                             (shortDescriptor(xs[i + 6]) << 1) |
-                             (shortDescriptor(xs[i + 7]) << 0));
+            if (i < len) {
+                int acc = 0;
+                for (; i < len; i++) {
+                    acc = (acc << 1) | shortDescriptor(xs[off + i]);
                 }
+                bytes[k++] = (byte)acc;
+            }
 
-                if (i < xs.length) {
-                    int acc = 0;
-                    for (; i < xs.length; i++) {
-                        acc = (acc << 1) | shortDescriptor(xs[i]);
-                    }
-                    os.write(acc);
+            defined = len;
+        }
+
+        os.write(bytes, 0, k);
+        return defined;
+    }
+
+    int writeDescriptors(double[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        final int defined;
+        final byte[] bytes;
+        int k = 0;
+        if (specialCases) {
+            bytes = scratch.bytes((len + 3) >>> 2);
+            int definedAcc = 0;
+            int i;
+            for (i = 0; i < (len >>> 2) << 2; i += 4) {
+                final int d0 = descriptor(Double.doubleToRawLongBits(xs[off + i + 0])), d1 = descriptor(Double.doubleToRawLongBits(xs[off + i + 1])),
+                          d2 = descriptor(Double.doubleToRawLongBits(xs[off + i + 2])), d3 = descriptor(Double.doubleToRawLongBits(xs[off + i + 3]));
+                bytes[k++] = (byte)((d0 << 6) | (d1 << 4) | (d2 << 2) | (d3 << 0));
+                definedAcc += (d0 >>> 1) + (d1 >>> 1) + (d2 >>> 1) + (d3 >>> 1);
+            }
+
+            if (i < len) {
+                int acc = 0;
+                for (; i < len; i++) {
+                    final int d = descriptor(Double.doubleToRawLongBits(xs[off + i]));
+                    acc = (acc << 2) | d;
+                    definedAcc += d >>> 1;
                 }
+                bytes[k++] = (byte)acc;
+            }
 
-                defined = xs.length;
+            defined = definedAcc;
+        } else {
+            bytes = scratch.bytes((len + 7) >>> 3);
+            int i;
+            for (i = 0; i < (len >>> 3) << 3; i += 8) {
+                bytes[k++] = (byte)((shortDescriptor(xs[off + i + 0]) << 7) |
+                                    (shortDescriptor(xs[off + i + 1]) << 6) |
+                                    (shortDescriptor(xs[off + i + 2]) << 5) |
+                                    (shortDescriptor(xs[off + i + 3]) << 4) |
+                                    (shortDescriptor(xs[off + i + 4]) << 3) |
+                                    (shortDescriptor(xs[off + i + 5]) << 2) |
+                                    (shortDescriptor(xs[off + i + 6]) << 1) |
+                                    (shortDescriptor(xs[off + i + 7]) << 0));
+            }
+
+            if (i < len) {
+                int acc = 0;
+                for (; i < len; i++) {
+                    acc = (acc << 1) | shortDescriptor(xs[off + i]);
+                }
+                bytes[k++] = (byte)acc;
             }
 
+            defined = len;
+        }
+
+        os.write(bytes, 0, k);
+        return defined;
+    }
+
+    // Gathers the exponent and mantissa of each value that has a descriptor of 2 or 3. Every value is stored to
+    // slot j but j only moves on past defined ones, which avoids a data-dependent branch. The loop stops as soon
+    // as the last defined value is in, so j never runs off the end of arrays sized exactly to fit.
+    void split(float[] xs, int off, int defined, byte[] exponents, int[] mantissas) {
+        int j = 0;
+        for (int i = off; j < defined; i++) {
+            final int bits = Float.floatToRawIntBits(xs[i]);
+            exponents[j] = (byte)((bits & 0x7F800000) >>> 23);
+            mantissas[j] = bits & 0x007FFFFF;
+            j += isDefined(bits);
+        }
+    }
+
+    // FIXME: try version with exponent and mantissa packed together
+    void split(double[] xs, int off, int defined, short[] exponents, long[] mantissas) {
+        int j = 0;
+        for (int i = off; j < defined; i++) {
+            final long bits = Double.doubleToRawLongBits(xs[i]);
+            exponents[j] = (short)((bits >>> 52) & 0x7FFL);
+            mantissas[j] = bits & 0x000FFFFFFFFFFFFFL;
+            j += isDefined(bits);
+        }
+    }
+
+    private static final Conditioner DEFAULT = new Conditioner(true);
+
+    // For the tests. FIXME: use better params
+    private static final int[] DEFAULT_FLOAT_MANTISSA_CODEC = new int[] { 1, 1, 1 };
+
+    // FIXME: better params
+    private static final int[] DEFAULT_DOUBLE_EXPONENT_CODEC = new int[] { 1, 1 };
+    private static final int[] DEFAULT_DOUBLE_MANTISSA_CODEC = new int[] { 1, 1, 1, 1, 1, 1, 1 };
+
+    public static void writeFloat(float[] xs, OutputStream os) throws IOException {
+        DEFAULT.conditionFloat(Coding.LITERAL, Coding.LITERAL, DEFAULT_FLOAT_MANTISSA_CODEC, xs, 0, xs.length, os, new Scratch());
+    }
+
+    public SliceWriter<float[]> conditionFloat(Writer<byte[]> writeExponents,
+                                               Writer<int[]> writeMantissas) {
+        return (float[] xs, int off, int len, OutputStream unwrappedOs) -> {
+            final BlockRecorder recorder = metrics == null ? null : new BlockRecorder(metrics, true, len);
+            final OutputStream os = recorder == null ? unwrappedOs : recorder.wrap(unwrappedOs);
+
+            // 1. Write descriptors (0, NaN or else positive/negative flag)
+            final int defined = writeDescriptors(xs, off, len, os, new Scratch());
+            if (recorder != null) recorder.descriptorsDone(defined);
+
             // 2. Gather bits
-            int j = 0;
             final byte[] exponents = new byte[defined];
             final int[] mantissas = new int[defined];
-            for (final float x : xs) {
-                if (!specialCases || (x != 0.0 && !Float.isNaN(x))) {
-                    final int bits = Float.floatToRawIntBits(x);
-                    exponents[j] = (byte)((bits & 0x7F800000) >>> 23);
-                    mantissas[j] = bits & 0x007FFFFF;
-                    j++;
-                }
-            }
+            split(xs, off, defined, exponents, mantissas);
+            if (recorder != null) recorder.splitDone();
 
             // 3. Write
             writeExponents.write(exponents, os);
+            if (recorder != null) recorder.exponentsDone();
             writeMantissas.write(mantissas, os);
+            if (recorder != null) {
+                recorder.mantissasDone();
+                recorder.count(xs, off, len);
+                recorder.done();
+            }
         };
     }
 
-    public static void writeDouble(double[] xs, OutputStream os) throws IOException {
-        // FIXME: better params
-        new Conditioner(true).conditionDouble(writeDoubleExponentsLiteral(new int[]{1, 1}), writeDoubleMantissasDelta(new int[]{1, 1, 1, 1, 1, 1, 1})).write(xs, os);
-    }
+    // As conditionFloat, but with the exponent/mantissa codecs fixed up front so that every intermediate array
+    // can come from the caller's Scratch. Codecs with a plane per byte go through Fused in a single pass, unless
+    // metrics are wanted: those time each stage separately, so need the stages to be separate.
+    void conditionFloat(Coding exponentCoding, Coding mantissaCoding, int[] mantissaCodec,
+                        float[] xs, int off, int len, OutputStream unwrappedOs, Scratch scratch) throws IOException {
+        if (metrics == null && Fused.applies(mantissaCodec, 3)) {
+            Fused.writeFloat(specialCases, exponentCoding, mantissaCoding, xs, off, len, unwrappedOs, scratch);
+            return;
+        }
 
-    public Writer<double[]> conditionDouble(Writer<short[]> writeExponents,
-                                            Writer<long[]> writeMantissas) {
-        return (double[] xs, OutputStream os) -> {
-            // 1. Write descriptors (0, NaN or else positive/negative flag)
-            final int defined;
-            if (specialCases) {
-                final int[] definedByRef = new int[] { 0 };
-                int i;
-                for (i = 0; i < (xs.length >>> 2) << 2; i += 4) {
-                    os.write((descriptor(definedByRef, xs[i + 0]) << 6) |
-                             (descriptor(definedByRef, xs[i + 1]) << 4) |
-                             (descriptor(definedByRef, xs[i + 2]) << 2) |
-                             (descriptor(definedByRef, xs[i + 3]) << 0));
-                }
+        final BlockRecorder recorder = metrics == null ? null : new BlockRecorder(metrics, true, len);
+        final OutputStream os = recorder == null ? unwrappedOs : recorder.wrap(unwrappedOs);
 
-                if (i < xs.length) {
-                    int acc = 0;
-                    for (; i < xs.length; i++) {
-                        acc = (acc << 2) | descriptor(definedByRef, xs[i]);
-                    }
-                    os.write(acc);
-                }
+        final int defined = writeDescriptors(xs, off, len, os, scratch);
+        if (recorder != null) recorder.descriptorsDone(defined);
 
-                defined = definedByRef[0];
-            } else {
-                int i;
-                for (i = 0; i < (xs.length >>> 3) << 3; i += 8) {
-                    os.write((shortDescriptor(xs[i + 0]) << 7) |
-                             (shortDescriptor(xs[i + 1]) << 6) |
-                             (shortDescriptor(xs[i + 2]) << 5) |
-                             (shortDescriptor(xs[i + 3]) << 4) |
-                             (shortDescriptor(xs[i + 4]) << 3) |
-                             (shortDescriptor(xs[i + 5]) << 2) |
-                             (shortDescriptor(xs[i + 6]) << 1) |
-                             (shortDescriptor(xs[i + 7]) << 0));
-                }
+        final byte[] exponents = scratch.exponentBytes(defined);
+        final int[] mantissas = scratch.mantissaInts(defined);
+        split(xs, off, defined, exponents, mantissas);
+        if (recorder != null) recorder.splitDone();
 
-                if (i < xs.length) {
-                    int acc = 0;
-                    for (; i < xs.length; i++) {
-                        acc = (acc << 1) | shortDescriptor(xs[i]);
-                    }
-                    os.write(acc);
-                }
+        switch (exponentCoding) {
+            case LITERAL: writeFloatExponentsLiteral(exponents, 0, defined, os); break;
+            case DELTA:   writeFloatExponentsDelta(exponents, 0, defined, os, scratch); break;
+        }
+        if (recorder != null) recorder.exponentsDone();
+        switch (mantissaCoding) {
+            case LITERAL: columnarWriteInt(mantissaCodec, mantissas, 0, defined, os, scratch); break;
+            case DELTA:   writeFloatMantissasDelta(mantissaCodec, mantissas, 0, defined, os, scratch); break;
+        }
+        if (recorder != null) {
+            recorder.mantissasDone();
+            recorder.count(xs, off, len);
+            recorder.done();
+        }
+    }
 
-                defined = xs.length;
-            }
+    public static void writeDouble(double[] xs, OutputStream os) throws IOException {
+        DEFAULT.conditionDouble(Coding.LITERAL, DEFAULT_DOUBLE_EXPONENT_CODEC, Coding.DELTA, DEFAULT_DOUBLE_MANTISSA_CODEC, xs, 0, xs.length, os, new Scratch());
+    }
+
+    public SliceWriter<double[]> conditionDouble(Writer<short[]> writeExponents,
+                                                 Writer<long[]> writeMantissas) {
+        return (double[] xs, int off, int len, OutputStream unwrappedOs) -> {
+            final BlockRecorder recorder = metrics == null ? null : new BlockRecorder(metrics, true, len);
+            final OutputStream os = recorder == null ? unwrappedOs : recorder.wrap(unwrappedOs);
+
+            // 1. Write descriptors (0, NaN or else positive/negative flag)
+            final int defined = writeDescriptors(xs, off, len, os, new Scratch());
+            if (recorder != null) recorder.descriptorsDone(defined);
 
-            // 2. Gather bits. FIXME: try version with exponent and mantissa packed together
-            int j = 0;
+            // 2. Gather bits
             final short[] exponents = new short[defined];
             final long[] mantissas = new long[defined];
-            for (int i = 0; i < xs.length; i++) {
-                final double x = xs[i];
-                if (!specialCases || (x != 0.0 && !Double.isNaN(x))) {
-                    final long bits = Double.doubleToRawLongBits(x) & 0x7FFFFFFFFFFFFFFFL;
-                    exponents[j] = (short)((bits >>> 52) & 0x7FFL);
-                    mantissas[j] = bits & 0x000FFFFFFFFFFFFFL;
-                    j++;
-                }
-            }
+            split(xs, off, defined, exponents, mantissas);
+            if (recorder != null) recorder.splitDone();
 
             // 3. Write
             writeExponents.write(exponents, os);
+            if (recorder != null) recorder.exponentsDone();
             writeMantissas.write(mantissas, os);
+            if (recorder != null) {
+                recorder.mantissasDone();
+                recorder.count(xs, off, len);
+                recorder.done();
+            }
         };
     }
 
-    private void undescriptorShort(float[] xs, int i, int descriptor) {
-        xs[i] = (descriptor & 0x1) == 0 ? 1f : -1f;
+    void conditionDouble(Coding exponentCoding, int[] exponentCodec, Coding mantissaCoding, int[] mantissaCodec,
+                         double[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        conditionDouble(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, null, xs, off, len, os, scratch);
     }
 
-    private int undescriptor(float[] xs, int i, int descriptor) {
-        switch (specialCases ? descriptor & 0x3 : 2) {
-            case 0: return 0;
-            case 1: xs[i] = Float.NaN; return 0;
-            default: undescriptorShort(xs, i, descriptor); return 1;
+    // As above, but trimming the mantissas (see writeDoubleMantissasTrimmed) if trimmedCodecs is not null
+    void conditionDouble(Coding exponentCoding, int[] exponentCodec, Coding mantissaCoding, int[] mantissaCodec, int[][] trimmedCodecs,
+                         double[] xs, int off, int len, OutputStream unwrappedOs, Scratch scratch) throws IOException {
+        if (metrics == null && trimmedCodecs == null && Fused.applies(exponentCodec, 2) && Fused.applies(mantissaCodec, 7)) {
+            Fused.writeDouble(specialCases, exponentCoding, mantissaCoding, xs, off, len, unwrappedOs, scratch);
+            return;
         }
-    }
 
-    private void undescriptorShort(double[]xs, int i, int descriptor) {
-        xs[i] = (descriptor & 0x1) == 0 ? 1.0 : -1.0;
-    }
+        final BlockRecorder recorder = metrics == null ? null : new BlockRecorder(metrics, true, len);
+        final OutputStream os = recorder == null ? unwrappedOs : recorder.wrap(unwrappedOs);
+
+        final int defined = writeDescriptors(xs, off, len, os, scratch);
+        if (recorder != null) recorder.descriptorsDone(defined);
 
-    private int undescriptor(double[] xs, int i, int descriptor) {
-        switch (specialCases ? descriptor & 0x3 : 2) {
-            case 0: return 0;
-            case 1: xs[i] = Double.NaN; return 0;
-            default: undescriptorShort(xs, i, descriptor); return 1;
+        final short[] exponents = scratch.exponentShorts(defined);
+        final long[] mantissas = scratch.mantissaLongs(defined);
+        split(xs, off, defined, exponents, mantissas);
+        if (recorder != null) recorder.splitDone();
+
+        switch (exponentCoding) {
+            case LITERAL: columnarWriteShort(exponentCodec, exponents, 0, defined, os, scratch); break;
+            case DELTA:   writeDoubleExponentsDelta(exponentCodec, exponents, 0, defined, os, scratch); break;
+        }
+        if (recorder != null) recorder.exponentsDone();
+        writeDoubleMantissas(mantissaCoding, mantissaCodec, trimmedCodecs, mantissas, defined, os, scratch);
+        if (recorder != null) {
+            recorder.mantissasDone();
+            recorder.count(xs, off, len);
+            recorder.done();
         }
     }
 
-    public static void readFloat(float[] xs, InputStream is) throws IOException {
-        // FIXME: better params
-        new Conditioner(true).unconditionFloat(readFloatExponentsLiteral(), readFloatMantissasLiteral(new int[] { 1, 1, 1 })).read(xs, is);
-    }
+    // Reads the descriptors back, leaving each value as 0, NaN, or +/-1 to record its sign until it can be
+    // reassembled. Returns the number of values that have an exponent and mantissa to come.
+    int readDescriptors(float[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        if (specialCases) {
+            final byte[] bytes = scratch.bytes((len + 3) >>> 2);
+            readFully(is, bytes, 0, (len + 3) >>> 2);
 
-    public Reader<float[]> unconditionFloat(Reader<byte[]> readExponents, Reader<int[]> readMantissas) {
-        return (float[] xs, InputStream is) -> {
-            // 1. Read descriptors
             int defined = 0;
-            if (specialCases) {
-                int i;
-                for (i = 0; i < (xs.length >>> 2) << 2; i += 4) {
-                    final int b = is.read();
-
-                    defined += undescriptor(xs, i + 0, b >>> 6);
-                    defined += undescriptor(xs, i + 1, b >>> 4);
-                    defined += undescriptor(xs, i + 2, b >>> 2);
-                    defined += undescriptor(xs, i + 3, b >>> 0);
+            int k = 0;
+            int i;
+            for (i = 0; i < (len >>> 2) << 2; i += 4) {
+                final int b = bytes[k++] & 0xFF;
+
+                xs[off + i + 0] = FLOAT_DESCRIPTOR_VALUES[(b >>> 6) & 0x3];
+                xs[off + i + 1] = FLOAT_DESCRIPTOR_VALUES[(b >>> 4) & 0x3];
+                xs[off + i + 2] = FLOAT_DESCRIPTOR_VALUES[(b >>> 2) & 0x3];
+                xs[off + i + 3] = FLOAT_DESCRIPTOR_VALUES[(b >>> 0) & 0x3];
+                defined += DEFINED_COUNT[b];
+            }
+
+            if (i < len) {
+                final int b = bytes[k] & 0xFF;
+                int shift = (len - i - 1) * 2;
+                while (i < len) {
+                    xs[off + i] = FLOAT_DESCRIPTOR_VALUES[(b >>> shift) & 0x3];
+                    i++; shift -= 2;
                 }
+                defined += definedInLastByte(b, len);
+            }
 
-                if (i < xs.length) {
-                    final int b = is.read();
-                    switch (xs.length - i) {
-                        case 1:
-                            defined += undescriptor(xs, i + 0, b >>> 0);
-                            break;
-                        case 2:
-                            defined += undescriptor(xs, i + 0, b >>> 2);
-                            defined += undescriptor(xs, i + 1, b >>> 0);
-                            break;
-                        default: // 3
-                            defined += undescriptor(xs, i + 0, b >>> 4);
-                            defined += undescriptor(xs, i + 1, b >>> 2);
-                            defined += undescriptor(xs, i + 2, b >>> 0);
-                            break;
-                    }
+            return defined;
+        } else {
+            final byte[] bytes = scratch.bytes((len + 7) >>> 3);
+            readFully(is, bytes, 0, (len + 7) >>> 3);
+
+            int k = 0;
+            int i;
+            for (i = 0; i < (len >>> 3) << 3; i += 8) {
+                final int b = bytes[k++] & 0xFF;
+
+                xs[off + i + 0] = FLOAT_SIGN_VALUES[(b >>> 7) & 0x1];
+                xs[off + i + 1] = FLOAT_SIGN_VALUES[(b >>> 6) & 0x1];
+                xs[off + i + 2] = FLOAT_SIGN_VALUES[(b >>> 5) & 0x1];
+                xs[off + i + 3] = FLOAT_SIGN_VALUES[(b >>> 4) & 0x1];
+                xs[off + i + 4] = FLOAT_SIGN_VALUES[(b >>> 3) & 0x1];
+                xs[off + i + 5] = FLOAT_SIGN_VALUES[(b >>> 2) & 0x1];
+                xs[off + i + 6] = FLOAT_SIGN_VALUES[(b >>> 1) & 0x1];
+                xs[off + i + 7] = FLOAT_SIGN_VALUES[(b >>> 0) & 0x1];
+            }
+
+            if (i < len) {
+                final int b = bytes[k] & 0xFF;
+                int shift = len - i - 1;
+                while (i < len) {
+                    xs[off + i] = FLOAT_SIGN_VALUES[(b >>> shift) & 0x1];
+                    i++; shift--;
                 }
-            } else {
-                int i;
-                for (i = 0; i < (xs.length >>> 3) << 3; i += 8) {
-                    final int b = is.read();
-
-                    undescriptorShort(xs, i + 0, b >>> 7);
-                    undescriptorShort(xs, i + 1, b >>> 6);
-                    undescriptorShort(xs, i + 2, b >>> 5);
-                    undescriptorShort(xs, i + 3, b >>> 4);
-                    undescriptorShort(xs, i + 4, b >>> 3);
-                    undescriptorShort(xs, i + 5, b >>> 2);
-                    undescriptorShort(xs, i + 6, b >>> 1);
-                    undescriptorShort(xs, i + 7, b >>> 0);
+            }
+
+            return len;
+        }
+    }
+
+    int readDescriptors(double[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        if (specialCases) {
+            final byte[] bytes = scratch.bytes((len + 3) >>> 2);
+            readFully(is, bytes, 0, (len + 3) >>> 2);
+
+            int defined = 0;
+            int k = 0;
+            int i;
+            for (i = 0; i < (len >>> 2) << 2; i += 4) {
+                final int b = bytes[k++] & 0xFF;
+
+                xs[off + i + 0] = DOUBLE_DESCRIPTOR_VALUES[(b >>> 6) & 0x3];
+                xs[off + i + 1] = DOUBLE_DESCRIPTOR_VALUES[(b >>> 4) & 0x3];
+                xs[off + i + 2] = DOUBLE_DESCRIPTOR_VALUES[(b >>> 2) & 0x3];
+                xs[off + i + 3] = DOUBLE_DESCRIPTOR_VALUES[(b >>> 0) & 0x3];
+                defined += DEFINED_COUNT[b];
+            }
+
+            if (i < len) {
+                final int b = bytes[k] & 0xFF;
+                int shift = (len - i - 1) * 2;
+                while (i < len) {
+                    xs[off + i] = DOUBLE_DESCRIPTOR_VALUES[(b >>> shift) & 0x3];
+                    i++; shift -= 2;
                 }
+                defined += definedInLastByte(b, len);
+            }
 
-                if (i < xs.length) {
-                    final int b = is.read();
-                    int shift = xs.length - i - 1;
-                    while (i < xs.length) {
-                        undescriptorShort(xs, i, b >>> shift);
-                        i++; shift--;
-                    }
+            return defined;
+        } else {
+            final byte[] bytes = scratch.bytes((len + 7) >>> 3);
+            readFully(is, bytes, 0, (len + 7) >>> 3);
+
+            int k = 0;
+            int i;
+            for (i = 0; i < (len >>> 3) << 3; i += 8) {
+                final int b = bytes[k++] & 0xFF;
+
+                xs[off + i + 0] = DOUBLE_SIGN_VALUES[(b >>> 7) & 0x1];
+                xs[off + i + 1] = DOUBLE_SIGN_VALUES[(b >>> 6) & 0x1];
+                xs[off + i + 2] = DOUBLE_SIGN_VALUES[(b >>> 5) & 0x1];
+                xs[off + i + 3] = DOUBLE_SIGN_VALUES[(b >>> 4) & 0x1];
+                xs[off + i + 4] = DOUBLE_SIGN_VALUES[(b >>> 3) & 0x1];
+                xs[off + i + 5] = DOUBLE_SIGN_VALUES[(b >>> 2) & 0x1];
+                xs[off + i + 6] = DOUBLE_SIGN_VALUES[(b >>> 1) & 0x1];
+                xs[off + i + 7] = DOUBLE_SIGN_VALUES[(b >>> 0) & 0x1];
+            }
+
+            if (i < len) {
+                final int b = bytes[k] & 0xFF;
+                int shift = len - i - 1;
+                while (i < len) {
+                    xs[off + i] = DOUBLE_SIGN_VALUES[(b >>> shift) & 0x1];
+                    i++; shift--;
                 }
+            }
+
+            return len;
+        }
+    }
+
+    // Counts zeros (into counts[0]) and NaNs (into counts[1]) among values [from, to) of a block of len values,
+    // reading no further into the stream than the descriptor byte that holds value to - 1. Returns false without
+    // reading anything if special cases are off, since then the descriptors are nothing but sign bits.
+    boolean countSpecials(InputStream is, int len, int from, int to, long[] counts, Scratch scratch) throws IOException {
+        if (!specialCases) return false;
+        if (from >= to) return true;
+
+        final int bytes = ((to - 1) >>> 2) + 1;
+        final byte[] descriptors = scratch.bytes(bytes);
+        readFully(is, descriptors, 0, bytes);
+
+        // The last byte is right-aligned if it is only partly filled
+        final int full = (len >>> 2) << 2;
+        for (int i = from; i < to; i++) {
+            final int shift = i < full ? 6 - 2 * (i & 3) : 2 * (len - 1 - i);
+            final int d = (descriptors[i >>> 2] >>> shift) & 0x3;
+            if (d < 2) counts[d]++;
+        }
+        return true;
+    }
+
+    // Statistics of values [from, to) of a block of len doubles. Where the codecs allow it these are folded
+    // straight out of the encoded planes, and otherwise the block is decoded into scratch space and reduced.
+    // trimmedCodecs is as for unconditionDouble.
+    BlockStats statsDouble(Coding exponentCoding, int[] exponentCodec, Coding mantissaCoding, int[] mantissaCodec, int[][] trimmedCodecs,
+                           InputStream is, int len, int from, int to, Scratch scratch) throws IOException {
+        if (trimmedCodecs == null && Fused.applies(exponentCodec, 2) && Fused.applies(mantissaCodec, 7)) {
+            return Fused.statsDouble(specialCases, exponentCoding, mantissaCoding, is, len, from, to, scratch);
+        }
 
-                defined = xs.length;
+        final double[] xs = scratch.doubles(len);
+        unconditionDouble(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, trimmedCodecs, xs, 0, len, is, scratch);
+        return BlockStats.of(xs, from, to - from);
+    }
+
+    // Inverse of split: fills in the exponent and mantissa of every value readDescriptors left as +/-1, selecting
+    // between that and the special value already in place with a mask rather than a branch
+    void reassemble(float[] xs, int off, int defined, byte[] exponents, int[] mantissas) {
+        int j = 0;
+        for (int i = off; j < defined; i++) {
+            final int bits = Float.floatToRawIntBits(xs[i]);
+            final int mask = -isDefined(bits);
+            xs[i] = Float.intBitsToFloat((bits & ~mask) | (mask & ((bits & 0x80000000) | (((int)exponents[j] & 0xFF) << 23) | mantissas[j])));
+            j -= mask;
+        }
+    }
+
+    void reassemble(double[] xs, int off, int defined, short[] exponents, long[] mantissas) {
+        int j = 0;
+        for (int i = off; j < defined; i++) {
+            final long bits = Double.doubleToRawLongBits(xs[i]);
+            final long mask = -(long)isDefined(bits);
+            xs[i] = Double.longBitsToDouble((bits & ~mask) | (mask & ((bits & 0x8000000000000000L) | ((long)exponents[j] << 52) | mantissas[j])));
+            j -= (int)mask;
+        }
+    }
+
+    // As reassemble, but taking the descriptors' placeholders from one place and putting every value, defined or
+    // not, into a buffer
+    void reassemble(double[] placeholders, DoubleBuffer buffer, int index, int len, int defined, short[] exponents, long[] mantissas) {
+        int i = 0;
+        for (int j = 0; j < defined; i++) {
+            final long bits = Double.doubleToRawLongBits(placeholders[i]);
+            final long mask = -(long)isDefined(bits);
+            buffer.put(index + i, Double.longBitsToDouble((bits & ~mask) | (mask & ((bits & 0x8000000000000000L) | ((long)exponents[j] << 52) | mantissas[j]))));
+            j -= (int)mask;
+        }
+        for (; i < len; i++) buffer.put(index + i, placeholders[i]);
+    }
+
+    // Decodes values [from, to) of a block of len values conditioned into section (from its position on), using
+    // checkpoints to go straight to the descriptors, exponents and mantissas that those values need. Puts them
+    // in xs[off] onwards.
+    void unconditionDoubleRange(Coding exponentCoding, int[] exponentCodec, Coding mantissaCoding, int[] mantissaCodec,
+                                ByteBuffer section, int len, Checkpoints checkpoints, int from, int to,
+                                double[] xs, int off, Scratch scratch) throws IOException {
+        final int base = section.position();
+        final int descriptorBytes = specialCases ? (len + 3) >>> 2 : (len + 7) >>> 3;
+        final int exponentBase = base + descriptorBytes;
+        final int mantissaBase = exponentBase + 2 * checkpoints.total;
+        if (section.limit() - base < descriptorBytes + 9L * checkpoints.total) {
+            throw new EOFException("Section of " + (section.limit() - base) + " bytes is too short for " + checkpoints.total + " defined values");
+        }
+
+        // 1. Descriptors, counting up the defined values from the checkpoint before the range
+        final int interval = checkpoints.interval;
+        int first = checkpoints.defined[from / interval];
+        for (int i = (from / interval) * interval; i < from; i++) {
+            first += isDefined(Double.doubleToRawLongBits(descriptorValue(section, base, len, i)));
+        }
+        int defined = 0;
+        for (int i = from; i < to; i++) {
+            final double placeholder = descriptorValue(section, base, len, i);
+            xs[off + i - from] = placeholder;
+            defined += isDefined(Double.doubleToRawLongBits(placeholder));
+        }
+        if (defined == 0) return;
+        if (first + defined > checkpoints.total) throw new IOException("Checkpoints do not match the block");
+
+        // 2. Exponents and mantissas of just those defined values
+        final short[] exponents = scratch.exponentShorts(defined);
+        final long[] mantissas = scratch.mantissaLongs(defined);
+        if (exponentCoding == Coding.LITERAL) {
+            for (int j = 0; j < defined; j++) exponents[j] = (short)planeValue(section, exponentBase, exponentCodec, checkpoints.total, first + j);
+        } else {
+            final int start = (first / interval) * interval;
+            long exponent = checkpoints.exponents[first / interval];
+            for (int j = start; j < first + defined; j++) {
+                if (j > start) exponent = (exponent + unsigned2twos11((short)planeValue(section, exponentBase + 2, exponentCodec, checkpoints.total - 1, j - 1))) & 0x7FF;
+                if (j >= first) exponents[j - first] = (short)exponent;
+            }
+        }
+        if (mantissaCoding == Coding.LITERAL) {
+            for (int j = 0; j < defined; j++) mantissas[j] = planeValue(section, mantissaBase, mantissaCodec, checkpoints.total, first + j);
+        } else {
+            final int start = (first / interval) * interval;
+            long mantissa = checkpoints.mantissas[first / interval];
+            for (int j = start; j < first + defined; j++) {
+                if (j > start) mantissa = (mantissa + unsigned2twos52(planeValue(section, mantissaBase + 7, mantissaCodec, checkpoints.total - 1, j - 1))) & 0xFFFFFFFFFFFFFL;
+                if (j >= first) mantissas[j - first] = mantissa;
             }
+        }
+
+        // 3. Reassemble
+        reassemble(xs, off, defined, exponents, mantissas);
+    }
+
+    // What readDescriptors would leave for value i of a block of len values whose descriptors start at base
+    private double descriptorValue(ByteBuffer section, int base, int len, int i) {
+        if (specialCases) {
+            final int whole = (len >>> 2) << 2;
+            final int shift = i < whole ? 6 - 2 * (i & 3) : 2 * (len - i - 1);
+            return DOUBLE_DESCRIPTOR_VALUES[(section.get(base + (i >>> 2)) >>> shift) & 0x3];
+        } else {
+            final int whole = (len >>> 3) << 3;
+            final int shift = i < whole ? 7 - (i & 7) : len - i - 1;
+            return DOUBLE_SIGN_VALUES[(section.get(base + (i >>> 3)) >>> shift) & 0x1];
+        }
+    }
+
+    // Value j of count values written by columnarWriteLong (or Short) starting at base, gathered from each plane
+    private static long planeValue(ByteBuffer section, int base, int[] codec, int count, int j) {
+        long x = 0;
+        int pos = 0;
+        for (int n : codec) {
+            if (n <= 0) continue;
+
+            for (int i = 0; i < n; i++) {
+                x |= (long)(section.get(base + j * n + i) & 0xFF) << ((pos + i) * 8);
+            }
+            base += count * n;
+            pos += n;
+        }
+        return x;
+    }
+
+    public static void readFloat(float[] xs, InputStream is) throws IOException {
+        DEFAULT.unconditionFloat(Coding.LITERAL, Coding.LITERAL, DEFAULT_FLOAT_MANTISSA_CODEC, xs, 0, xs.length, is, new Scratch());
+    }
+
+    public SliceReader<float[]> unconditionFloat(Reader<byte[]> readExponents, Reader<int[]> readMantissas) {
+        return (float[] xs, int off, int len, InputStream unwrappedIs) -> {
+            final BlockRecorder recorder = metrics == null ? null : new BlockRecorder(metrics, false, len);
+            final InputStream is = recorder == null ? unwrappedIs : recorder.wrap(unwrappedIs);
+
+            // 1. Read descriptors
+            final int defined = readDescriptors(xs, off, len, is, new Scratch());
+            if (recorder != null) recorder.descriptorsDone(defined);
 
             // 2. Gather bits
             final byte[] exponents = new byte[defined];
             readExponents.read(exponents, is);
+            if (recorder != null) recorder.exponentsDone();
             final int[] mantissas = new int[defined];
             readMantissas.read(mantissas, is);
+            if (recorder != null) recorder.mantissasDone();
 
             // 3. Reassemble
-            int j = 0;
-            for (int i = 0; i < xs.length; i++) {
-                final float x = xs[i];
-                if (!specialCases || (x != 0.0 && !Float.isNaN(x))) {
-                    final byte exponent = exponents[j];
-                    final int mantissa = mantissas[j];
-                    j++;
-                    xs[i] = Float.intBitsToFloat((x < 0 ? 0x80000000 : 0x00000000) | (((int)exponent & 0xFF) << 23) | mantissa);
-                }
+            reassemble(xs, off, defined, exponents, mantissas);
+
+            if (recorder != null) {
+                recorder.splitDone();
+                recorder.count(xs, off, len);
+                recorder.done();
             }
         };
     }
 
-    public static void readDouble(double[] xs, InputStream is) throws IOException {
-        // FIXME: better params
-        new Conditioner(true).unconditionDouble(readDoubleExponentsLiteral(new int[]{1, 1}), readDoubleMantissasDelta(new int[]{1, 1, 1, 1, 1, 1, 1})).read(xs, is);
-    }
+    void unconditionFloat(Coding exponentCoding, Coding mantissaCoding, int[] mantissaCodec,
+                          float[] xs, int off, int len, InputStream unwrappedIs, Scratch scratch) throws IOException {
+        if (metrics == null && Fused.applies(mantissaCodec, 3)) {
+            Fused.readFloat(specialCases, exponentCoding, mantissaCoding, xs, off, len, unwrappedIs, scratch);
+            return;
+        }
 
-    public Reader<double[]> unconditionDouble(Reader<short[]> readExponents, Reader<long[]> readMantissas) {
-        return (double[] xs, InputStream is) -> {
-            // 1. Read descriptors
-            int defined = 0;
-            if (specialCases) {
-                int i;
-                for (i = 0; i < (xs.length >>> 2) << 2; i += 4) {
-                    final int b = is.read();
-
-                    defined += undescriptor(xs, i + 0, b >>> 6);
-                    defined += undescriptor(xs, i + 1, b >>> 4);
-                    defined += undescriptor(xs, i + 2, b >>> 2);
-                    defined += undescriptor(xs, i + 3, b >>> 0);
-                }
+        final BlockRecorder recorder = metrics == null ? null : new BlockRecorder(metrics, false, len);
+        final InputStream is = recorder == null ? unwrappedIs : recorder.wrap(unwrappedIs);
 
-                if (i < xs.length) {
-                    final int b = is.read();
-                    switch (xs.length - i) {
-                        case 1:
-                            defined += undescriptor(xs, i + 0, b >>> 0);
-                            break;
-                        case 2:
-                            defined += undescriptor(xs, i + 0, b >>> 2);
-                            defined += undescriptor(xs, i + 1, b >>> 0);
-                            break;
-                        default: // 3
-                            defined += undescriptor(xs, i + 0, b >>> 4);
-                            defined += undescriptor(xs, i + 1, b >>> 2);
-                            defined += undescriptor(xs, i + 2, b >>> 0);
-                            break;
-                    }
-                }
-            } else {
-                int i;
-                for (i = 0; i < (xs.length >>> 3) << 3; i += 8) {
-                    final int b = is.read();
-
-                    undescriptorShort(xs, i + 0, b >>> 7);
-                    undescriptorShort(xs, i + 1, b >>> 6);
-                    undescriptorShort(xs, i + 2, b >>> 5);
-                    undescriptorShort(xs, i + 3, b >>> 4);
-                    undescriptorShort(xs, i + 4, b >>> 3);
-                    undescriptorShort(xs, i + 5, b >>> 2);
-                    undescriptorShort(xs, i + 6, b >>> 1);
-                    undescriptorShort(xs, i + 7, b >>> 0);
-                }
+        final int defined = readDescriptors(xs, off, len, is, scratch);
+        if (recorder != null) recorder.descriptorsDone(defined);
 
-                if (i < xs.length) {
-                    final int b = is.read();
-                    int shift = xs.length - i - 1;
-                    while (i < xs.length) {
-                        undescriptorShort(xs, i, b >>> shift);
-                        i++; shift--;
-                    }
-                }
+        final byte[] exponents = scratch.exponentBytes(defined);
+        switch (exponentCoding) {
+            case LITERAL: readFloatExponentsLiteral(exponents, 0, defined, is); break;
+            case DELTA:   readFloatExponentsDelta(exponents, 0, defined, is); break;
+        }
+        if (recorder != null) recorder.exponentsDone();
+        final int[] mantissas = scratch.mantissaInts(defined);
+        switch (mantissaCoding) {
+            case LITERAL: columnarReadInt(mantissaCodec, mantissas, 0, defined, is, scratch); break;
+            case DELTA:   readFloatMantissasDelta(mantissaCodec, mantissas, 0, defined, is, scratch); break;
+        }
+        if (recorder != null) recorder.mantissasDone();
 
-                defined = xs.length;
-            }
+        reassemble(xs, off, defined, exponents, mantissas);
+
+        if (recorder != null) {
+            recorder.splitDone();
+            recorder.count(xs, off, len);
+            recorder.done();
+        }
+    }
+
+    public static void readDouble(double[] xs, InputStream is) throws IOException {
+        DEFAULT.unconditionDouble(Coding.LITERAL, DEFAULT_DOUBLE_EXPONENT_CODEC, Coding.DELTA, DEFAULT_DOUBLE_MANTISSA_CODEC, xs, 0, xs.length, is, new Scratch());
+    }
+
+    public SliceReader<double[]> unconditionDouble(Reader<short[]> readExponents, Reader<long[]> readMantissas) {
+        return (double[] xs, int off, int len, InputStream unwrappedIs) -> {
+            final BlockRecorder recorder = metrics == null ? null : new BlockRecorder(metrics, false, len);
+            final InputStream is = recorder == null ? unwrappedIs : recorder.wrap(unwrappedIs);
+
+            // 1. Read descriptors
+            final int defined = readDescriptors(xs, off, len, is, new Scratch());
+            if (recorder != null) recorder.descriptorsDone(defined);
 
             // 2. Gather bits
             final short[] exponents = new short[defined];
             readExponents.read(exponents, is);
+            if (recorder != null) recorder.exponentsDone();
             final long[] mantissas = new long[defined];
             readMantissas.read(mantissas, is);
+            if (recorder != null) recorder.mantissasDone();
 
             // 3. Reassemble
-            int j = 0;
-            for (int i = 0; i < xs.length; i++) {
-                final double x = xs[i];
-                if (!specialCases || (x != 0.0 && !Double.isNaN(x))) {
-                    final short exponent = exponents[j];
-                    final long mantissa = mantissas[j];
-                    j++;
-                    xs[i] = Double.longBitsToDouble((x < 0 ? 0x8000000000000000L : 0x0000000000000000L) |
-                            ((long)exponent << 52) | mantissa);
-                }
+            reassemble(xs, off, defined, exponents, mantissas);
+
+            if (recorder != null) {
+                recorder.splitDone();
+                recorder.count(xs, off, len);
+                recorder.done();
             }
         };
     }
+
+    void unconditionDouble(Coding exponentCoding, int[] exponentCodec, Coding mantissaCoding, int[] mantissaCodec,
+                           double[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        unconditionDouble(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, null, xs, off, len, is, scratch);
+    }
+
+    // As above, but for mantissas trimmed with trimmedCodecs if that is not null
+    void unconditionDouble(Coding exponentCoding, int[] exponentCodec, Coding mantissaCoding, int[] mantissaCodec, int[][] trimmedCodecs,
+                           double[] xs, int off, int len, InputStream unwrappedIs, Scratch scratch) throws IOException {
+        if (metrics == null && trimmedCodecs == null && Fused.applies(exponentCodec, 2) && Fused.applies(mantissaCodec, 7)) {
+            Fused.readDouble(specialCases, exponentCoding, mantissaCoding, xs, off, len, unwrappedIs, scratch);
+            return;
+        }
+
+        final BlockRecorder recorder = metrics == null ? null : new BlockRecorder(metrics, false, len);
+        final InputStream is = recorder == null ? unwrappedIs : recorder.wrap(unwrappedIs);
+
+        final int defined = readDescriptors(xs, off, len, is, scratch);
+        if (recorder != null) recorder.descriptorsDone(defined);
+
+        final short[] exponents = scratch.exponentShorts(defined);
+        switch (exponentCoding) {
+            case LITERAL: columnarReadShort(exponentCodec, exponents, 0, defined, is, scratch); break;
+            case DELTA:   readDoubleExponentsDelta(exponentCodec, exponents, 0, defined, is, scratch); break;
+        }
+        if (recorder != null) recorder.exponentsDone();
+        final long[] mantissas = scratch.mantissaLongs(defined);
+        readDoubleMantissas(mantissaCoding, mantissaCodec, trimmedCodecs, mantissas, defined, is, scratch);
+        if (recorder != null) recorder.mantissasDone();
+
+        reassemble(xs, off, defined, exponents, mantissas);
+
+        if (recorder != null) {
+            recorder.splitDone();
+            recorder.count(xs, off, len);
+            recorder.done();
+        }
+    }
+
+    // As unconditionDouble, but into any target. Arrays, including those behind heap buffers, take the usual path.
+    // Anything else has each value put into it as it is reassembled, with no intermediate array of values.
+    void unconditionDouble(Coding exponentCoding, int[] exponentCodec, Coding mantissaCoding, int[] mantissaCodec, int[][] trimmedCodecs,
+                           DoubleTarget target, InputStream is, Scratch scratch) throws IOException {
+        if (target instanceof DoubleTarget.Array) {
+            final DoubleTarget.Array array = (DoubleTarget.Array)target;
+            unconditionDouble(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, trimmedCodecs, array.xs, array.off, array.len, is, scratch);
+            return;
+        }
+
+        final DoubleTarget.Buffer buffer = (DoubleTarget.Buffer)target;
+        final int len = buffer.len;
+        if (metrics != null) {
+            // The recorder wants to count the values in an array, so decode into one and copy
+            final double[] xs = scratch.doubles(len);
+            unconditionDouble(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, trimmedCodecs, xs, 0, len, is, scratch);
+            for (int i = 0; i < len; i++) buffer.buffer.put(buffer.index + i, xs[i]);
+            return;
+        }
+        if (trimmedCodecs == null && Fused.applies(exponentCodec, 2) && Fused.applies(mantissaCodec, 7)) {
+            Fused.readDouble(specialCases, exponentCoding, mantissaCoding, buffer.buffer, buffer.index, len, is, scratch);
+            return;
+        }
+
+        final double[] placeholders = scratch.doubles(len);
+        final int defined = readDescriptors(placeholders, 0, len, is, scratch);
+        final short[] exponents = scratch.exponentShorts(defined);
+        switch (exponentCoding) {
+            case LITERAL: columnarReadShort(exponentCodec, exponents, 0, defined, is, scratch); break;
+            case DELTA:   readDoubleExponentsDelta(exponentCodec, exponents, 0, defined, is, scratch); break;
+        }
+        final long[] mantissas = scratch.mantissaLongs(defined);
+        readDoubleMantissas(mantissaCoding, mantissaCodec, trimmedCodecs, mantissas, defined, is, scratch);
+        reassemble(placeholders, buffer.buffer, buffer.index, len, defined, exponents, mantissas);
+    }
 }
@@ -0,0 +1,357 @@
+package uk.co.omegaprime;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+// Bulk loads numeric columns of CSV files, such as vendor dumps of prices, without going through readLine,
+// split and a boxed list of numbers. The file is memory-mapped and cut into chunks at line boundaries, the
+// chunks are parsed in parallel on an executor, and each chunk's values are handed on in file order, so
+// parsing scales with the cores available while whatever consumes the values sees them in sequence.
+//
+// Numbers are parsed straight from the mapped bytes into double arrays that are reused from chunk to chunk.
+// Anything with at most 15 significant digits and a small exponent, which covers prices and most other vendor
+// data, is converted exactly without allocating; anything else falls back to Double.parseDouble. Empty fields,
+// and fields missing from short rows, come out as NaN. Fields may be quoted, but quoted delimiters and line
+// breaks are not understood: this is for files of numbers.
+//
+// ingest(csv, columns, outputs, ...) writes each column to a block file through an AsyncBlockWriter, so that
+// conditioning and compression overlap with parsing too.
+public class CsvIngester {
+    public static final int DEFAULT_CHUNK_BYTES = 8 << 20;
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    // Where parsed values go. Called in file order from the thread that called ingest. values[0] to
+    // values[count - 1] are the next values of the column'th requested column, and are only valid during the call.
+    public interface Sink {
+        public void accept(int column, double[] values, int count) throws IOException;
+    }
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        double power = 1;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+    }
+
+    // The values parsed from one chunk, a column at a time
+    private static class Chunk {
+        final double[][] values;
+        int rows;
+
+        Chunk(int columns) {
+            values = new double[columns][1024];
+        }
+
+        void grow() {
+            for (int i = 0; i < values.length; i++) values[i] = Arrays.copyOf(values[i], values[i].length * 2);
+        }
+    }
+
+    private final Executor executor;
+    private final int parallelism;
+    private final byte delimiter;
+    private final boolean header;
+    private final int chunkBytes;
+
+    public CsvIngester(Executor executor) {
+        this(executor, Runtime.getRuntime().availableProcessors(), ',', false, DEFAULT_CHUNK_BYTES);
+    }
+
+    // parallelism is how many chunks to parse at once, and should match the executor. header says whether the
+    // first line holds column names rather than values.
+    public CsvIngester(Executor executor, int parallelism, char delimiter, boolean header, int chunkBytes) {
+        if (parallelism <= 0 || chunkBytes <= 0) throw new IllegalArgumentException("Parallelism " + parallelism + " and chunk size " + chunkBytes + " must be positive");
+        if (delimiter > 0x7F || delimiter == '\n' || delimiter == '"') throw new IllegalArgumentException("Cannot use " + delimiter + " as a delimiter");
+
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.delimiter = (byte)delimiter;
+        this.header = header;
+        this.chunkBytes = chunkBytes;
+    }
+
+    // Parses the given zero-based columns of csv, handing their values to sink. Returns the number of rows.
+    public long ingest(Path csv, int[] columns, Sink sink) throws IOException {
+        int maxColumn = -1;
+        for (int column : columns) {
+            if (column < 0) throw new IllegalArgumentException("Column " + column + " does not exist");
+            maxColumn = Math.max(maxColumn, column);
+        }
+        final int[] slots = new int[maxColumn + 1];
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < columns.length; i++) {
+            if (slots[columns[i]] >= 0) throw new IllegalArgumentException("Column " + columns[i] + " asked for twice");
+            slots[columns[i]] = i;
+        }
+
+        try (FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ)) {
+            final long[] starts = chunkStarts(channel);
+            final ConcurrentLinkedQueue<Chunk> free = new ConcurrentLinkedQueue<>();
+            final ArrayDeque<CompletableFuture<Chunk>> pending = new ArrayDeque<>();
+            long rows = 0;
+            int next = 0;
+            try {
+                while (next < starts.length - 1 || !pending.isEmpty()) {
+                    // Keep a couple of chunks per thread in hand, so nobody waits on the sink
+                    while (next < starts.length - 1 && pending.size() < 2 * parallelism) {
+                        final long start = starts[next], end = starts[next + 1];
+                        final boolean skipHeader = header && next == 0;
+                        pending.add(CompletableFuture.supplyAsync(() -> {
+                            Chunk chunk = free.poll();
+                            if (chunk == null) chunk = new Chunk(columns.length);
+                            try {
+                                parse(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), start, skipHeader, slots, chunk);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            return chunk;
+                        }, executor));
+                        next++;
+                    }
+
+                    final Chunk chunk = join(pending.poll());
+                    for (int i = 0; i < columns.length; i++) sink.accept(i, chunk.values[i], chunk.rows);
+                    rows += chunk.rows;
+                    free.add(chunk);
+                }
+            } finally {
+                // Let whatever is still being parsed finish before the channel closes under it
+                for (CompletableFuture<Chunk> future : pending) {
+                    try {
+                        future.join();
+                    } catch (CompletionException e) {
+                        // Already failing, or nobody wants the result anyway
+                    }
+                }
+            }
+            return rows;
+        }
+    }
+
+    private static Chunk join(CompletableFuture<Chunk> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException)e.getCause()).getCause();
+            throw new IOException("Parsing failed", e.getCause());
+        }
+    }
+
+    // Parses the given columns into block files, one per column, written with contexts' contexts. Returns the
+    // number of rows.
+    public long ingest(Path csv, int[] columns, Path[] outputs, Supplier<DoubleContext> contexts, boolean deflated) throws IOException {
+        return ingest(csv, columns, outputs, contexts, deflated, false);
+    }
+
+    public long ingest(Path csv, int[] columns, Path[] outputs, Supplier<DoubleContext> contexts, boolean deflated, boolean checksummed) throws IOException {
+        if (outputs.length != columns.length) throw new IllegalArgumentException("Got " + outputs.length + " outputs for " + columns.length + " columns");
+
+        final AsyncBlockWriter[] writers = new AsyncBlockWriter[columns.length];
+        final double[][] blocks = new double[columns.length][DEFAULT_BLOCK_SIZE];
+        final int[] sizes = new int[columns.length];
+        IOException failure = null;
+        long rows = 0;
+        try {
+            for (int i = 0; i < columns.length; i++) writers[i] = new AsyncBlockWriter(outputs[i], contexts.get(), false, deflated, AsyncBlockWriter.DEFAULT_DEPTH, checksummed);
+
+            // Regrouped into blocks of the same size whatever size the chunks came in
+            rows = ingest(csv, columns, (column, values, count) -> {
+                for (int off = 0; off < count; ) {
+                    final int n = Math.min(count - off, DEFAULT_BLOCK_SIZE - sizes[column]);
+                    System.arraycopy(values, off, blocks[column], sizes[column], n);
+                    sizes[column] += n;
+                    off += n;
+                    if (sizes[column] == DEFAULT_BLOCK_SIZE) {
+                        writers[column].write(blocks[column], 0, DEFAULT_BLOCK_SIZE);
+                        sizes[column] = 0;
+                    }
+                }
+            });
+            for (int i = 0; i < columns.length; i++) {
+                if (sizes[i] > 0) writers[i].write(blocks[i], 0, sizes[i]);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        for (AsyncBlockWriter writer : writers) {
+            if (writer == null) continue;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+        return rows;
+    }
+
+    // Where each chunk starts, each just after a line break, plus the end of the file
+    private long[] chunkStarts(FileChannel channel) throws IOException {
+        final long size = channel.size();
+        final int chunks = (int)Math.max(1, (size + chunkBytes - 1) / chunkBytes);
+        final long[] starts = new long[chunks + 1];
+        final ByteBuffer window = ByteBuffer.allocate(4096);
+        int n = 1;
+        for (int i = 1; i < chunks; i++) {
+            long position = Math.max(starts[n - 1], (long)i * chunkBytes);
+            long start = -1;
+            while (start < 0 && position < size) {
+                window.clear();
+                final int read = channel.read(window, position);
+                if (read <= 0) break;
+                for (int j = 0; j < read; j++) {
+                    if (window.get(j) == '\n') {
+                        start = position + j + 1;
+                        break;
+                    }
+                }
+                position += read;
+            }
+            // A line longer than a chunk just makes for a bigger chunk
+            if (start > starts[n - 1] && start < size) starts[n++] = start;
+        }
+        starts[n] = size;
+        return Arrays.copyOf(starts, n + 1);
+    }
+
+    // Parses every line of bytes, which starts at offset in the file, into chunk
+    private void parse(ByteBuffer bytes, long offset, boolean skipHeader, int[] slots, Chunk chunk) throws IOException {
+        final int end = bytes.limit();
+        final double[][] values = chunk.values;
+        int position = 0;
+        if (skipHeader) {
+            while (position < end && bytes.get(position) != '\n') position++;
+            position++;
+        }
+
+        int rows = 0;
+        while (position < end) {
+            final int lineStart = position;
+            if (rows == values[0].length) chunk.grow();
+            for (double[] column : values) column[rows] = Double.NaN;
+
+            int field = 0, fieldStart = position;
+            while (true) {
+                final byte b = position < end ? bytes.get(position) : (byte)'\n';
+                if (b == delimiter || b == '\n') {
+                    if (field < slots.length && slots[field] >= 0) {
+                        values[slots[field]][rows] = parseDouble(bytes, fieldStart, position, offset);
+                    }
+                    field++;
+                    position++;
+                    fieldStart = position;
+                    if (b == '\n') break;
+                    if (field >= slots.length) {
+                        // Nothing more wanted from this line
+                        while (position < end && bytes.get(position) != '\n') position++;
+                        position++;
+                        break;
+                    }
+                } else {
+                    position++;
+                }
+            }
+
+            // Blank lines are not rows
+            if (!isBlank(bytes, lineStart, Math.min(position, end))) rows++;
+        }
+        chunk.rows = rows;
+    }
+
+    private static boolean isBlank(ByteBuffer bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            final byte b = bytes.get(i);
+            if (b != '\n' && b != '\r' && b != ' ' && b != '\t') return false;
+        }
+        return true;
+    }
+
+    // Parses bytes[from] to bytes[to - 1], offset being where bytes starts in the file
+    static double parseDouble(ByteBuffer bytes, int from, int to, long offset) throws IOException {
+        while (from < to && isSpace(bytes.get(from))) from++;
+        while (to > from && isSpace(bytes.get(to - 1))) to--;
+        if (to - from >= 2 && bytes.get(from) == '"' && bytes.get(to - 1) == '"') {
+            from++;
+            to--;
+        }
+        if (from == to) return Double.NaN;
+
+        int i = from;
+        final boolean negative = bytes.get(i) == '-';
+        if (negative || bytes.get(i) == '+') i++;
+
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean anyDigits = false, point = false, exact = true;
+        for (; i < to; i++) {
+            final int b = bytes.get(i);
+            if (b >= '0' && b <= '9') {
+                anyDigits = true;
+                if (mantissa != 0 || b != '0') {
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        digits++;
+                        if (point) exponent--;
+                    } else {
+                        // Too many digits to be sure of rounding right here
+                        exact = false;
+                    }
+                } else if (point) {
+                    exponent--;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (i < to && anyDigits && (bytes.get(i) == 'e' || bytes.get(i) == 'E')) {
+            i++;
+            final boolean negativeExponent = i < to && bytes.get(i) == '-';
+            if (i < to && (negativeExponent || bytes.get(i) == '+')) i++;
+            int e = 0;
+            final int digitsStart = i;
+            for (; i < to && bytes.get(i) >= '0' && bytes.get(i) <= '9'; i++) {
+                if (e < 10000) e = e * 10 + (bytes.get(i) - '0');
+            }
+            if (i == digitsStart) exact = false;
+            exponent += negativeExponent ? -e : e;
+        }
+
+        // Exact when both the digits and the power of ten are exactly representable, since then the one IEEE
+        // multiply or divide rounds correctly
+        if (exact && anyDigits && i == to && digits <= 15 && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            final double magnitude = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -magnitude : magnitude;
+        }
+
+        final byte[] text = new byte[to - from];
+        for (int j = 0; j < text.length; j++) text[j] = bytes.get(from + j);
+        final String string = new String(text, StandardCharsets.ISO_8859_1);
+        try {
+            return Double.parseDouble(string);
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a number at byte " + (offset + from) + ": " + string);
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
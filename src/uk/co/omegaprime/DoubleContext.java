@@ -0,0 +1,169 @@
+package uk.co.omegaprime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// A reusable encoder/decoder for double[] blocks with one fixed choice of codecs. All the intermediate arrays
+// that Conditioner needs are kept between calls, so once the largest block has been seen encoding and decoding
+// do not allocate at all.
+//
+// A context can also be made to trim mantissas (see Conditioner.writeDoubleMantissasTrimmed), for data that is
+// really floats widened to doubles, or otherwise short of precision: the low bits that every mantissa in a block
+// leaves zero are not written at all, which for widened floats takes the mantissas from 7 bytes a value to 3.
+// That is a different format, so a block must be read with a context that trims if and only if it was written
+// with one. Trimmed blocks take the general rather than the fused kernels.
+//
+// Not thread safe: keep one per thread (or per series, if series are pinned to threads).
+public class DoubleContext {
+    // Bytes that each defined value takes up in the exponent and mantissa sections, whatever the codecs: the
+    // first exponent or mantissa of a delta-coded section is written in full, and each delta after it in the
+    // same number of bytes. So a block's section lengths follow from its descriptors, and need not be stored.
+    // Trimmed mantissa sections are the exception: how long they are depends on their first byte.
+    static final int EXPONENT_BYTES = 2;
+    static final int MANTISSA_BYTES = 7;
+
+    private final Conditioner conditioner;
+    private final Conditioner.Coding exponentCoding;
+    private final int[] exponentCodec;
+    private final Conditioner.Coding mantissaCoding;
+    private final int[] mantissaCodec;
+    // Non-null if this context trims mantissas, in which case it is the mantissa codec cut down to each width
+    private final int[][] trimmedCodecs;
+    private final Scratch scratch = new Scratch();
+
+    // Same format as Conditioner.writeDouble/readDouble
+    public DoubleContext() {
+        this(new Conditioner(true), Conditioner.Coding.LITERAL, new int[] { 1, 1 }, Conditioner.Coding.DELTA, new int[] { 1, 1, 1, 1, 1, 1, 1 });
+    }
+
+    public DoubleContext(Conditioner conditioner, Conditioner.Coding exponentCoding, int[] exponentCodec, Conditioner.Coding mantissaCoding, int[] mantissaCodec) {
+        this(conditioner, exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, false);
+    }
+
+    public DoubleContext(Conditioner conditioner, Conditioner.Coding exponentCoding, int[] exponentCodec, Conditioner.Coding mantissaCoding, int[] mantissaCodec, boolean trimMantissas) {
+        this.conditioner = conditioner;
+        this.exponentCoding = exponentCoding;
+        this.exponentCodec = exponentCodec.clone();
+        this.mantissaCoding = mantissaCoding;
+        this.mantissaCodec = mantissaCodec.clone();
+        this.trimmedCodecs = trimMantissas ? Conditioner.trimmedCodecs(mantissaCodec) : null;
+    }
+
+    // The default codecs, trimming mantissas
+    public static DoubleContext trimmed() {
+        return new DoubleContext(new Conditioner(true), Conditioner.Coding.LITERAL, new int[] { 1, 1 }, Conditioner.Coding.DELTA, new int[] { 1, 1, 1, 1, 1, 1, 1 }, true);
+    }
+
+    public boolean trimsMantissas() {
+        return trimmedCodecs != null;
+    }
+
+    public void write(double[] xs, OutputStream os) throws IOException {
+        write(xs, 0, xs.length, os);
+    }
+
+    public void read(double[] xs, InputStream is) throws IOException {
+        read(xs, 0, xs.length, is);
+    }
+
+    // Decodes target.length() values straight into target
+    public void read(DoubleTarget target, InputStream is) throws IOException {
+        conditioner.unconditionDouble(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, trimmedCodecs, target, is, scratch);
+    }
+
+    void write(double[] xs, int off, int len, OutputStream os) throws IOException {
+        conditioner.conditionDouble(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, trimmedCodecs, xs, off, len, os, scratch);
+    }
+
+    void read(double[] xs, int off, int len, InputStream is) throws IOException {
+        conditioner.unconditionDouble(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, trimmedCodecs, xs, off, len, is, scratch);
+    }
+
+    // Checkpoints for decoding ranges of the block that write(xs, off, len, os) writes
+    Checkpoints checkpoints(double[] xs, int off, int len, int interval) {
+        return Checkpoints.of(conditioner.specialCases(), xs, off, len, interval);
+    }
+
+    // Decodes values [from, to) of a block of len values, conditioned into section from its position on, into
+    // xs[off] onwards. Not for contexts that trim mantissas, whose mantissas are not all the same width.
+    void readRange(ByteBuffer section, int len, Checkpoints checkpoints, int from, int to, double[] xs, int off) throws IOException {
+        conditioner.unconditionDoubleRange(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, section, len, checkpoints, from, to, xs, off, scratch);
+    }
+
+    // The same conditioner with different codecs, and scratch space of its own
+    DoubleContext withCodecs(Conditioner.Coding exponentCoding, int[] exponentCodec, Conditioner.Coding mantissaCoding, int[] mantissaCodec) {
+        return new DoubleContext(conditioner, exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, trimsMantissas());
+    }
+
+    // The codecs as text, e.g. "LITERAL 1,1 DELTA 1,1,1,1,1,1,1", which withCodecs(String) parses back
+    String codecs() {
+        return exponentCoding + " " + join(exponentCodec) + " " + mantissaCoding + " " + join(mantissaCodec);
+    }
+
+    private static String join(int[] codec) {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < codec.length; i++) {
+            if (i > 0) result.append(',');
+            result.append(codec[i]);
+        }
+        return result.toString();
+    }
+
+    DoubleContext withCodecs(String codecs) {
+        final String[] parts = codecs.split(" ");
+        if (parts.length != 4) throw new IllegalArgumentException("Not a description of codecs: " + codecs);
+        return withCodecs(Conditioner.Coding.valueOf(parts[0]), split(parts[1]), Conditioner.Coding.valueOf(parts[2]), split(parts[3]));
+    }
+
+    private static int[] split(String codec) {
+        final String[] parts = codec.split(",");
+        final int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i]);
+        }
+        return result;
+    }
+
+    // The stages of read(), for LazyDoubleReader to run one at a time
+
+    boolean specialCases() {
+        return conditioner.specialCases();
+    }
+
+    int readDescriptors(double[] xs, int off, int len, InputStream is) throws IOException {
+        return conditioner.readDescriptors(xs, off, len, is, scratch);
+    }
+
+    void readExponents(short[] exponents, int defined, InputStream is) throws IOException {
+        switch (exponentCoding) {
+            case LITERAL: Conditioner.columnarReadShort(exponentCodec, exponents, 0, defined, is, scratch); break;
+            case DELTA:   Conditioner.readDoubleExponentsDelta(exponentCodec, exponents, 0, defined, is, scratch); break;
+        }
+    }
+
+    void readMantissas(long[] mantissas, int defined, InputStream is) throws IOException {
+        Conditioner.readDoubleMantissas(mantissaCoding, mantissaCodec, trimmedCodecs, mantissas, defined, is, scratch);
+    }
+
+    void reassemble(double[] xs, int off, int defined, short[] exponents, long[] mantissas) {
+        conditioner.reassemble(xs, off, defined, exponents, mantissas);
+    }
+
+    // How many bytes of the mantissa section of a block with defined values are left to skip, having read as much
+    // of the section as it takes to find out
+    long skipMantissas(int defined, InputStream is) throws IOException {
+        if (trimmedCodecs == null) return (long)MANTISSA_BYTES * defined;
+        if (defined == 0) return 0;
+        return (long)Conditioner.trimmedWidth(Conditioner.readByte(is)) * defined;
+    }
+
+    BlockStats stats(InputStream is, int len, int from, int to) throws IOException {
+        return conditioner.statsDouble(exponentCoding, exponentCodec, mantissaCoding, mantissaCodec, trimmedCodecs, is, len, from, to, scratch);
+    }
+
+    boolean countSpecials(InputStream is, int len, int from, int to, long[] counts) throws IOException {
+        return conditioner.countSpecials(is, len, from, to, counts, scratch);
+    }
+}
@@ -0,0 +1,64 @@
+package uk.co.omegaprime;
+
+import java.nio.DoubleBuffer;
+
+// Somewhere to decode a block of doubles straight into: a slice of an array, or a DoubleBuffer. A direct
+// buffer can be handed on to native code as it is, without decoding into a heap array first and copying.
+//
+// A buffer target covers the buffer's position to its limit, and decoding leaves the position where it was. A
+// heap buffer is decoded into through its backing array, so is as fast as an array.
+public abstract class DoubleTarget {
+    private DoubleTarget() {}
+
+    public abstract int length();
+
+    public static DoubleTarget of(double[] xs) {
+        return of(xs, 0, xs.length);
+    }
+
+    // xs[off] to xs[off + len - 1]
+    public static DoubleTarget of(double[] xs, int off, int len) {
+        if (off < 0 || len < 0 || off > xs.length - len) throw new IndexOutOfBoundsException("Slice [" + off + ", " + (off + len) + ") of an array of " + xs.length);
+        return new Array(xs, off, len);
+    }
+
+    public static DoubleTarget of(DoubleBuffer buffer) {
+        if (buffer.isReadOnly()) throw new IllegalArgumentException("Cannot decode into a read-only buffer");
+        if (buffer.hasArray()) return new Array(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        return new Buffer(buffer, buffer.position(), buffer.remaining());
+    }
+
+    static final class Array extends DoubleTarget {
+        final double[] xs;
+        final int off;
+        final int len;
+
+        Array(double[] xs, int off, int len) {
+            this.xs = xs;
+            this.off = off;
+            this.len = len;
+        }
+
+        @Override
+        public int length() {
+            return len;
+        }
+    }
+
+    static final class Buffer extends DoubleTarget {
+        final DoubleBuffer buffer;
+        final int index;
+        final int len;
+
+        Buffer(DoubleBuffer buffer, int index, int len) {
+            this.buffer = buffer;
+            this.index = index;
+            this.len = len;
+        }
+
+        @Override
+        public int length() {
+            return len;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package uk.co.omegaprime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// A reusable encoder/decoder for float[] blocks with one fixed choice of codecs. All the intermediate arrays
+// that Conditioner needs are kept between calls, so once the largest block has been seen encoding and decoding
+// do not allocate at all.
+//
+// Not thread safe: keep one per thread (or per series, if series are pinned to threads).
+public class FloatContext {
+    private final Conditioner conditioner;
+    private final Conditioner.Coding exponentCoding;
+    private final Conditioner.Coding mantissaCoding;
+    private final int[] mantissaCodec;
+    private final Scratch scratch = new Scratch();
+
+    // Same format as Conditioner.writeFloat/readFloat
+    public FloatContext() {
+        this(new Conditioner(true), Conditioner.Coding.LITERAL, Conditioner.Coding.LITERAL, new int[] { 1, 1, 1 });
+    }
+
+    public FloatContext(Conditioner conditioner, Conditioner.Coding exponentCoding, Conditioner.Coding mantissaCoding, int[] mantissaCodec) {
+        this.conditioner = conditioner;
+        this.exponentCoding = exponentCoding;
+        this.mantissaCoding = mantissaCoding;
+        this.mantissaCodec = mantissaCodec.clone();
+    }
+
+    public void write(float[] xs, OutputStream os) throws IOException {
+        conditioner.conditionFloat(exponentCoding, mantissaCoding, mantissaCodec, xs, 0, xs.length, os, scratch);
+    }
+
+    public void read(float[] xs, InputStream is) throws IOException {
+        conditioner.unconditionFloat(exponentCoding, mantissaCoding, mantissaCodec, xs, 0, xs.length, is, scratch);
+    }
+}
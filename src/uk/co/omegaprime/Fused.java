@@ -0,0 +1,448 @@
+package uk.co.omegaprime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.DoubleBuffer;
+
+// Single pass versions of Conditioner's staged pipelines, for the common case where every exponent and mantissa
+// byte gets a plane of its own. The staged pipeline makes one pass to write descriptors, another to split out
+// exponents and mantissas, a third to take deltas and then one more per plane; for large blocks each of those
+// passes streams the whole block through the cache again. Here each value is loaded once, and its descriptor,
+// exponent and mantissa bytes are scattered straight to their final position in a plane. Decoding does the
+// same in reverse, so every plane is read once and every output is stored once.
+//
+// The stream format is exactly that of the staged pipeline. The planes are all allocated with room for every
+// value, because how many values are defined is not known until the pass is over: a defined value is stored at
+// slot j and j moves on, while anything else is stored to slot j and then overwritten by the next value.
+//
+// Delta coded planes keep the delta from the previous defined value in slot j, and "previous" is taken to be
+// zero for slot 0, so slot 0 holds the zig-zagged first value itself. Its bytes go to the stream as a header
+// rather than as part of the planes, exactly as writeDoubleMantissasDelta and friends do it.
+class Fused {
+    private static final long DOUBLE_MANTISSA_MASK = 0x000FFFFFFFFFFFFFL;
+
+    // Raw bits of what each special case descriptor decodes to. Entries for defined values are never used.
+    private static final int[]  FLOAT_SPECIAL_BITS  = new int[]  { 0, Float.floatToRawIntBits(Float.NaN),    0, 0 };
+    private static final long[] DOUBLE_SPECIAL_BITS = new long[] { 0, Double.doubleToRawLongBits(Double.NaN), 0, 0 };
+
+    // True if the codec is a plane per byte for all the given number of bytes, i.e. [1, 1, ..., 1]
+    static boolean applies(int[] codec, int bytes) {
+        if (Kernels.SCALAR) return false;
+
+        int planes = 0;
+        for (int n : codec) {
+            if (n <= 0) continue;
+            if (n != 1) return false;
+            planes++;
+        }
+        return planes == bytes;
+    }
+
+    private static int descriptorBytes(boolean specialCases, int len) {
+        return specialCases ? (len + 3) >>> 2 : (len + 7) >>> 3;
+    }
+
+    private static int countDefined(boolean specialCases, byte[] descriptors, int descriptorBytes, int len) throws IOException {
+        if (!specialCases) return len;
+
+        int defined = 0;
+        for (int k = 0; k < len >>> 2; k++) {
+            defined += Conditioner.DEFINED_COUNT[descriptors[k] & 0xFF];
+        }
+        if ((len & 3) != 0) defined += Conditioner.definedInLastByte(descriptors[descriptorBytes - 1] & 0xFF, len);
+        return defined;
+    }
+
+    // Reads planes in the layout that the writers build. A delta coded section starts with a header holding the
+    // first value, which goes back into slot 0 zig-zagged, as the writer had it, so that decoding can treat every
+    // slot as a delta from the one before.
+    private static void readPlanes(InputStream is, byte[] buf, int base, int len, int planes, boolean delta, long zigzaggedHeader, int defined) throws IOException {
+        for (int p = 0; p < planes; p++) {
+            if (delta) {
+                buf[base + p * len] = (byte)(zigzaggedHeader >>> (p * 8));
+                Conditioner.readFully(is, buf, base + p * len + 1, defined - 1);
+            } else {
+                Conditioner.readFully(is, buf, base + p * len, defined);
+            }
+        }
+    }
+
+    static void writeFloat(boolean specialCases, Conditioner.Coding exponentCoding, Conditioner.Coding mantissaCoding,
+                           float[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        final boolean exponentDelta = exponentCoding == Conditioner.Coding.DELTA;
+        final boolean mantissaDelta = mantissaCoding == Conditioner.Coding.DELTA;
+        final int lastInByte = specialCases ? 3 : 7;
+
+        final int e = descriptorBytes(specialCases, len);
+        final int m0 = e + len, m1 = m0 + len, m2 = m1 + len;
+        final byte[] buf = scratch.bytes(m2 + len);
+
+        int k = 0, j = 0, acc = 0;
+        int lastExponent = 0, lastMantissa = 0;
+        for (int i = 0; i < len; i++) {
+            final int bits = Float.floatToRawIntBits(xs[off + i]);
+
+            final int defined;
+            if (specialCases) {
+                final int d = Conditioner.descriptor(bits);
+                acc = (acc << 2) | d;
+                defined = d >>> 1;
+            } else {
+                acc = (acc << 1) | (bits >>> 31);
+                defined = 1;
+            }
+            if ((i & lastInByte) == lastInByte) {
+                buf[k++] = (byte)acc;
+                acc = 0;
+            }
+
+            final int exponent = (bits >>> 23) & 0xFF;
+            final int mantissa = bits & 0x007FFFFF;
+
+            // Float exponent deltas are plain bytes rather than zig-zagged
+            buf[e + j] = (byte)(exponentDelta ? exponent - lastExponent : exponent);
+
+            final int m;
+            if (mantissaDelta) {
+                final int delta = ((mantissa - lastMantissa) << 9) >> 9;
+                m = (delta << 1) ^ (delta >> 31);
+            } else {
+                m = mantissa;
+            }
+            buf[m0 + j] = (byte)(m >>>  0);
+            buf[m1 + j] = (byte)(m >>>  8);
+            buf[m2 + j] = (byte)(m >>> 16);
+
+            lastExponent ^= (lastExponent ^ exponent) & -defined;
+            lastMantissa ^= (lastMantissa ^ mantissa) & -defined;
+            j += defined;
+        }
+        if ((len & lastInByte) != 0) {
+            buf[k++] = (byte)acc;
+        }
+
+        os.write(buf, 0, k);
+        if (j == 0) return;
+
+        os.write(buf, e, j);
+        if (mantissaDelta) {
+            final int z = (buf[m0] & 0xFF) | ((buf[m1] & 0xFF) << 8) | ((buf[m2] & 0xFF) << 16);
+            final int firstMantissa = ((z >>> 1) ^ -(z & 1)) & 0x7FFFFF;
+            os.write((firstMantissa >>>  0) & 0xFF);
+            os.write((firstMantissa >>>  8) & 0xFF);
+            os.write((firstMantissa >>> 16) & 0x7F);
+            os.write(buf, m0 + 1, j - 1);
+            os.write(buf, m1 + 1, j - 1);
+            os.write(buf, m2 + 1, j - 1);
+        } else {
+            os.write(buf, m0, j);
+            os.write(buf, m1, j);
+            os.write(buf, m2, j);
+        }
+    }
+
+    static void readFloat(boolean specialCases, Conditioner.Coding exponentCoding, Conditioner.Coding mantissaCoding,
+                          float[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        final boolean exponentDelta = exponentCoding == Conditioner.Coding.DELTA;
+        final boolean mantissaDelta = mantissaCoding == Conditioner.Coding.DELTA;
+        final int perByte = specialCases ? 4 : 8;
+        final int bitsPer = specialCases ? 2 : 1;
+
+        final int e = descriptorBytes(specialCases, len);
+        final int m0 = e + len, m1 = m0 + len, m2 = m1 + len;
+        final byte[] buf = scratch.bytes(m2 + len);
+
+        Conditioner.readFully(is, buf, 0, e);
+        final int defined = countDefined(specialCases, buf, e, len);
+
+        if (defined > 0) {
+            Conditioner.readFully(is, buf, e, defined);
+            long header = 0;
+            if (mantissaDelta) {
+                final int delta = ((Conditioner.readByte(is) | (Conditioner.readByte(is) << 8) | (Conditioner.readByte(is) << 16)) << 9) >> 9;
+                header = ((delta << 1) ^ (delta >> 31)) & 0x7FFFFF;
+            }
+            readPlanes(is, buf, m0, len, 3, mantissaDelta, header, defined);
+        }
+
+        int lastExponent = 0, lastMantissa = 0;
+        int k = 0, j = 0;
+        for (int i = 0; i < len; ) {
+            final int b = buf[k++] & 0xFF;
+            for (int shift = (Math.min(perByte, len - i) - 1) * bitsPer; shift >= 0; shift -= bitsPer, i++) {
+                final int d = (b >>> shift) & (specialCases ? 3 : 1);
+                final int isDefined = specialCases ? d >>> 1 : 1;
+
+                final int exponentByte = buf[e + j];
+                final int exponent = exponentDelta ? (lastExponent += exponentByte & -isDefined) & 0xFF : exponentByte & 0xFF;
+
+                final int m = (buf[m0 + j] & 0xFF) | ((buf[m1 + j] & 0xFF) << 8) | ((buf[m2 + j] & 0xFF) << 16);
+                final int mantissa = mantissaDelta ? (lastMantissa += ((m >>> 1) ^ -(m & 1)) & -isDefined) & 0x7FFFFF : m;
+
+                final int mask = -isDefined;
+                final int value = ((d & 1) << 31) | (exponent << 23) | mantissa;
+                xs[off + i] = Float.intBitsToFloat((value & mask) | (FLOAT_SPECIAL_BITS[d] & ~mask));
+                j += isDefined;
+            }
+        }
+    }
+
+    static void writeDouble(boolean specialCases, Conditioner.Coding exponentCoding, Conditioner.Coding mantissaCoding,
+                            double[] xs, int off, int len, OutputStream os, Scratch scratch) throws IOException {
+        final boolean exponentDelta = exponentCoding == Conditioner.Coding.DELTA;
+        final boolean mantissaDelta = mantissaCoding == Conditioner.Coding.DELTA;
+        final int lastInByte = specialCases ? 3 : 7;
+
+        final int e0 = descriptorBytes(specialCases, len), e1 = e0 + len;
+        final int m0 = e1 + len, m1 = m0 + len, m2 = m1 + len, m3 = m2 + len, m4 = m3 + len, m5 = m4 + len, m6 = m5 + len;
+        final byte[] buf = scratch.bytes(m6 + len);
+
+        int k = 0, j = 0, acc = 0;
+        int lastExponent = 0;
+        long lastMantissa = 0;
+        for (int i = 0; i < len; i++) {
+            final long bits = Double.doubleToRawLongBits(xs[off + i]);
+
+            final int defined;
+            if (specialCases) {
+                final int d = Conditioner.descriptor(bits);
+                acc = (acc << 2) | d;
+                defined = d >>> 1;
+            } else {
+                acc = (acc << 1) | (int)(bits >>> 63);
+                defined = 1;
+            }
+            if ((i & lastInByte) == lastInByte) {
+                buf[k++] = (byte)acc;
+                acc = 0;
+            }
+
+            final int exponent = (int)(bits >>> 52) & 0x7FF;
+            final long mantissa = bits & DOUBLE_MANTISSA_MASK;
+
+            final int x;
+            if (exponentDelta) {
+                final int delta = ((exponent - lastExponent) << 21) >> 21;
+                x = (delta << 1) ^ (delta >> 31);
+            } else {
+                x = exponent;
+            }
+            buf[e0 + j] = (byte)(x >>> 0);
+            buf[e1 + j] = (byte)(x >>> 8);
+
+            final long m;
+            if (mantissaDelta) {
+                final long delta = ((mantissa - lastMantissa) << 12) >> 12;
+                m = (delta << 1) ^ (delta >> 63);
+            } else {
+                m = mantissa;
+            }
+            buf[m0 + j] = (byte)(m >>>  0);
+            buf[m1 + j] = (byte)(m >>>  8);
+            buf[m2 + j] = (byte)(m >>> 16);
+            buf[m3 + j] = (byte)(m >>> 24);
+            buf[m4 + j] = (byte)(m >>> 32);
+            buf[m5 + j] = (byte)(m >>> 40);
+            buf[m6 + j] = (byte)(m >>> 48);
+
+            lastExponent ^= (lastExponent ^ exponent) & -defined;
+            lastMantissa ^= (lastMantissa ^ mantissa) & -(long)defined;
+            j += defined;
+        }
+        if ((len & lastInByte) != 0) {
+            buf[k++] = (byte)acc;
+        }
+
+        os.write(buf, 0, k);
+        if (j == 0) return;
+
+        if (exponentDelta) {
+            final int z = (buf[e0] & 0xFF) | ((buf[e1] & 0xFF) << 8);
+            final int firstExponent = ((z >>> 1) ^ -(z & 1)) & 0x7FF;
+            os.write((firstExponent >>> 0) & 0xFF);
+            os.write((firstExponent >>> 8) & 0x07);
+            os.write(buf, e0 + 1, j - 1);
+            os.write(buf, e1 + 1, j - 1);
+        } else {
+            os.write(buf, e0, j);
+            os.write(buf, e1, j);
+        }
+
+        if (mantissaDelta) {
+            long z = 0;
+            for (int p = 6; p >= 0; p--) {
+                z = (z << 8) | (buf[m0 + p * len] & 0xFF);
+            }
+            final long firstMantissa = ((z >>> 1) ^ -(z & 1)) & DOUBLE_MANTISSA_MASK;
+            for (int p = 0; p < 7; p++) {
+                os.write((int)(firstMantissa >>> (p * 8)) & 0xFF);
+            }
+            for (int p = 0; p < 7; p++) {
+                os.write(buf, m0 + p * len + 1, j - 1);
+            }
+        } else {
+            for (int p = 0; p < 7; p++) {
+                os.write(buf, m0 + p * len, j);
+            }
+        }
+    }
+
+    static void readDouble(boolean specialCases, Conditioner.Coding exponentCoding, Conditioner.Coding mantissaCoding,
+                           double[] xs, int off, int len, InputStream is, Scratch scratch) throws IOException {
+        final boolean exponentDelta = exponentCoding == Conditioner.Coding.DELTA;
+        final boolean mantissaDelta = mantissaCoding == Conditioner.Coding.DELTA;
+        final int perByte = specialCases ? 4 : 8;
+        final int bitsPer = specialCases ? 2 : 1;
+
+        final int e0 = descriptorBytes(specialCases, len), e1 = e0 + len;
+        final int m0 = e1 + len, m1 = m0 + len, m2 = m1 + len, m3 = m2 + len, m4 = m3 + len, m5 = m4 + len, m6 = m5 + len;
+        final byte[] buf = scratch.bytes(m6 + len);
+
+        readDoubleSections(specialCases, exponentDelta, mantissaDelta, is, buf, len);
+
+        int lastExponent = 0;
+        long lastMantissa = 0;
+        int k = 0, j = 0;
+        for (int i = 0; i < len; ) {
+            final int b = buf[k++] & 0xFF;
+            for (int shift = (Math.min(perByte, len - i) - 1) * bitsPer; shift >= 0; shift -= bitsPer, i++) {
+                final int d = (b >>> shift) & (specialCases ? 3 : 1);
+                final int isDefined = specialCases ? d >>> 1 : 1;
+
+                final int x = (buf[e0 + j] & 0xFF) | ((buf[e1 + j] & 0xFF) << 8);
+                final int exponent = exponentDelta ? (lastExponent += ((x >>> 1) ^ -(x & 1)) & -isDefined) & 0x7FF : x;
+
+                final long m = ((long)(buf[m0 + j] & 0xFF) <<  0) | ((long)(buf[m1 + j] & 0xFF) <<  8)
+                             | ((long)(buf[m2 + j] & 0xFF) << 16) | ((long)(buf[m3 + j] & 0xFF) << 24)
+                             | ((long)(buf[m4 + j] & 0xFF) << 32) | ((long)(buf[m5 + j] & 0xFF) << 40)
+                             | ((long)(buf[m6 + j] & 0xFF) << 48);
+                final long mantissa = mantissaDelta ? (lastMantissa += ((m >>> 1) ^ -(m & 1)) & -(long)isDefined) & DOUBLE_MANTISSA_MASK : m;
+
+                final long mask = -(long)isDefined;
+                final long value = ((long)(d & 1) << 63) | ((long)exponent << 52) | mantissa;
+                xs[off + i] = Double.longBitsToDouble((value & mask) | (DOUBLE_SPECIAL_BITS[d] & ~mask));
+                j += isDefined;
+            }
+        }
+    }
+
+    // As readDouble, but into buffer[index] to buffer[index + len - 1], which is usually a direct buffer. This is
+    // the same loop with absolute puts in place of array stores, kept separate so that the array version stays
+    // exactly as it was.
+    static void readDouble(boolean specialCases, Conditioner.Coding exponentCoding, Conditioner.Coding mantissaCoding,
+                           DoubleBuffer buffer, int index, int len, InputStream is, Scratch scratch) throws IOException {
+        final boolean exponentDelta = exponentCoding == Conditioner.Coding.DELTA;
+        final boolean mantissaDelta = mantissaCoding == Conditioner.Coding.DELTA;
+        final int perByte = specialCases ? 4 : 8;
+        final int bitsPer = specialCases ? 2 : 1;
+
+        final int e0 = descriptorBytes(specialCases, len), e1 = e0 + len;
+        final int m0 = e1 + len, m1 = m0 + len, m2 = m1 + len, m3 = m2 + len, m4 = m3 + len, m5 = m4 + len, m6 = m5 + len;
+        final byte[] buf = scratch.bytes(m6 + len);
+
+        readDoubleSections(specialCases, exponentDelta, mantissaDelta, is, buf, len);
+
+        int lastExponent = 0;
+        long lastMantissa = 0;
+        int k = 0, j = 0;
+        for (int i = 0; i < len; ) {
+            final int b = buf[k++] & 0xFF;
+            for (int shift = (Math.min(perByte, len - i) - 1) * bitsPer; shift >= 0; shift -= bitsPer, i++) {
+                final int d = (b >>> shift) & (specialCases ? 3 : 1);
+                final int isDefined = specialCases ? d >>> 1 : 1;
+
+                final int x = (buf[e0 + j] & 0xFF) | ((buf[e1 + j] & 0xFF) << 8);
+                final int exponent = exponentDelta ? (lastExponent += ((x >>> 1) ^ -(x & 1)) & -isDefined) & 0x7FF : x;
+
+                final long m = ((long)(buf[m0 + j] & 0xFF) <<  0) | ((long)(buf[m1 + j] & 0xFF) <<  8)
+                             | ((long)(buf[m2 + j] & 0xFF) << 16) | ((long)(buf[m3 + j] & 0xFF) << 24)
+                             | ((long)(buf[m4 + j] & 0xFF) << 32) | ((long)(buf[m5 + j] & 0xFF) << 40)
+                             | ((long)(buf[m6 + j] & 0xFF) << 48);
+                final long mantissa = mantissaDelta ? (lastMantissa += ((m >>> 1) ^ -(m & 1)) & -(long)isDefined) & DOUBLE_MANTISSA_MASK : m;
+
+                final long mask = -(long)isDefined;
+                final long value = ((long)(d & 1) << 63) | ((long)exponent << 52) | mantissa;
+                buffer.put(index + i, Double.longBitsToDouble((value & mask) | (DOUBLE_SPECIAL_BITS[d] & ~mask)));
+                j += isDefined;
+            }
+        }
+    }
+
+    // Statistics of values [from, to) of a block of len doubles, folded straight out of the planes without ever
+    // storing a value. Everything before from still has to be walked for the sake of the delta state, but nothing
+    // after to is.
+    static BlockStats statsDouble(boolean specialCases, Conditioner.Coding exponentCoding, Conditioner.Coding mantissaCoding,
+                                  InputStream is, int len, int from, int to, Scratch scratch) throws IOException {
+        final boolean exponentDelta = exponentCoding == Conditioner.Coding.DELTA;
+        final boolean mantissaDelta = mantissaCoding == Conditioner.Coding.DELTA;
+        final int perByte = specialCases ? 4 : 8;
+        final int bitsPer = specialCases ? 2 : 1;
+
+        final int e0 = descriptorBytes(specialCases, len), e1 = e0 + len;
+        final int m0 = e1 + len, m1 = m0 + len, m2 = m1 + len, m3 = m2 + len, m4 = m3 + len, m5 = m4 + len, m6 = m5 + len;
+        final byte[] buf = scratch.bytes(m6 + len);
+
+        readDoubleSections(specialCases, exponentDelta, mantissaDelta, is, buf, len);
+
+        final BlockStats.Accumulator accumulator = new BlockStats.Accumulator();
+        int lastExponent = 0;
+        long lastMantissa = 0;
+        int k = 0, j = 0;
+        for (int i = 0; i < to; ) {
+            final int b = buf[k++] & 0xFF;
+            for (int shift = (Math.min(perByte, len - i) - 1) * bitsPer; shift >= 0 && i < to; shift -= bitsPer, i++) {
+                final int d = (b >>> shift) & (specialCases ? 3 : 1);
+                final int isDefined = specialCases ? d >>> 1 : 1;
+
+                final int x = (buf[e0 + j] & 0xFF) | ((buf[e1 + j] & 0xFF) << 8);
+                final int exponent = exponentDelta ? (lastExponent += ((x >>> 1) ^ -(x & 1)) & -isDefined) & 0x7FF : x;
+
+                final long m = ((long)(buf[m0 + j] & 0xFF) <<  0) | ((long)(buf[m1 + j] & 0xFF) <<  8)
+                             | ((long)(buf[m2 + j] & 0xFF) << 16) | ((long)(buf[m3 + j] & 0xFF) << 24)
+                             | ((long)(buf[m4 + j] & 0xFF) << 32) | ((long)(buf[m5 + j] & 0xFF) << 40)
+                             | ((long)(buf[m6 + j] & 0xFF) << 48);
+                final long mantissa = mantissaDelta ? (lastMantissa += ((m >>> 1) ^ -(m & 1)) & -(long)isDefined) & DOUBLE_MANTISSA_MASK : m;
+                j += isDefined;
+
+                if (i >= from) {
+                    final long mask = -(long)isDefined;
+                    final long value = ((long)(d & 1) << 63) | ((long)exponent << 52) | mantissa;
+                    accumulator.add(Double.longBitsToDouble((value & mask) | (DOUBLE_SPECIAL_BITS[d] & ~mask)));
+                }
+            }
+        }
+        return accumulator.build();
+    }
+
+    // Reads the descriptors, exponents and mantissas of a block of len doubles into buf, laid out as writeDouble
+    // lays them out, and returns how many values are defined
+    private static int readDoubleSections(boolean specialCases, boolean exponentDelta, boolean mantissaDelta,
+                                          InputStream is, byte[] buf, int len) throws IOException {
+        final int e0 = descriptorBytes(specialCases, len), m0 = e0 + 2 * len;
+
+        Conditioner.readFully(is, buf, 0, e0);
+        final int defined = countDefined(specialCases, buf, e0, len);
+        if (defined == 0) return 0;
+
+        long header = 0;
+        if (exponentDelta) {
+            final int delta = ((Conditioner.readByte(is) | (Conditioner.readByte(is) << 8)) << 21) >> 21;
+            header = ((delta << 1) ^ (delta >> 31)) & 0x7FF;
+        }
+        readPlanes(is, buf, e0, len, 2, exponentDelta, header, defined);
+
+        header = 0;
+        if (mantissaDelta) {
+            long mantissa = 0;
+            for (int p = 0; p < 7; p++) {
+                mantissa |= (long)Conditioner.readByte(is) << (p * 8);
+            }
+            final long delta = (mantissa << 12) >> 12;
+            header = ((delta << 1) ^ (delta >> 63)) & DOUBLE_MANTISSA_MASK;
+        }
+        readPlanes(is, buf, m0, len, 7, mantissaDelta, header, defined);
+
+        return defined;
+    }
+}
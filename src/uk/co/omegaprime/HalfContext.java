@@ -0,0 +1,239 @@
+package uk.co.omegaprime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Stores floats at half precision, either IEEE binary16 or bfloat16, for consumers that only want that much.
+// Values are rounded to the half format on the way in and come back out either as the half bits themselves or
+// widened back to floats (exactly, since every half value is a float).
+//
+// Blocks are split just as FloatContext splits them: the same descriptors, then a column of exponents and a
+// column of mantissas for the defined values. But the columns are only as wide as the half format needs:
+//
+//   binary16: 5 bit exponents in a byte each, 10 bit mantissas in two planes of a byte each
+//   bfloat16: 8 bit exponents in a byte each, 7 bit mantissas in a byte each
+//
+// so a bfloat16 block is half the size of a float block before any compression, and a binary16 one three
+// quarters. Either column can be coded literally or as deltas.
+//
+// Not thread safe: keep one per thread.
+public class HalfContext {
+    public enum Format {
+        BINARY16(5, 10),
+        BFLOAT16(8, 7);
+
+        final int exponentBits;
+        final int mantissaBits;
+
+        Format(int exponentBits, int mantissaBits) {
+            this.exponentBits = exponentBits;
+            this.mantissaBits = mantissaBits;
+        }
+
+        // Rounds a float to the nearest half in this format that the rounding mode allows. Too big for the
+        // format rounds to infinity, or to the largest finite half when rounding toward zero. NaNs stay NaNs.
+        public short fromFloat(float x, Rounding rounding) {
+            final int bits = Float.floatToRawIntBits(x);
+            return this == BFLOAT16 ? toBfloat16(bits, rounding) : toBinary16(bits, rounding);
+        }
+
+        public float toFloat(short half) {
+            return this == BFLOAT16 ? Float.intBitsToFloat(half << 16) : fromBinary16(half);
+        }
+
+        short quietNaN() {
+            return this == BFLOAT16 ? (short)0x7FC0 : (short)0x7E00;
+        }
+    }
+
+    public enum Rounding { NEAREST_EVEN, TOWARD_ZERO }
+
+    // value >>> shift, rounded as asked
+    private static int round(int value, int shift, Rounding rounding) {
+        final int truncated = value >>> shift;
+        if (rounding == Rounding.TOWARD_ZERO) return truncated;
+
+        final int remainder = value & ((1 << shift) - 1), half = 1 << (shift - 1);
+        return remainder > half || (remainder == half && (truncated & 1) != 0) ? truncated + 1 : truncated;
+    }
+
+    private static short toBfloat16(int bits, Rounding rounding) {
+        // Keeping the NaN quiet, lest rounding away its payload leave an infinity
+        if ((bits & 0x7FFFFFFF) > 0x7F800000) return (short)((bits >>> 16) | 0x40);
+        final int sign = bits & 0x80000000;
+        return (short)(sign >>> 16 | round(bits & 0x7FFFFFFF, 16, rounding));
+    }
+
+    private static short toBinary16(int bits, Rounding rounding) {
+        final int sign = (bits >>> 16) & 0x8000;
+        final int abs = bits & 0x7FFFFFFF;
+        if (abs > 0x7F800000) return (short)(sign | 0x7E00 | ((abs >>> 13) & 0x3FF));
+        if (abs == 0x7F800000) return (short)(sign | 0x7C00);
+
+        final int exponent = (abs >>> 23) - 127 + 15;
+        if (exponent >= 0x1F) return (short)(sign | (rounding == Rounding.TOWARD_ZERO ? 0x7BFF : 0x7C00));
+        if (exponent <= 0) {
+            // Subnormal, or too small even for that: the implicit bit becomes explicit and shifts down
+            final int shift = 14 - exponent;
+            if (shift > 24) return (short)sign;
+            return (short)(sign | round((abs & 0x7FFFFF) | 0x800000, shift, rounding));
+        }
+
+        // A carry out of the mantissa moves the exponent up, and from the top exponent on to infinity, as it should
+        return (short)(sign | round((exponent << 23) | (abs & 0x7FFFFF), 13, rounding));
+    }
+
+    private static float fromBinary16(short half) {
+        final int sign = (half & 0x8000) << 16;
+        final int exponent = (half >>> 10) & 0x1F, mantissa = half & 0x3FF;
+        if (exponent == 0x1F) return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        if (exponent == 0) {
+            // Subnormal (or zero), so a whole number of the smallest subnormals, which is exact as a float
+            final float magnitude = mantissa * 0x1p-24f;
+            return sign == 0 ? magnitude : -magnitude;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    private static final int[] BINARY16_MANTISSA_CODEC = new int[] { 1, 1 };
+
+    private final Format format;
+    private final Rounding rounding;
+    private final Conditioner conditioner;
+    private final Conditioner.Coding exponentCoding;
+    private final Conditioner.Coding mantissaCoding;
+    private final Scratch scratch = new Scratch();
+
+    private short[] halves = new short[0];
+    private float[] widened = new float[0];
+    private byte[] exponents = new byte[0];
+    private byte[] byteMantissas = new byte[0];
+    private short[] shortMantissas = new short[0];
+
+    public HalfContext(Format format) {
+        this(format, Rounding.NEAREST_EVEN, new Conditioner(true), Conditioner.Coding.LITERAL, Conditioner.Coding.LITERAL);
+    }
+
+    public HalfContext(Format format, Rounding rounding, Conditioner conditioner, Conditioner.Coding exponentCoding, Conditioner.Coding mantissaCoding) {
+        this.format = format;
+        this.rounding = rounding;
+        this.conditioner = conditioner;
+        this.exponentCoding = exponentCoding;
+        this.mantissaCoding = mantissaCoding;
+    }
+
+    public Format format() {
+        return format;
+    }
+
+    public void write(float[] xs, OutputStream os) throws IOException {
+        write(xs, 0, xs.length, os);
+    }
+
+    // Rounds xs[off] to xs[off + len - 1] to halves and writes them
+    public void write(float[] xs, int off, int len, OutputStream os) throws IOException {
+        if (halves.length < len) halves = new short[len];
+        for (int i = 0; i < len; i++) halves[i] = format.fromFloat(xs[off + i], rounding);
+        writeHalves(halves, 0, len, os);
+    }
+
+    // Writes values that are already halves in this context's format
+    public void writeHalves(short[] halves, int off, int len, OutputStream os) throws IOException {
+        // The descriptors are those of the values as floats, so zeros and NaNs are recognised in either format
+        if (widened.length < len) widened = new float[len];
+        for (int i = 0; i < len; i++) widened[i] = format.toFloat(halves[off + i]);
+        final int defined = conditioner.writeDescriptors(widened, 0, len, os, scratch);
+
+        final int mantissaMask = (1 << format.mantissaBits) - 1, exponentMask = (1 << format.exponentBits) - 1;
+        growColumns(defined);
+        final boolean specialCases = conditioner.specialCases();
+        for (int i = 0, j = 0; j < defined; i++) {
+            final float x = widened[i];
+            if (specialCases && (x != x || x == 0f)) continue;
+
+            final int half = halves[off + i];
+            exponents[j] = (byte)((half >>> format.mantissaBits) & exponentMask);
+            if (format == Format.BFLOAT16) byteMantissas[j] = (byte)(half & mantissaMask);
+            else shortMantissas[j] = (short)(half & mantissaMask);
+            j++;
+        }
+
+        switch (exponentCoding) {
+            case LITERAL: Conditioner.writeFloatExponentsLiteral(exponents, 0, defined, os); break;
+            case DELTA:   Conditioner.writeFloatExponentsDelta(exponents, 0, defined, os, scratch); break;
+        }
+        if (format == Format.BFLOAT16) {
+            switch (mantissaCoding) {
+                case LITERAL: Conditioner.writeFloatExponentsLiteral(byteMantissas, 0, defined, os); break;
+                case DELTA:   Conditioner.writeFloatExponentsDelta(byteMantissas, 0, defined, os, scratch); break;
+            }
+        } else {
+            // 11 bit deltas, as for double exponents, are more than enough for 10 bit mantissas
+            switch (mantissaCoding) {
+                case LITERAL: Conditioner.columnarWriteShort(BINARY16_MANTISSA_CODEC, shortMantissas, 0, defined, os, scratch); break;
+                case DELTA:   Conditioner.writeDoubleExponentsDelta(BINARY16_MANTISSA_CODEC, shortMantissas, 0, defined, os, scratch); break;
+            }
+        }
+    }
+
+    private void growColumns(int defined) {
+        if (exponents.length < defined) exponents = new byte[defined];
+        if (format == Format.BFLOAT16) {
+            if (byteMantissas.length < defined) byteMantissas = new byte[defined];
+        } else {
+            if (shortMantissas.length < defined) shortMantissas = new short[defined];
+        }
+    }
+
+    public void read(float[] xs, InputStream is) throws IOException {
+        read(xs, 0, xs.length, is);
+    }
+
+    // Decodes len values, widened to floats, into xs[off] onwards
+    public void read(float[] xs, int off, int len, InputStream is) throws IOException {
+        if (halves.length < len) halves = new short[len];
+        readHalves(halves, 0, len, is);
+        for (int i = 0; i < len; i++) xs[off + i] = format.toFloat(halves[i]);
+    }
+
+    // Decodes len values, as the bits of halves in this context's format, into halves[off] onwards. With special
+    // cases on, NaNs come back as the format's quiet NaN and zeros as positive zeros.
+    public void readHalves(short[] halves, int off, int len, InputStream is) throws IOException {
+        if (widened.length < len) widened = new float[len];
+        final int defined = conditioner.readDescriptors(widened, 0, len, is, scratch);
+
+        growColumns(defined);
+        switch (exponentCoding) {
+            case LITERAL: Conditioner.readFloatExponentsLiteral(exponents, 0, defined, is); break;
+            case DELTA:   Conditioner.readFloatExponentsDelta(exponents, 0, defined, is); break;
+        }
+        if (format == Format.BFLOAT16) {
+            switch (mantissaCoding) {
+                case LITERAL: Conditioner.readFloatExponentsLiteral(byteMantissas, 0, defined, is); break;
+                case DELTA:   Conditioner.readFloatExponentsDelta(byteMantissas, 0, defined, is); break;
+            }
+        } else {
+            switch (mantissaCoding) {
+                case LITERAL: Conditioner.columnarReadShort(BINARY16_MANTISSA_CODEC, shortMantissas, 0, defined, is, scratch); break;
+                case DELTA:   Conditioner.readDoubleExponentsDelta(BINARY16_MANTISSA_CODEC, shortMantissas, 0, defined, is, scratch); break;
+            }
+        }
+
+        final int exponentMask = (1 << format.exponentBits) - 1, mantissaMask = (1 << format.mantissaBits) - 1;
+        final boolean specialCases = conditioner.specialCases();
+        for (int i = 0, j = 0; i < len; i++) {
+            final float placeholder = widened[i];
+            if (specialCases && placeholder != placeholder) {
+                halves[off + i] = format.quietNaN();
+            } else if (specialCases && placeholder == 0f) {
+                halves[off + i] = 0;
+            } else {
+                final int sign = placeholder < 0 ? 0x8000 : 0;
+                final int mantissa = format == Format.BFLOAT16 ? byteMantissas[j] : shortMantissas[j];
+                halves[off + i] = (short)(sign | ((exponents[j] & exponentMask) << format.mantissaBits) | (mantissa & mantissaMask));
+                j++;
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package uk.co.omegaprime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// Encodes blocks for many concurrently ingested series at once, such as thousands of instruments on a market
+// data feed. Each series gets a Feed, which buffers timestamped values until it has a block's worth, or until
+// the oldest of them has waited maxAgeMillis, and then encodes them on the executor and hands the encoded block
+// to the sink.
+//
+// Feeds are cheap. An idle one (with nothing buffered) holds no arrays at all, just a few fields, and a busy one
+// grows its buffers a doubling at a time, so a slow series never holds a whole block's worth of memory. Only a
+// feed whose last block was a full one skips straight to a full-sized buffer, recycled from an earlier block. The
+// expensive state, a DoubleContext with its scratch space and the output buffer, lives in a pool of encoders
+// that only grows to the number of blocks being encoded at once, which is at most the executor's parallelism.
+//
+// Each feed acts like an actor: its blocks are encoded one at a time, in order, by a task that drains them all
+// before letting go, so the sink always sees a series' blocks in the order they were written (though blocks of
+// different series interleave). Nothing here blocks a thread for long, so the executor can be anything from a
+// small fixed pool to one thread per task.
+//
+// Encoded blocks have the same layout as a frame of a timestamped block file (see BlockWriter), without
+// deflation:
+//
+//   int count, int length, timestamps, int length, conditioned doubles
+//
+// and decode() reads them back.
+//
+// A failure to encode or accept a block of a series is thrown from that series' next append or flush, and from
+// close(). The blocks that were queued behind it are dropped.
+public class IngestionService implements Closeable {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int MIN_CAPACITY = 16;
+
+    // Where encoded blocks go. frame[0] to frame[length - 1] is only valid for the duration of the call. May be
+    // called from several threads at once, but never concurrently for the same series.
+    public interface Sink {
+        public void accept(String series, int count, long firstTimestamp, long lastTimestamp, byte[] frame, int length) throws IOException;
+    }
+
+    // A ByteArrayOutputStream that hands over its buffer rather than a copy
+    private static class Buffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    private static class Encoder {
+        final DoubleContext context;
+        final Scratch scratch = new Scratch();
+        final Buffer section = new Buffer();
+        final Buffer frame = new Buffer();
+
+        Encoder(DoubleContext context) {
+            this.context = context;
+        }
+    }
+
+    // A block waiting to be encoded, in a singly linked queue per feed
+    private static class Pending {
+        final long[] timestamps;
+        final double[] values;
+        final int count;
+        Pending next;
+
+        Pending(long[] timestamps, double[] values, int count) {
+            this.timestamps = timestamps;
+            this.values = values;
+            this.count = count;
+        }
+    }
+
+    private final Executor executor;
+    private final Supplier<DoubleContext> contexts;
+    private final int blockSize;
+    private final long maxAgeNanos;
+    private final Sink sink;
+
+    private final ConcurrentHashMap<String, Feed> feeds = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Encoder> encoders = new ConcurrentLinkedQueue<>();
+    // Full-size buffers from blocks that have been encoded, for the next feed to fill up
+    private final ConcurrentLinkedQueue<Pending> free = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    // Feeds with blocks still being encoded, guarded by this
+    private int draining;
+    private boolean closed;
+
+    public IngestionService(Executor executor, Sink sink) {
+        this(executor, DoubleContext::new, DEFAULT_BLOCK_SIZE, 1000, sink);
+    }
+
+    // maxAgeMillis of zero or less means only full blocks are ever written, bar explicit flushes
+    public IngestionService(Executor executor, Supplier<DoubleContext> contexts, int blockSize, long maxAgeMillis, Sink sink) {
+        if (blockSize <= 0) throw new IllegalArgumentException("Block size must be positive, not " + blockSize);
+
+        this.executor = executor;
+        this.contexts = contexts;
+        this.blockSize = blockSize;
+        this.maxAgeNanos = maxAgeMillis <= 0 ? Long.MAX_VALUE : maxAgeMillis * 1000000L;
+        this.sink = sink;
+    }
+
+    // The feed for the named series, created if need be
+    public Feed feed(String name) {
+        if (closed) throw new IllegalStateException("Already closed");
+
+        return feeds.computeIfAbsent(name, Feed::new);
+    }
+
+    public Collection<String> names() {
+        return Collections.unmodifiableSet(feeds.keySet());
+    }
+
+    public class Feed {
+        private final String name;
+
+        // All guarded by this. The buffers are null whenever nothing is buffered.
+        private long[] timestamps;
+        private double[] values;
+        private int size;
+        private long firstArrival;
+        private long lastTimestamp = Long.MIN_VALUE;
+        // Whether the last block cut was a full one
+        private boolean full;
+        private Pending head, tail;
+        private boolean scheduled;
+        private IOException failure;
+
+        private Feed(String name) {
+            this.name = name;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        // Timestamps must never decrease
+        public void append(long timestamp, double x) throws IOException {
+            final boolean schedule;
+            synchronized (this) {
+                rethrow();
+                if (timestamp < lastTimestamp) throw new IllegalArgumentException("Timestamp " + timestamp + " comes after " + lastTimestamp);
+
+                final long now = System.nanoTime();
+                if (size == 0) {
+                    firstArrival = now;
+                } else if (now - firstArrival >= maxAgeNanos) {
+                    cut();
+                    firstArrival = now;
+                }
+                if (timestamps == null || size == timestamps.length) grow();
+                timestamps[size] = timestamp;
+                values[size] = x;
+                size++;
+                lastTimestamp = timestamp;
+                if (size == blockSize) cut();
+                schedule = needsScheduling();
+            }
+            if (schedule) schedule();
+        }
+
+        // Sends whatever is buffered off to be encoded, without waiting for it to be
+        public void flush() throws IOException {
+            final boolean schedule;
+            synchronized (this) {
+                rethrow();
+                cut();
+                schedule = needsScheduling();
+            }
+            if (schedule) schedule();
+        }
+
+        // Flushes if the oldest buffered value has been waiting for longer than the maximum age
+        void flushIfOlderThan(long now) {
+            final boolean schedule;
+            synchronized (this) {
+                if (size == 0 || now - firstArrival < maxAgeNanos) return;
+                cut();
+                schedule = needsScheduling();
+            }
+            if (schedule) schedule();
+        }
+
+        private void rethrow() throws IOException {
+            if (failure != null) throw new IOException("Encoding series " + name + " failed", failure);
+        }
+
+        private void grow() {
+            if (timestamps == null) {
+                // Straight to a full block, if one's to be had, for a series that filled one last time. Anything
+                // else starts small, or quiet series flushed by age would each end up holding a full block.
+                final Pending recycled = full ? free.poll() : null;
+                if (recycled != null) {
+                    timestamps = recycled.timestamps;
+                    values = recycled.values;
+                } else {
+                    timestamps = new long[Math.min(MIN_CAPACITY, blockSize)];
+                    values = new double[timestamps.length];
+                }
+                return;
+            }
+
+            final int capacity = Math.min(blockSize, timestamps.length * 2);
+            final long[] newTimestamps = new long[capacity];
+            final double[] newValues = new double[capacity];
+            System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+            System.arraycopy(values, 0, newValues, 0, size);
+            timestamps = newTimestamps;
+            values = newValues;
+        }
+
+        // Queues the buffered values as a block, leaving the feed holding nothing
+        private void cut() {
+            if (size == 0) return;
+
+            final Pending pending = new Pending(timestamps, values, size);
+            full = size == blockSize;
+            if (tail == null) head = pending;
+            else tail.next = pending;
+            tail = pending;
+            timestamps = null;
+            values = null;
+            size = 0;
+        }
+
+        // How many values the feed can buffer before it has to grow, for tests
+        synchronized int capacity() {
+            return timestamps == null ? 0 : timestamps.length;
+        }
+
+        private boolean needsScheduling() {
+            if (scheduled || head == null) return false;
+            scheduled = true;
+            return true;
+        }
+
+        private void schedule() {
+            synchronized (IngestionService.this) {
+                draining++;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    failure = new IOException("Executor refused series " + name, e);
+                    head = tail = null;
+                    scheduled = false;
+                }
+                finishedDraining();
+                throw e;
+            }
+        }
+
+        // Encodes queued blocks in order until there are none left
+        private void drain() {
+            final Encoder encoder = borrowEncoder();
+            try {
+                while (true) {
+                    final Pending pending;
+                    synchronized (this) {
+                        pending = head;
+                        if (pending == null || failure != null) {
+                            head = tail = null;
+                            scheduled = false;
+                            return;
+                        }
+                        head = pending.next;
+                        if (head == null) tail = null;
+                    }
+
+                    try {
+                        encode(encoder, pending);
+                        sink.accept(name, pending.count, pending.timestamps[0], pending.timestamps[pending.count - 1], encoder.frame.bytes(), encoder.frame.size());
+                    } catch (IOException | RuntimeException e) {
+                        final IOException wrapped = e instanceof IOException ? (IOException)e : new IOException(e);
+                        synchronized (this) {
+                            failure = wrapped;
+                        }
+                        IngestionService.this.failure.compareAndSet(null, wrapped);
+                    }
+                    recycle(pending);
+                }
+            } finally {
+                encoders.add(encoder);
+                finishedDraining();
+            }
+        }
+    }
+
+    private Encoder borrowEncoder() {
+        final Encoder encoder = encoders.poll();
+        return encoder != null ? encoder : new Encoder(contexts.get());
+    }
+
+    private void encode(Encoder encoder, Pending pending) throws IOException {
+        final DataOutputStream frame = new DataOutputStream(encoder.frame);
+        encoder.frame.reset();
+        frame.writeInt(pending.count);
+
+        encoder.section.reset();
+        Conditioner.writeLongDelta(BlockWriter.TIMESTAMP_CODEC, pending.timestamps, 0, pending.count, encoder.section, encoder.scratch);
+        frame.writeInt(encoder.section.size());
+        encoder.section.writeTo(frame);
+
+        encoder.section.reset();
+        encoder.context.write(pending.values, 0, pending.count, encoder.section);
+        frame.writeInt(encoder.section.size());
+        encoder.section.writeTo(frame);
+    }
+
+    // Keeps full-size buffers for reuse. Only buffers that a feed once filled come back, so the pool never holds
+    // more than the feeds did at their busiest.
+    private void recycle(Pending pending) {
+        if (pending.timestamps.length == blockSize) free.add(pending);
+    }
+
+    private synchronized void finishedDraining() {
+        if (--draining == 0) notifyAll();
+    }
+
+    // Flushes every feed whose oldest buffered value has been waiting longer than the maximum age. Appends
+    // already do this for their own feed, so this is only needed for feeds that have gone quiet; call it every so
+    // often, e.g. from a ScheduledExecutorService.
+    public void flushExpired() {
+        final long now = System.nanoTime();
+        for (Feed feed : feeds.values()) feed.flushIfOlderThan(now);
+    }
+
+    // Flushes every feed and waits for all their blocks to reach the sink
+    public void flush() throws IOException {
+        for (Feed feed : feeds.values()) {
+            try {
+                feed.flush();
+            } catch (IOException e) {
+                // Reported below, once everything else has been flushed
+            }
+        }
+        awaitDrained();
+        final IOException e = failure.get();
+        if (e != null) throw new IOException("Ingestion failed", e);
+    }
+
+    private synchronized void awaitDrained() throws InterruptedIOException {
+        try {
+            while (draining > 0) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for blocks to be encoded");
+        }
+    }
+
+    // Flushes everything. Does not shut the executor down, which belongs to the caller.
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        flush();
+    }
+
+    // Reads a block encoded by this service into timestamps[off] and xs[off] onwards, returning the number of
+    // values in it. context must be configured like those the service was given.
+    public static int decode(InputStream is, DoubleContext context, long[] timestamps, double[] xs, int off) throws IOException {
+        final DataInputStream dis = new DataInputStream(is);
+        final int count = dis.readInt();
+        if (count <= 0) throw new IOException("Corrupt block: count " + count);
+        if (count > xs.length - off || count > timestamps.length - off) throw new IOException("Corrupt block: " + count + " values will not fit");
+        dis.readInt();
+        Conditioner.readLongDelta(BlockWriter.TIMESTAMP_CODEC, timestamps, off, count, dis, new Scratch());
+        dis.readInt();
+        context.read(xs, off, count, dis);
+        return count;
+    }
+}
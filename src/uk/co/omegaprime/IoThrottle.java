@@ -0,0 +1,41 @@
+package uk.co.omegaprime;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+// Paces I/O to an average number of bytes per second by making each caller wait until the bytes before it have
+// had their time. One throttle shared between threads holds all of them to the one budget together.
+class IoThrottle {
+    // How much unused budget can build up while nobody is asking for any
+    private static final long MAX_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long bytesPerSecond;
+    private long next = System.nanoTime();
+
+    // Zero or less means no limit
+    IoThrottle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    // Call before reading or writing that many bytes
+    void acquire(long bytes) throws InterruptedIOException {
+        if (bytesPerSecond <= 0) return;
+
+        final long wait;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            next = Math.max(next, now - MAX_BURST_NANOS);
+            wait = next - now;
+            next += (long)(bytes * 1e9 / bytesPerSecond);
+        }
+
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package uk.co.omegaprime;
+
+import jdk.jfr.*;
+
+// Exports Conditioner metrics as JDK Flight Recorder events, so per-block statistics can be collected in
+// production with e.g. -XX:StartFlightRecording and inspected in JMC alongside GC and allocation data.
+//
+// When the event is not enabled in the active recording this costs a single flag check per block.
+public class JfrMetricsListener implements MetricsListener {
+    @Name("uk.co.omegaprime.ConditionerBlock")
+    @Label("Conditioner Block")
+    @Category("Conditioner")
+    @Description("Per-block statistics for an array conditioned or unconditioned by Conditioner")
+    static class BlockEvent extends Event {
+        @Label("Encode")
+        boolean encode;
+
+        @Label("Count")
+        int count;
+        @Label("Defined")
+        int defined;
+        @Label("Zeros")
+        int zeros;
+        @Label("NaNs")
+        int nans;
+
+        @Label("Descriptor Bytes") @DataAmount
+        long descriptorBytes;
+        @Label("Exponent Bytes") @DataAmount
+        long exponentBytes;
+        @Label("Mantissa Bytes") @DataAmount
+        long mantissaBytes;
+
+        @Label("Descriptor Entropy (bits/byte)")
+        double descriptorEntropy;
+        @Label("Exponent Entropy (bits/byte)")
+        double exponentEntropy;
+        @Label("Mantissa Entropy (bits/byte)")
+        double mantissaEntropy;
+
+        @Label("Descriptor Time") @Timespan
+        long descriptorNanos;
+        @Label("Split Time") @Timespan
+        long splitNanos;
+        @Label("Exponent Time") @Timespan
+        long exponentNanos;
+        @Label("Mantissa Time") @Timespan
+        long mantissaNanos;
+    }
+
+    private static void commit(BlockMetrics metrics) {
+        final BlockEvent event = new BlockEvent();
+        if (!event.isEnabled()) return;
+
+        event.encode = metrics.encode;
+        event.count = metrics.count;
+        event.defined = metrics.defined;
+        event.zeros = metrics.zeros;
+        event.nans = metrics.nans;
+        event.descriptorBytes = metrics.descriptorBytes;
+        event.exponentBytes = metrics.exponentBytes;
+        event.mantissaBytes = metrics.mantissaBytes;
+        event.descriptorEntropy = metrics.descriptorEntropy;
+        event.exponentEntropy = metrics.exponentEntropy;
+        event.mantissaEntropy = metrics.mantissaEntropy;
+        event.descriptorNanos = metrics.descriptorNanos;
+        event.splitNanos = metrics.splitNanos;
+        event.exponentNanos = metrics.exponentNanos;
+        event.mantissaNanos = metrics.mantissaNanos;
+        event.commit();
+    }
+
+    @Override
+    public void onEncode(BlockMetrics metrics) {
+        commit(metrics);
+    }
+
+    @Override
+    public void onDecode(BlockMetrics metrics) {
+        commit(metrics);
+    }
+}
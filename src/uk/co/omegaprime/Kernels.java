@@ -0,0 +1,94 @@
+package uk.co.omegaprime;
+
+// Inner loops for the byte-plane transpose and zig-zag delta stages, shaped so that HotSpot's superword pass can
+// vectorise them: a single plane per loop, no loop-carried dependencies, and no inner loop over byte positions.
+//
+// The general per-byte loops in Conditioner remain as the fallback, both for codecs that group several bytes
+// into one plane and for when these kernels are switched off with -Duk.co.omegaprime.scalarKernels=true (useful
+// for checking whether a problem is in here or not). The flag is a static final so the JIT folds the check away.
+class Kernels {
+    static final boolean SCALAR = Boolean.getBoolean("uk.co.omegaprime.scalarKernels");
+
+    // plane[i] = byte (shift / 8) of xs[off + i]
+
+    static void extractPlane(short[] xs, int off, int len, int shift, byte[] plane) {
+        for (int i = 0; i < len; i++) {
+            plane[i] = (byte)(xs[off + i] >>> shift);
+        }
+    }
+
+    static void extractPlane(int[] xs, int off, int len, int shift, byte[] plane) {
+        for (int i = 0; i < len; i++) {
+            plane[i] = (byte)(xs[off + i] >>> shift);
+        }
+    }
+
+    static void extractPlane(long[] xs, int off, int len, int shift, byte[] plane) {
+        for (int i = 0; i < len; i++) {
+            plane[i] = (byte)(xs[off + i] >>> shift);
+        }
+    }
+
+    // Inverse of extractPlane. The plane at shift 0 overwrites xs, and every other plane is ORed in.
+
+    static void depositPlane(byte[] plane, short[] xs, int off, int len, int shift) {
+        if (shift == 0) {
+            for (int i = 0; i < len; i++) {
+                xs[off + i] = (short)(plane[i] & 0xFF);
+            }
+        } else {
+            for (int i = 0; i < len; i++) {
+                xs[off + i] |= (plane[i] & 0xFF) << shift;
+            }
+        }
+    }
+
+    static void depositPlane(byte[] plane, int[] xs, int off, int len, int shift) {
+        if (shift == 0) {
+            for (int i = 0; i < len; i++) {
+                xs[off + i] = plane[i] & 0xFF;
+            }
+        } else {
+            for (int i = 0; i < len; i++) {
+                xs[off + i] |= (plane[i] & 0xFF) << shift;
+            }
+        }
+    }
+
+    static void depositPlane(byte[] plane, long[] xs, int off, int len, int shift) {
+        if (shift == 0) {
+            for (int i = 0; i < len; i++) {
+                xs[off + i] = plane[i] & 0xFFL;
+            }
+        } else {
+            for (int i = 0; i < len; i++) {
+                xs[off + i] |= (plane[i] & 0xFFL) << shift;
+            }
+        }
+    }
+
+    // In-place inverse zig-zag, sign extended to the full width of the element type. Because prefix sums are only
+    // ever kept modulo 2^bits, this serves for the 11, 23 and 52 bit variants as well as the full width ones, and
+    // hoisting it out of the prefix sum leaves that loop with a single add in its dependency chain.
+
+    static void unzigzag(short[] xs, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            final int x = xs[i] & 0xFFFF;
+            xs[i] = (short)((x >>> 1) ^ -(x & 1));
+        }
+    }
+
+    static void unzigzag(int[] xs, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            final int x = xs[i];
+            xs[i] = (x >>> 1) ^ -(x & 1);
+        }
+    }
+
+    static void unzigzag(long[] xs, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            final long x = xs[i];
+            xs[i] = (x >>> 1) ^ -(x & 1);
+        }
+    }
+}
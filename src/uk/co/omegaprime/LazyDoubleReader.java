@@ -0,0 +1,201 @@
+package uk.co.omegaprime;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.BitSet;
+
+// Decodes a block written by a DoubleContext one section at a time, reading each section from the stream only
+// when a question first needs it. With special cases on, NaN and sign patterns need only the descriptors, so
+//
+//   reader.reset(is, len);
+//   BitSet missing = reader.nulls();
+//   reader.skipRest();
+//
+// reads a quarter of a byte per value and never touches, let alone inflates, the exponents or mantissas.
+// Magnitudes (values with their mantissas cleared) need the exponents but not the mantissas, and anything else
+// needs the lot. Sections are only ever read in stream order, so this works on any stream, including one that
+// decompresses as it goes.
+//
+// The section lengths are not stored anywhere: they follow from the block length and the number of defined
+// values, which the descriptors give (see DoubleContext.EXPONENT_BYTES), and that is what lets skipRest() move
+// past whatever was not wanted without decoding it. (Trimmed mantissas give their width in their first byte.)
+//
+// Not thread safe, because the DoubleContext is not.
+public class LazyDoubleReader {
+    private static final int NOTHING = 0, DESCRIPTORS = 1, EXPONENTS = 2, MANTISSAS = 3;
+
+    private final DoubleContext context;
+
+    private InputStream is;
+    private int len;
+    private int read = MANTISSAS;
+    private int defined;
+
+    // Each value as readDescriptors leaves it: the special value itself, or +/-1 to stand for a defined value
+    private double[] placeholders = new double[0];
+    private short[] exponents = new short[0];
+    private long[] mantissas = new long[0];
+    private long[] zeros = new long[0];
+    // The whole block, if it was decoded in one go rather than a section at a time
+    private double[] decoded = new double[0];
+    private boolean complete;
+
+    public LazyDoubleReader(DoubleContext context) {
+        this.context = context;
+    }
+
+    // Starts on a block of len values that begins at the current position of is
+    public void reset(InputStream is, int len) {
+        this.is = is;
+        this.len = len;
+        this.read = NOTHING;
+        this.complete = false;
+    }
+
+    public int length() {
+        return len;
+    }
+
+    // How many of the descriptor, exponent and mantissa sections have been read so far
+    public int sectionsRead() {
+        return read;
+    }
+
+    private void readUpTo(int section) throws IOException {
+        if (read < DESCRIPTORS && section >= DESCRIPTORS) {
+            if (placeholders.length < len) placeholders = new double[len];
+            defined = context.readDescriptors(placeholders, 0, len, is);
+            read = DESCRIPTORS;
+        }
+        if (read < EXPONENTS && section >= EXPONENTS) {
+            if (exponents.length < defined) exponents = new short[defined];
+            context.readExponents(exponents, defined, is);
+            read = EXPONENTS;
+        }
+        if (read < MANTISSAS && section >= MANTISSAS) {
+            if (mantissas.length < defined) mantissas = new long[defined];
+            context.readMantissas(mantissas, defined, is);
+            read = MANTISSAS;
+        }
+    }
+
+    // Number of values with an exponent and mantissa: those that are neither zero nor NaN, or all of them if
+    // special cases are off
+    public int defined() throws IOException {
+        if (complete) {
+            if (!context.specialCases()) return len;
+            int result = 0;
+            for (int i = 0; i < len; i++) {
+                if (decoded[i] == decoded[i] && decoded[i] != 0.0) result++;
+            }
+            return result;
+        }
+
+        readUpTo(DESCRIPTORS);
+        return defined;
+    }
+
+    // The NaNs. Only descriptors are needed, unless special cases are off, when there is nothing for it but to
+    // decode the whole block.
+    public BitSet nulls() throws IOException {
+        final BitSet result = new BitSet(len);
+        if (complete) {
+            for (int i = 0; i < len; i++) {
+                if (decoded[i] != decoded[i]) result.set(i);
+            }
+        } else if (context.specialCases()) {
+            readUpTo(DESCRIPTORS);
+            for (int i = 0; i < len; i++) {
+                if (placeholders[i] != placeholders[i]) result.set(i);
+            }
+        } else {
+            final double[] xs = new double[len];
+            read(xs, 0);
+            for (int i = 0; i < len; i++) {
+                if (xs[i] != xs[i]) result.set(i);
+            }
+        }
+        return result;
+    }
+
+    // The values that decode with their sign bit set, from the descriptors alone. With special cases on, zeros
+    // and NaNs always decode as positive.
+    public BitSet negatives() throws IOException {
+        final BitSet result = new BitSet(len);
+        if (complete) {
+            for (int i = 0; i < len; i++) {
+                if (Double.doubleToRawLongBits(decoded[i]) < 0) result.set(i);
+            }
+            return result;
+        }
+
+        readUpTo(DESCRIPTORS);
+        for (int i = 0; i < len; i++) {
+            if (Double.doubleToRawLongBits(placeholders[i]) < 0) result.set(i);
+        }
+        return result;
+    }
+
+    // Each value with its mantissa bits cleared, i.e. the signed power of two at or below its magnitude, or zero
+    // for subnormals. Zeros and infinities stay as they are, and so do NaNs if special cases are on (if not, they
+    // come out infinite). Reads descriptors and exponents but not mantissas.
+    public void magnitudes(double[] xs, int off) throws IOException {
+        if (complete) {
+            final boolean specialCases = context.specialCases();
+            for (int i = 0; i < len; i++) {
+                final double x = decoded[i];
+                xs[off + i] = specialCases && x != x ? x : Double.longBitsToDouble(Double.doubleToRawLongBits(x) & 0xFFF0000000000000L);
+            }
+            return;
+        }
+
+        readUpTo(EXPONENTS);
+        if (zeros.length < defined) zeros = new long[defined];
+        System.arraycopy(placeholders, 0, xs, off, len);
+        context.reassemble(xs, off, defined, exponents, zeros);
+    }
+
+    // Decodes the whole block into xs[off] to xs[off + len - 1]
+    public void read(double[] xs, int off) throws IOException {
+        if (read == NOTHING) {
+            // Straight through the ordinary decoder, which is quicker than going a section at a time, keeping a
+            // copy to answer any later questions from
+            if (decoded.length < len) decoded = new double[len];
+            context.read(decoded, 0, len, is);
+            read = MANTISSAS;
+            complete = true;
+        }
+        if (complete) {
+            System.arraycopy(decoded, 0, xs, off, len);
+            return;
+        }
+
+        readUpTo(MANTISSAS);
+        System.arraycopy(placeholders, 0, xs, off, len);
+        context.reassemble(xs, off, defined, exponents, mantissas);
+    }
+
+    // Moves the stream to the end of the block without decoding anything more
+    public void skipRest() throws IOException {
+        if (complete) return;
+
+        readUpTo(DESCRIPTORS);
+        if (read < EXPONENTS) skip((long)DoubleContext.EXPONENT_BYTES * defined);
+        if (read < MANTISSAS) skip(context.skipMantissas(defined, is));
+        read = MANTISSAS;
+    }
+
+    private void skip(long remaining) throws IOException {
+        while (remaining > 0) {
+            final long skipped = is.skip(remaining);
+            if (skipped > 0) {
+                remaining -= skipped;
+            } else if (is.read() < 0) {
+                throw new EOFException();
+            } else {
+                remaining--;
+            }
+        }
+    }
+}
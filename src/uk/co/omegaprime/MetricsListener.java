@@ -0,0 +1,11 @@
+package uk.co.omegaprime;
+
+// Optional hook for observing what Conditioner does to each array. Conditioners constructed without a listener
+// pay only a null check per array for the privilege of supporting this.
+//
+// Listeners are called synchronously on the encoding/decoding thread, so should be cheap.
+public interface MetricsListener {
+    public void onEncode(BlockMetrics metrics);
+
+    public void onDecode(BlockMetrics metrics);
+}
@@ -0,0 +1,71 @@
+package uk.co.omegaprime;
+
+// Growable primitive buffers for the intermediate arrays that conditioning needs (gathered exponents and
+// mantissas, deltas, and byte planes on their way to or from a stream). Buffers only ever grow, so once a
+// Scratch has seen the largest block it will be asked to handle it stops allocating entirely.
+//
+// The contents of a buffer are undefined when it is handed out, and each slot is only valid until the next
+// request for that same slot. Not thread safe: every thread needs its own.
+class Scratch {
+    private byte[] bytes = new byte[0];
+    private byte[] exponentBytes = new byte[0];
+    private short[] exponentShorts = new short[0];
+    private int[] mantissaInts = new int[0];
+    private long[] mantissaLongs = new long[0];
+    private short[] shorts = new short[0];
+    private int[] ints = new int[0];
+    private long[] longs = new long[0];
+    private double[] doubles = new double[0];
+
+    private static int grow(int current, int required) {
+        return Math.max(required, current + (current >> 1));
+    }
+
+    // Byte planes, descriptors and anything else passing to or from a stream
+    byte[] bytes(int n) {
+        if (bytes.length < n) bytes = new byte[grow(bytes.length, n)];
+        return bytes;
+    }
+
+    byte[] exponentBytes(int n) {
+        if (exponentBytes.length < n) exponentBytes = new byte[grow(exponentBytes.length, n)];
+        return exponentBytes;
+    }
+
+    short[] exponentShorts(int n) {
+        if (exponentShorts.length < n) exponentShorts = new short[grow(exponentShorts.length, n)];
+        return exponentShorts;
+    }
+
+    int[] mantissaInts(int n) {
+        if (mantissaInts.length < n) mantissaInts = new int[grow(mantissaInts.length, n)];
+        return mantissaInts;
+    }
+
+    long[] mantissaLongs(int n) {
+        if (mantissaLongs.length < n) mantissaLongs = new long[grow(mantissaLongs.length, n)];
+        return mantissaLongs;
+    }
+
+    // Raw bits or deltas of whatever is being coded, just before they are split into planes
+    short[] shorts(int n) {
+        if (shorts.length < n) shorts = new short[grow(shorts.length, n)];
+        return shorts;
+    }
+
+    int[] ints(int n) {
+        if (ints.length < n) ints = new int[grow(ints.length, n)];
+        return ints;
+    }
+
+    long[] longs(int n) {
+        if (longs.length < n) longs = new long[grow(longs.length, n)];
+        return longs;
+    }
+
+    // Decoded values that are only wanted for long enough to be reduced
+    double[] doubles(int n) {
+        if (doubles.length < n) doubles = new double[grow(doubles.length, n)];
+        return doubles;
+    }
+}
@@ -0,0 +1,434 @@
+package uk.co.omegaprime;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// One timestamped series of doubles in a SeriesStore, kept in a directory of its own:
+//
+//   MANIFEST        names of the sealed segments, oldest first, one per line, each followed by a tab and its
+//                   codecs (see DoubleContext.codecs) if they differ from the series' own
+//   00000007.seg    a sealed segment: a closed timestamped block file
+//   00000008.open   the segment being appended to: block frames with no index yet
+//
+// Appended values collect in an in-memory buffer of up to blockSize values. Each flush conditions the buffer into
+// one block, appends it to the open segment and syncs it, and once the open segment holds segmentBlocks blocks
+// it is sealed: its index is written and synced, it is added to the manifest, and it is renamed to .seg. The
+// manifest itself is only ever replaced by an atomic rename, so it always lists whole, indexed segments.
+//
+// That ordering means a crash at any point leaves something reopening can make sense of:
+//
+//  * A segment that is listed but only exists as .open had its index synced before the manifest was written,
+//    so all that is left to do is the rename.
+//  * A .open segment that is not listed had not been sealed. Its frames are walked to rebuild the index, which
+//    recovers every block that was synced, and it is then sealed as usual.
+//  * Any other segment not in the manifest is a leftover of something that never got as far as updating it,
+//    and is deleted.
+//
+// Values still in the buffer when the process dies are lost, so call flush() at the points where it matters.
+//
+// Reads see everything appended so far: the sealed segments, then the open one, then the buffer.
+//
+// A Compactor can replace a run of sealed segments with one holding the same values in larger, deflated blocks,
+// with codecs chosen for that data. The new segment is written and synced under a temporary name, renamed into
+// place, and only then swapped into the manifest, so until that one atomic rename the old segments are what
+// counts, and a crash leaves the new one as an orphan to be deleted.
+//
+// All methods are synchronized, so a series can be shared between threads, but one thread per series will go
+// faster.
+public class Series implements Closeable {
+    static final String MANIFEST = "MANIFEST";
+    static final String SEALED = ".seg";
+    static final String OPEN = ".open";
+    static final String TEMPORARY = ".tmp";
+
+    private final Path directory;
+    private final DoubleContext context;
+    private final int blockSize;
+    private final int segmentBlocks;
+
+    // Sealed segments, oldest first, and readers for those that have been looked at
+    private final List<String> segments = new ArrayList<>();
+    private final Map<String, BlockReader> readers = new HashMap<>();
+    private final Map<String, String> codecs = new HashMap<>();
+    private int nextSegment;
+    private boolean compacting;
+
+    private String active;
+    private FileOutputStream activeStream;
+    private BlockWriter activeWriter;
+
+    private final long[] bufferTimestamps;
+    private final double[] bufferValues;
+    private int buffered;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private boolean closed;
+
+    Series(Path directory, DoubleContext context, int blockSize, int segmentBlocks) throws IOException {
+        if (blockSize <= 0 || segmentBlocks <= 0) throw new IllegalArgumentException("Block size " + blockSize + " and segment size " + segmentBlocks + " must be positive");
+
+        this.directory = directory;
+        this.context = context;
+        this.blockSize = blockSize;
+        this.segmentBlocks = segmentBlocks;
+        this.bufferTimestamps = new long[blockSize];
+        this.bufferValues = new double[blockSize];
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        final Path manifest = directory.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (line.isEmpty()) continue;
+
+                final String[] parts = line.split("\t", 2);
+                segments.add(parts[0]);
+                if (parts.length > 1) codecs.put(parts[0], parts[1]);
+            }
+        }
+
+        final List<String> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) files.add(path.getFileName().toString());
+        }
+        files.sort(null);
+        for (String file : files) {
+            if (file.endsWith(SEALED) || file.endsWith(OPEN)) {
+                nextSegment = Math.max(nextSegment, segmentNumber(file) + 1);
+            }
+        }
+
+        // Finish any renames that the last process did not get round to
+        for (String segment : segments) {
+            if (files.contains(segment)) continue;
+
+            final String open = segment.substring(0, segment.length() - SEALED.length()) + OPEN;
+            if (!files.contains(open)) throw new IOException("Segment " + directory.resolve(segment) + " is in the manifest but missing");
+            Files.move(directory.resolve(open), directory.resolve(segment), StandardCopyOption.ATOMIC_MOVE);
+            files.remove(open);
+            files.add(segment);
+        }
+
+        // Seal whatever was being appended to, keeping the blocks that made it to disk whole
+        for (String file : files) {
+            if (file.endsWith(OPEN)) recoverOpenSegment(file);
+        }
+
+        for (String file : files) {
+            if ((file.endsWith(SEALED) || file.endsWith(TEMPORARY)) && !segments.contains(file)) {
+                Files.delete(directory.resolve(file));
+            }
+        }
+        syncDirectory();
+
+        if (!segments.isEmpty()) {
+            final BlockReader last = reader(segments.get(segments.size() - 1));
+            if (last.blockCount() > 0) lastTimestamp = last.lastTimestamp(last.blockCount() - 1);
+        }
+    }
+
+    private void recoverOpenSegment(String file) throws IOException {
+        final Path path = directory.resolve(file);
+        final BlockIndex index;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            index = channel.size() < BlockWriter.HEADER_BYTES ? null : BlockIndex.recover(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), context);
+        }
+        if (index == null || index.blockCount() == 0) {
+            Files.delete(path);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(index.end);
+            channel.position(index.end);
+            final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            index.write(os);
+            os.flush();
+            channel.force(true);
+        }
+        seal(file);
+    }
+
+    private static int segmentNumber(String file) throws IOException {
+        try {
+            return Integer.parseInt(file.substring(0, file.indexOf('.')));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected segment name " + file, e);
+        }
+    }
+
+    public synchronized void append(long timestamp, double value) throws IOException {
+        checkOpen();
+        if (timestamp < lastTimestamp) throw new IllegalArgumentException("Timestamp " + timestamp + " comes after " + lastTimestamp);
+
+        bufferTimestamps[buffered] = timestamp;
+        bufferValues[buffered] = value;
+        buffered++;
+        lastTimestamp = timestamp;
+        if (buffered == blockSize) flush();
+    }
+
+    // timestamps[off + i] is the time of xs[off + i]
+    public synchronized void append(long[] timestamps, double[] xs, int off, int len) throws IOException {
+        checkOpen();
+        long last = lastTimestamp;
+        for (int i = off; i < off + len; i++) {
+            if (timestamps[i] < last) throw new IllegalArgumentException("Timestamp " + timestamps[i] + " comes after " + last);
+            last = timestamps[i];
+        }
+
+        while (len > 0) {
+            final int n = Math.min(len, blockSize - buffered);
+            System.arraycopy(timestamps, off, bufferTimestamps, buffered, n);
+            System.arraycopy(xs, off, bufferValues, buffered, n);
+            buffered += n;
+            off += n;
+            len -= n;
+            if (buffered == blockSize) flush();
+        }
+        lastTimestamp = last;
+    }
+
+    // Writes out the buffer as a block and syncs it to disk, so it survives a crash from here on
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        if (buffered == 0) return;
+
+        if (activeWriter == null) {
+            active = String.format("%08d", nextSegment++) + OPEN;
+            activeStream = new FileOutputStream(directory.resolve(active).toFile());
+            activeWriter = new BlockWriter(new BufferedOutputStream(activeStream), context, true);
+        }
+        activeWriter.write(bufferTimestamps, bufferValues, 0, buffered);
+        activeWriter.flush();
+        activeStream.getFD().sync();
+        buffered = 0;
+
+        if (activeWriter.blockCount() >= segmentBlocks) seal();
+    }
+
+    // Flushes the buffer and seals the open segment, if there is one
+    public synchronized void seal() throws IOException {
+        checkOpen();
+        if (buffered > 0) flush();
+        if (activeWriter == null) return;
+
+        activeWriter.finish();
+        activeStream.getFD().sync();
+        activeWriter.close();
+        final String file = active;
+        active = null;
+        activeStream = null;
+        activeWriter = null;
+        seal(file);
+    }
+
+    // Makes a synced, indexed .open segment a sealed one
+    private void seal(String open) throws IOException {
+        final String sealed = open.substring(0, open.length() - OPEN.length()) + SEALED;
+        segments.add(sealed);
+        writeManifest();
+        Files.move(directory.resolve(open), directory.resolve(sealed), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    private void writeManifest() throws IOException {
+        final Path temporary = directory.resolve(MANIFEST + TEMPORARY);
+        final StringBuilder contents = new StringBuilder();
+        for (String segment : segments) {
+            contents.append(segment);
+            if (codecs.containsKey(segment)) contents.append('\t').append(codecs.get(segment));
+            contents.append('\n');
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer bytes = ByteBuffer.wrap(contents.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) channel.write(bytes);
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Makes renames in the directory durable. Not every platform can open a directory, but those that cannot
+    // do not need this either.
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    private BlockReader reader(String segment) throws IOException {
+        BlockReader reader = readers.get(segment);
+        if (reader == null) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(segment), StandardOpenOption.READ)) {
+                reader = new BlockReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                                         codecs.containsKey(segment) ? context.withCodecs(codecs.get(segment)) : context);
+            }
+            readers.put(segment, reader);
+        }
+        return reader;
+    }
+
+    // The hooks below let a Compactor work on sealed segments from another thread, without holding the lock
+    // while it reads and writes them
+
+    // Claims the oldest run of adjacent sealed segments whose blocks average fewer than targetBlockSize values,
+    // holding no more than maxValues values in all, that would come out as fewer blocks if rewritten. Returns
+    // null if there is no such run, or if another compaction of this series is already going.
+    synchronized List<String> startCompaction(int targetBlockSize, long maxValues) throws IOException {
+        checkOpen();
+        if (compacting) return null;
+
+        final List<String> run = new ArrayList<>();
+        long blocks = 0, values = 0;
+        for (String segment : segments) {
+            final BlockReader reader = reader(segment);
+            final boolean small = reader.valueCount() < (long)targetBlockSize * reader.blockCount();
+            if (small && values + reader.valueCount() <= maxValues) {
+                run.add(segment);
+                blocks += reader.blockCount();
+                values += reader.valueCount();
+                continue;
+            }
+
+            if (shrinks(blocks, values, targetBlockSize)) break;
+            run.clear();
+            blocks = values = 0;
+            if (small && reader.valueCount() <= maxValues) {
+                run.add(segment);
+                blocks = reader.blockCount();
+                values = reader.valueCount();
+            }
+        }
+        if (!shrinks(blocks, values, targetBlockSize)) return null;
+
+        compacting = true;
+        return run;
+    }
+
+    private static boolean shrinks(long blocks, long values, int targetBlockSize) {
+        return (values + targetBlockSize - 1) / targetBlockSize < blocks;
+    }
+
+    // A context for reading a sealed segment, separate from the one that the series itself uses
+    synchronized DoubleContext readContext(String segment) {
+        return context.withCodecs(codecs.containsKey(segment) ? codecs.get(segment) : context.codecs());
+    }
+
+    // The name of a segment that does not exist yet, without the extension
+    synchronized String newSegment() {
+        return String.format("%08d", nextSegment++);
+    }
+
+    // Swaps in a sealed segment, written with the given codecs, in place of a run claimed by startCompaction
+    synchronized void finishCompaction(List<String> run, String segment, String segmentCodecs) throws IOException {
+        compacting = false;
+        if (closed) {
+            Files.delete(directory.resolve(segment));
+            return;
+        }
+
+        final int start = segments.indexOf(run.get(0));
+        if (start < 0 || !segments.subList(start, start + run.size()).equals(run)) throw new IllegalStateException("Segments " + run + " changed while being compacted");
+
+        segments.subList(start, start + run.size()).clear();
+        segments.add(start, segment);
+        codecs.put(segment, segmentCodecs);
+        writeManifest();
+
+        for (String old : run) {
+            codecs.remove(old);
+            readers.remove(old);
+            Files.delete(directory.resolve(old));
+        }
+        syncDirectory();
+    }
+
+    synchronized void abandonCompaction() {
+        compacting = false;
+    }
+
+    // Hands every value with a timestamp in [from, to) to the visitor in time order, reading only the blocks
+    // that overlap the range. Returns the number of blocks decoded, which leaves out the buffer.
+    public synchronized int scan(long from, long to, BlockReader.RangeVisitor visitor) throws IOException {
+        checkOpen();
+        int decoded = 0;
+        for (String segment : segments) {
+            decoded += reader(segment).scan(from, to, visitor);
+        }
+
+        if (activeWriter != null) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(active), StandardOpenOption.READ)) {
+                final BlockIndex index = activeWriter.index();
+                decoded += new BlockReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, index.end), context, index).scan(from, to, visitor);
+            }
+        }
+
+        final int start = lowerBound(from), end = lowerBound(to);
+        if (start < end) visitor.visit(bufferTimestamps, bufferValues, start, end);
+        return decoded;
+    }
+
+    // First i such that bufferTimestamps[i] >= t, or buffered if none is
+    private int lowerBound(long t) {
+        int lo = 0, hi = buffered;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (bufferTimestamps[mid] < t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Number of values appended, buffered ones included
+    public synchronized long valueCount() throws IOException {
+        checkOpen();
+        long count = buffered;
+        for (String segment : segments) count += reader(segment).valueCount();
+        if (activeWriter != null) {
+            for (BlockStats stats : activeWriter.index().stats) count += stats.count;
+        }
+        return count;
+    }
+
+    // Names of the sealed segments, oldest first
+    public synchronized List<String> segments() {
+        return new ArrayList<>(segments);
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("Series " + directory + " is closed");
+    }
+
+    // Seals everything, so nothing is left to recover next time
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        seal();
+        readers.clear();
+        closed = true;
+    }
+}
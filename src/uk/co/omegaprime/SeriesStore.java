@@ -0,0 +1,103 @@
+package uk.co.omegaprime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+// A small embedded store of timestamped double series, one directory per series under a root directory:
+//
+//   try (SeriesStore store = new SeriesStore(Paths.get("prices"))) {
+//       store.series("VOD.L").append(timestamp, price);
+//       store.series("VOD.L").scan(from, to, (ts, xs, lo, hi) -> ...);
+//   }
+//
+// See Series for the layout of each directory and what survives a crash.
+public class SeriesStore implements Closeable {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    public static final int DEFAULT_SEGMENT_BLOCKS = 64;
+
+    private final Path root;
+    private final int blockSize;
+    private final int segmentBlocks;
+    private final Supplier<DoubleContext> contexts;
+    private final Map<String, Series> series = new HashMap<>();
+    private boolean closed;
+
+    public SeriesStore(Path root) throws IOException {
+        this(root, DEFAULT_BLOCK_SIZE, DEFAULT_SEGMENT_BLOCKS, DoubleContext::new);
+    }
+
+    // Each series gets a context of its own from contexts, and they must all write the same format as the ones
+    // the store was last opened with
+    public SeriesStore(Path root, int blockSize, int segmentBlocks, Supplier<DoubleContext> contexts) throws IOException {
+        if (blockSize <= 0 || segmentBlocks <= 0) throw new IllegalArgumentException("Block size " + blockSize + " and segment size " + segmentBlocks + " must be positive");
+
+        this.root = root;
+        this.blockSize = blockSize;
+        this.segmentBlocks = segmentBlocks;
+        this.contexts = contexts;
+        Files.createDirectories(root);
+    }
+
+    // Opens the named series, creating it if need be. The first call for a series recovers anything left behind
+    // by a crash.
+    public synchronized Series series(String name) throws IOException {
+        if (closed) throw new IllegalStateException("Store " + root + " is closed");
+        if (name.isEmpty() || name.startsWith(".") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("Series name " + name + " cannot be used as a directory name");
+        }
+
+        Series result = series.get(name);
+        if (result == null) {
+            result = new Series(root.resolve(name), contexts.get(), blockSize, segmentBlocks);
+            series.put(name, result);
+        }
+        return result;
+    }
+
+    // Names of every series in the store, whether opened yet or not
+    public synchronized List<String> names() throws IOException {
+        final List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path path : stream) names.add(path.getFileName().toString());
+        }
+        names.sort(null);
+        return names;
+    }
+
+    // Submits every series opened so far for compaction
+    public synchronized List<Future<Boolean>> compact(Compactor compactor) {
+        final List<Future<Boolean>> futures = new ArrayList<>();
+        for (Series s : series.values()) {
+            futures.add(compactor.submit(s));
+        }
+        return futures;
+    }
+
+    // Closes every open series, carrying on past failures and rethrowing the first
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        IOException failure = null;
+        for (Series s : series.values()) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        series.clear();
+        if (failure != null) throw failure;
+    }
+}
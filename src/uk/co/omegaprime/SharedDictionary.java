@@ -0,0 +1,230 @@
+package uk.co.omegaprime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// A Deflate preset dictionary trained on a corpus of conditioned series, for compressing many short series that
+// are too small to build up a useful window of their own. Deflate starts every stream knowing nothing, so a series
+// of a few hundred values spends most of its bytes on literals that it could have matched against any of its
+// neighbours. Preloading the window with the byte sequences that recur across the corpus (common exponent runs,
+// the descriptor patterns of mostly-defined data, the top mantissa planes of similar price levels) lets even the
+// first values of a series be coded as matches.
+//
+// Training is a greedy cover: each sample is cut into SEGMENT_BYTES segments, a segment scores the number of
+// samples that share each of its 4-byte substrings (those not already covered by a segment chosen earlier), and
+// the best segments are taken until the dictionary is full. Deflate codes short distances more cheaply than long
+// ones, so the best segments go at the end of the dictionary, nearest the data.
+//
+// The dictionary is stored once, with write(), and each series is coded against it with a Coder. The zlib header
+// of each series records the Adler-32 of the dictionary it needs, so reading with the wrong one fails cleanly.
+public class SharedDictionary {
+    // The most Deflate's window can see
+    public static final int MAX_SIZE = 1 << 15;
+    static final int SEGMENT_BYTES = 64;
+    // Just over the shortest match Deflate will code
+    private static final int GRAM_BYTES = 4;
+
+    private final byte[] bytes;
+    private final int id;
+
+    SharedDictionary(byte[] bytes) {
+        if (bytes.length == 0 || bytes.length > MAX_SIZE) throw new IllegalArgumentException("Dictionary of " + bytes.length + " bytes, not between 1 and " + MAX_SIZE);
+
+        this.bytes = bytes;
+        final Adler32 adler = new Adler32();
+        adler.update(bytes);
+        this.id = (int)adler.getValue();
+    }
+
+    private static long gram(byte[] sample, int i) {
+        long result = 0;
+        for (int j = 0; j < GRAM_BYTES; j++) result = (result << 8) | (sample[i + j] & 0xFF);
+        return result;
+    }
+
+    // Trains on samples of conditioned bytes, such as the output of DoubleContext.write, producing a dictionary
+    // of at most maxSize bytes
+    public static SharedDictionary train(List<byte[]> samples, int maxSize) {
+        if (maxSize <= 0 || maxSize > MAX_SIZE) throw new IllegalArgumentException("Dictionary size " + maxSize + " not between 1 and " + MAX_SIZE);
+
+        // How many samples each substring turns up in. Counting samples rather than occurrences favours what is
+        // shared between series over what one series repeats, which Deflate would find for itself anyway.
+        final Map<Long, Integer> frequencies = new HashMap<>();
+        for (byte[] sample : samples) {
+            final Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + GRAM_BYTES <= sample.length; i++) {
+                if (seen.add(gram(sample, i))) frequencies.merge(gram(sample, i), 1, Integer::sum);
+            }
+        }
+
+        // Lazy greedy: scores only ever fall as substrings are covered, so a segment that still beats the best
+        // stale score in the queue after rescoring is the true best
+        final Set<Long> covered = new HashSet<>();
+        final PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+        for (int s = 0; s < samples.size(); s++) {
+            final byte[] sample = samples.get(s);
+            for (int i = 0; i < sample.length; i += SEGMENT_BYTES) {
+                final long score = score(sample, i, frequencies, covered);
+                if (score > 0) queue.add(new long[] { score, s, i });
+            }
+        }
+
+        final List<long[]> chosen = new ArrayList<>();
+        int size = 0;
+        while (size < maxSize && !queue.isEmpty()) {
+            final long[] segment = queue.poll();
+            final byte[] sample = samples.get((int)segment[1]);
+            final int i = (int)segment[2];
+            final long score = score(sample, i, frequencies, covered);
+            if (score <= 0) continue;
+            if (!queue.isEmpty() && score < queue.peek()[0]) {
+                segment[0] = score;
+                queue.add(segment);
+                continue;
+            }
+
+            for (int j = i; j + GRAM_BYTES <= Math.min(sample.length, i + SEGMENT_BYTES); j++) {
+                covered.add(gram(sample, j));
+            }
+            chosen.add(segment);
+            size += Math.min(sample.length - i, SEGMENT_BYTES);
+        }
+        if (chosen.isEmpty()) throw new IllegalArgumentException("Nothing in the samples recurs, so there is nothing to train on");
+
+        Collections.reverse(chosen);
+        final ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        for (long[] segment : chosen) {
+            final byte[] sample = samples.get((int)segment[1]);
+            final int i = (int)segment[2];
+            dictionary.write(sample, i, Math.min(sample.length - i, SEGMENT_BYTES));
+        }
+        // The last segment may have overshot, and it is the front of the dictionary that matters least
+        final byte[] result = dictionary.toByteArray();
+        return new SharedDictionary(result.length <= maxSize ? result : Arrays.copyOfRange(result, result.length - maxSize, result.length));
+    }
+
+    // Trains on series as context would condition them
+    public static SharedDictionary train(DoubleContext context, List<double[]> series, int maxSize) throws IOException {
+        final List<byte[]> samples = new ArrayList<>(series.size());
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (double[] xs : series) {
+            baos.reset();
+            context.write(xs, baos);
+            samples.add(baos.toByteArray());
+        }
+        return train(samples, maxSize);
+    }
+
+    // The substrings within the segment at i that at least two samples share and nothing chosen already covers
+    private static long score(byte[] sample, int i, Map<Long, Integer> frequencies, Set<Long> covered) {
+        long score = 0;
+        for (int j = i; j + GRAM_BYTES <= Math.min(sample.length, i + SEGMENT_BYTES); j++) {
+            final long gram = gram(sample, j);
+            final int frequency = frequencies.get(gram);
+            if (frequency > 1 && !covered.contains(gram)) score += frequency;
+        }
+        return score;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    // The Adler-32 of the dictionary, which is what zlib headers identify it by
+    public int id() {
+        return id;
+    }
+
+    public void write(OutputStream os) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+        dos.flush();
+    }
+
+    public static SharedDictionary read(InputStream is) throws IOException {
+        final DataInputStream dis = new DataInputStream(is);
+        final int length = dis.readInt();
+        if (length <= 0 || length > MAX_SIZE) throw new IOException("Corrupt dictionary: length " + length);
+        final byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return new SharedDictionary(bytes);
+    }
+
+    // Compresses and decompresses series against the dictionary. The Deflater and Inflater are reset rather than
+    // recreated for each series, so a long tail of small series does not pay for setting up zlib's state every
+    // time. Not thread safe, so every thread needs its own, and should be closed to free zlib's memory promptly.
+    public class Coder implements Closeable {
+        private final Deflater deflater;
+        private final Inflater inflater = new Inflater();
+        private final ByteArrayOutputStream conditioned = new ByteArrayOutputStream();
+
+        private Coder(int level) {
+            this.deflater = new Deflater(level);
+        }
+
+        // Writes xs[off] to xs[off + len - 1], conditioned by context and deflated against the dictionary
+        public void write(DoubleContext context, double[] xs, int off, int len, OutputStream os) throws IOException {
+            conditioned.reset();
+            context.write(xs, off, len, conditioned);
+
+            deflater.reset();
+            deflater.setDictionary(bytes);
+            final DeflaterOutputStream dos = new DeflaterOutputStream(os, deflater, 4096);
+            conditioned.writeTo(dos);
+            dos.finish();
+        }
+
+        // Reads back len values written by write() with the same context. Since the deflated stream knows where it
+        // ends, this may read further than that from is, so give each series its own stream or length prefix.
+        public void read(DoubleContext context, double[] xs, int off, int len, InputStream is) throws IOException {
+            inflater.reset();
+            context.read(xs, off, len, new InflaterInputStream(is, inflater, 4096) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    while (true) {
+                        final int n = super.read(b, off, len);
+                        if (n >= 0 || !inf.needsDictionary()) return n;
+                        if (inf.getAdler() != id) {
+                            throw new IOException("Series was compressed with dictionary " + Integer.toHexString(inf.getAdler()) + ", not " + Integer.toHexString(id));
+                        }
+                        inf.setDictionary(bytes);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    public Coder coder() {
+        return coder(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public Coder coder(int level) {
+        return new Coder(level);
+    }
+}
@@ -0,0 +1,241 @@
+package uk.co.omegaprime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// A reusable encoder/decoder for blocks of a table of double columns that are missing on the same rows, such as
+// the open, high, low, close and volume of price bars. Encoding each column with a DoubleContext would repeat
+// the same NaN pattern in every column's descriptors. Instead the block starts with one validity bitmap
+// saying which rows are there at all, and each column then only encodes its values on those rows:
+//
+//   byte flags                               bit 0: some rows are missing, so the bitmap follows
+//   [byte[(len + 7) / 8] present rows]       bit i % 8 of byte i / 8 is set if row i is there
+//   int rows present
+//   for each column: int length, bytes
+//
+// A row is missing when every column is NaN on it. A column can still be NaN on a row where the others are not,
+// so nothing is lost, but that NaN costs a whole value rather than a bit.
+//
+// A column can be coded on its own, with its own DoubleContext, or relative to an earlier column. A relative
+// column stores the difference between the bit patterns of its values and the reference column's, zig-zagged
+// and split into byte planes. For a high or low price next to the open, those differences are small, so the top
+// planes are nearly all zero, whatever the price level. Since the differences are of bit patterns rather than
+// values, they round trip exactly.
+//
+// Every column is length-prefixed, so read() can skip the ones not asked for. A relative column does need its
+// reference column to be decoded, whether or not that was asked for.
+//
+// Not thread safe, because of the scratch arrays and the DoubleContexts.
+public class TableContext {
+    public static final int OPEN = 0, HIGH = 1, LOW = 2, CLOSE = 3, VOLUME = 4;
+
+    static final int FLAG_MISSING_ROWS = 1;
+
+    private static final int[] RESIDUAL_CODEC = new int[] { 1, 1, 1, 1, 1, 1, 1, 1 };
+
+    // How one column of the table is coded
+    public static class Column {
+        final DoubleContext context;
+        final int reference;
+        final int[] residualCodec;
+
+        private Column(DoubleContext context, int reference, int[] residualCodec) {
+            this.context = context;
+            this.reference = reference;
+            this.residualCodec = residualCodec;
+        }
+
+        // Coded on its own. The validity bitmap already says where the table is missing, so a conditioner
+        // without special cases, which spends one bit per value on descriptors rather than two, is usually best.
+        public static Column of(DoubleContext context) {
+            return new Column(context, -1, null);
+        }
+
+        public static Column of() {
+            return of(new DoubleContext(new Conditioner(false), Conditioner.Coding.LITERAL, new int[] { 1, 1 }, Conditioner.Coding.DELTA, new int[] { 1, 1, 1, 1, 1, 1, 1 }));
+        }
+
+        // Coded as differences from the bit patterns of an earlier column
+        public static Column relativeTo(int reference) {
+            return relativeTo(reference, RESIDUAL_CODEC);
+        }
+
+        // codec splits the 8 bytes of the zig-zagged differences into planes, as for Conditioner.columnarWriteLong
+        public static Column relativeTo(int reference, int[] codec) {
+            if (reference < 0) throw new IllegalArgumentException("No such column " + reference);
+            return new Column(null, reference, codec.clone());
+        }
+    }
+
+    private final Column[] columns;
+    private final Scratch scratch = new Scratch();
+    private final ByteArrayOutputStream section = new ByteArrayOutputStream();
+    // Each column's values on the present rows only
+    private final double[][] present;
+    private byte[] validity = new byte[0];
+
+    public TableContext(Column... columns) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].reference >= i) throw new IllegalArgumentException("Column " + i + " can only be relative to an earlier column, not " + columns[i].reference);
+        }
+
+        this.columns = columns.clone();
+        this.present = new double[columns.length][0];
+    }
+
+    // Open, high, low, close and volume columns, with the high, low and close relative to the open
+    public static TableContext ohlcv() {
+        return new TableContext(Column.of(), Column.relativeTo(OPEN), Column.relativeTo(OPEN), Column.relativeTo(OPEN), Column.of());
+    }
+
+    public int columnCount() {
+        return columns.length;
+    }
+
+    private double[] present(int column, int n) {
+        if (present[column].length < n) present[column] = new double[Math.max(n, present[column].length + (present[column].length >> 1))];
+        return present[column];
+    }
+
+    // Writes rows [off, off + len) of the table, where xs[c] is column c
+    public void write(double[][] xs, int off, int len, OutputStream os) throws IOException {
+        if (xs.length != columns.length) throw new IllegalArgumentException("Got " + xs.length + " columns for a table of " + columns.length);
+
+        // Gather the values on present rows, building the bitmap as we go
+        final int validityBytes = (len + 7) / 8;
+        if (validity.length < validityBytes) validity = new byte[validityBytes];
+        Arrays.fill(validity, 0, validityBytes, (byte)0);
+        for (int c = 0; c < columns.length; c++) present(c, len);
+
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            boolean missing = true;
+            for (int c = 0; c < columns.length; c++) {
+                final double x = xs[c][off + i];
+                present[c][n] = x;
+                missing &= x != x;
+            }
+            if (!missing) {
+                validity[i >>> 3] |= 1 << (i & 7);
+                n++;
+            }
+        }
+
+        final DataOutputStream dos = new DataOutputStream(os);
+        if (n == len) {
+            dos.writeByte(0);
+        } else {
+            dos.writeByte(FLAG_MISSING_ROWS);
+            dos.write(validity, 0, validityBytes);
+        }
+        dos.writeInt(n);
+
+        for (int c = 0; c < columns.length; c++) {
+            section.reset();
+            final Column column = columns[c];
+            if (column.reference < 0) {
+                column.context.write(present[c], 0, n, section);
+            } else {
+                final double[] reference = present[column.reference], values = present[c];
+                final long[] residuals = scratch.longs(n);
+                for (int i = 0; i < n; i++) {
+                    residuals[i] = Conditioner.twos2unsigned64(Double.doubleToRawLongBits(values[i]) - Double.doubleToRawLongBits(reference[i]));
+                }
+                Conditioner.columnarWriteLong(column.residualCodec, residuals, 0, n, section, scratch);
+            }
+            dos.writeInt(section.size());
+            section.writeTo(dos);
+        }
+        dos.flush();
+    }
+
+    // Reads a block of len rows into rows [off, off + len) of xs, where xs[c] is column c. Columns with a null
+    // xs[c] are skipped if nothing else needs them. Missing rows come out as NaN.
+    public void read(double[][] xs, int off, int len, InputStream is) throws IOException {
+        if (xs.length != columns.length) throw new IllegalArgumentException("Got " + xs.length + " columns for a table of " + columns.length);
+
+        // Which columns have to be decoded: those asked for, and whatever they are relative to
+        final boolean[] needed = new boolean[columns.length];
+        for (int c = columns.length - 1; c >= 0; c--) {
+            if (xs[c] != null || needed[c]) {
+                needed[c] = true;
+                if (columns[c].reference >= 0) needed[columns[c].reference] = true;
+            }
+        }
+
+        final DataInputStream dis = new DataInputStream(is);
+        final int flags = dis.readUnsignedByte();
+        final boolean missingRows = (flags & FLAG_MISSING_ROWS) != 0;
+        final int validityBytes = (len + 7) / 8;
+        if (missingRows) {
+            if (validity.length < validityBytes) validity = new byte[validityBytes];
+            dis.readFully(validity, 0, validityBytes);
+        }
+        final int n = dis.readInt();
+        if (n < 0 || n > len || (!missingRows && n != len)) throw new IOException("Table block claims " + n + " of " + len + " rows are present");
+        if (missingRows && presentRows(len) != n) throw new IOException("Table block claims " + n + " rows are present, but its bitmap has " + presentRows(len));
+
+        for (int c = 0; c < columns.length; c++) {
+            final int length = dis.readInt();
+            if (length < 0) throw new IOException("Column " + c + " has negative length " + length);
+            if (!needed[c]) {
+                skipFully(dis, length);
+                continue;
+            }
+
+            final Column column = columns[c];
+            final double[] values = present(c, n);
+            if (column.reference < 0) {
+                column.context.read(values, 0, n, dis);
+            } else {
+                final double[] reference = present[column.reference];
+                final long[] residuals = scratch.longs(n);
+                Conditioner.columnarReadLong(column.residualCodec, residuals, 0, n, dis, scratch);
+                for (int i = 0; i < n; i++) {
+                    values[i] = Double.longBitsToDouble(Double.doubleToRawLongBits(reference[i]) + Conditioner.unsigned2twos64(residuals[i]));
+                }
+            }
+        }
+
+        // Scatter the present rows back out around the missing ones
+        for (int c = 0; c < columns.length; c++) {
+            if (xs[c] == null) continue;
+
+            if (!missingRows) {
+                System.arraycopy(present[c], 0, xs[c], off, len);
+                continue;
+            }
+            int k = 0;
+            for (int i = 0; i < len; i++) {
+                xs[c][off + i] = (validity[i >>> 3] & (1 << (i & 7))) != 0 ? present[c][k++] : Double.NaN;
+            }
+        }
+    }
+
+    // Number of rows that the validity bitmap of a block of len rows says are there
+    private int presentRows(int len) {
+        int rows = 0;
+        for (int k = 0; k < len >>> 3; k++) rows += Integer.bitCount(validity[k] & 0xFF);
+        if ((len & 7) != 0) rows += Integer.bitCount(validity[len >>> 3] & ((1 << (len & 7)) - 1));
+        return rows;
+    }
+
+    private static void skipFully(InputStream is, long n) throws IOException {
+        while (n > 0) {
+            final long skipped = is.skip(n);
+            if (skipped > 0) {
+                n -= skipped;
+            } else if (is.read() < 0) {
+                throw new EOFException();
+            } else {
+                n--;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AppendableBlockTest {
+    @Test
+    public void readableAfterEveryAppend() throws IOException {
+        final double[] xs = Arrays.copyOf(Utils.floatsToDoubles(Utils.getExampleData()), 700);
+        final AppendableBlock block = new AppendableBlock(new DoubleContext(), 64);
+        final double[] read = new double[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            block.append(xs[i]);
+            assertEquals(i + 1, block.read(read, 0));
+            assertArrayEquals(Arrays.copyOf(xs, i + 1), Arrays.copyOf(read, i + 1), 0.0);
+
+            final byte[] bytes = block.toByteArray();
+            assertEquals(block.size(), bytes.length);
+            assertEquals(i + 1, AppendableBlock.count(bytes));
+            Arrays.fill(read, 0.0);
+            assertEquals(i + 1, AppendableBlock.read(new ByteArrayInputStream(bytes), new DoubleContext(), read, 0));
+            assertArrayEquals(Arrays.copyOf(xs, i + 1), Arrays.copyOf(read, i + 1), 0.0);
+        }
+    }
+
+    @Test
+    public void reopenedBlocksCarryOn() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final AppendableBlock whole = new AppendableBlock(new DoubleContext());
+        whole.append(xs, 0, xs.length);
+
+        // In uneven batches, serialising and reopening between each
+        byte[] bytes = new AppendableBlock(new DoubleContext()).toByteArray();
+        for (int off = 0, batch = 1; off < xs.length; off += batch, batch = batch * 3 % 1001 + 1) {
+            final AppendableBlock block = AppendableBlock.open(bytes, new DoubleContext());
+            block.append(xs, off, Math.min(batch, xs.length - off));
+            bytes = block.toByteArray();
+        }
+        assertArrayEquals(whole.toByteArray(), bytes);
+    }
+
+    @Test
+    public void miniblocksCostLittleOverOneBigBlock() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final int n = xs.length - xs.length % AppendableBlock.DEFAULT_MINIBLOCK_SIZE;
+        final AppendableBlock block = new AppendableBlock(new DoubleContext());
+        block.append(xs, 0, n);
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new DoubleContext().write(Arrays.copyOf(xs, n), baos);
+        assertTrue(block.size() + " vs " + baos.size(), block.size() < baos.size() * 1.02);
+    }
+
+    @Test
+    public void corruptBlocksSaySo() throws IOException {
+        final AppendableBlock block = new AppendableBlock(new DoubleContext(), 5);
+        block.append(new double[] { 1.5, 0.0, -2.25, Double.NaN, 3.0, 4.5, 6.0 }, 0, 7);
+        final byte[] bytes = block.toByteArray();
+
+        // The tail's last value cut short
+        try {
+            AppendableBlock.open(Arrays.copyOf(bytes, bytes.length - 1), new DoubleContext());
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("truncated in tail"));
+        }
+
+        // The first miniblock's last descriptor byte, which only has room for one value, claiming three
+        bytes[AppendableBlock.HEADER_BYTES + 4 + 1] |= 0xA0;
+        try {
+            AppendableBlock.read(new ByteArrayInputStream(bytes), new DoubleContext(), new double[7], 0);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt descriptors"));
+        }
+    }
+}
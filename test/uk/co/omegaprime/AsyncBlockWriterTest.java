@@ -0,0 +1,105 @@
+package uk.co.omegaprime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AsyncBlockWriterTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // Blocks of awkward and varying sizes
+    private static int blockLength(int block) {
+        return 1 + (block * 337) % 1000;
+    }
+
+    @Test
+    public void writesTheSameFilesAsBlockWriter() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final long[] ts = new long[xs.length];
+        for (int i = 0; i < ts.length; i++) ts[i] = 1500000000000L + 250L * i;
+
+        for (boolean timestamped : new boolean[] { false, true }) {
+            for (boolean deflated : new boolean[] { false, true }) {
+                for (boolean checksummed : new boolean[] { false, true }) {
+                    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                    final Path path = folder.getRoot().toPath().resolve("blocks-" + timestamped + "-" + deflated + "-" + checksummed);
+                    try (BlockWriter writer = new BlockWriter(expected, new DoubleContext(), timestamped, deflated, 0, checksummed);
+                         AsyncBlockWriter async = new AsyncBlockWriter(path, new DoubleContext(), timestamped, deflated, 3, checksummed)) {
+                        for (int block = 0, off = 0; off < xs.length; block++) {
+                            final int len = Math.min(blockLength(block), xs.length - off);
+                            if (timestamped) {
+                                writer.write(ts, xs, off, len);
+                                async.write(ts, xs, off, len);
+                            } else {
+                                writer.write(xs, off, len);
+                                async.write(xs, off, len);
+                            }
+                            off += len;
+                        }
+                    }
+
+                    assertArrayEquals(expected.toByteArray(), Files.readAllBytes(path));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void flushWaitsForEverythingWrittenSoFar() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final Path path = folder.getRoot().toPath().resolve("blocks");
+        try (AsyncBlockWriter async = new AsyncBlockWriter(path, new DoubleContext(), false, false)) {
+            async.write(xs, 0, 1000);
+            async.write(xs, 1000, 1000);
+            async.flush();
+
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            final BlockWriter writer = new BlockWriter(expected, new DoubleContext());
+            writer.write(xs, 0, 1000);
+            writer.write(xs, 1000, 1000);
+            writer.flush();
+            assertEquals(expected.size(), Files.size(path));
+        }
+    }
+
+    @Test
+    public void failuresReachTheProducer() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final DoubleContext failing = new DoubleContext() {
+            private int blocks;
+
+            @Override
+            void write(double[] xs, int off, int len, OutputStream os) throws IOException {
+                if (++blocks == 3) throw new IOException("Third time unlucky");
+                super.write(xs, off, len, os);
+            }
+        };
+
+        final AsyncBlockWriter async = new AsyncBlockWriter(folder.getRoot().toPath().resolve("blocks"), failing, false, true, 3);
+        // However quickly the failure comes through, one of the writes has to report it, and so does the close
+        IOException fromWrite = null;
+        try {
+            for (int i = 0; i < 20; i++) async.write(xs, 0, 100);
+        } catch (IOException e) {
+            fromWrite = e;
+        }
+        try {
+            async.close();
+            fail("Should have thrown");
+        } catch (IOException e) {
+            assertEquals("Third time unlucky", e.getCause().getMessage());
+        }
+        assertEquals("Third time unlucky", fromWrite.getCause().getMessage());
+    }
+}
@@ -0,0 +1,168 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockCacheTest {
+    private static final int BLOCK = 1000;
+
+    private static BlockReader blockFile(double[] xs) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (BlockWriter writer = new BlockWriter(baos, new DoubleContext(), false, true)) {
+            for (int off = 0; off < xs.length; off += BLOCK) writer.write(xs, off, Math.min(BLOCK, xs.length - off));
+        }
+        return new BlockReader(ByteBuffer.wrap(baos.toByteArray()));
+    }
+
+    // Loads a block of BLOCK values, all equal to the block number, counting how often it is called
+    private static BlockCache.Loader constant(int block, int[] loads) {
+        return target -> {
+            loads[0]++;
+            final double[] xs = new double[BLOCK];
+            Arrays.fill(xs, block);
+            new DoubleContext().read(target, new ByteArrayInputStream(encode(xs)));
+        };
+    }
+
+    private static byte[] encode(double[] xs) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new DoubleContext().write(xs, 0, xs.length, baos);
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void decodesOnceAndServesFromMemory() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final BlockReader reader = blockFile(xs);
+        final BlockCache cache = new BlockCache(64L << 20);
+
+        for (int pass = 0; pass < 3; pass++) {
+            for (int block = 0; block < reader.blockCount(); block++) {
+                final DoubleBuffer buffer = cache.get("vod", reader, block);
+                assertTrue(buffer.isDirect() && buffer.isReadOnly());
+                assertEquals(reader.stats(block).count, buffer.remaining());
+                for (int i = 0; i < buffer.remaining(); i++) assertEquals(xs[block * BLOCK + i], buffer.get(i), 0.0);
+            }
+        }
+
+        assertEquals(reader.blockCount(), cache.misses());
+        assertEquals(2 * reader.blockCount(), cache.hits());
+        assertEquals(8L * xs.length, cache.size());
+
+        cache.invalidate("vod");
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.blockCount());
+    }
+
+    @Test
+    public void scansDoNotFlushOutHotBlocks() throws IOException {
+        // Room for ten blocks, of which eight can be protected
+        final BlockCache cache = new BlockCache(10L * 8 * BLOCK);
+        final int[] loads = new int[1];
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int block = 0; block < 5; block++) cache.get("hot", block, BLOCK, constant(block, loads));
+        }
+        assertEquals(5, loads[0]);
+
+        // A long scan of blocks nobody will ask for again
+        for (int block = 0; block < 100; block++) cache.get("history", block, BLOCK, constant(block, loads));
+        assertEquals(105, loads[0]);
+        assertTrue(cache.size() <= cache.budget());
+
+        for (int block = 0; block < 5; block++) {
+            final DoubleBuffer buffer = cache.get("hot", block, BLOCK, constant(block, loads));
+            assertEquals(block, buffer.get(BLOCK - 1), 0.0);
+        }
+        assertEquals(105, loads[0]);
+        assertEquals(95, cache.evictions());
+    }
+
+    @Test
+    public void staysWithinBudget() throws IOException {
+        final BlockCache cache = new BlockCache(3L * 8 * BLOCK);
+        final int[] loads = new int[1];
+
+        for (int round = 0; round < 4; round++) {
+            for (int block = 0; block < 10; block++) {
+                final DoubleBuffer buffer = cache.get("s", block, BLOCK, constant(block, loads));
+                assertEquals(block, buffer.get(0), 0.0);
+                assertTrue(cache.size() <= cache.budget());
+            }
+        }
+        assertEquals(3, cache.blockCount());
+        assertEquals(cache.misses(), loads[0]);
+        assertEquals(cache.misses() - 3, cache.evictions());
+
+        // Too big to cache at all, but still decoded
+        final DoubleBuffer big = cache.get("s", 99, 4 * BLOCK, target -> {
+            final double[] xs = new double[4 * BLOCK];
+            Arrays.fill(xs, 99);
+            new DoubleContext().read(target, new ByteArrayInputStream(encode(xs)));
+        });
+        assertEquals(99, big.get(4 * BLOCK - 1), 0.0);
+        assertEquals(3, cache.blockCount());
+    }
+
+    @Test
+    public void blocksDecodedDuringInvalidationAreNotCached() throws IOException {
+        final BlockCache cache = new BlockCache(64L << 20);
+        final int[] loads = new int[1];
+
+        // As if the file were replaced while the old one's block was being decoded
+        final BlockCache.Loader old = constant(1, loads);
+        final DoubleBuffer stale = cache.get("s", 0, BLOCK, target -> {
+            old.load(target);
+            cache.invalidate("s");
+        });
+        assertEquals(1, stale.get(0), 0.0);
+        assertEquals(0, cache.blockCount());
+
+        assertEquals(2, cache.get("s", 0, BLOCK, constant(2, loads)).get(0), 0.0);
+        assertEquals(2, cache.get("s", 0, BLOCK, constant(3, loads)).get(0), 0.0);
+        assertEquals(2, loads[0]);
+    }
+
+    @Test
+    public void threadsCanShareABlockReader() throws Exception {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final BlockReader reader = blockFile(xs);
+        // Room for only a couple of blocks, so that the threads keep missing and decoding at the same time
+        final BlockCache cache = new BlockCache(2L * 8 * BLOCK);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                final int seed = thread;
+                futures.add(executor.submit(() -> {
+                    final Random random = new Random(seed);
+                    for (int i = 0; i < 200; i++) {
+                        final int block = random.nextInt(reader.blockCount());
+                        final DoubleBuffer buffer = cache.get("vod", reader, block);
+                        for (int j = 0; j < buffer.remaining(); j++) assertEquals(xs[block * BLOCK + j], buffer.get(j), 0.0);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlockFileTest {
+    private static final int BLOCK_SIZE = 1000;
+
+    private static double[] example() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        for (int i = 0; i < xs.length; i += 17) xs[i] = Double.NaN;
+        for (int i = 5; i < xs.length; i += 23) xs[i] = 0.0;
+        return xs;
+    }
+
+    private static ByteBuffer write(double[] xs) throws IOException {
+        return write(xs, new DoubleContext());
+    }
+
+    private static ByteBuffer write(double[] xs, DoubleContext context) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (BlockWriter writer = new BlockWriter(baos, context)) {
+            for (int i = 0; i < xs.length; i += BLOCK_SIZE) {
+                writer.write(xs, i, Math.min(BLOCK_SIZE, xs.length - i));
+            }
+        }
+        return ByteBuffer.wrap(baos.toByteArray());
+    }
+
+    @Test
+    public void blocksRoundTrip() throws IOException {
+        final double[] xs = example();
+        final BlockReader reader = new BlockReader(write(xs));
+        assertEquals((xs.length + BLOCK_SIZE - 1) / BLOCK_SIZE, reader.blockCount());
+
+        final double[] ys = new double[xs.length];
+        for (int i = 0; i < reader.blockCount(); i++) {
+            reader.read(i, ys, i * BLOCK_SIZE);
+        }
+        assertArrayEquals(xs, ys, 0.0);
+    }
+
+    @Test
+    public void statsMatchContents() throws IOException {
+        final double[] xs = example();
+        final BlockReader reader = new BlockReader(write(xs));
+        for (int i = 0; i < reader.blockCount(); i++) {
+            final int off = i * BLOCK_SIZE, len = Math.min(BLOCK_SIZE, xs.length - off);
+            final BlockStats stats = reader.stats(i);
+            assertEquals(len, stats.count);
+            assertEquals(stats.count, stats.defined + stats.nans + stats.zeros);
+
+            final double[] block = Arrays.stream(xs, off, off + len).filter(x -> !Double.isNaN(x)).toArray();
+            assertEquals(len - block.length, stats.nans);
+            assertEquals(Arrays.stream(block).min().getAsDouble(), stats.min, 0.0);
+            assertEquals(Arrays.stream(block).max().getAsDouble(), stats.max, 0.0);
+            assertEquals(block[0], stats.first, 0.0);
+            assertEquals(block[block.length - 1], stats.last, 0.0);
+        }
+
+        final BlockStats totals = reader.totals();
+        assertEquals(xs.length, totals.count);
+        assertEquals(BlockStats.of(xs, 0, xs.length).max, totals.max, 0.0);
+        assertEquals(BlockStats.of(xs, 0, xs.length).sum, totals.sum, 1e-6 * Math.abs(totals.sum));
+    }
+
+    @Test
+    public void scanSkipsBlocksRuledOutByStats() throws IOException {
+        final double[] xs = example();
+        final BlockReader reader = new BlockReader(write(xs));
+
+        // Somewhere between the smallest and largest block maxima, so that some blocks go and some stay
+        final double threshold = reader.stats().stream().mapToDouble(s -> s.max).sorted().toArray()[reader.blockCount() / 2];
+
+        final List<Double> found = new ArrayList<>();
+        final int decoded = reader.scan(stats -> stats.mayContainGreaterThan(threshold), (block, stats, values, count) -> {
+            for (int i = 0; i < count; i++) {
+                if (values[i] > threshold) found.add(values[i]);
+            }
+        });
+
+        assertTrue(decoded > 0 && decoded < reader.blockCount());
+        assertEquals(Arrays.stream(xs).filter(x -> x > threshold).count(), found.size());
+    }
+
+    @Test
+    public void allNaNBlocksNeverMatch() {
+        final BlockStats stats = BlockStats.of(new double[] { Double.NaN, Double.NaN }, 0, 2);
+        assertEquals(2, stats.nans);
+        assertTrue(Double.isNaN(stats.min) && Double.isNaN(stats.first));
+        assertFalse(stats.mayContainGreaterThan(0.0));
+        assertFalse(stats.mayContainLessThan(0.0));
+        assertFalse(stats.mayContainInRange(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+
+        final BlockStats merged = stats.merge(BlockStats.of(new double[] { 1.0, 0.0 }, 0, 2));
+        assertEquals(4, merged.count);
+        assertEquals(1, merged.defined);
+        assertEquals(0.0, merged.min, 0.0);
+        assertEquals(1.0, merged.first, 0.0);
+    }
+
+    @Test
+    public void rejectsUnclosedFiles() throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final BlockWriter writer = new BlockWriter(baos);
+        writer.write(new double[] { 1.0, 2.0, 3.0 });
+        try {
+            new BlockReader(ByteBuffer.wrap(baos.toByteArray()));
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static void assertStatsEqual(BlockStats expected, BlockStats actual) {
+        assertEquals(expected.count, actual.count);
+        assertEquals(expected.defined, actual.defined);
+        assertEquals(expected.nans, actual.nans);
+        assertEquals(expected.zeros, actual.zeros);
+        assertEquals(expected.min, actual.min, 0.0);
+        assertEquals(expected.max, actual.max, 0.0);
+        assertEquals(expected.sum, actual.sum, 1e-9 * Math.abs(expected.sum));
+        assertEquals(expected.first, actual.first, 0.0);
+        assertEquals(expected.last, actual.last, 0.0);
+    }
+
+    @Test
+    public void aggregatesMatchDecodedValues() throws IOException {
+        final double[] xs = example();
+        final Random random = new Random(1337);
+
+        // Fused, staged (because of the [2] exponent codec) and without special case descriptors
+        final DoubleContext[] contexts = new DoubleContext[] {
+            new DoubleContext(),
+            new DoubleContext(new Conditioner(true),  Conditioner.Coding.DELTA, new int[] { 2 }, Conditioner.Coding.DELTA, new int[] { 1, 1, 1, 1, 1, 1, 1 }),
+            new DoubleContext(new Conditioner(false), Conditioner.Coding.LITERAL, new int[] { 1, 1 }, Conditioner.Coding.DELTA, new int[] { 1, 1, 1, 1, 1, 1, 1 }),
+        };
+        for (DoubleContext context : contexts) {
+            final BlockReader reader = new BlockReader(write(xs, context), context);
+            assertEquals(xs.length, reader.valueCount());
+
+            for (int trial = 0; trial < 50; trial++) {
+                final int from = random.nextInt(xs.length + 1);
+                final int to = from + random.nextInt(xs.length - from + 1);
+
+                final BlockStats expected = BlockStats.of(xs, from, to - from);
+                assertStatsEqual(expected, reader.aggregate(from, to));
+                assertEquals(expected.nans, reader.countNaNs(from, to));
+                assertEquals(expected.zeros, reader.countZeros(from, to));
+            }
+
+            assertStatsEqual(BlockStats.of(xs, 0, xs.length), reader.aggregate(0, xs.length));
+            assertStatsEqual(BlockStats.of(xs, 3, 1), reader.aggregate(3, 4));
+            assertEquals(0, reader.aggregate(7, 7).count);
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void aggregateRejectsRangesOutsideTheSeries() throws IOException {
+        final BlockReader reader = new BlockReader(write(new double[] { 1.0, 2.0 }));
+        reader.aggregate(1, 3);
+    }
+
+    // Ticks at irregular intervals, sometimes several to a millisecond
+    private static long[] timestamps(int n, Random random) {
+        final long[] ts = new long[n];
+        long t = 1500000000000L;
+        for (int i = 0; i < n; i++) {
+            t += random.nextInt(4) == 0 ? 0 : random.nextInt(5000);
+            ts[i] = t;
+        }
+        return ts;
+    }
+
+    private static ByteBuffer writeTimestamped(long[] ts, double[] xs) throws IOException {
+        return writeTimestamped(ts, xs, false);
+    }
+
+    private static ByteBuffer writeTimestamped(long[] ts, double[] xs, boolean deflated) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (BlockWriter writer = new BlockWriter(baos, new DoubleContext(), true, deflated)) {
+            for (int i = 0; i < xs.length; i += BLOCK_SIZE) {
+                writer.write(ts, xs, i, Math.min(BLOCK_SIZE, xs.length - i));
+            }
+        }
+        return ByteBuffer.wrap(baos.toByteArray());
+    }
+
+    @Test
+    public void timeRangeScansDecodeOnlyOverlappingBlocks() throws IOException {
+        final Random random = new Random(1337);
+        final double[] xs = example();
+        final long[] ts = timestamps(xs.length, random);
+        final BlockReader reader = new BlockReader(writeTimestamped(ts, xs));
+        assertTrue(reader.isTimestamped());
+
+        final long[] readTs = new long[xs.length];
+        for (int i = 0; i < reader.blockCount(); i++) {
+            reader.readTimestamps(i, readTs, i * BLOCK_SIZE);
+        }
+        assertArrayEquals(ts, readTs);
+
+        for (int trial = 0; trial < 100; trial++) {
+            final long from = ts[random.nextInt(ts.length)] + random.nextInt(3) - 1;
+            final long to = from + random.nextInt(trial % 2 == 0 ? 10000 : 1000000);
+
+            final List<Long> foundTs = new ArrayList<>();
+            final List<Double> foundXs = new ArrayList<>();
+            final int decoded = reader.scan(from, to, (timestamps, values, lo, hi) -> {
+                for (int i = lo; i < hi; i++) {
+                    foundTs.add(timestamps[i]);
+                    foundXs.add(values[i]);
+                }
+            });
+
+            final List<Long> expectedTs = new ArrayList<>();
+            final List<Double> expectedXs = new ArrayList<>();
+            int overlapping = 0;
+            for (int block = 0; block < reader.blockCount(); block++) {
+                boolean overlaps = false;
+                for (int i = block * BLOCK_SIZE; i < Math.min(xs.length, (block + 1) * BLOCK_SIZE); i++) {
+                    if (ts[i] >= from && ts[i] < to) {
+                        expectedTs.add(ts[i]);
+                        expectedXs.add(xs[i]);
+                        overlaps = true;
+                    }
+                }
+                if (overlaps) overlapping++;
+            }
+
+            assertEquals(expectedTs, foundTs);
+            assertEquals(expectedXs, foundXs);
+            // Only a block that straddles one end of the range without having any of it can be decoded needlessly
+            assertTrue(decoded <= overlapping + 2);
+        }
+    }
+
+    @Test
+    public void deflatedFilesReadTheSame() throws IOException {
+        final double[] xs = example();
+        final long[] ts = timestamps(xs.length, new Random(1337));
+        final ByteBuffer raw = writeTimestamped(ts, xs, false), deflated = writeTimestamped(ts, xs, true);
+        assertTrue(deflated.limit() < raw.limit());
+
+        final BlockReader rawReader = new BlockReader(raw), reader = new BlockReader(deflated);
+        final double[] ys = new double[xs.length];
+        final long[] readTs = new long[xs.length];
+        for (int i = 0; i < reader.blockCount(); i++) {
+            reader.read(i, ys, i * BLOCK_SIZE);
+            reader.readTimestamps(i, readTs, i * BLOCK_SIZE);
+        }
+        assertArrayEquals(xs, ys, 0.0);
+        assertArrayEquals(ts, readTs);
+
+        assertStatsEqual(rawReader.aggregate(123, 4567), reader.aggregate(123, 4567));
+        assertEquals(rawReader.countNaNs(123, 4567), reader.countNaNs(123, 4567));
+
+        // Walking the frames of a file gives back the index it was closed with
+        final BlockIndex recovered = BlockIndex.recover(deflated, new DoubleContext());
+        assertEquals(reader.blockCount(), recovered.blockCount());
+        for (int i = 0; i < reader.blockCount(); i++) {
+            assertStatsEqual(reader.stats(i), recovered.stats.get(i));
+            assertEquals(reader.lastTimestamp(i), recovered.lastTimestamps[i]);
+        }
+    }
+
+    @Test
+    public void checkpointedRangesMatchWholeBlocks() throws IOException {
+        final double[] xs = example();
+        final Random random = new Random(1337);
+        final DoubleContext[] contexts = new DoubleContext[] {
+            new DoubleContext(),
+            new DoubleContext(new Conditioner(false), Conditioner.Coding.LITERAL, new int[] { 2 }, Conditioner.Coding.LITERAL, new int[] { 3, 4 }),
+            new DoubleContext(new Conditioner(true), Conditioner.Coding.DELTA, new int[] { 1, 1 }, Conditioner.Coding.DELTA, new int[] { 2, 0, 2, 3 }),
+        };
+        for (DoubleContext context : contexts) {
+            for (boolean deflated : new boolean[] { false, true }) {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (BlockWriter writer = new BlockWriter(baos, context, false, deflated, 64)) {
+                    for (int i = 0; i < xs.length; i += BLOCK_SIZE) writer.write(xs, i, Math.min(BLOCK_SIZE, xs.length - i));
+                }
+                final ByteBuffer file = ByteBuffer.wrap(baos.toByteArray());
+                final BlockReader reader = new BlockReader(file, context);
+                assertEquals(reader.blockCount(), BlockIndex.recover(file, context).blockCount());
+
+                final double[] whole = new double[BLOCK_SIZE], range = new double[BLOCK_SIZE];
+                for (int block = 0; block < reader.blockCount(); block++) {
+                    final int count = reader.stats(block).count;
+                    reader.read(block, whole, 0);
+                    for (int trial = 0; trial < 20; trial++) {
+                        final int from = random.nextInt(count + 1), to = from + random.nextInt(count - from + 1);
+                        reader.read(block, from, to, range, 0);
+                        assertArrayEquals(Arrays.copyOfRange(whole, from, to), Arrays.copyOf(range, to - from), 0.0);
+                    }
+                    reader.read(block, count - 1, count, range, 0);
+                    assertEquals(whole[count - 1], range[0], 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void corruptCheckpointsSaySo() throws IOException {
+        final double[] xs = example();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (BlockWriter writer = new BlockWriter(baos, new DoubleContext(), false, false, 64)) {
+            for (int i = 0; i < xs.length; i += BLOCK_SIZE) writer.write(xs, i, Math.min(BLOCK_SIZE, xs.length - i));
+        }
+        final byte[] bytes = baos.toByteArray();
+
+        // The second count of defined values in block 1's checkpoints: the frame's count and values come first,
+        // then the checkpoints' length, interval, total and number of counts
+        final int offset = (int)BlockIndex.read(ByteBuffer.wrap(bytes)).offsets[1];
+        final int checkpoints = offset + 8 + ByteBuffer.wrap(bytes).getInt(offset + 4) + 4;
+        assertEquals(64, ByteBuffer.wrap(bytes).getInt(checkpoints));
+        ByteBuffer.wrap(bytes).putInt(checkpoints + 12 + 4, -5);
+
+        final BlockReader reader = new BlockReader(ByteBuffer.wrap(bytes));
+        final double[] ys = new double[BLOCK_SIZE];
+        reader.read(0, 100, 200, ys, 0);
+        try {
+            reader.read(1, 100, 200, ys, 0);
+            fail("Should have thrown");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Corrupt checkpoints"));
+        }
+    }
+
+    @Test
+    public void checksumsCatchFlippedBits() throws IOException {
+        final double[] xs = example();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (BlockWriter writer = new BlockWriter(baos, new DoubleContext(), false, false, 0, true)) {
+            for (int i = 0; i < xs.length; i += BLOCK_SIZE) writer.write(xs, i, Math.min(BLOCK_SIZE, xs.length - i));
+        }
+        final byte[] bytes = baos.toByteArray();
+
+        final BlockReader reader = new BlockReader(ByteBuffer.wrap(bytes));
+        assertTrue(reader.isChecksummed());
+        reader.verify();
+        final double[] ys = new double[xs.length];
+        for (int i = 0; i < reader.blockCount(); i++) reader.read(i, ys, i * BLOCK_SIZE);
+        assertArrayEquals(xs, ys, 0.0);
+
+        // A bit of a mantissa plane in the middle of block 2
+        final int block = 2;
+        final long offset = BlockIndex.read(ByteBuffer.wrap(bytes)).offsets[block];
+        bytes[(int)offset + 500] ^= 0x10;
+
+        final BlockReader corrupt = new BlockReader(ByteBuffer.wrap(bytes));
+        corrupt.read(block - 1, ys, 0);
+        try {
+            corrupt.read(block, ys, 0);
+            fail("Should have thrown");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("checksum of block " + block));
+        }
+        try {
+            corrupt.verify();
+            fail("Should have thrown");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("checksum of block " + block));
+        }
+
+        // Without verification the bad block decodes, wrongly
+        new BlockReader(ByteBuffer.wrap(bytes), new DoubleContext(), false).read(block, ys, 0);
+        assertFalse(Arrays.equals(Arrays.copyOfRange(xs, block * BLOCK_SIZE, (block + 1) * BLOCK_SIZE), Arrays.copyOf(ys, BLOCK_SIZE)));
+
+        // Recovery keeps the blocks before the bad one
+        assertEquals(block, BlockIndex.recover(ByteBuffer.wrap(bytes), new DoubleContext()).blockCount());
+    }
+
+    @Test
+    public void truncatedBlocksSaySo() throws IOException {
+        final double[] xs = Arrays.copyOf(example(), BLOCK_SIZE);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new DoubleContext().write(xs, baos);
+        final byte[] truncated = Arrays.copyOf(baos.toByteArray(), baos.size() - 100);
+
+        try {
+            new DoubleContext().read(new double[BLOCK_SIZE], new ByteArrayInputStream(truncated));
+            fail("Should have thrown");
+        } catch (EOFException e) {
+            assertTrue(e.getMessage().contains("bytes short"));
+        }
+    }
+
+    @Test
+    public void findBlockLocatesPointInTime() throws IOException {
+        final Random random = new Random(1337);
+        final double[] xs = example();
+        final long[] ts = timestamps(xs.length, random);
+        final BlockReader reader = new BlockReader(writeTimestamped(ts, xs));
+
+        assertEquals(-1, reader.findBlock(ts[0] - 1));
+        assertEquals(0, reader.findBlock(ts[0]));
+        assertEquals(reader.blockCount() - 1, reader.findBlock(Long.MAX_VALUE));
+        for (int trial = 0; trial < 100; trial++) {
+            final int i = random.nextInt(xs.length);
+            final int block = reader.findBlock(ts[i]);
+            assertTrue(reader.firstTimestamp(block) <= ts[i]);
+            assertTrue(block == reader.blockCount() - 1 || reader.firstTimestamp(block + 1) > ts[i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void timestampsMustNotGoBackwards() throws IOException {
+        try (BlockWriter writer = new BlockWriter(new ByteArrayOutputStream(), new DoubleContext(), true)) {
+            writer.write(new long[] { 1, 2, 3 }, new double[] { 1.0, 2.0, 3.0 });
+            writer.write(new long[] { 2 }, new double[] { 4.0 });
+        }
+    }
+
+    // Recovery would stop at an empty block's frame, and lose every block after it
+    @Test(expected = IllegalArgumentException.class)
+    public void blocksMustNotBeEmpty() throws IOException {
+        try (BlockWriter writer = new BlockWriter(new ByteArrayOutputStream())) {
+            writer.write(new double[] { 1.0 });
+            writer.write(new double[0]);
+        }
+    }
+}
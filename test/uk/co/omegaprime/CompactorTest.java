@@ -0,0 +1,122 @@
+package uk.co.omegaprime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.co.omegaprime.Utils.assertHolds;
+import static uk.co.omegaprime.Utils.exampleTimestamps;
+import static uk.co.omegaprime.Utils.exampleValues;
+import static uk.co.omegaprime.Utils.openStore;
+
+public class CompactorTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static long totalSize(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(Series.SEALED)).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    @Test
+    public void mergesSmallSegmentsIntoOne() throws IOException {
+        final int n = 2345;
+        final long[] ts = exampleTimestamps(n);
+        final double[] xs = exampleValues(n);
+        try (SeriesStore store = openStore(folder.getRoot().toPath()); Compactor compactor = new Compactor(1, 0, 1000)) {
+            final Series series = store.series("a");
+            series.append(ts, xs, 0, 2000);
+            series.seal();
+            series.append(ts, xs, 2000, n - 2000);
+            assertEquals(8, series.segments().size());
+
+            final long before = totalSize(series.directory());
+            assertTrue(compactor.compact(series));
+            assertEquals(1, series.segments().size());
+            assertTrue(totalSize(series.directory()) < before);
+            assertHolds(series, ts, xs, ts.length);
+
+            // Blocks of 1000, 1000 and 300 cannot be made any fewer, so there is nothing left to do
+            assertFalse(compactor.compact(series));
+        }
+
+        // The compacted segment's codecs are in the manifest
+        try (SeriesStore store = openStore(folder.getRoot().toPath())) {
+            final Series series = store.series("a");
+            assertEquals(2, series.segments().size());
+            assertHolds(series, ts, xs, ts.length);
+        }
+    }
+
+    @Test
+    public void compactsInTheBackground() throws IOException, InterruptedException, ExecutionException {
+        final int n = 1000;
+        final long[] ts = exampleTimestamps(n);
+        final double[] xs = exampleValues(n);
+        try (SeriesStore store = openStore(folder.getRoot().toPath()); Compactor compactor = new Compactor(2, 0, 500)) {
+            for (String name : new String[] { "a", "b", "c" }) {
+                store.series(name).append(ts, xs, 0, n);
+                store.series(name).seal();
+            }
+
+            final List<Future<Boolean>> futures = store.compact(compactor);
+            assertEquals(3, futures.size());
+            for (Future<Boolean> future : futures) assertTrue(future.get());
+            for (String name : new String[] { "a", "b", "c" }) {
+                assertHolds(store.series(name), ts, xs, ts.length);
+            }
+        }
+    }
+
+    @Test
+    public void chosenCodecsDeflateNoWorseThanTheDefault() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final DoubleContext base = new DoubleContext();
+        final DoubleContext chosen = Compactor.chooseCodecs(base, xs, 0, xs.length);
+
+        final Deflater deflater = new Deflater();
+        final long defaultSize = Compactor.deflatedSize(base, xs, 0, xs.length, new ByteArrayOutputStream(), deflater);
+        final long chosenSize = Compactor.deflatedSize(chosen, xs, 0, xs.length, new ByteArrayOutputStream(), deflater);
+        deflater.end();
+        assertTrue(chosenSize <= defaultSize);
+
+        // Whatever was chosen, it has to read back what it wrote
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        chosen.write(xs, baos);
+        final double[] ys = new double[xs.length];
+        chosen.withCodecs(chosen.codecs()).read(ys, new ByteArrayInputStream(baos.toByteArray()));
+        assertArrayEquals(xs, ys, 0.0);
+    }
+
+    @Test
+    public void throttleHoldsToItsRate() throws IOException {
+        final IoThrottle throttle = new IoThrottle(1000000);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) throttle.acquire(100000);
+        // The first goes straight through, but each of the others waits 100ms for the one before it
+        assertTrue(System.nanoTime() - start >= 200000000L);
+
+        final Random random = new Random(1337);
+        final IoThrottle unlimited = new IoThrottle(0);
+        final long unlimitedStart = System.nanoTime();
+        for (int i = 0; i < 100; i++) unlimited.acquire(random.nextInt(1 << 30));
+        assertTrue(System.nanoTime() - unlimitedStart < 100000000L);
+    }
+}
@@ -8,9 +8,11 @@ import org.junit.runners.Parameterized;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Random;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 public class ConditionerRandomTest {
     private Random random;
@@ -58,4 +60,127 @@ public class ConditionerRandomTest {
             assertArrayEquals(xs, ys, 0.0);
         }
     }
+
+    private static final float[]  FLOAT_SPECIALS  = new float[]  { 0f,  -0f,  Float.NaN,  Float.POSITIVE_INFINITY,  Float.NEGATIVE_INFINITY,  Float.MIN_VALUE,  -Float.MAX_VALUE };
+    private static final double[] DOUBLE_SPECIALS = new double[] { 0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -Double.MAX_VALUE };
+
+    // Mostly special values, so that runs and isolated defined values both turn up at every offset within a
+    // descriptor byte. The output arrays start out full of junk to check that readers overwrite every slot.
+    @Test
+    public void specialFloatsCanRoundtrip() throws IOException {
+        for (boolean specialCases : new boolean[] { true, false }) {
+            final FloatContext context = new FloatContext(new Conditioner(specialCases), Conditioner.Coding.DELTA, Conditioner.Coding.LITERAL, new int[] { 1, 1, 1 });
+            for (int trial = 0; trial < 100; trial++) {
+                final float[] xs = new float[random.nextInt(1024)];
+                for (int i = 0; i < xs.length; i++) {
+                    xs[i] = random.nextInt(4) == 0 ? Float.intBitsToFloat(random.nextInt()) : FLOAT_SPECIALS[random.nextInt(FLOAT_SPECIALS.length)];
+                }
+
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                context.write(xs, baos);
+
+                final float[] ys = new float[xs.length];
+                Arrays.fill(ys, 123f);
+                context.read(ys, new ByteArrayInputStream(baos.toByteArray()));
+
+                for (int i = 0; i < xs.length; i++) {
+                    assertEquals(Float.floatToIntBits(xs[i] == 0f && specialCases ? 0f : xs[i]), Float.floatToIntBits(ys[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void specialDoublesCanRoundtrip() throws IOException {
+        for (boolean specialCases : new boolean[] { true, false }) {
+            final DoubleContext context = new DoubleContext(new Conditioner(specialCases), Conditioner.Coding.DELTA, new int[] { 1, 1 }, Conditioner.Coding.DELTA, new int[] { 1, 1, 1, 1, 1, 1, 1 });
+            for (int trial = 0; trial < 100; trial++) {
+                final double[] xs = new double[random.nextInt(1024)];
+                for (int i = 0; i < xs.length; i++) {
+                    xs[i] = random.nextInt(4) == 0 ? Double.longBitsToDouble(random.nextLong()) : DOUBLE_SPECIALS[random.nextInt(DOUBLE_SPECIALS.length)];
+                }
+
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                context.write(xs, baos);
+
+                final double[] ys = new double[xs.length];
+                Arrays.fill(ys, 123.0);
+                context.read(ys, new ByteArrayInputStream(baos.toByteArray()));
+
+                for (int i = 0; i < xs.length; i++) {
+                    assertEquals(Double.doubleToLongBits(xs[i] == 0.0 && specialCases ? 0.0 : xs[i]), Double.doubleToLongBits(ys[i]));
+                }
+            }
+        }
+    }
+
+    // Writing a slice has to give the same bytes as writing a copy of it, and reading into a slice has to give
+    // the same values as reading into a fresh array while leaving the rest of the array alone
+    private <T> void assertSlicesMatchCopies(Conditioner.SliceWriter<T> writer, Conditioner.SliceReader<T> reader, T xs) throws IOException {
+        final int n = java.lang.reflect.Array.getLength(xs);
+        final int off = random.nextInt(n + 1), len = random.nextInt(n - off + 1);
+        @SuppressWarnings("unchecked")
+        final T copy = (T)java.lang.reflect.Array.newInstance(xs.getClass().getComponentType(), len);
+        System.arraycopy(xs, off, copy, 0, len);
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream(), actual = new ByteArrayOutputStream();
+        writer.write(copy, expected);
+        writer.write(xs, off, len, actual);
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+        @SuppressWarnings("unchecked")
+        final T into = (T)java.lang.reflect.Array.newInstance(xs.getClass().getComponentType(), n);
+        reader.read(into, off, len, new ByteArrayInputStream(actual.toByteArray()));
+        for (int i = 0; i < n; i++) {
+            final Object x = java.lang.reflect.Array.get(into, i);
+            if (i >= off && i < off + len) assertEquals(java.lang.reflect.Array.get(copy, i - off), x);
+            else assertEquals(0.0, ((Number)x).doubleValue(), 0.0);
+        }
+    }
+
+    @Test
+    public void slicesMatchCopies() throws IOException {
+        final Conditioner conditioner = new Conditioner(true);
+        for (int trial = 0; trial < 20; trial++) {
+            final int n = random.nextInt(1024);
+            final float[] floats = new float[n];
+            final double[] doubles = new double[n];
+            final byte[] bytes = new byte[n];
+            final short[] shorts = new short[n], exponents = new short[n];
+            final int[] ints = new int[n], floatMantissas = new int[n];
+            final long[] longs = new long[n], doubleMantissas = new long[n];
+            for (int i = 0; i < n; i++) {
+                floats[i] = Float.intBitsToFloat(random.nextInt());
+                doubles[i] = Double.longBitsToDouble(random.nextLong());
+                bytes[i] = (byte)random.nextInt();
+                shorts[i] = (short)random.nextInt();
+                exponents[i] = (short)random.nextInt(0x800);
+                ints[i] = random.nextInt();
+                floatMantissas[i] = random.nextInt() & 0x7FFFFF;
+                longs[i] = random.nextLong();
+                doubleMantissas[i] = random.nextLong() & 0xFFFFFFFFFFFFFL;
+            }
+
+            assertSlicesMatchCopies(Conditioner.writeFloatLiteral(new int[] { 2, 2 }), Conditioner.readFloatLiteral(new int[] { 2, 2 }), floats);
+            assertSlicesMatchCopies(Conditioner.writeFloatDelta(new int[] { 1, 1, 1, 1 }), Conditioner.readFloatDelta(new int[] { 1, 1, 1, 1 }), floats);
+            assertSlicesMatchCopies(Conditioner.writeDoubleLiteral(new int[] { 4, 4 }), Conditioner.readDoubleLiteral(new int[] { 4, 4 }), doubles);
+            assertSlicesMatchCopies(Conditioner.writeDoubleDelta(new int[] { 1, 1, 1, 1, 1, 1, 1, 1 }), Conditioner.readDoubleDelta(new int[] { 1, 1, 1, 1, 1, 1, 1, 1 }), doubles);
+            assertSlicesMatchCopies(Conditioner.writeLongDelta(new int[] { 8 }), Conditioner.readLongDelta(new int[] { 8 }), longs);
+            assertSlicesMatchCopies(Conditioner.writeFloatExponentsLiteral(), Conditioner.readFloatExponentsLiteral(), bytes);
+            assertSlicesMatchCopies(Conditioner.writeFloatExponentsDelta(), Conditioner.readFloatExponentsDelta(), bytes);
+            assertSlicesMatchCopies(Conditioner.writeDoubleExponentsLiteral(new int[] { 1, 1 }), Conditioner.readDoubleExponentsLiteral(new int[] { 1, 1 }), exponents);
+            assertSlicesMatchCopies(Conditioner.writeDoubleExponentsDelta(new int[] { 2 }), Conditioner.readDoubleExponentsDelta(new int[] { 2 }), exponents);
+            assertSlicesMatchCopies(Conditioner.writeFloatMantissasLiteral(new int[] { 1, 2 }), Conditioner.readFloatMantissasLiteral(new int[] { 1, 2 }), floatMantissas);
+            assertSlicesMatchCopies(Conditioner.writeFloatMantissasDelta(new int[] { 3 }), Conditioner.readFloatMantissasDelta(new int[] { 3 }), floatMantissas);
+            assertSlicesMatchCopies(Conditioner.writeDoubleMantissasLiteral(new int[] { 3, 4 }), Conditioner.readDoubleMantissasLiteral(new int[] { 3, 4 }), doubleMantissas);
+            assertSlicesMatchCopies(Conditioner.writeDoubleMantissasDelta(new int[] { 1, 1, 1, 1, 1, 1, 1 }), Conditioner.readDoubleMantissasDelta(new int[] { 1, 1, 1, 1, 1, 1, 1 }), doubleMantissas);
+            assertSlicesMatchCopies(Conditioner.columnarWriteShort(new int[] { 1, 1 }), Conditioner.columnarReadShort(new int[] { 1, 1 }), shorts);
+            assertSlicesMatchCopies(Conditioner.columnarWriteInt(new int[] { 1, 3 }), Conditioner.columnarReadInt(new int[] { 1, 3 }), ints);
+            assertSlicesMatchCopies(Conditioner.columnarWriteLong(new int[] { 1, 1, 1, 1, 1, 1, 1, 1 }), Conditioner.columnarReadLong(new int[] { 1, 1, 1, 1, 1, 1, 1, 1 }), longs);
+            assertSlicesMatchCopies(conditioner.conditionFloat(Conditioner.writeFloatExponentsDelta(), Conditioner.writeFloatMantissasLiteral(new int[] { 1, 1, 1 })),
+                                    conditioner.unconditionFloat(Conditioner.readFloatExponentsDelta(), Conditioner.readFloatMantissasLiteral(new int[] { 1, 1, 1 })), floats);
+            assertSlicesMatchCopies(conditioner.conditionDouble(Conditioner.writeDoubleExponentsLiteral(new int[] { 1, 1 }), Conditioner.writeDoubleMantissasDelta(new int[] { 1, 1, 1, 1, 1, 1, 1 })),
+                                    conditioner.unconditionDouble(Conditioner.readDoubleExponentsLiteral(new int[] { 1, 1 }), Conditioner.readDoubleMantissasDelta(new int[] { 1, 1, 1, 1, 1, 1, 1 })), doubles);
+        }
+    }
 }
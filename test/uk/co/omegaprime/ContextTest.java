@@ -0,0 +1,225 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class ContextTest {
+    private static double[] exampleDoubles() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final Random random = new Random(1337);
+        for (int i = 0; i < xs.length; i++) {
+            if (random.nextDouble() < 0.05) xs[i] = Double.NaN;
+            else if (random.nextDouble() < 0.05) xs[i] = 0.0;
+        }
+        return xs;
+    }
+
+    @Test
+    public void floatContextMatchesConditioner() throws IOException {
+        final float[] xs = Utils.getExampleData();
+        final Conditioner conditioner = new Conditioner(true);
+        for (Conditioner.Coding exponentCoding : Conditioner.Coding.values()) {
+            for (Conditioner.Coding mantissaCoding : Conditioner.Coding.values()) {
+                for (int[] mantissaCodec : Conditioner.validCodecs(3)) {
+                    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                    conditioner.conditionFloat(exponentCoding == Conditioner.Coding.LITERAL ? Conditioner.writeFloatExponentsLiteral() : Conditioner.writeFloatExponentsDelta(),
+                                               mantissaCoding == Conditioner.Coding.LITERAL ? Conditioner.writeFloatMantissasLiteral(mantissaCodec) : Conditioner.writeFloatMantissasDelta(mantissaCodec)).write(xs, expected);
+
+                    final FloatContext context = new FloatContext(conditioner, exponentCoding, mantissaCoding, mantissaCodec);
+                    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                    context.write(xs, actual);
+                    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+                    final float[] ys = new float[xs.length];
+                    context.read(ys, new ByteArrayInputStream(actual.toByteArray()));
+                    assertArrayEquals(xs, ys, 0f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void doubleContextMatchesConditioner() throws IOException {
+        final double[] xs = exampleDoubles();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Conditioner.writeDouble(xs, expected);
+
+        final DoubleContext context = new DoubleContext();
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        context.write(xs, actual);
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void decodesIntoEveryKindOfTarget() throws IOException {
+        final double[] xs = exampleDoubles();
+        for (boolean specialCases : new boolean[] { true, false }) {
+            for (int[] mantissaCodec : new int[][] { { 1, 1, 1, 1, 1, 1, 1 }, { 3, 4 } }) {
+                for (Conditioner.Coding coding : Conditioner.Coding.values()) {
+                    final DoubleContext context = new DoubleContext(new Conditioner(specialCases), coding, new int[] { 1, 1 }, coding, mantissaCodec);
+                    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    context.write(xs, baos);
+                    final double[] expected = new double[xs.length];
+                    context.read(expected, new ByteArrayInputStream(baos.toByteArray()));
+
+                    // A slice of a bigger array, leaving the rest alone
+                    final double[] slice = new double[xs.length + 2];
+                    slice[0] = slice[xs.length + 1] = 123.0;
+                    context.read(DoubleTarget.of(slice, 1, xs.length), new ByteArrayInputStream(baos.toByteArray()));
+                    assertEquals(123.0, slice[0], 0.0);
+                    assertEquals(123.0, slice[xs.length + 1], 0.0);
+
+                    // Heap and direct buffers, from their position, leaving it where it was
+                    final DoubleBuffer heap = DoubleBuffer.allocate(xs.length + 1);
+                    heap.position(1);
+                    context.read(DoubleTarget.of(heap), new ByteArrayInputStream(baos.toByteArray()));
+                    assertEquals(1, heap.position());
+
+                    final DoubleBuffer direct = ByteBuffer.allocateDirect(8 * (xs.length + 1)).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                    direct.position(1);
+                    context.read(DoubleTarget.of(direct), new ByteArrayInputStream(baos.toByteArray()));
+                    assertEquals(1, direct.position());
+
+                    for (int i = 0; i < xs.length; i++) {
+                        assertEquals(Double.doubleToRawLongBits(expected[i]), Double.doubleToRawLongBits(slice[1 + i]));
+                        assertEquals(Double.doubleToRawLongBits(expected[i]), Double.doubleToRawLongBits(heap.get(1 + i)));
+                        assertEquals(Double.doubleToRawLongBits(expected[i]), Double.doubleToRawLongBits(direct.get(1 + i)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void corruptDescriptorPaddingIsRejected() throws IOException {
+        final double[] xs = new double[] { 1.5, 0.0, -2.25, Double.NaN, 3.0 };
+        final DoubleContext fused = new DoubleContext();
+        final DoubleContext general = new DoubleContext(new Conditioner(true), Conditioner.Coding.LITERAL, new int[] { 2 }, Conditioner.Coding.LITERAL, new int[] { 3, 4 });
+        for (DoubleContext context : new DoubleContext[] { fused, general }) {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            context.write(xs, baos);
+            // The last descriptor byte only holds the fifth value: mark two of its unused slots as defined
+            final byte[] bytes = baos.toByteArray();
+            bytes[1] |= 0xA0;
+
+            final double[] into = new double[10];
+            try {
+                context.read(DoubleTarget.of(into, 2, xs.length), new ByteArrayInputStream(bytes));
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt descriptors"));
+            }
+            for (int i = 7; i < into.length; i++) assertEquals(0.0, into[i], 0.0);
+        }
+    }
+
+    @Test
+    public void trimmedMantissasRoundTrip() throws IOException {
+        final double[] widened = exampleDoubles();
+        final Random random = new Random(1337);
+        final double[][] blocks = new double[][] { widened, new double[1000], new double[1000], new double[1000], new double[] { 1.0, -0.5, 1024.0, Double.NaN }, new double[0] };
+        for (int i = 0; i < 1000; i++) {
+            // Random precision, and random magnitudes that delta badly
+            blocks[1][i] = Double.longBitsToDouble(random.nextLong() & (-1L << 37));
+            blocks[2][i] = Math.scalb(1.0 + random.nextInt(1000) / 1024.0, random.nextInt(40) - 20);
+            blocks[3][i] = Double.longBitsToDouble(random.nextLong());
+        }
+
+        for (Conditioner.Coding exponentCoding : Conditioner.Coding.values()) {
+            for (Conditioner.Coding mantissaCoding : Conditioner.Coding.values()) {
+                for (int[] mantissaCodec : new int[][] { { 1, 1, 1, 1, 1, 1, 1 }, { 3, 4 }, { 2, 0, 5 }, { 7 } }) {
+                    final DoubleContext context = new DoubleContext(new Conditioner(true), exponentCoding, new int[] { 1, 1 }, mantissaCoding, mantissaCodec, true);
+                    for (double[] xs : blocks) {
+                        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        context.write(xs, baos);
+                        context.write(xs, baos);
+
+                        final double[] ys = new double[xs.length];
+                        final ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
+                        context.read(ys, bais);
+                        assertArrayEquals(xs, ys, 0.0);
+
+                        // Only the first byte of the mantissas is needed to skip them
+                        final LazyDoubleReader lazy = new LazyDoubleReader(context);
+                        lazy.reset(bais, xs.length);
+                        lazy.skipRest();
+                        assertEquals(0, bais.available());
+
+                        final DoubleBuffer buffer = ByteBuffer.allocateDirect(xs.length * 8).asDoubleBuffer();
+                        context.read(DoubleTarget.of(buffer), new ByteArrayInputStream(baos.toByteArray()));
+                        for (int i = 0; i < xs.length; i++) assertEquals(xs[i], buffer.get(i), 0.0);
+                    }
+                }
+            }
+        }
+
+        final ByteArrayOutputStream full = new ByteArrayOutputStream(), trimmed = new ByteArrayOutputStream();
+        new DoubleContext().write(widened, full);
+        DoubleContext.trimmed().write(widened, trimmed);
+        assertTrue(full.size() + " vs " + trimmed.size(), trimmed.size() < 0.6 * full.size());
+    }
+
+    @Test
+    public void contextsCanBeReusedForDifferentLengths() throws IOException {
+        final DoubleContext context = new DoubleContext();
+        final Random random = new Random(1337);
+        for (int trial = 0; trial < 100; trial++) {
+            final double[] xs = new double[random.nextInt(1024)];
+            for (int i = 0; i < xs.length; i++) {
+                xs[i] = random.nextInt(4) == 0 ? 0.0 : Double.longBitsToDouble(random.nextLong());
+            }
+
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            context.write(xs, baos);
+
+            // Output arrays need not be zeroed beforehand
+            final double[] ys = new double[xs.length];
+            java.util.Arrays.fill(ys, 123.0);
+            context.read(ys, new ByteArrayInputStream(baos.toByteArray()));
+            assertArrayEquals(xs, ys, 0.0);
+        }
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() throws IOException {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        final double[] xs = exampleDoubles();
+        final double[] ys = new double[xs.length];
+        final DoubleContext context = new DoubleContext();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(xs.length * 9);
+        context.write(xs, baos);
+        final ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
+
+        final long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int i = 0; i < 1000; i++) {
+            final long before = threads.getThreadAllocatedBytes(threadId);
+            baos.reset();
+            context.write(xs, baos);
+            bais.reset();
+            context.read(ys, bais);
+            allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        }
+
+        assertEquals(0, allocated);
+        assertArrayEquals(xs, ys, 0.0);
+    }
+}
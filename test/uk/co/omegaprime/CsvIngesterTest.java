@@ -0,0 +1,132 @@
+package uk.co.omegaprime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CsvIngesterTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void startExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    private static double parse(String field) throws IOException {
+        final ByteBuffer bytes = ByteBuffer.wrap(field.getBytes(StandardCharsets.ISO_8859_1));
+        return CsvIngester.parseDouble(bytes, 0, bytes.limit(), 0);
+    }
+
+    @Test
+    public void parsesNumbersExactly() throws IOException {
+        for (String field : new String[] { "0", "-0", "235.9", "0.1", "-17.25", "1e10", "1.5E-3", "+42", ".5", "5.",
+                                           "000123.4500", "9007199254740993", "123456789012345678901234", "1e-320",
+                                           "2.2250738585072011e-308", "1e400", "NaN", "-Infinity", "0.30000000000000004" }) {
+            assertEquals(field, Double.doubleToLongBits(Double.parseDouble(field)), Double.doubleToLongBits(parse(field)));
+        }
+        assertTrue(Double.isNaN(parse("")));
+        assertTrue(Double.isNaN(parse(" \r")));
+        assertEquals(1.25, parse(" \"1.25\" "), 0);
+
+        final Random random = new Random(1337);
+        for (int i = 0; i < 100000; i++) {
+            final double x = random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10);
+            for (String field : new String[] { Double.toString(x), String.format("%.4f", x), Float.toString((float)x) }) {
+                assertEquals(field, Double.parseDouble(field), parse(field), 0);
+            }
+        }
+
+        try {
+            parse("12abc");
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("12abc"));
+        }
+    }
+
+    @Test
+    public void parsesChosenColumnsInOrder() throws IOException {
+        final Random random = new Random(42);
+        final int rows = 20000;
+        final List<double[]> expected = new ArrayList<>();
+        final Path csv = folder.getRoot().toPath().resolve("prices.csv");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(csv))) {
+            writer.print("time,bid,ask,venue\r\n");
+            for (int i = 0; i < rows; i++) {
+                final String bid = String.format("%.3f", 100 + random.nextGaussian());
+                final String ask = i % 97 == 0 ? "" : Double.toString(100 + random.nextGaussian());
+                expected.add(new double[] { Double.parseDouble(bid), ask.isEmpty() ? Double.NaN : Double.parseDouble(ask) });
+                writer.print((1500000000000L + i) + "," + bid + "," + ask + ",LSE\r\n");
+                if (i % 1000 == 0) writer.print("\r\n");
+            }
+            // A short last row without a line break
+            writer.print("1,2");
+            expected.add(new double[] { 2, Double.NaN });
+        }
+
+        // Small chunks, so that lines straddle many chunk boundaries
+        final CsvIngester ingester = new CsvIngester(executor, 4, ',', true, 4096);
+        final List<List<Double>> columns = new ArrayList<>();
+        columns.add(new ArrayList<>());
+        columns.add(new ArrayList<>());
+        final long count = ingester.ingest(csv, new int[] { 2, 1 }, (column, values, n) -> {
+            for (int i = 0; i < n; i++) columns.get(column).add(values[i]);
+        });
+
+        assertEquals(rows + 1, count);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i)[0], columns.get(1).get(i), 0);
+            assertEquals(expected.get(i)[1], columns.get(0).get(i), 0);
+        }
+    }
+
+    @Test
+    public void ingestsIntoBlockFiles() throws IOException, URISyntaxException {
+        final Path csv = Paths.get(Utils.class.getResource("Vodafone.csv").toURI());
+        final float[] xs = Utils.getExampleData();
+
+        for (boolean deflated : new boolean[] { false, true }) {
+            // Checksummed along with deflated, to cover both without doubling the test's run time
+            final Path output = folder.getRoot().toPath().resolve("vodafone-" + deflated);
+            final long rows = new CsvIngester(executor, 4, ',', false, 64 << 10).ingest(csv, new int[] { 0 }, new Path[] { output }, DoubleContext::new, deflated, deflated);
+            assertEquals(xs.length, rows);
+
+            final BlockReader reader = new BlockReader(ByteBuffer.wrap(Files.readAllBytes(output)));
+            assertEquals(deflated, reader.isChecksummed());
+            final double[] ys = new double[xs.length];
+            for (int block = 0, off = 0; block < reader.blockCount(); off += reader.stats(block).count, block++) {
+                assertTrue(reader.stats(block).count <= CsvIngester.DEFAULT_BLOCK_SIZE);
+                reader.read(block, ys, off);
+            }
+            for (int i = 0; i < xs.length; i++) assertEquals(xs[i], (float)ys[i], 0f);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FusedTest {
+    private static final int[] LENGTHS = new int[] { 0, 1, 2, 3, 4, 5, 7, 8, 9, 15, 16, 17, 100, 1001 };
+
+    private final Random random = new Random(1337);
+
+    // Prices with a random walk in them, and a sprinkling of special values and raw bit patterns
+    private float[] floats(int n) {
+        final float[] xs = new float[n];
+        float price = 100f;
+        for (int i = 0; i < n; i++) {
+            price += (float)random.nextGaussian();
+            switch (random.nextInt(10)) {
+                case 0:  xs[i] = 0f; break;
+                case 1:  xs[i] = Float.NaN; break;
+                case 2:  xs[i] = Float.intBitsToFloat(random.nextInt()); break;
+                default: xs[i] = price; break;
+            }
+        }
+        return xs;
+    }
+
+    private double[] doubles(int n) {
+        final float[] fs = floats(n);
+        final double[] xs = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = i % 3 == 0 ? Double.longBitsToDouble(random.nextLong()) : fs[i];
+        }
+        return xs;
+    }
+
+    @Test
+    public void floatsMatchStagedPipeline() throws IOException {
+        for (boolean specialCases : new boolean[] { true, false }) {
+            final Conditioner conditioner = new Conditioner(specialCases);
+            for (Conditioner.Coding exponentCoding : Conditioner.Coding.values()) {
+                for (Conditioner.Coding mantissaCoding : Conditioner.Coding.values()) {
+                    final Conditioner.Writer<float[]> staged = conditioner.conditionFloat(
+                            exponentCoding == Conditioner.Coding.DELTA ? Conditioner.writeFloatExponentsDelta() : Conditioner.writeFloatExponentsLiteral(),
+                            mantissaCoding == Conditioner.Coding.DELTA ? Conditioner.writeFloatMantissasDelta(new int[] { 1, 1, 1 }) : Conditioner.writeFloatMantissasLiteral(new int[] { 1, 1, 1 }));
+                    final Scratch scratch = new Scratch();
+                    for (int n : LENGTHS) {
+                        final float[] xs = floats(n);
+
+                        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                        staged.write(xs, expected);
+                        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                        Fused.writeFloat(specialCases, exponentCoding, mantissaCoding, xs, 0, n, actual, scratch);
+                        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+                        // Decode into the middle of a junk-filled array
+                        final float[] ys = new float[n + 2];
+                        Arrays.fill(ys, 123f);
+                        final ByteArrayInputStream is = new ByteArrayInputStream(actual.toByteArray());
+                        Fused.readFloat(specialCases, exponentCoding, mantissaCoding, ys, 1, n, is, scratch);
+                        assertEquals(0, is.available());
+                        assertEquals(123f, ys[0], 0f);
+                        assertEquals(123f, ys[n + 1], 0f);
+                        for (int i = 0; i < n; i++) {
+                            assertEquals(Float.floatToIntBits(xs[i]), Float.floatToIntBits(ys[i + 1]));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void doublesMatchStagedPipeline() throws IOException {
+        final int[] exponentCodec = new int[] { 1, 1 };
+        final int[] mantissaCodec = new int[] { 1, 1, 1, 1, 1, 1, 1 };
+        for (boolean specialCases : new boolean[] { true, false }) {
+            final Conditioner conditioner = new Conditioner(specialCases);
+            for (Conditioner.Coding exponentCoding : Conditioner.Coding.values()) {
+                for (Conditioner.Coding mantissaCoding : Conditioner.Coding.values()) {
+                    final Conditioner.Writer<double[]> staged = conditioner.conditionDouble(
+                            exponentCoding == Conditioner.Coding.DELTA ? Conditioner.writeDoubleExponentsDelta(exponentCodec) : Conditioner.writeDoubleExponentsLiteral(exponentCodec),
+                            mantissaCoding == Conditioner.Coding.DELTA ? Conditioner.writeDoubleMantissasDelta(mantissaCodec) : Conditioner.writeDoubleMantissasLiteral(mantissaCodec));
+                    final Scratch scratch = new Scratch();
+                    for (int n : LENGTHS) {
+                        final double[] xs = doubles(n);
+
+                        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                        staged.write(xs, expected);
+                        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                        Fused.writeDouble(specialCases, exponentCoding, mantissaCoding, xs, 0, n, actual, scratch);
+                        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+                        final double[] ys = new double[n + 2];
+                        Arrays.fill(ys, 123.0);
+                        final ByteArrayInputStream is = new ByteArrayInputStream(actual.toByteArray());
+                        Fused.readDouble(specialCases, exponentCoding, mantissaCoding, ys, 1, n, is, scratch);
+                        assertEquals(0, is.available());
+                        assertEquals(123.0, ys[0], 0.0);
+                        assertEquals(123.0, ys[n + 1], 0.0);
+                        for (int i = 0; i < n; i++) {
+                            assertEquals(Double.doubleToLongBits(xs[i]), Double.doubleToLongBits(ys[i + 1]));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void onlyAppliesToOnePlanePerByte() {
+        assertEquals(true,  Fused.applies(new int[] { 1, 1, 1 }, 3));
+        assertEquals(true,  Fused.applies(new int[] { 1, 0, 1, 1 }, 3));
+        assertEquals(false, Fused.applies(new int[] { 1, 2 }, 3));
+        assertEquals(false, Fused.applies(new int[] { 1, 1 }, 3));
+    }
+}
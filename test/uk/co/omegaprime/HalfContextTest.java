@@ -0,0 +1,102 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HalfContextTest {
+    private static final HalfContext.Format BINARY16 = HalfContext.Format.BINARY16, BFLOAT16 = HalfContext.Format.BFLOAT16;
+    private static final HalfContext.Rounding NEAREST = HalfContext.Rounding.NEAREST_EVEN, TOWARD_ZERO = HalfContext.Rounding.TOWARD_ZERO;
+
+    @Test
+    public void convertsKnownValues() {
+        assertEquals(0x3C00, BINARY16.fromFloat(1.0f, NEAREST));
+        assertEquals((short)0xC000, BINARY16.fromFloat(-2.0f, NEAREST));
+        assertEquals(0x7BFF, BINARY16.fromFloat(65504f, NEAREST));
+        assertEquals(0x7C00, BINARY16.fromFloat(65520f, NEAREST));
+        assertEquals(0x7BFF, BINARY16.fromFloat(65520f, TOWARD_ZERO));
+        assertEquals(0x7BFF, BINARY16.fromFloat(1e10f, TOWARD_ZERO));
+        assertEquals(0x0001, BINARY16.fromFloat(0x1p-24f, NEAREST));
+        assertEquals(0x0000, BINARY16.fromFloat(0x1p-25f, NEAREST));
+        assertEquals(0x0001, BINARY16.fromFloat(0x1.8p-25f, NEAREST));
+        assertEquals(0x0400, BINARY16.fromFloat(0x1p-14f, NEAREST));
+        // Halfway between 1 and the next half up, which is odd, so down to 1
+        assertEquals(0x3C00, BINARY16.fromFloat(1.0f + 0x1p-11f, NEAREST));
+        assertEquals(0x3C02, BINARY16.fromFloat(1.0f + 3 * 0x1p-11f, NEAREST));
+        assertTrue(Float.isNaN(BINARY16.toFloat(BINARY16.fromFloat(Float.NaN, NEAREST))));
+
+        assertEquals(0x3F80, BFLOAT16.fromFloat(1.0f, NEAREST));
+        assertEquals(0x7F80, BFLOAT16.fromFloat(Float.MAX_VALUE, NEAREST));
+        assertEquals(0x7F7F, BFLOAT16.fromFloat(Float.MAX_VALUE, TOWARD_ZERO));
+        assertTrue(Float.isNaN(BFLOAT16.toFloat(BFLOAT16.fromFloat(Float.intBitsToFloat(0x7F800001), NEAREST))));
+    }
+
+    @Test
+    public void everyHalfRoundTripsAndRoundingIsNearest() {
+        for (HalfContext.Format format : HalfContext.Format.values()) {
+            for (int h = 0; h < 0x10000; h++) {
+                final float x = format.toFloat((short)h);
+                if (x != x) continue;
+                assertEquals(format + " " + Integer.toHexString(h), (short)h, format.fromFloat(x, NEAREST));
+                assertEquals(format + " " + Integer.toHexString(h), (short)h, format.fromFloat(x, TOWARD_ZERO));
+            }
+
+            final Random random = new Random(1337);
+            for (int trial = 0; trial < 100000; trial++) {
+                final float x = (float)(random.nextGaussian() * Math.pow(2, random.nextInt(40) - 20));
+                if (format == BINARY16 && Math.abs(x) >= 65504f) continue;
+
+                final short nearest = format.fromFloat(x, NEAREST);
+                final float error = Math.abs(format.toFloat(nearest) - x);
+                for (int neighbour : new int[] { nearest + 1, nearest - 1 }) {
+                    final float y = format.toFloat((short)neighbour);
+                    assertTrue(y != y || error <= Math.abs(y - x));
+                }
+
+                final float truncated = format.toFloat(format.fromFloat(x, TOWARD_ZERO));
+                assertTrue(Math.abs(truncated) <= Math.abs(x) && Math.signum(truncated) != -Math.signum(x));
+            }
+        }
+    }
+
+    @Test
+    public void blocksRoundTripAtHalfTheSize() throws IOException {
+        final float[] xs = Utils.getExampleData();
+        xs[3] = Float.NaN;
+        xs[10] = 0f;
+        xs[11] = Float.NEGATIVE_INFINITY;
+        xs[12] = 1e-6f;
+
+        final ByteArrayOutputStream floats = new ByteArrayOutputStream();
+        new FloatContext().write(xs, floats);
+
+        for (HalfContext.Format format : HalfContext.Format.values()) {
+            for (boolean specialCases : new boolean[] { true, false }) {
+                for (Conditioner.Coding exponentCoding : Conditioner.Coding.values()) {
+                    for (Conditioner.Coding mantissaCoding : Conditioner.Coding.values()) {
+                        final HalfContext context = new HalfContext(format, NEAREST, new Conditioner(specialCases), exponentCoding, mantissaCoding);
+                        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        context.write(xs, baos);
+                        if (specialCases && format == BFLOAT16) assertTrue(baos.size() <= floats.size() / 2 + xs.length / 4);
+
+                        final float[] ys = new float[xs.length];
+                        final short[] halves = new short[xs.length];
+                        context.read(ys, new ByteArrayInputStream(baos.toByteArray()));
+                        context.readHalves(halves, 0, xs.length, new ByteArrayInputStream(baos.toByteArray()));
+                        for (int i = 0; i < xs.length; i++) {
+                            final float expected = format.toFloat(format.fromFloat(xs[i], NEAREST));
+                            assertEquals(expected, ys[i], 0f);
+                            assertEquals(expected, format.toFloat(halves[i]), 0f);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package uk.co.omegaprime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IngestionServiceTest {
+    private ExecutorService executor;
+    private final Map<String, List<byte[]>> blocks = new ConcurrentHashMap<>();
+
+    @Before
+    public void createExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    private void collect(String series, int count, long firstTimestamp, long lastTimestamp, byte[] frame, int length) {
+        blocks.computeIfAbsent(series, name -> Collections.synchronizedList(new ArrayList<>())).add(Arrays.copyOf(frame, length));
+    }
+
+    @Test
+    public void manyFeedsArriveInOrder() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final int feeds = 300, perFeed = 500;
+        try (IngestionService service = new IngestionService(executor, DoubleContext::new, 64, 0, this::collect)) {
+            // Interleaved, as ticks for different instruments would be
+            for (int i = 0; i < perFeed; i++) {
+                for (int f = 0; f < feeds; f++) {
+                    service.feed("s" + f).append(1000L * i, xs[(f + i) % xs.length]);
+                }
+            }
+        }
+
+        assertEquals(feeds, blocks.size());
+        for (int f = 0; f < feeds; f++) {
+            final long[] ts = new long[perFeed];
+            final double[] values = new double[perFeed];
+            int n = 0;
+            for (byte[] frame : blocks.get("s" + f)) {
+                n += IngestionService.decode(new ByteArrayInputStream(frame), new DoubleContext(), ts, values, n);
+            }
+            assertEquals(perFeed, n);
+            for (int i = 0; i < perFeed; i++) {
+                assertEquals(1000L * i, ts[i]);
+                assertEquals(xs[(f + i) % xs.length], values[i], 0.0);
+            }
+            // Seven full blocks and what was left over at close
+            assertEquals(8, blocks.get("s" + f).size());
+        }
+    }
+
+    @Test
+    public void onlyFeedsThatFilledABlockReuseFullBuffers() throws IOException {
+        try (IngestionService service = new IngestionService(Runnable::run, DoubleContext::new, 64, 0, this::collect)) {
+            final IngestionService.Feed busy = service.feed("busy"), quiet = service.feed("quiet");
+            for (int i = 0; i < 64; i++) busy.append(i, i);
+
+            // busy's block has been encoded, and its buffer is free to reuse, but not by a feed that never filled one
+            quiet.append(0, 1.0);
+            assertEquals(16, quiet.capacity());
+            busy.append(64, 64.0);
+            assertEquals(64, busy.capacity());
+        }
+    }
+
+    @Test
+    public void quietFeedsFlushOnceOld() throws IOException, InterruptedException {
+        final CountDownLatch flushed = new CountDownLatch(1);
+        final int[] counts = new int[1];
+        try (IngestionService service = new IngestionService(executor, DoubleContext::new, 4096, 50, (series, count, first, last, frame, length) -> {
+            counts[0] = count;
+            flushed.countDown();
+        })) {
+            service.feed("a").append(1, 1.0);
+            service.feed("a").append(2, 2.0);
+            service.flushExpired();
+            assertEquals(1, flushed.getCount());
+
+            Thread.sleep(100);
+            service.flushExpired();
+            assertTrue(flushed.await(10, TimeUnit.SECONDS));
+            assertEquals(2, counts[0]);
+        }
+    }
+
+    @Test
+    public void failuresReachTheFeed() throws IOException {
+        final IngestionService service = new IngestionService(executor, DoubleContext::new, 8, 0, (series, count, first, last, frame, length) -> {
+            if (series.equals("bad")) throw new IOException("Disk full");
+        });
+        final IngestionService.Feed good = service.feed("good"), bad = service.feed("bad");
+        // One block each, so the failure cannot come through until the flush
+        for (int i = 0; i < 8; i++) {
+            good.append(i, i);
+            bad.append(i, i);
+        }
+
+        try {
+            service.flush();
+            fail("Should have thrown");
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getCause().getMessage());
+        }
+        try {
+            bad.append(100, 100.0);
+            fail("Should have thrown");
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getCause().getMessage());
+        }
+        good.append(100, 100.0);
+    }
+}
@@ -0,0 +1,49 @@
+package uk.co.omegaprime;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// What checking block checksums adds to reading a whole file. Each operation opens a fresh reader, because a
+// reader only checks each block once, so the verify=true rows pay for every checksum and the difference between
+// the rows is the whole cost of verification.
+@State(Scope.Thread)
+public class JMHBlockFileTest {
+    @Param({ "false", "true" })
+    public boolean verify;
+
+    @Param({ "false", "true" })
+    public boolean deflated;
+
+    private ByteBuffer file;
+    private double[] output;
+
+    @Setup
+    public void setUp() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (BlockWriter writer = new BlockWriter(baos, new DoubleContext(), false, deflated, 0, true)) {
+            for (int i = 0; i < xs.length; i += 4096) writer.write(xs, i, Math.min(4096, xs.length - i));
+        }
+        file = ByteBuffer.wrap(baos.toByteArray());
+        output = new double[xs.length];
+    }
+
+    @Benchmark
+    public double[] readAll() throws IOException {
+        final BlockReader reader = new BlockReader(file, new DoubleContext(), verify);
+        for (int block = 0, off = 0; block < reader.blockCount(); off += reader.stats(block).count, block++) {
+            reader.read(block, output, off);
+        }
+        return output;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(JMHBlockFileTest.class.getSimpleName()).forks(1).build()).run();
+    }
+}
@@ -0,0 +1,73 @@
+package uk.co.omegaprime;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+// Compares the convenience methods on Conditioner with a reused DoubleContext. Run main() to get the
+// GC profiler's gc.alloc.rate.norm column: the context rows should be ~0 B/op.
+@State(Scope.Thread)
+public class JMHContextTest {
+    // Small blocks, as seen in streaming ingest
+    @Param({ "64", "1024" })
+    public int blockSize;
+
+    private double[] input;
+    private double[] output;
+    private byte[] encoded;
+    private ByteArrayOutputStream baos;
+    private ByteArrayInputStream bais;
+    private DoubleContext context;
+
+    @Setup
+    public void setUp() throws IOException {
+        final double[] vod = Utils.floatsToDoubles(Utils.getExampleData());
+        input = java.util.Arrays.copyOf(vod, blockSize);
+        output = new double[blockSize];
+
+        baos = new ByteArrayOutputStream(blockSize * 9);
+        Conditioner.writeDouble(input, baos);
+        encoded = baos.toByteArray();
+        bais = new ByteArrayInputStream(encoded);
+
+        context = new DoubleContext();
+    }
+
+    @Benchmark
+    public int encodeStatic() throws IOException {
+        baos.reset();
+        Conditioner.writeDouble(input, baos);
+        return baos.size();
+    }
+
+    @Benchmark
+    public int encodeContext() throws IOException {
+        baos.reset();
+        context.write(input, baos);
+        return baos.size();
+    }
+
+    @Benchmark
+    public double[] decodeStatic() throws IOException {
+        bais.reset();
+        Conditioner.readDouble(output, bais);
+        return output;
+    }
+
+    @Benchmark
+    public double[] decodeContext() throws IOException {
+        bais.reset();
+        context.read(output, bais);
+        return output;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(JMHContextTest.class.getSimpleName()).addProfiler(GCProfiler.class).forks(1).build()).run();
+    }
+}
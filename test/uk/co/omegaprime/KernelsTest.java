@@ -0,0 +1,63 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class KernelsTest {
+    private final Random random = new Random(1337);
+
+    @Test
+    public void unzigzagAgreesWithScalarModuloWidth() {
+        final short[] shorts = new short[1000];
+        final int[] ints23 = new int[1000], ints32 = new int[1000];
+        final long[] longs52 = new long[1000], longs64 = new long[1000];
+        for (int i = 0; i < 1000; i++) {
+            shorts[i] = (short)random.nextInt(0x800);
+            ints23[i] = random.nextInt(0x800000);
+            ints32[i] = random.nextInt();
+            longs52[i] = random.nextLong() & 0xFFFFFFFFFFFFFL;
+            longs64[i] = random.nextLong();
+        }
+
+        final short[] shortsOut = shorts.clone();
+        Kernels.unzigzag(shortsOut, 0, shortsOut.length);
+        final int[] ints23Out = ints23.clone(), ints32Out = ints32.clone();
+        Kernels.unzigzag(ints23Out, 0, ints23Out.length);
+        Kernels.unzigzag(ints32Out, 0, ints32Out.length);
+        final long[] longs52Out = longs52.clone(), longs64Out = longs64.clone();
+        Kernels.unzigzag(longs52Out, 0, longs52Out.length);
+        Kernels.unzigzag(longs64Out, 0, longs64Out.length);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Conditioner.unsigned2twos11(shorts[i]), shortsOut[i] & 0x7FF);
+            assertEquals(Conditioner.unsigned2twos23(ints23[i]), ints23Out[i] & 0x7FFFFF);
+            assertEquals(Conditioner.unsigned2twos32(ints32[i]), ints32Out[i]);
+            assertEquals(Conditioner.unsigned2twos52(longs52[i]), longs52Out[i] & 0xFFFFFFFFFFFFFL);
+            assertEquals(Conditioner.unsigned2twos64(longs64[i]), longs64Out[i]);
+        }
+    }
+
+    @Test
+    public void planesRoundTrip() {
+        final long[] xs = new long[1001];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = random.nextLong();
+        }
+
+        final long[] ys = new long[xs.length + 2];
+        final byte[] plane = new byte[xs.length];
+        for (int shift = 0; shift < 64; shift += 8) {
+            Kernels.extractPlane(xs, 0, xs.length, shift, plane);
+            for (int i = 0; i < xs.length; i++) {
+                assertEquals((byte)(xs[i] >>> shift), plane[i]);
+            }
+            Kernels.depositPlane(plane, ys, 1, xs.length, shift);
+        }
+
+        assertArrayEquals(xs, java.util.Arrays.copyOfRange(ys, 1, xs.length + 1));
+    }
+}
@@ -0,0 +1,181 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LazyDoubleReaderTest {
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bs, int off, int len) throws IOException {
+            final int n = super.read(bs, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static double[] example(int n) throws IOException {
+        final double[] xs = Arrays.copyOf(Utils.floatsToDoubles(Utils.getExampleData()), n);
+        final Random random = new Random(1337);
+        for (int i = 0; i < n; i++) {
+            switch (random.nextInt(12)) {
+                case 0:  xs[i] = Double.NaN; break;
+                case 1:  xs[i] = 0.0; break;
+                case 2:  xs[i] = -xs[i]; break;
+                case 3:  xs[i] = Double.longBitsToDouble(random.nextLong()); break;
+                default: break;
+            }
+        }
+        return xs;
+    }
+
+    private static List<DoubleContext> contexts() {
+        final List<DoubleContext> result = new ArrayList<>();
+        for (boolean specialCases : new boolean[] { true, false }) {
+            for (Conditioner.Coding coding : Conditioner.Coding.values()) {
+                result.add(new DoubleContext(new Conditioner(specialCases), coding, new int[] { 1, 1 }, coding, new int[] { 1, 1, 1, 1, 1, 1, 1 }));
+                result.add(new DoubleContext(new Conditioner(specialCases), coding, new int[] { 2 }, coding, new int[] { 3, 4 }));
+            }
+        }
+        return result;
+    }
+
+    private static BitSet expected(double[] xs, boolean negatives) {
+        final BitSet result = new BitSet();
+        for (int i = 0; i < xs.length; i++) {
+            if (negatives ? Double.doubleToRawLongBits(xs[i]) < 0 : xs[i] != xs[i]) result.set(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void descriptorQueriesReadOnlyDescriptors() throws IOException {
+        for (int n : new int[] { 0, 1, 5, 8, 1001 }) {
+            final double[] xs = example(n), ys = example(n + 7);
+            for (DoubleContext context : contexts()) {
+                // Two blocks back to back, to check that skipping lands on the second
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                context.write(xs, baos);
+                final int firstBlock = baos.size();
+                context.write(ys, baos);
+
+                final double[] decoded = new double[n];
+                context.read(decoded, new ByteArrayInputStream(baos.toByteArray()));
+
+                final CountingInputStream is = new CountingInputStream(new ByteArrayInputStream(baos.toByteArray()));
+                final LazyDoubleReader reader = new LazyDoubleReader(context);
+                reader.reset(is, n);
+                assertEquals(expected(decoded, true), reader.negatives());
+                assertEquals(1, reader.sectionsRead());
+                assertEquals(context.specialCases() ? (n + 3) / 4 : (n + 7) / 8, is.count);
+                assertEquals(expected(decoded, false), reader.nulls());
+
+                reader.skipRest();
+                assertEquals(firstBlock, is.count);
+
+                final double[] read = new double[n + 7];
+                reader.reset(is, n + 7);
+                reader.read(read, 0);
+                assertArrayEquals(ys.length == 0 ? ys : decodedOf(context, ys), read, 0.0);
+                assertEquals(baos.size(), is.count);
+            }
+        }
+    }
+
+    private static double[] decodedOf(DoubleContext context, double[] xs) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        context.write(xs, baos);
+        final double[] result = new double[xs.length];
+        context.read(result, new ByteArrayInputStream(baos.toByteArray()));
+        return result;
+    }
+
+    private static double[] magnitudesOf(double[] decoded, boolean specialCases) {
+        final double[] result = new double[decoded.length];
+        for (int i = 0; i < decoded.length; i++) {
+            final double x = decoded[i];
+            result[i] = specialCases && x != x ? x : Double.longBitsToDouble(Double.doubleToRawLongBits(x) & 0xFFF0000000000000L);
+        }
+        return result;
+    }
+
+    @Test
+    public void sectionsCanBeTakenInAnyOrder() throws IOException {
+        final double[] xs = example(777);
+        for (DoubleContext context : contexts()) {
+            final double[] decoded = decodedOf(context, xs);
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            context.write(xs, baos);
+            final LazyDoubleReader reader = new LazyDoubleReader(context);
+
+            // A section at a time...
+            reader.reset(new ByteArrayInputStream(baos.toByteArray()), xs.length);
+            final int defined = reader.defined();
+            final double[] magnitudes = new double[xs.length];
+            reader.magnitudes(magnitudes, 0);
+            assertEquals(2, reader.sectionsRead());
+            assertArrayEquals(magnitudesOf(decoded, context.specialCases()), magnitudes, 0.0);
+            final double[] values = new double[xs.length + 1];
+            reader.read(values, 1);
+            assertArrayEquals(decoded, Arrays.copyOfRange(values, 1, values.length), 0.0);
+
+            // ...or all at once, with the same answers afterwards
+            reader.reset(new ByteArrayInputStream(baos.toByteArray()), xs.length);
+            reader.read(values, 0);
+            assertArrayEquals(decoded, Arrays.copyOf(values, xs.length), 0.0);
+            assertEquals(defined, reader.defined());
+            assertEquals(expected(decoded, false), reader.nulls());
+            assertEquals(expected(decoded, true), reader.negatives());
+            reader.magnitudes(magnitudes, 0);
+            assertArrayEquals(magnitudesOf(decoded, context.specialCases()), magnitudes, 0.0);
+        }
+    }
+
+    @Test
+    public void blockReaderHandsOutLazyReaders() throws IOException {
+        final double[] xs = example(3000);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (BlockWriter writer = new BlockWriter(baos, new DoubleContext(), false, true)) {
+            writer.write(xs, 0, 1000);
+            writer.write(xs, 1000, 2000);
+        }
+
+        final BlockReader reader = new BlockReader(ByteBuffer.wrap(baos.toByteArray()));
+        final LazyDoubleReader lazy = reader.lazy(1);
+        assertEquals(expected(Arrays.copyOfRange(decodedOf(new DoubleContext(), xs), 1000, 3000), false), lazy.nulls());
+        assertEquals(1, lazy.sectionsRead());
+    }
+}
@@ -0,0 +1,103 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsListenerTest {
+    private static class RecordingListener implements MetricsListener {
+        public final List<BlockMetrics> encodes = new ArrayList<>();
+        public final List<BlockMetrics> decodes = new ArrayList<>();
+
+        @Override
+        public void onEncode(BlockMetrics metrics) {
+            encodes.add(metrics);
+        }
+
+        @Override
+        public void onDecode(BlockMetrics metrics) {
+            decodes.add(metrics);
+        }
+    }
+
+    @Test
+    public void encodeAndDecodeReportConsistentMetrics() throws IOException {
+        final double[] xs = new double[] { 1.0, 0.0, Double.NaN, -2.5, 3.0, 0.0, 4.0 };
+
+        final RecordingListener listener = new RecordingListener();
+        final Conditioner conditioner = new Conditioner(true, listener);
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        conditioner.conditionDouble(Conditioner.writeDoubleExponentsLiteral(new int[] { 1, 1 }),
+                                    Conditioner.writeDoubleMantissasDelta(new int[] { 1, 1, 1, 1, 1, 1, 1 })).write(xs, baos);
+
+        final double[] ys = new double[xs.length];
+        conditioner.unconditionDouble(Conditioner.readDoubleExponentsLiteral(new int[] { 1, 1 }),
+                                      Conditioner.readDoubleMantissasDelta(new int[] { 1, 1, 1, 1, 1, 1, 1 })).read(ys, new ByteArrayInputStream(baos.toByteArray()));
+        assertArrayEquals(xs, ys, 0.0);
+
+        assertEquals(1, listener.encodes.size());
+        assertEquals(1, listener.decodes.size());
+        for (BlockMetrics metrics : new BlockMetrics[] { listener.encodes.get(0), listener.decodes.get(0) }) {
+            assertEquals(7, metrics.count);
+            assertEquals(4, metrics.defined);
+            assertEquals(2, metrics.zeros);
+            assertEquals(1, metrics.nans);
+            assertEquals(2, metrics.descriptorBytes);
+            assertEquals(4 * 2, metrics.exponentBytes);
+            assertEquals(baos.size(), metrics.totalBytes());
+            assertTrue(metrics.mantissaEntropy >= 0 && metrics.mantissaEntropy <= 8);
+            assertTrue(metrics.estimatedEntropyBytes() <= metrics.totalBytes());
+        }
+        assertTrue(listener.encodes.get(0).encode);
+        assertTrue(!listener.decodes.get(0).encode);
+    }
+
+    @Test
+    public void trimmedMantissasStillReportMetrics() throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+
+        final RecordingListener listener = new RecordingListener();
+        final DoubleContext context = new DoubleContext(new Conditioner(true, listener), Conditioner.Coding.LITERAL, new int[] { 1, 1 },
+                                                        Conditioner.Coding.DELTA, new int[] { 1, 1, 1, 1, 1, 1, 1 }, true);
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        context.write(xs, baos);
+        final double[] ys = new double[xs.length];
+        context.read(ys, new ByteArrayInputStream(baos.toByteArray()));
+        assertArrayEquals(xs, ys, 0.0);
+
+        assertEquals(1, listener.encodes.size());
+        assertEquals(1, listener.decodes.size());
+        for (BlockMetrics metrics : new BlockMetrics[] { listener.encodes.get(0), listener.decodes.get(0) }) {
+            assertEquals(xs.length, metrics.count);
+            assertEquals(xs.length, metrics.defined);
+            // A shift byte, then widened floats' 23 bits of mantissa in 3 bytes each
+            assertEquals(1 + 3L * xs.length, metrics.mantissaBytes);
+            assertEquals(baos.size(), metrics.totalBytes());
+        }
+    }
+
+    @Test
+    public void floatMetricsCoverWholeStream() throws IOException {
+        final float[] xs = Utils.getExampleData();
+
+        final RecordingListener listener = new RecordingListener();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new Conditioner(false, listener).conditionFloat(Conditioner.writeFloatExponentsDelta(),
+                                                        Conditioner.writeFloatMantissasLiteral(new int[] { 1, 1, 1 })).write(xs, baos);
+
+        final BlockMetrics metrics = listener.encodes.get(0);
+        assertEquals(xs.length, metrics.defined);
+        assertEquals((xs.length + 7) / 8, metrics.descriptorBytes);
+        assertEquals(baos.size(), metrics.totalBytes());
+    }
+}
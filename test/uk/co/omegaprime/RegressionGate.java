@@ -0,0 +1,275 @@
+package uk.co.omegaprime;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Runs a fixed codec/compressor suite over the example data and records compressed size and encode/decode
+// speed for each combination as TSV, so that results can be diffed against a committed baseline rather than
+// against numbers pasted into comments.
+//
+// Only JDK compressors are used so that the suite gives identical sizes on any machine. Throughput is
+// inherently noisy, so it gets a much looser tolerance than size does.
+public class RegressionGate {
+    static final String BASELINE_RESOURCE = "regression-baseline.tsv";
+
+    static final double SIZE_TOLERANCE = 0.01;
+    static final double THROUGHPUT_TOLERANCE = 0.25;
+
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASUREMENT_ITERATIONS = 30;
+
+    private interface IOFunction<A, B> {
+        public B apply(A a) throws IOException;
+    }
+
+    public static class Result {
+        public final String name;
+        public final long compressedBytes;
+        public final double encodeNanosPerValue;
+        public final double decodeNanosPerValue;
+
+        public Result(String name, long compressedBytes, double encodeNanosPerValue, double decodeNanosPerValue) {
+            this.name = name;
+            this.compressedBytes = compressedBytes;
+            this.encodeNanosPerValue = encodeNanosPerValue;
+            this.decodeNanosPerValue = decodeNanosPerValue;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s\t%d\t%.3f\t%.3f", name, compressedBytes, encodeNanosPerValue, decodeNanosPerValue);
+        }
+    }
+
+    private static class Compressor {
+        public final String name;
+        public final IOFunction<OutputStream, OutputStream> mkCompressor;
+        public final IOFunction<InputStream, InputStream> mkUncompressor;
+
+        public Compressor(String name, IOFunction<OutputStream, OutputStream> mkCompressor, IOFunction<InputStream, InputStream> mkUncompressor) {
+            this.name = name;
+            this.mkCompressor = mkCompressor;
+            this.mkUncompressor = mkUncompressor;
+        }
+    }
+
+    private static List<Compressor> compressors() {
+        return Arrays.asList(
+            new Compressor("None",            x -> x,                                                                x -> x),
+            new Compressor("Deflate Fastest", os -> new DeflaterOutputStream(os, new Deflater(Deflater.BEST_SPEED)), InflaterInputStream::new)
+        );
+    }
+
+    private static float[] returns(float[] vod) {
+        final float[] returns = new float[vod.length];
+        returns[0] = 1f;
+        for (int i = 1; i < vod.length; i++) {
+            returns[i] = (vod[i] / vod[i - 1]) - 1f;
+        }
+        return returns;
+    }
+
+    private static float[] knockout(float[] xs, double knockout) {
+        final Random r = new Random(1337);
+        final float[] ys = xs.clone();
+        for (int i = 0; i < ys.length; i++) {
+            if (r.nextDouble() < knockout) {
+                ys[i] = Float.NaN;
+            }
+        }
+        return ys;
+    }
+
+    private static Map<String, float[]> datasets() throws IOException {
+        final float[] vod = Utils.getExampleData();
+
+        final Map<String, float[]> result = new LinkedHashMap<>();
+        result.put("Prices",         vod);
+        result.put("Returns",        returns(vod));
+        result.put("Prices 50% NaN", knockout(vod, 0.5));
+        return result;
+    }
+
+    public static List<Result> measure() throws IOException {
+        final List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, float[]> dataset : datasets().entrySet()) {
+            final float[] floats = dataset.getValue();
+            final double[] doubles = Utils.floatsToDoubles(floats);
+            for (Compressor compressor : compressors()) {
+                final String prefix = dataset.getKey() + "\t" + compressor.name + "\t";
+                results.add(measure(prefix + "float\tUnsplit Literal [1, 1, 1, 1]", compressor, floats, new float[floats.length],
+                                    Conditioner.writeFloatLiteral(new int[] { 1, 1, 1, 1 }), Conditioner.readFloatLiteral(new int[] { 1, 1, 1, 1 })));
+                results.add(measure(prefix + "float\tConditioned default", compressor, floats, new float[floats.length],
+                                    Conditioner::writeFloat, Conditioner::readFloat));
+                results.add(measure(prefix + "double\tUnsplit Delta [1, 1, 1, 1, 1, 1, 1, 1]", compressor, doubles, new double[doubles.length],
+                                    Conditioner.writeDoubleDelta(new int[] { 1, 1, 1, 1, 1, 1, 1, 1 }), Conditioner.readDoubleDelta(new int[] { 1, 1, 1, 1, 1, 1, 1, 1 })));
+                results.add(measure(prefix + "double\tConditioned default", compressor, doubles, new double[doubles.length],
+                                    Conditioner::writeDouble, Conditioner::readDouble));
+            }
+        }
+        return results;
+    }
+
+    private static <T> Result measure(String name, Compressor compressor, T input, T output,
+                                      Conditioner.Writer<T> writer, Conditioner.Reader<T> reader) throws IOException {
+        final int length = java.lang.reflect.Array.getLength(input);
+
+        byte[] compressed = null;
+        final long[] encodeNanos = new long[MEASUREMENT_ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < MEASUREMENT_ITERATIONS; i++) {
+            final long start = System.nanoTime();
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (OutputStream os = compressor.mkCompressor.apply(baos)) {
+                writer.write(input, os);
+            }
+            final long end = System.nanoTime();
+            if (i >= 0) encodeNanos[i] = end - start;
+            compressed = baos.toByteArray();
+        }
+
+        final long[] decodeNanos = new long[MEASUREMENT_ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < MEASUREMENT_ITERATIONS; i++) {
+            // Readers overwrite every slot, but clearing means a reader that skipped some would be caught by the
+            // round trip check below rather than hidden by the previous iteration's output
+            clear(output);
+
+            final long start = System.nanoTime();
+            try (InputStream is = compressor.mkUncompressor.apply(new ByteArrayInputStream(compressed))) {
+                reader.read(output, is);
+            }
+            final long end = System.nanoTime();
+            if (i >= 0) decodeNanos[i] = end - start;
+        }
+
+        if (!Objects.deepEquals(bits(input), bits(output))) {
+            throw new IllegalStateException(name + " did not round trip");
+        }
+
+        return new Result(name, compressed.length, (double)median(encodeNanos) / length, (double)median(decodeNanos) / length);
+    }
+
+    private static void clear(Object xs) {
+        if (xs instanceof float[]) {
+            Arrays.fill((float[])xs, 0f);
+        } else {
+            Arrays.fill((double[])xs, 0.0);
+        }
+    }
+
+    // Compare bit patterns so that NaNs count as equal to themselves
+    private static Object bits(Object xs) {
+        if (xs instanceof float[]) {
+            final float[] floats = (float[])xs;
+            final int[] result = new int[floats.length];
+            for (int i = 0; i < floats.length; i++) result[i] = Float.floatToRawIntBits(floats[i]);
+            return result;
+        } else {
+            final double[] doubles = (double[])xs;
+            final long[] result = new long[doubles.length];
+            for (int i = 0; i < doubles.length; i++) result[i] = Double.doubleToRawLongBits(doubles[i]);
+            return result;
+        }
+    }
+
+    private static long median(long[] xs) {
+        final long[] sorted = xs.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    public static void write(List<Result> results, Writer w) throws IOException {
+        w.write("dataset\tcompressor\ttype\tcodec\tbytes\tencode_ns_per_value\tdecode_ns_per_value\n");
+        for (Result result : results) {
+            w.write(result.toString());
+            w.write('\n');
+        }
+        w.flush();
+    }
+
+    public static Map<String, Result> read(Reader r) throws IOException {
+        final Map<String, Result> result = new LinkedHashMap<>();
+        final BufferedReader br = new BufferedReader(r);
+        br.readLine(); // Header
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            final String[] parts = line.split("\t");
+            final String name = String.join("\t", Arrays.asList(parts).subList(0, 4));
+            result.put(name, new Result(name, Long.parseLong(parts[4]), Double.parseDouble(parts[5]), Double.parseDouble(parts[6])));
+        }
+        return result;
+    }
+
+    public static Map<String, Result> readBaseline() throws IOException {
+        try (InputStream is = RegressionGate.class.getResourceAsStream(BASELINE_RESOURCE)) {
+            if (is == null) throw new FileNotFoundException(BASELINE_RESOURCE);
+            return read(new InputStreamReader(is, "UTF-8"));
+        }
+    }
+
+    // Returns a description of each way in which the current results are worse than the baseline. A benchmark
+    // that is only in one or the other counts too, since otherwise renaming or dropping one would let it through
+    // unmeasured: --update-baseline is how to say that the change was meant.
+    public static List<String> compare(Map<String, Result> baseline, List<Result> current, boolean checkThroughput) {
+        final List<String> regressions = new ArrayList<>();
+        final Set<String> measured = new HashSet<>();
+        for (Result now : current) {
+            measured.add(now.name);
+            final Result then = baseline.get(now.name);
+            if (then == null) {
+                regressions.add(String.format("%s: not in the baseline", now.name.replace('\t', ' ')));
+                continue;
+            }
+
+            if (now.compressedBytes > then.compressedBytes * (1 + SIZE_TOLERANCE)) {
+                regressions.add(String.format("%s: size %d bytes vs baseline %d", now.name.replace('\t', ' '), now.compressedBytes, then.compressedBytes));
+            }
+
+            if (checkThroughput) {
+                if (now.encodeNanosPerValue > then.encodeNanosPerValue * (1 + THROUGHPUT_TOLERANCE)) {
+                    regressions.add(String.format("%s: encode %.3f ns/value vs baseline %.3f", now.name.replace('\t', ' '), now.encodeNanosPerValue, then.encodeNanosPerValue));
+                }
+                if (now.decodeNanosPerValue > then.decodeNanosPerValue * (1 + THROUGHPUT_TOLERANCE)) {
+                    regressions.add(String.format("%s: decode %.3f ns/value vs baseline %.3f", now.name.replace('\t', ' '), now.decodeNanosPerValue, then.decodeNanosPerValue));
+                }
+            }
+        }
+        for (String name : baseline.keySet()) {
+            if (!measured.contains(name)) regressions.add(String.format("%s: in the baseline but no longer measured", name.replace('\t', ' ')));
+        }
+        return regressions;
+    }
+
+    // Usage: RegressionGate [results.tsv] [--update-baseline]
+    //
+    // Exits with a non-zero status if anything has regressed, so this can be used directly as a CI step.
+    public static void main(String[] args) throws IOException {
+        final List<String> argList = Arrays.asList(args);
+        final boolean updateBaseline = argList.contains("--update-baseline");
+        final String resultsFile = argList.stream().filter(x -> !x.startsWith("--")).findFirst().orElse("regression-results.tsv");
+
+        final List<Result> results = measure();
+        try (java.io.Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(resultsFile), "UTF-8"))) {
+            write(results, w);
+        }
+        System.out.println("Wrote " + results.size() + " results to " + resultsFile);
+
+        if (updateBaseline) {
+            try (java.io.Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("test/uk/co/omegaprime/" + BASELINE_RESOURCE), "UTF-8"))) {
+                write(results, w);
+            }
+            System.out.println("Updated baseline");
+            return;
+        }
+
+        final List<String> regressions = compare(readBaseline(), results, true);
+        for (String regression : regressions) {
+            System.err.println(regression);
+        }
+        if (!regressions.isEmpty()) System.err.println("If these changes are intended, rerun with --update-baseline");
+        System.exit(regressions.isEmpty() ? 0 : 1);
+    }
+}
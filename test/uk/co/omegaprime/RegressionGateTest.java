@@ -0,0 +1,52 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegressionGateTest {
+    @Test
+    public void noRegressionsAgainstBaseline() throws IOException {
+        // Timings from a shared CI box are too noisy to gate on by default: pass -Dregression.throughput=true
+        // when running on the machine that produced the baseline.
+        final boolean checkThroughput = Boolean.getBoolean("regression.throughput");
+
+        final Map<String, RegressionGate.Result> baseline = RegressionGate.readBaseline();
+        final List<RegressionGate.Result> current = RegressionGate.measure();
+        assertEquals(baseline.size(), current.size());
+
+        final List<String> regressions = RegressionGate.compare(baseline, current, checkThroughput);
+        assertTrue(String.join("\n", regressions), regressions.isEmpty());
+    }
+
+    @Test
+    public void compareFlagsSizeRegressions() {
+        final RegressionGate.Result then = new RegressionGate.Result("x", 1000, 1.0, 1.0);
+        final RegressionGate.Result now  = new RegressionGate.Result("x", 1100, 1.0, 1.0);
+        assertEquals(1, RegressionGate.compare(Collections.singletonMap("x", then), Arrays.asList(now), false).size());
+        assertEquals(0, RegressionGate.compare(Collections.singletonMap("x", now), Arrays.asList(then), false).size());
+    }
+
+    @Test
+    public void compareFlagsBenchmarksMissingFromEitherSide() {
+        final RegressionGate.Result x = new RegressionGate.Result("x", 1000, 1.0, 1.0);
+        final RegressionGate.Result y = new RegressionGate.Result("y", 1000, 1.0, 1.0);
+        final List<String> regressions = RegressionGate.compare(Collections.singletonMap("x", x), Arrays.asList(y), false);
+        assertEquals(Arrays.asList("y: not in the baseline", "x: in the baseline but no longer measured"), regressions);
+    }
+
+    @Test
+    public void compareOnlyFlagsThroughputWhenAsked() {
+        final RegressionGate.Result then = new RegressionGate.Result("x", 1000, 1.0, 1.0);
+        final RegressionGate.Result now  = new RegressionGate.Result("x", 1000, 2.0, 2.0);
+        assertEquals(0, RegressionGate.compare(Collections.singletonMap("x", then), Arrays.asList(now), false).size());
+        assertEquals(2, RegressionGate.compare(Collections.singletonMap("x", then), Arrays.asList(now), true).size());
+    }
+}
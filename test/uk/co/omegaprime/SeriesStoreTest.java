@@ -0,0 +1,159 @@
+package uk.co.omegaprime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static uk.co.omegaprime.Utils.assertHolds;
+import static uk.co.omegaprime.Utils.exampleTimestamps;
+import static uk.co.omegaprime.Utils.exampleValues;
+import static uk.co.omegaprime.Utils.openStore;
+import static uk.co.omegaprime.Utils.scan;
+
+public class SeriesStoreTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsMergeSegmentsWithTheBuffer() throws IOException {
+        final int n = 1234;
+        final long[] ts = exampleTimestamps(n);
+        final double[] xs = exampleValues(n);
+        try (SeriesStore store = openStore(folder.getRoot().toPath())) {
+            final Series series = store.series("VOD.L");
+            series.append(ts, xs, 0, 1000);
+            for (int i = 1000; i < n; i++) series.append(ts[i], xs[i]);
+
+            // 12 full blocks make 4 sealed segments, and the rest is still in the buffer
+            assertEquals(4, series.segments().size());
+            assertHolds(series, ts, xs, n);
+
+            // Partial ranges cut through segments and the buffer alike
+            for (int[] range : new int[][] { { 0, 1 }, { 150, 450 }, { 299, 300 }, { 1100, 1234 }, { 250, 1210 } }) {
+                final long from = ts[range[0]], to = range[1] == n ? Long.MAX_VALUE : ts[range[1]];
+                int lo = range[0], hi = range[1];
+                while (lo > 0 && ts[lo - 1] == from) lo--;
+                while (hi < n && ts[hi - 1] == to) hi--;
+
+                final Object[] contents = scan(series, from, to);
+                assertArrayEquals(Arrays.copyOfRange(ts, lo, hi), (long[])contents[0]);
+                assertArrayEquals(Arrays.copyOfRange(xs, lo, hi), (double[])contents[1], 0.0);
+            }
+
+            // Flushing puts the buffer into an open segment, which reads see too
+            series.flush();
+            assertEquals(4, series.segments().size());
+            assertHolds(series, ts, xs, n);
+        }
+
+        assertEquals(Arrays.asList("VOD.L"), openStore(folder.getRoot().toPath()).names());
+    }
+
+    @Test
+    public void closingSealsEverything() throws IOException {
+        final int n = 750;
+        final long[] ts = exampleTimestamps(n);
+        final double[] xs = exampleValues(n);
+        try (SeriesStore store = openStore(folder.getRoot().toPath())) {
+            store.series("a").append(ts, xs, 0, n);
+        }
+
+        try (SeriesStore store = openStore(folder.getRoot().toPath())) {
+            final Series series = store.series("a");
+            assertHolds(series, ts, xs, n);
+            try (Stream<Path> files = Files.list(series.directory())) {
+                assertFalse(files.anyMatch(path -> path.toString().endsWith(Series.OPEN)));
+            }
+        }
+    }
+
+    @Test
+    public void recoversFlushedBlocksAfterACrash() throws IOException {
+        final int n = 450;
+        final long[] ts = exampleTimestamps(n);
+        final double[] xs = exampleValues(n);
+
+        // Never closed, as if the process died: the first 300 values are in sealed segments, the next 100 in the
+        // open one, and the last 50 were still buffered
+        final Series crashed = openStore(folder.getRoot().toPath()).series("a");
+        crashed.append(ts, xs, 0, n);
+        final Path open = crashed.directory().resolve(String.format("%08d", 1) + Series.OPEN);
+        assertTrue(Files.exists(open));
+
+        // A block that was half way onto disk when it happened
+        Files.write(open, new byte[] { 0, 0, 0, 100, 0, 0, 1 }, StandardOpenOption.APPEND);
+
+        try (SeriesStore store = openStore(folder.getRoot().toPath())) {
+            final Series series = store.series("a");
+            assertEquals(2, series.segments().size());
+            assertHolds(series, ts, xs, 400);
+
+            // Appending carries on from the recovered data
+            series.append(ts, xs, 400, n - 400);
+            assertHolds(series, ts, xs, n);
+        }
+    }
+
+    @Test
+    public void finishesInterruptedSeal() throws IOException {
+        final int n = 300;
+        final long[] ts = exampleTimestamps(n);
+        final double[] xs = exampleValues(n);
+        try (SeriesStore store = openStore(folder.getRoot().toPath())) {
+            store.series("a").append(ts, xs, 0, n);
+        }
+
+        // As if the process died after writing the manifest but before the rename, and left an orphan behind
+        final Path directory = folder.getRoot().toPath().resolve("a");
+        Files.move(directory.resolve("00000000" + Series.SEALED), directory.resolve("00000000" + Series.OPEN), StandardCopyOption.ATOMIC_MOVE);
+        Files.write(directory.resolve("00000007" + Series.SEALED), new byte[] { 1, 2, 3 });
+
+        try (SeriesStore store = openStore(folder.getRoot().toPath())) {
+            final Series series = store.series("a");
+            assertEquals(Arrays.asList("00000000" + Series.SEALED), series.segments());
+            assertHolds(series, ts, xs, n);
+        }
+        assertFalse(Files.exists(directory.resolve("00000007" + Series.SEALED)));
+    }
+
+    @Test
+    public void timestampsMustNotGoBackwards() throws IOException {
+        try (SeriesStore store = openStore(folder.getRoot().toPath())) {
+            final Series series = store.series("a");
+            series.append(10, 1.0);
+            series.close();
+        }
+
+        try (SeriesStore store = openStore(folder.getRoot().toPath())) {
+            final Series series = store.series("a");
+            series.append(10, 2.0);
+            try {
+                series.append(9, 3.0);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            assertHolds(series, new long[] { 10, 10 }, new double[] { 1.0, 2.0 }, 2);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNamesThatAreNotDirectories() throws IOException {
+        try (SeriesStore store = openStore(folder.getRoot().toPath())) {
+            store.series("../escape");
+        }
+    }
+}
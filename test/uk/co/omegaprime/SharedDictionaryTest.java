@@ -0,0 +1,84 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SharedDictionaryTest {
+    private static final int SERIES_LENGTH = 32;
+
+    // The example data cut up into many short series, alternately for training and for testing
+    private static List<double[]> series(int parity) throws IOException {
+        final double[] xs = Utils.floatsToDoubles(Utils.getExampleData());
+        final List<double[]> result = new ArrayList<>();
+        for (int i = 0; (i + 1) * SERIES_LENGTH <= xs.length; i++) {
+            if (i % 2 == parity) result.add(Arrays.copyOfRange(xs, i * SERIES_LENGTH, (i + 1) * SERIES_LENGTH));
+        }
+        return result;
+    }
+
+    @Test
+    public void dictionaryShrinksShortSeries() throws IOException {
+        final DoubleContext context = new DoubleContext();
+        final SharedDictionary dictionary = SharedDictionary.train(context, series(0), 4096);
+        assertTrue(dictionary.size() <= 4096);
+
+        long withDictionary = 0, without = 0;
+        try (SharedDictionary.Coder coder = dictionary.coder()) {
+            for (double[] xs : series(1)) {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                coder.write(context, xs, 0, xs.length, baos);
+                withDictionary += baos.size();
+
+                final double[] ys = new double[xs.length];
+                coder.read(context, ys, 0, ys.length, new ByteArrayInputStream(baos.toByteArray()));
+                assertArrayEquals(xs, ys, 0.0);
+
+                final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+                try (DeflaterOutputStream dos = new DeflaterOutputStream(plain)) {
+                    context.write(xs, dos);
+                }
+                without += plain.size();
+            }
+        }
+        assertTrue(withDictionary + " vs " + without, withDictionary < without * 0.9);
+    }
+
+    @Test
+    public void dictionaryRoundTripsThroughAStream() throws IOException {
+        final SharedDictionary dictionary = SharedDictionary.train(new DoubleContext(), series(0), SharedDictionary.MAX_SIZE);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dictionary.write(baos);
+        final SharedDictionary read = SharedDictionary.read(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals(dictionary.size(), read.size());
+        assertEquals(dictionary.id(), read.id());
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongDictionaryIsRejected() throws IOException {
+        final DoubleContext context = new DoubleContext();
+        final SharedDictionary right = SharedDictionary.train(context, series(0), 4096);
+        final SharedDictionary wrong = SharedDictionary.train(context, series(1), 4096);
+
+        final double[] xs = series(1).get(0);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (SharedDictionary.Coder coder = right.coder()) {
+            coder.write(context, xs, 0, xs.length, baos);
+        }
+        try (SharedDictionary.Coder coder = wrong.coder()) {
+            coder.read(context, new double[xs.length], 0, xs.length, new ByteArrayInputStream(baos.toByteArray()));
+        }
+    }
+}
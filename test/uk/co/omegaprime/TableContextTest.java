@@ -0,0 +1,142 @@
+package uk.co.omegaprime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TableContextTest {
+    // Bars of four ticks each, with a few bars missing entirely and the odd hole or oddity in just one column
+    private static double[][] bars() throws IOException {
+        final double[] ticks = Utils.floatsToDoubles(Utils.getExampleData());
+        final int n = ticks.length / 4;
+        final double[][] bars = new double[5][n];
+        final Random random = new Random(1337);
+        for (int i = 0; i < n; i++) {
+            if (random.nextInt(20) == 0) {
+                for (double[] column : bars) column[i] = Double.NaN;
+                continue;
+            }
+
+            bars[TableContext.OPEN][i] = ticks[4 * i];
+            bars[TableContext.HIGH][i] = Math.max(Math.max(ticks[4 * i], ticks[4 * i + 1]), Math.max(ticks[4 * i + 2], ticks[4 * i + 3]));
+            bars[TableContext.LOW][i] = Math.min(Math.min(ticks[4 * i], ticks[4 * i + 1]), Math.min(ticks[4 * i + 2], ticks[4 * i + 3]));
+            bars[TableContext.CLOSE][i] = ticks[4 * i + 3];
+            bars[TableContext.VOLUME][i] = random.nextInt(10) == 0 ? 0.0 : 100 * random.nextInt(1000);
+        }
+        bars[TableContext.HIGH][7] = Double.NaN;
+        bars[TableContext.LOW][8] = Double.NEGATIVE_INFINITY;
+        bars[TableContext.CLOSE][9] = -bars[TableContext.CLOSE][9];
+        bars[TableContext.VOLUME][10] = -0.0;
+        return bars;
+    }
+
+    private static void assertBitsEqual(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("at " + i, Double.doubleToRawLongBits(expected[i]), Double.doubleToRawLongBits(actual[i]));
+        }
+    }
+
+    @Test
+    public void tablesRoundTrip() throws IOException {
+        final double[][] bars = bars();
+        final int n = bars[0].length;
+        final TableContext context = TableContext.ohlcv();
+        for (int len : new int[] { 0, 1, 7, 8, 9, 100, n }) {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            context.write(bars, 0, len, baos);
+
+            // Into the middle of junk-filled arrays
+            final double[][] read = new double[5][len + 2];
+            for (double[] column : read) Arrays.fill(column, 123.0);
+            final ByteArrayInputStream is = new ByteArrayInputStream(baos.toByteArray());
+            context.read(read, 1, len, is);
+            assertEquals(0, is.available());
+            for (int c = 0; c < 5; c++) {
+                assertEquals(123.0, read[c][0], 0.0);
+                assertEquals(123.0, read[c][len + 1], 0.0);
+                assertBitsEqual(Arrays.copyOf(bars[c], len), Arrays.copyOfRange(read[c], 1, len + 1));
+            }
+        }
+    }
+
+    private static int deflatedSize(byte[] bytes) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DeflaterOutputStream os = new DeflaterOutputStream(baos)) {
+            os.write(bytes);
+        }
+        return baos.size();
+    }
+
+    @Test
+    public void sharedDescriptorsAndPredictionBeatSeparateColumns() throws IOException {
+        final double[][] bars = bars();
+        final int n = bars[0].length;
+
+        final ByteArrayOutputStream table = new ByteArrayOutputStream();
+        TableContext.ohlcv().write(bars, 0, n, table);
+
+        final ByteArrayOutputStream separate = new ByteArrayOutputStream();
+        final DoubleContext context = new DoubleContext();
+        for (double[] column : bars) context.write(column, separate);
+
+        assertTrue(table.size() + " vs " + separate.size(), table.size() < separate.size());
+        assertTrue(deflatedSize(table.toByteArray()) < deflatedSize(separate.toByteArray()));
+    }
+
+    @Test
+    public void projectionReadsOnlyWhatItNeeds() throws IOException {
+        final double[][] bars = bars();
+        final int n = bars[0].length;
+        final TableContext context = TableContext.ohlcv();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        context.write(bars, 0, n, baos);
+
+        // Volume alone, and close alone, which needs open decoding too but not handing back
+        final double[][] volume = new double[5][];
+        volume[TableContext.VOLUME] = new double[n];
+        context.read(volume, 0, n, new ByteArrayInputStream(baos.toByteArray()));
+        assertBitsEqual(bars[TableContext.VOLUME], volume[TableContext.VOLUME]);
+
+        final double[][] close = new double[5][];
+        close[TableContext.CLOSE] = new double[n];
+        context.read(close, 0, n, new ByteArrayInputStream(baos.toByteArray()));
+        assertBitsEqual(bars[TableContext.CLOSE], close[TableContext.CLOSE]);
+        assertNull(close[TableContext.OPEN]);
+    }
+
+    @Test
+    public void bitmapsMustAgreeWithTheRowCount() throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final TableContext context = TableContext.ohlcv();
+        context.write(bars(), 0, 100, baos);
+        final byte[] bytes = baos.toByteArray();
+        assertEquals(TableContext.FLAG_MISSING_ROWS, bytes[0]);
+
+        // Mark the first missing row as present
+        int k = 1;
+        while (bytes[k] == (byte)0xFF) k++;
+        bytes[k] |= Integer.lowestOneBit(~bytes[k] & 0xFF);
+        try {
+            context.read(new double[5][100], 0, 100, new ByteArrayInputStream(bytes));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("bitmap"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void referencesMustComeFirst() {
+        new TableContext(TableContext.Column.relativeTo(1), TableContext.Column.of());
+    }
+}
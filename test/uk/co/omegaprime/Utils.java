@@ -4,7 +4,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 public class Utils {
     public static double[] floatsToDoubles(float[] floats) {
@@ -47,4 +54,52 @@ public class Utils {
 
         return totalSkipped;
     }
+
+    // Small blocks and segments, so that even short test series span several of each
+    static final int SERIES_BLOCK_SIZE = 100;
+    static final int SERIES_SEGMENT_BLOCKS = 3;
+
+    static SeriesStore openStore(Path root) throws IOException {
+        return new SeriesStore(root, SERIES_BLOCK_SIZE, SERIES_SEGMENT_BLOCKS, DoubleContext::new);
+    }
+
+    // Irregularly spaced timestamps, with some repeated
+    static long[] exampleTimestamps(int n) {
+        final Random random = new Random(1337);
+        final long[] ts = new long[n];
+        long t = 1500000000000L;
+        for (int i = 0; i < n; i++) {
+            t += random.nextInt(4) == 0 ? 0 : random.nextInt(5000);
+            ts[i] = t;
+        }
+        return ts;
+    }
+
+    // The first n example values, with some NaNs
+    static double[] exampleValues(int n) throws IOException {
+        final double[] xs = Arrays.copyOf(floatsToDoubles(getExampleData()), n);
+        for (int i = 0; i < n; i += 17) xs[i] = Double.NaN;
+        return xs;
+    }
+
+    // Everything the series holds in [from, to), as timestamps followed by values
+    static Object[] scan(Series series, long from, long to) throws IOException {
+        final List<Long> ts = new ArrayList<>();
+        final List<Double> xs = new ArrayList<>();
+        series.scan(from, to, (timestamps, values, lo, hi) -> {
+            for (int i = lo; i < hi; i++) {
+                ts.add(timestamps[i]);
+                xs.add(values[i]);
+            }
+        });
+        return new Object[] { BlockIndex.toArray(ts), xs.stream().mapToDouble(x -> x).toArray() };
+    }
+
+    // The series holds exactly the first n of ts and xs
+    static void assertHolds(Series series, long[] ts, double[] xs, int n) throws IOException {
+        final Object[] contents = scan(series, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertArrayEquals(Arrays.copyOf(ts, n), (long[])contents[0]);
+        assertArrayEquals(Arrays.copyOf(xs, n), (double[])contents[1], 0.0);
+        assertEquals(n, series.valueCount());
+    }
 }